@@ -2,6 +2,7 @@ package freenet.client;
 
 import freenet.client.InsertContext.CompatibilityMode;
 import freenet.client.Metadata.SplitfileAlgorithm;
+import freenet.support.Executor;
 
 /** Simple in-memory-only API for FEC encoding/decoding. Does not queue or throttle; see 
  * MemoryLimitedJobRunner for how to deal with that. Caches and creates individual codec engines
@@ -43,11 +44,45 @@ public abstract class FECCodec {
     public abstract void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
             int blockLength);
 
+    /** Can this codec split a decode or encode across threads? If not, the threads passed to
+     * decode() and encode() are never used, so there is no point reserving them. */
+    public boolean canSplitWork() {
+        return false;
+    }
+
+    /** Execute a FEC decode as above, but split the work between the calling thread and up to
+     * threads jobs on the executor. Codecs which can't split a decode just run it on the calling
+     * thread. Returns when the decode has finished. */
+    public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent,
+            boolean[] checkBlocksPresent, int blockLength, Executor executor, int threads) {
+        decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, blockLength);
+    }
+
+    /** Execute a FEC encode as above, but split the work between the calling thread and up to
+     * threads jobs on the executor. */
+    public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
+            int blockLength, Executor executor, int threads) {
+        encode(dataBlocks, checkBlocks, checkBlocksPresent, blockLength);
+    }
+
+    /** If true, use TableFECCodec for ONION_STANDARD. It produces exactly the same blocks as
+     * OnionFECCodec, so this can be changed at any time. */
+    private static volatile boolean useTableCodec;
+
+    public static void setUseTableCodec(boolean useTable) {
+        useTableCodec = useTable;
+    }
+
+    public static boolean getUseTableCodec() {
+        return useTableCodec;
+    }
+
     public static FECCodec getInstance(SplitfileAlgorithm splitfileType) {
         switch(splitfileType) {
         case NONREDUNDANT:
             return null;
         case ONION_STANDARD:
+            if(useTableCodec) return new TableFECCodec();
             return new OnionFECCodec();
         default:
             throw new IllegalArgumentException();
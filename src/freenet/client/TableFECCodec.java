@@ -0,0 +1,349 @@
+package freenet.client;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.MemoryLimitedJobRunner;
+
+/** Reed-Solomon codec producing exactly the same blocks as OnionFECCodec, but without going
+ * through the onionnetworks Buffer API.
+ *
+ * The onion code is a systematic Vandermonde code over GF(2^8) (primitive polynomial
+ * x^8+x^4+x^3+x^2+1): block number r is the value at point x_r of the unique polynomial of
+ * degree less than k whose values at x_0 ... x_{k-1} are the data blocks, where x_0 = 0 and
+ * x_r = alpha^(r-1). We compute the same coefficients directly by Lagrange interpolation, and
+ * apply them with a 256-entry product table per coefficient, working through the blocks in
+ * stripes so that the inputs stay in cache while all the outputs are computed. Nothing is
+ * allocated per block. */
+public class TableFECCodec extends OnionFECCodec {
+
+    private static final int GF_SIZE = 255;
+    /** EXP[i] = alpha^i, doubled so that EXP[LOG[a]+LOG[b]] needs no modulo. */
+    private static final int[] EXP = new int[GF_SIZE*2];
+    private static final int[] LOG = new int[GF_SIZE+1];
+    /** MUL[a][b] = a*b. Row a is the product table for coefficient a. */
+    private static final byte[][] MUL = new byte[GF_SIZE+1][GF_SIZE+1];
+    /** Bytes of each block processed at a time. With 128 inputs this keeps the working set
+     * within a typical L2 cache. */
+    static final int STRIPE_SIZE = 2048;
+
+    static {
+        int x = 1;
+        for(int i=0;i<GF_SIZE;i++) {
+            EXP[i] = EXP[i+GF_SIZE] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if((x & 0x100) != 0) x ^= 0x11D;
+        }
+        for(int a=1;a<=GF_SIZE;a++)
+            for(int b=1;b<=GF_SIZE;b++)
+                MUL[a][b] = (byte) EXP[LOG[a]+LOG[b]];
+    }
+
+    static int mul(int a, int b) {
+        return MUL[a][b] & 0xFF;
+    }
+
+    static int inverse(int a) {
+        if(a == 0) throw new ArithmeticException();
+        return EXP[(GF_SIZE - LOG[a]) % GF_SIZE];
+    }
+
+    /** The evaluation point for block number r. */
+    private static int point(int r) {
+        return r == 0 ? 0 : EXP[r-1];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final SoftReference<byte[][]>[] encodeMatrices =
+        new SoftReference[MAX_TOTAL_BLOCKS_PER_SEGMENT+1];
+
+    /** Get the coefficients for every check block number with k data blocks. Row i is the row
+     * for block number k+i, with one column per data block. These only depend on k, so one
+     * matrix serves every n. Small enough (at most 64KB) to cache, but softly, as for
+     * OnionFECCodec. */
+    static synchronized byte[][] getEncodeMatrix(int k) {
+        SoftReference<byte[][]> ref = encodeMatrices[k];
+        byte[][] matrix = ref == null ? null : ref.get();
+        if(matrix != null) return matrix;
+        matrix = new byte[MAX_TOTAL_BLOCKS_PER_SEGMENT-k][];
+        for(int i=0;i<matrix.length;i++)
+            matrix[i] = encodeRow(k, k+i);
+        encodeMatrices[k] = new SoftReference<byte[][]>(matrix);
+        return matrix;
+    }
+
+    /** Lagrange coefficients of data blocks 0 ... k-1 for block number r, r >= k. Subtraction
+     * is XOR, and x_r differs from every x_m since r < 256. */
+    private static byte[] encodeRow(int k, int r) {
+        int xr = point(r);
+        int all = 1;
+        for(int m=0;m<k;m++)
+            all = mul(all, xr ^ point(m));
+        byte[] row = new byte[k];
+        for(int i=0;i<k;i++) {
+            int xi = point(i);
+            int denominator = xr ^ xi;
+            for(int m=0;m<k;m++) {
+                if(m == i) continue;
+                denominator = mul(denominator, xi ^ point(m));
+            }
+            row[i] = (byte) mul(all, inverse(denominator));
+        }
+        return row;
+    }
+
+    @Override
+    public boolean canSplitWork() {
+        return true;
+    }
+
+    @Override
+    public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
+            int blockLength) {
+        encode(dataBlocks, checkBlocks, checkBlocksPresent, blockLength, null, 0);
+    }
+
+    @Override
+    public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
+            int blockLength, Executor executor, int threads) {
+        int k = dataBlocks.length;
+        if(k + checkBlocks.length > MAX_TOTAL_BLOCKS_PER_SEGMENT)
+            throw new IllegalArgumentException();
+        for(int i=0;i<dataBlocks.length;i++) {
+            if(dataBlocks[i] == null || dataBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+        }
+        int mustEncode = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocks[i] == null || checkBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+            if(!checkBlocksPresent[i]) mustEncode++;
+        }
+        if(mustEncode == 0) return; // Done already.
+        byte[][] matrix = getEncodeMatrix(k);
+        byte[][] rows = new byte[mustEncode][];
+        byte[][] outputs = new byte[mustEncode][];
+        int x = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i]) continue;
+            rows[x] = matrix[i];
+            outputs[x++] = checkBlocks[i];
+        }
+        code(rows, dataBlocks, outputs, blockLength, executor, threads);
+    }
+
+    @Override
+    public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent,
+            boolean[] checkBlocksPresent, int blockLength) {
+        decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, blockLength, null, 0);
+    }
+
+    @Override
+    public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent,
+            boolean[] checkBlocksPresent, int blockLength, Executor executor, int threads) {
+        int k = dataBlocks.length;
+        if(k + checkBlocks.length > MAX_TOTAL_BLOCKS_PER_SEGMENT)
+            throw new IllegalArgumentException();
+        int missing = 0;
+        for(int i=0;i<dataBlocks.length;i++) {
+            if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            if(!dataBlocksPresent[i]) missing++;
+        }
+        if(missing == 0) return;
+        // Use the same check blocks as OnionFECCodec would: the first ones present.
+        int[] missingBlocks = new int[missing];
+        int[] checks = new int[missing];
+        int x = 0;
+        for(int i=0;i<dataBlocks.length;i++)
+            if(!dataBlocksPresent[i]) missingBlocks[x++] = i;
+        x = 0;
+        for(int i=0;i<checkBlocks.length && x < missing;i++) {
+            if(!checkBlocksPresent[i]) continue;
+            if(checkBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            checks[x++] = i;
+        }
+        if(x < missing) throw new IllegalArgumentException("Not enough blocks to decode");
+        byte[][] matrix = getEncodeMatrix(k);
+        // Each chosen check block c is sum over present data blocks of A[c][i]*d_i plus sum
+        // over missing data blocks of A[c][j]*d_j. Invert the missing x chosen square B of A,
+        // then missing block j is sum over c of Binv[j][c] * (check_c - sum of present terms).
+        int[][] inverse = new int[missing][missing];
+        for(int c=0;c<missing;c++)
+            for(int j=0;j<missing;j++)
+                inverse[c][j] = matrix[checks[c]][missingBlocks[j]] & 0xFF;
+        invert(inverse);
+        // The inputs are the data blocks in place, with the chosen check blocks in the gaps.
+        byte[][] inputs = new byte[k][];
+        for(int i=0;i<k;i++)
+            inputs[i] = dataBlocks[i];
+        for(int c=0;c<missing;c++)
+            inputs[missingBlocks[c]] = checkBlocks[checks[c]];
+        byte[][] rows = new byte[missing][k];
+        byte[][] outputs = new byte[missing][];
+        for(int j=0;j<missing;j++) {
+            byte[] row = rows[j];
+            int[] inv = inverse[j];
+            for(int c=0;c<missing;c++)
+                row[missingBlocks[c]] = (byte) inv[c];
+            for(int i=0;i<k;i++) {
+                if(!dataBlocksPresent[i]) continue;
+                int sum = 0;
+                for(int c=0;c<missing;c++)
+                    sum ^= mul(inv[c], matrix[checks[c]][i] & 0xFF);
+                row[i] = (byte) sum;
+            }
+            // Never an input: the check block stands in for it.
+            outputs[j] = dataBlocks[missingBlocks[j]];
+        }
+        code(rows, inputs, outputs, blockLength, executor, threads);
+    }
+
+    /** Gauss-Jordan inversion in place. */
+    private static void invert(int[][] m) {
+        int size = m.length;
+        int[][] result = new int[size][size];
+        for(int i=0;i<size;i++) result[i][i] = 1;
+        for(int col=0;col<size;col++) {
+            int pivot = col;
+            while(pivot < size && m[pivot][col] == 0) pivot++;
+            if(pivot == size) throw new IllegalStateException("Singular decode matrix");
+            if(pivot != col) {
+                int[] t = m[pivot]; m[pivot] = m[col]; m[col] = t;
+                t = result[pivot]; result[pivot] = result[col]; result[col] = t;
+            }
+            int scale = inverse(m[col][col]);
+            byte[] mulScale = MUL[scale];
+            int[] row = m[col];
+            int[] resultRow = result[col];
+            for(int i=0;i<size;i++) {
+                row[i] = mulScale[row[i]] & 0xFF;
+                resultRow[i] = mulScale[resultRow[i]] & 0xFF;
+            }
+            for(int r=0;r<size;r++) {
+                if(r == col) continue;
+                int factor = m[r][col];
+                if(factor == 0) continue;
+                byte[] mulFactor = MUL[factor];
+                int[] target = m[r];
+                int[] targetResult = result[r];
+                for(int i=0;i<size;i++) {
+                    target[i] ^= mulFactor[row[i]] & 0xFF;
+                    targetResult[i] ^= mulFactor[resultRow[i]] & 0xFF;
+                }
+            }
+        }
+        for(int i=0;i<size;i++)
+            m[i] = result[i];
+    }
+
+    /** Run code() on up to threads+1 disjoint ranges of whole stripes at once: every byte
+     * position is independent. */
+    private static void code(final byte[][] rows, final byte[][] inputs, final byte[][] outputs,
+            int blockLength, Executor executor, int threads) {
+        int stripes = (blockLength + STRIPE_SIZE - 1) / STRIPE_SIZE;
+        final int parts = executor == null ? 1 : Math.min(threads + 1, stripes);
+        if(parts <= 1) {
+            code(rows, inputs, outputs, 0, blockLength);
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(parts - 1);
+        final Throwable[] failed = new Throwable[1];
+        for(int i=1;i<parts;i++) {
+            final int start = stripes * i / parts * STRIPE_SIZE;
+            final int end = Math.min(blockLength, stripes * (i + 1) / parts * STRIPE_SIZE);
+            executor.execute(new PrioRunnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        code(rows, inputs, outputs, start, end);
+                    } catch (Throwable t) {
+                        synchronized(failed) {
+                            failed[0] = t;
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+
+                @Override
+                public int getPriority() {
+                    return MemoryLimitedJobRunner.THREAD_PRIORITY;
+                }
+
+            }, "FEC stripes "+start+"-"+end);
+        }
+        code(rows, inputs, outputs, 0, stripes / parts * STRIPE_SIZE);
+        boolean interrupted = false;
+        while(true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // The other threads are still writing to the outputs, so we must wait.
+                interrupted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+        synchronized(failed) {
+            if(failed[0] instanceof Error) throw (Error) failed[0];
+            if(failed[0] != null) throw new RuntimeException(failed[0]);
+        }
+    }
+
+    /** outputs[o] = sum over i of rows[o][i] * inputs[i], for the bytes from start to end.
+     * The outputs must not be inputs. */
+    static void code(byte[][] rows, byte[][] inputs, byte[][] outputs, int from, int to) {
+        for(int start=from;start<to;start+=STRIPE_SIZE) {
+            int end = Math.min(start + STRIPE_SIZE, to);
+            for(int o=0;o<outputs.length;o++) {
+                byte[] out = outputs[o];
+                byte[] row = rows[o];
+                boolean first = true;
+                for(int i=0;i<inputs.length;i++) {
+                    int c = row[i] & 0xFF;
+                    if(c == 0) continue;
+                    byte[] in = inputs[i];
+                    if(c == 1) {
+                        if(first)
+                            System.arraycopy(in, start, out, start, end - start);
+                        else {
+                            for(int p=start;p<end;p++)
+                                out[p] ^= in[p];
+                        }
+                    } else {
+                        byte[] table = MUL[c];
+                        if(first) {
+                            for(int p=start;p<end;p++)
+                                out[p] = table[in[p] & 0xFF];
+                        } else {
+                            for(int p=start;p<end;p++)
+                                out[p] ^= table[in[p] & 0xFF];
+                        }
+                    }
+                    first = false;
+                }
+                if(first) Arrays.fill(out, start, end, (byte)0);
+            }
+        }
+    }
+
+    @Override
+    public long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks) {
+        int k = dataBlocks;
+        int missing = Math.min(dataBlocks, checkBlocks);
+        // Two int matrices for the inversion, the coefficient rows and the cached encode matrix.
+        return missing*missing*4*2 + missing*k + MAX_TOTAL_BLOCKS_PER_SEGMENT*k;
+    }
+
+    @Override
+    public long maxMemoryOverheadEncode(int dataBlocks, int checkBlocks) {
+        // Only the cached encode matrix.
+        return MAX_TOTAL_BLOCKS_PER_SEGMENT*dataBlocks;
+    }
+
+}
@@ -492,6 +492,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onSuccess(ClientPutState state, ClientContext context) {
+			BaseManifestPutter.this.markChanged();
 			if (logDEBUG) {
 				//temp hack, ignored if called via super
 				Throwable t = new Throwable("DEBUG onSuccess");
@@ -539,6 +540,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onFailure(InsertException e, ClientPutState state, ClientContext context) {
+			BaseManifestPutter.this.markChanged();
 			ClientPutState oldState;
 			synchronized(this) {
 				oldState = currentState;
@@ -558,6 +560,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 			if(newState == null) throw new NullPointerException();
 
 			// onTransition is *not* responsible for removing the old state, the caller is.
+			BaseManifestPutter.this.markChanged();
 			synchronized (this) {
 				if (currentState == oldState) {
 					currentState = newState;
@@ -875,6 +878,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		} catch (InsertException e) {
 			synchronized(this) {
 				finished = true;
+				markChanged();
 			}
 			cancelAndFinish(context);
 			throw e;
@@ -933,6 +937,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		if (containerMode) throw new IllegalStateException();
 		if(logMINOR) Logger.minor(this, "Got all metadata");
 		baseMetadata = makeMetadata(rootDir);
+		markChanged();
 		context.jobRunner.setCheckpointASAP();
 		resolveAndStartBase(context);
 	}
@@ -1070,6 +1075,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 				}
 			}
 			finished = true;
+			markChanged();
 		}
 		complete(context);
 	}
@@ -1091,6 +1097,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		synchronized(this) {
 			if(finished) return;
 			finished = true;
+			markChanged();
 		}
 		cancelAndFinish(context);
 
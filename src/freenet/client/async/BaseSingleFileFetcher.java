@@ -116,6 +116,7 @@ public abstract class BaseSingleFileFetcher extends SendableGet implements HasKe
 		// We want 0, 1, ... maxRetries i.e. maxRetries+1 attempts (maxRetries=0 => try once, no retries, maxRetries=1 = original try + 1 retry)
 		int r;
 		r = ++retryCount;
+		parent.markChanged();
 		if(logMINOR)
 			Logger.minor(this, "Attempting to retry... (max "+maxRetries+", current "+r+") on "+this+" finished="+finished+" cancelled="+cancelled);
 		if((r <= maxRetries) || (maxRetries == -1)) {
@@ -174,6 +175,7 @@ public abstract class BaseSingleFileFetcher extends SendableGet implements HasKe
 		synchronized(this) {
 			cancelled = true;
 		}
+		parent.markChanged();
 		unregisterAll(context);
 	}
 	
@@ -213,6 +215,7 @@ public abstract class BaseSingleFileFetcher extends SendableGet implements HasKe
 				return;
 			}
 			finished = true;
+			parent.markChanged();
 			if(isCancelled()) return;
 			if(key == null)
 				throw new NullPointerException();
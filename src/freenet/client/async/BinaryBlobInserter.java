@@ -160,6 +160,8 @@ public class BinaryBlobInserter implements ClientPutState {
 				Logger.error(this, "Unknown LowLevelPutException code: "+e.code);
 				errors.inc(InsertExceptionMode.INTERNAL_ERROR);
 			}
+			// The errors, retries and consecutive RNFs are all persistent.
+			parent.markChanged();
 			if(e.code == LowLevelPutException.ROUTE_NOT_FOUND) {
 				consecutiveRNFs++;
 				if(logMINOR) Logger.minor(this, "Consecutive RNFs: "+consecutiveRNFs+" / "+consecutiveRNFsCountAsSuccess);
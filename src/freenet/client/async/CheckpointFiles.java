@@ -0,0 +1,764 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import freenet.clients.fcp.RequestIdentifier;
+import freenet.crypt.ChecksumChecker;
+import freenet.crypt.ChecksumFailedException;
+import freenet.node.DatabaseKey;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+
+/**
+ * The files ClientLayerPersister keeps the persistent requests in: client.dat[.crypt], the
+ * backup client.dat.bak[.crypt], and numbered increments client.dat.N[.crypt]. Only deals with
+ * the stored form of each request, so we can merge the files without decoding anything.
+ *
+ * A full checkpoint renames client.dat to the backup and writes every request to a new
+ * client.dat. Later checkpoints write the next increment, with the requests which have changed
+ * and those which have been removed since the last checkpoint. client.dat and the backup each
+ * record the last increment they include, and are read with the increments after it. The chain
+ * ID and the increment numbers carry on across full checkpoints and compactions, so the backup
+ * plus the increments is always as current as client.dat. We only delete increments once the
+ * backup no longer needs them.
+ *
+ * LOCKING: The caller must hold the lock passed to the constructor, except for compact(), which
+ * takes it itself.
+ */
+class CheckpointFiles {
+
+    static final long MAGIC = 0xd332925f3caf4aedL;
+    static final long INCREMENT_MAGIC = 0x6d2ac1e07b5c9f31L;
+    /** The header includes the chain ID and the last increment merged. Each request is preceded
+     * by true, and the list ends with false, so we can copy requests without counting them. */
+    static final int VERSION = 2;
+    /** Requests are preceded by a count, and there are no increments. */
+    static final int VERSION_COUNTED = 1;
+    /** Increments list the requests removed since the previous checkpoint. Version 2 increments
+     * listed every request, and are not read. */
+    static final int INCREMENT_VERSION = 3;
+    /** Write a full checkpoint if we somehow have this many increments. Normally they will be
+     * merged long before that. */
+    private static final int MAX_INCREMENTS = 100;
+    /** Merge the increments once they are this big relative to client.dat. */
+    private static final double COMPACT_RATIO = 0.5;
+
+    private final File dir;
+    private final String baseName;
+    private final ChecksumChecker checker;
+    private final Object lock;
+    private final Random random;
+    /** Non-null if we write encrypted files. */
+    private DatabaseKey writeKey;
+
+    /** Identifies the lineage of client.dat, the backup and the increments. Increments with a
+     * different chain ID are stale. */
+    private long chainID;
+    private boolean chainKnown;
+    /** The last increment merged into client.dat. */
+    private int baseIncrement;
+    /** The last increment written. */
+    private int lastIncrement;
+    private long baseBytes;
+    /** Total size of the increments not yet merged into client.dat. */
+    private long incrementBytes;
+    private boolean compacting;
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(CheckpointFiles.class);
+    }
+
+    CheckpointFiles(File dir, String baseName, DatabaseKey writeKey, ChecksumChecker checker,
+            Object lock, Random random) {
+        this.dir = dir;
+        this.baseName = baseName;
+        this.writeKey = writeKey;
+        this.checker = checker;
+        this.lock = lock;
+        this.random = random;
+    }
+
+    boolean sameFiles(File dir, String baseName) {
+        return this.dir.equals(dir) && this.baseName.equals(baseName);
+    }
+
+    /** Change whether we write encrypted files. The next checkpoint must be a full one. */
+    void setWriteKey(DatabaseKey writeKey) {
+        this.writeKey = writeKey;
+    }
+
+    /** A request as stored on disk: its identifier, the serialized request, and the data needed
+     * to restart it, each of the latter with its length and checksum. Kept as bytes so that we
+     * can decode it on another thread, or copy it when compacting without decoding it. */
+    static class StoredRequest {
+        /** Null if the checksum failed. */
+        final RequestIdentifier reqID;
+        final byte[] request;
+        final byte[] recovery;
+        StoredRequest(RequestIdentifier reqID, byte[] request, byte[] recovery) {
+            this.reqID = reqID;
+            this.request = request;
+            this.recovery = recovery;
+        }
+    }
+
+    /** The bandwidth stats and the temporary files to delete, written after the requests. */
+    static class Trailer {
+        final PersistentStatsPutter stats;
+        /** Each as written by writeChecksummedObject(). */
+        final byte[][] buckets;
+        Trailer(PersistentStatsPutter stats, byte[][] buckets) {
+            this.stats = stats;
+            this.buckets = buckets;
+        }
+    }
+
+    /** The requests which changed since the previous checkpoint. */
+    private static class Increment {
+        /** Requests removed since the previous checkpoint. */
+        final List<RequestIdentifier> removed;
+        final List<StoredRequest> changed;
+        /** Null if it could not be read. */
+        final Trailer trailer;
+        Increment(List<RequestIdentifier> removed, List<StoredRequest> changed, Trailer trailer) {
+            this.removed = removed;
+            this.changed = changed;
+            this.trailer = trailer;
+        }
+    }
+
+    /** The effect of a run of increments on the requests before them. */
+    private static class Changes {
+        /** Requests written by the increments, latest version, in the order first written. */
+        final Map<RequestIdentifier, StoredRequest> changed = new LinkedHashMap<RequestIdentifier, StoredRequest>();
+        /** Requests removed by the increments, and not written again since. */
+        final Set<RequestIdentifier> removed = new HashSet<RequestIdentifier>();
+
+        Changes(List<Increment> increments) {
+            for(Increment increment : increments) {
+                for(RequestIdentifier reqID : increment.removed) {
+                    changed.remove(reqID);
+                    removed.add(reqID);
+                }
+                for(StoredRequest stored : increment.changed) {
+                    removed.remove(stored.reqID);
+                    changed.put(stored.reqID, stored);
+                }
+            }
+        }
+
+        /** Does a request in the file before the increments need to be skipped? */
+        boolean replaces(RequestIdentifier reqID) {
+            return reqID != null && (removed.contains(reqID) || changed.containsKey(reqID));
+        }
+    }
+
+    /** Called as client.dat or the backup is read. */
+    interface Reader {
+        /** Called before any requests.
+         * @param valid False if the checksum failed. */
+        void onSalt(byte[] salt, boolean valid);
+        /** Called for each current request, in order. */
+        void onRequest(StoredRequest stored);
+    }
+
+    /** Create a Bucket for client.dat[.bak][.crypt].
+     * @param dir The parent directory.
+     * @param baseName The base name, usually "client.dat".
+     * @param backup True if we want the .bak file.
+     * @param encryptionKey Non-null if we want an encrypted file.
+     */
+    static Bucket makeBucket(File dir, String baseName, boolean backup, DatabaseKey encryptionKey) {
+        return makeBucket(makeFilename(dir, baseName, backup, encryptionKey != null), encryptionKey);
+    }
+
+    private static Bucket makeBucket(File filename, DatabaseKey encryptionKey) {
+        Bucket bucket = new FileBucket(filename, false, false, false, false);
+        if(encryptionKey != null)
+            bucket = encryptionKey.createEncryptedBucketForClientLayer(bucket);
+        return bucket;
+    }
+
+    static File makeFilename(File parent, String baseName, boolean backup, boolean encrypted) {
+        return new File(parent, baseName + (backup ? ".bak" : "") + (encrypted ? ".crypt" : ""));
+    }
+
+    /** @return The filename for client.dat.[number][.crypt]. */
+    File makeIncrementFilename(int number, boolean encrypted) {
+        return new File(dir, baseName + "." + number + (encrypted ? ".crypt" : ""));
+    }
+
+    /** @return The filename for client.dat.tmp[.crypt], used while compacting. */
+    File makeTempFilename(boolean encrypted) {
+        return new File(dir, baseName + ".tmp" + (encrypted ? ".crypt" : ""));
+    }
+
+    static void deleteFile(File f) {
+        try {
+            FileUtil.secureDelete(f);
+        } catch (IOException e) {
+            f.delete();
+            if(f.exists()) {
+                System.err.println("Failed to delete "+f+" when setting maximum security level.");
+                System.err.println("There may be traces on disk of your previous download queue.");
+                // FIXME useralert???
+            }
+        }
+    }
+
+    /** @return The number of an increment file, or -1 if it isn't one. */
+    private int incrementNumber(File f) {
+        String name = f.getName();
+        String prefix = baseName + ".";
+        if(!name.startsWith(prefix)) return -1;
+        name = name.substring(prefix.length());
+        if(name.endsWith(".crypt")) name = name.substring(0, name.length() - ".crypt".length());
+        if(name.isEmpty() || name.length() > 9) return -1;
+        for(int i=0;i<name.length();i++)
+            if(!Character.isDigit(name.charAt(i))) return -1;
+        return Integer.parseInt(name);
+    }
+
+    /** Delete increments up to and including the given number, and any temporary file. */
+    void deleteIncrements(int upTo) {
+        File[] files = dir.listFiles();
+        if(files == null) return;
+        for(File f : files) {
+            if(f.equals(makeTempFilename(false)) || f.equals(makeTempFilename(true))) {
+                deleteFile(f);
+                continue;
+            }
+            int number = incrementNumber(f);
+            if(number >= 0 && number <= upTo)
+                deleteFile(f);
+        }
+    }
+
+    /** Delete client.dat, the backup and the increments, in both formats. */
+    void deleteAll() {
+        deleteFile(makeFilename(dir, baseName, false, false));
+        deleteFile(makeFilename(dir, baseName, false, true));
+        deleteFile(makeFilename(dir, baseName, true, false));
+        deleteFile(makeFilename(dir, baseName, true, true));
+        deleteIncrements(Integer.MAX_VALUE);
+        reset();
+    }
+
+    /** Forget the current chain, so that any compaction in progress won't replace client.dat,
+     * e.g. because we have deleted everything or stopped writing. The next checkpoint must be a
+     * full one, and will start a new chain. */
+    void reset() {
+        chainKnown = false;
+        baseIncrement = lastIncrement = 0;
+        baseBytes = incrementBytes = 0;
+    }
+
+    /** @return The highest numbered increment on disk, in either format, or 0. */
+    private int highestIncrement() {
+        File[] files = dir.listFiles();
+        int highest = 0;
+        if(files == null) return highest;
+        for(File f : files)
+            highest = Math.max(highest, incrementNumber(f));
+        return highest;
+    }
+
+    /** Read client.dat or the backup, with any increments it needs, passing the current requests
+     * to the reader.
+     * @param backup True to read the backup.
+     * @param encryptionKey Non-null to read the encrypted files.
+     * @param wantTrailer If false, don't bother to read the stats and temporary files to free
+     * from a version 1 file.
+     * @return The stats and temporary files to free, or null. */
+    Trailer read(boolean backup, DatabaseKey encryptionKey, boolean wantTrailer, Reader reader)
+            throws IOException {
+        Bucket bucket = makeBucket(dir, baseName, backup, encryptionKey);
+        long length = bucket.size();
+        InputStream is = bucket.getInputStream();
+        try {
+            ObjectInputStream ois = new ObjectInputStream(is);
+            long magic = ois.readLong();
+            if(magic != MAGIC) throw new IOException("Bad magic");
+            int version = ois.readInt();
+            if(version != VERSION && version != VERSION_COUNTED) throw new IOException("Bad version");
+            byte[] salt = new byte[32];
+            boolean saltValid = true;
+            try {
+                checker.readAndChecksum(ois, salt, 0, salt.length);
+            } catch (ChecksumFailedException e1) {
+                Logger.error(this, "Unable to read global salt (checksum failed)");
+                saltValid = false;
+            }
+            reader.onSalt(salt, saltValid);
+            int requestCount = -1;
+            List<Increment> increments = Collections.emptyList();
+            if(version == VERSION_COUNTED) {
+                requestCount = ois.readInt();
+            } else {
+                long chain = ois.readLong();
+                int lastMerged = ois.readInt();
+                if(!chainKnown) {
+                    // Carry on with the same chain, so the backup stays current.
+                    chainID = chain;
+                    chainKnown = true;
+                }
+                increments = readIncrements(encryptionKey, chain, lastMerged, Integer.MAX_VALUE);
+                if(!increments.isEmpty())
+                    System.out.println("Applying "+increments.size()+" incremental checkpoints ...");
+            }
+            // Requests written or removed by the increments replace those in the full file.
+            Changes changes = new Changes(increments);
+            for(int i=0;version == VERSION_COUNTED ? i < requestCount : ois.readBoolean();i++) {
+                StoredRequest stored = readStoredRequest(ois, length);
+                if(changes.replaces(stored.reqID)) continue;
+                reader.onRequest(stored);
+            }
+            if(!increments.isEmpty()) {
+                for(StoredRequest stored : changes.changed.values())
+                    reader.onRequest(stored);
+                return increments.get(increments.size()-1).trailer;
+            } else if(wantTrailer) {
+                try {
+                    return readTrailer(ois, length);
+                } catch (Throwable t) {
+                    Logger.error(this, "Failed to read stats and temp files to delete: "+t, t);
+                }
+            }
+            return null;
+        } finally {
+            is.close();
+        }
+    }
+
+    /** @return The last increment included in the given client.dat or backup, or -1 if it
+     * doesn't exist, can't be read or doesn't use increments. */
+    private int readBaseIncrement(File filename, DatabaseKey encryptionKey) {
+        if(!filename.exists()) return -1;
+        InputStream is = null;
+        try {
+            is = makeBucket(filename, encryptionKey).getInputStream();
+            ObjectInputStream ois = new ObjectInputStream(is);
+            if(ois.readLong() != MAGIC) return -1;
+            if(ois.readInt() != VERSION) return -1;
+            byte[] salt = new byte[32];
+            try {
+                checker.readAndChecksum(ois, salt, 0, salt.length);
+            } catch (ChecksumFailedException e) {
+                // Doesn't matter here.
+            }
+            ois.readLong();
+            return ois.readInt();
+        } catch (IOException e) {
+            Logger.error(this, "Unable to read header of "+filename+" : "+e, e);
+            return -1;
+        } finally {
+            try {
+                if(is != null) is.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    StoredRequest readStoredRequest(DataInput is, long totalLength) throws IOException {
+        RequestIdentifier reqID = readRequestIdentifier(is);
+        byte[] request = readStoredObject(is, totalLength);
+        byte[] recovery = readStoredObject(is, totalLength);
+        return new StoredRequest(reqID, request, recovery);
+    }
+
+    private void writeStoredRequest(DataOutput os, StoredRequest stored) throws IOException {
+        writeRequestIdentifier(os, stored.reqID);
+        os.write(stored.request);
+        os.write(stored.recovery);
+    }
+
+    /** Read an object written by writeChecksummedObject() or writeRecoveryData(), including its
+     * length and checksum, without checking or decoding it. */
+    private byte[] readStoredObject(DataInput is, long totalLength) throws IOException {
+        long length = is.readLong();
+        if(length < 0 || length > totalLength || length > Integer.MAX_VALUE - 1024)
+            throw new IOException("Bad length: "+length+" > "+totalLength);
+        byte[] buf = new byte[8 + (int) length + checker.checksumLength()];
+        // Big-endian, as written by DataOutput.writeLong().
+        ByteBuffer.wrap(buf).putLong(length);
+        is.readFully(buf, 8, buf.length - 8);
+        return buf;
+    }
+
+    RequestIdentifier readRequestIdentifier(DataInput is) throws IOException {
+        short length = is.readShort();
+        if(length <= 0) return null;
+        byte[] buf = new byte[length];
+        try {
+            checker.readAndChecksum(is, buf, 0, length);
+        } catch (ChecksumFailedException e) {
+            Logger.error(this, "Checksum failed reading RequestIdentifier. This is not serious but means we will have to read the next request even if we don't need it.");
+            return null;
+        }
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf));
+        try {
+            return new RequestIdentifier(dis);
+        } catch (IOException e) {
+            Logger.error(this, "Failed to parse RequestIdentifier in spite of valid checksum (probably a bug): "+e, e);
+            return null;
+        }
+    }
+
+    void writeRequestIdentifier(DataOutput os, RequestIdentifier req) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream oos = checker.checksumWriter(baos);
+        DataOutputStream dos = new DataOutputStream(oos);
+        req.writeTo(dos);
+        dos.close();
+        byte[] buf = baos.toByteArray();
+        os.writeShort(buf.length - checker.checksumLength());
+        os.write(buf);
+    }
+
+    private Trailer readTrailer(ObjectInputStream ois, long length) throws IOException, ClassNotFoundException {
+        PersistentStatsPutter storedStatsPutter = (PersistentStatsPutter) ois.readObject();
+        int count = ois.readInt();
+        if(count < 0) throw new IOException("Bad bucket count "+count);
+        byte[][] buckets = new byte[count][];
+        for(int i=0;i<count;i++)
+            buckets[i] = readStoredObject(ois, length);
+        return new Trailer(storedStatsPutter, buckets);
+    }
+
+    private void writeTrailer(ObjectOutputStream oos, Trailer trailer) throws IOException {
+        oos.writeObject(trailer.stats);
+        oos.writeInt(trailer.buckets.length);
+        for(byte[] bucket : trailer.buckets)
+            oos.write(bucket);
+    }
+
+    /** Read the increments after the given one, until one is missing, invalid or from another
+     * chain, or we reach upTo. */
+    private List<Increment> readIncrements(DatabaseKey encryptionKey, long chain, int after, int upTo) {
+        List<Increment> increments = new ArrayList<Increment>();
+        for(int number = after + 1; number <= upTo; number++) {
+            Increment increment = readIncrement(encryptionKey, chain, number);
+            if(increment == null) break;
+            increments.add(increment);
+        }
+        return increments;
+    }
+
+    private Increment readIncrement(DatabaseKey encryptionKey, long chain, int number) {
+        File filename = makeIncrementFilename(number, encryptionKey != null);
+        if(!filename.exists()) return null;
+        Bucket bucket = makeBucket(filename, encryptionKey);
+        long length = bucket.size();
+        InputStream is = null;
+        try {
+            is = bucket.getInputStream();
+            ObjectInputStream ois = new ObjectInputStream(is);
+            if(ois.readLong() != INCREMENT_MAGIC) throw new IOException("Bad magic");
+            if(ois.readInt() != INCREMENT_VERSION) throw new IOException("Bad version");
+            if(ois.readLong() != chain || ois.readInt() != number) {
+                // Left over from another chain.
+                if(logMINOR) Logger.minor(this, "Ignoring "+filename+" from another chain");
+                return null;
+            }
+            int count = ois.readInt();
+            if(count < 0) throw new IOException("Bad request count "+count);
+            List<RequestIdentifier> removed = new ArrayList<RequestIdentifier>(count);
+            for(int i=0;i<count;i++) {
+                RequestIdentifier reqID = readRequestIdentifier(ois);
+                // We can't tell which request has been removed.
+                if(reqID == null) throw new IOException("Bad request identifier");
+                removed.add(reqID);
+            }
+            List<StoredRequest> changed = new ArrayList<StoredRequest>();
+            while(ois.readBoolean()) {
+                StoredRequest stored = readStoredRequest(ois, length);
+                if(stored.reqID == null) throw new IOException("Bad request identifier");
+                changed.add(stored);
+            }
+            Trailer trailer = null;
+            try {
+                trailer = readTrailer(ois, length);
+            } catch (Throwable t) {
+                Logger.error(this, "Failed to read stats and temp files to delete from "+filename+" : "+t, t);
+            }
+            return new Increment(removed, changed, trailer);
+        } catch (IOException e) {
+            Logger.error(this, "Failed to read incremental checkpoint "+filename+" : "+e, e);
+            System.err.println("Failed to read incremental checkpoint "+filename+" : "+e);
+            return null;
+        } finally {
+            try {
+                if(is != null) is.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /** Must the next checkpoint write everything, because there are too many increments? */
+    boolean tooManyIncrements() {
+        return lastIncrement - baseIncrement >= MAX_INCREMENTS;
+    }
+
+    /** @return The number of increments not yet merged into client.dat. */
+    int pendingIncrements() {
+        return lastIncrement - baseIncrement;
+    }
+
+    /** Writes a checkpoint: either every request to client.dat, or those which have changed to
+     * the next increment. */
+    class Writer {
+        private final boolean full;
+        /** The number of the increment, or the last increment included in client.dat. */
+        private final int number;
+        final File filename;
+        private OutputStream os;
+        private final ObjectOutputStream oos;
+
+        private Writer(boolean full, int number, File filename, OutputStream os) throws IOException {
+            this.full = full;
+            this.number = number;
+            this.filename = filename;
+            this.os = os;
+            this.oos = new ObjectOutputStream(new BufferedOutputStream(os));
+        }
+
+        /** Write a request, serialized in the same format as readStoredRequest(). */
+        void write(byte[] data) throws IOException {
+            oos.writeBoolean(true);
+            oos.write(data);
+        }
+
+        /** Finish writing the file, and start using it.
+         * @return The size of the file. */
+        long finish(Trailer trailer) throws IOException {
+            oos.writeBoolean(false);
+            writeTrailer(oos, trailer);
+            oos.close();
+            os = null;
+            long bytes = filename.length();
+            if(full) {
+                baseIncrement = lastIncrement = number;
+                baseBytes = bytes;
+                incrementBytes = 0;
+                // The backup needs the increments after the last one it includes. Ours carry
+                // on from those, so it stays current.
+                int backupBase = readBaseIncrement(makeFilename(dir, baseName, true, writeKey != null), writeKey);
+                deleteIncrements(backupBase >= 0 ? Math.min(backupBase, number) : number);
+            } else {
+                lastIncrement = number;
+                incrementBytes += bytes;
+            }
+            return bytes;
+        }
+
+        /** Give up after a failure. A partial increment is deleted, since loading would stop at
+         * it; a partial client.dat is left for the loader to make what it can of. */
+        void abort() {
+            if(os == null) return;
+            try {
+                os.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+            os = null;
+            if(!full) filename.delete();
+        }
+    }
+
+    /** Start a full checkpoint. Renames client.dat to the backup first. */
+    Writer startFull(byte[] salt) throws IOException {
+        File filename = makeFilename(dir, baseName, false, writeKey != null);
+        if(filename.exists())
+            FileUtil.renameTo(filename, makeFilename(dir, baseName, true, writeKey != null));
+        if(!chainKnown) {
+            chainID = random.nextLong();
+            chainKnown = true;
+        }
+        // Don't reuse the numbers of increments the backup may need.
+        int base = Math.max(lastIncrement, highestIncrement());
+        Writer writer = new Writer(true, base, filename, makeBucket(filename, writeKey).getOutputStream());
+        try {
+            writer.oos.writeLong(MAGIC);
+            writer.oos.writeInt(VERSION);
+            checker.writeAndChecksum(writer.oos, salt);
+            writer.oos.writeLong(chainID);
+            writer.oos.writeInt(base);
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        return writer;
+    }
+
+    /** Start an increment, after at least one full checkpoint.
+     * @param removed The requests removed since the last checkpoint. */
+    Writer startIncrement(List<RequestIdentifier> removed) throws IOException {
+        int number = lastIncrement + 1;
+        File filename = makeIncrementFilename(number, writeKey != null);
+        Writer writer = new Writer(false, number, filename, makeBucket(filename, writeKey).getOutputStream());
+        try {
+            writer.oos.writeLong(INCREMENT_MAGIC);
+            writer.oos.writeInt(INCREMENT_VERSION);
+            writer.oos.writeLong(chainID);
+            writer.oos.writeInt(number);
+            writer.oos.writeInt(removed.size());
+            for(RequestIdentifier reqID : removed)
+                writeRequestIdentifier(writer.oos, reqID);
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        return writer;
+    }
+
+    /** @return True if the increments are big enough to merge and we aren't already merging
+     * them, in which case the caller must call compact(), probably on another thread. */
+    boolean startCompacting() {
+        if(compacting || incrementBytes < baseBytes * COMPACT_RATIO) return false;
+        compacting = true;
+        return true;
+    }
+
+    /** Write a new client.dat containing the old one plus the increments written so far. We
+     * don't decode the requests, and we don't hold the lock while writing, so checkpoints can
+     * continue meanwhile. The old client.dat becomes the backup, and still has all the
+     * increments it needs.
+     * @return True if we replaced client.dat. */
+    boolean compact() {
+        return compact(null);
+    }
+
+    /** @param beforeCommit For tests, run after writing the new file and before using it. */
+    boolean compact(Runnable beforeCommit) {
+        long chain;
+        int after;
+        int upTo;
+        DatabaseKey key;
+        File base;
+        synchronized(lock) {
+            chain = chainID;
+            after = baseIncrement;
+            upTo = lastIncrement;
+            key = writeKey;
+            base = makeFilename(dir, baseName, false, key != null);
+            if(!chainKnown || upTo == after) {
+                compacting = false;
+                return false;
+            }
+        }
+        long start = System.currentTimeMillis();
+        File tmp = makeTempFilename(key != null);
+        boolean success = false;
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            List<Increment> increments = readIncrements(key, chain, after, upTo);
+            if(increments.size() != upTo - after) throw new IOException("Unable to read incremental checkpoints");
+            Increment last = increments.get(increments.size()-1);
+            if(last.trailer == null) throw new IOException("Unable to read stats from last incremental checkpoint");
+            Changes changes = new Changes(increments);
+            Bucket in = makeBucket(base, key);
+            long length = in.size();
+            is = in.getInputStream();
+            ObjectInputStream ois = new ObjectInputStream(is);
+            if(ois.readLong() != MAGIC) throw new IOException("Bad magic");
+            if(ois.readInt() != VERSION) throw new IOException("Bad version");
+            byte[] salt = new byte[32];
+            try {
+                checker.readAndChecksum(ois, salt, 0, salt.length);
+            } catch (ChecksumFailedException e) {
+                throw new IOException("Checksum failed for salt");
+            }
+            if(ois.readLong() != chain || ois.readInt() != after) throw new IOException("Chain changed");
+            os = makeBucket(tmp, key).getOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(os));
+            oos.writeLong(MAGIC);
+            oos.writeInt(VERSION);
+            checker.writeAndChecksum(oos, salt);
+            oos.writeLong(chain);
+            oos.writeInt(upTo);
+            while(ois.readBoolean()) {
+                StoredRequest stored = readStoredRequest(ois, length);
+                if(changes.replaces(stored.reqID)) continue;
+                oos.writeBoolean(true);
+                writeStoredRequest(oos, stored);
+            }
+            ois.close();
+            is = null;
+            for(StoredRequest stored : changes.changed.values()) {
+                oos.writeBoolean(true);
+                writeStoredRequest(oos, stored);
+            }
+            oos.writeBoolean(false);
+            writeTrailer(oos, last.trailer);
+            oos.close();
+            os = null;
+            success = true;
+        } catch (IOException e) {
+            Logger.error(this, "Failed to compact "+base+" : "+e, e);
+        } finally {
+            try {
+                if(is != null) is.close();
+                if(os != null) os.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+        if(beforeCommit != null) beforeCommit.run();
+        synchronized(lock) {
+            compacting = false;
+            // A full checkpoint may have replaced client.dat meanwhile.
+            if(success && chainKnown && chain == chainID && after == baseIncrement && key == writeKey) {
+                File backup = makeFilename(dir, baseName, true, key != null);
+                // If we crash between the renames, we will load the backup and all the increments.
+                FileUtil.renameTo(base, backup);
+                if(FileUtil.renameTo(tmp, base)) {
+                    baseIncrement = upTo;
+                    baseBytes = base.length();
+                    // The backup is now the old client.dat, which only needs the later increments.
+                    deleteIncrements(after);
+                    incrementBytes = 0;
+                    for(int i=upTo+1;i<=lastIncrement;i++)
+                        incrementBytes += makeIncrementFilename(i, key != null).length();
+                    Logger.normal(this, "Compacted "+(upTo - after)+" incremental checkpoints into "+
+                            base+" in "+(System.currentTimeMillis() - start)+"ms");
+                    return true;
+                }
+                // Put it back.
+                FileUtil.renameTo(backup, base);
+            }
+        }
+        tmp.delete();
+        return false;
+    }
+
+}
@@ -289,6 +289,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 
 		synchronized(this) {
 			finished = true;
+			markChanged();
 			currentState = null;
 			expectedMIME = mimeType;
 				
@@ -407,6 +408,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			}
 			return;
 		}
+		markChanged();
 		context.getJobRunner(persistent()).setCheckpointASAP();
 		clientCallback.onSuccess(result, ClientGetter.this);
 	}
@@ -461,6 +463,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
             
             synchronized(this) {
                 finished = true;
+                markChanged();
                 currentState = null;
                 expectedMIME = metadata.getMIMEType();
                 expectedSize = length;
@@ -492,6 +495,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
                 }
             tempFile.delete();
         } else {
+            markChanged();
             context.getJobRunner(persistent()).setCheckpointASAP();
             clientCallback.onSuccess(result, ClientGetter.this);
         }
@@ -520,6 +524,8 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		if(expectedSize > 0 && (e.expectedSize <= 0 || finalBlocksTotal != 0))
 			e.expectedSize = expectedSize;
 		
+		markChanged();
+		
 		context.getJobRunner(persistent()).setCheckpointASAP();
 
 		if(e.mode == FetchExceptionMode.TOO_BIG && ctx.filterData) {
@@ -568,6 +574,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 					alreadyFinished = true;
 				}
 				finished = true;
+				markChanged();
 				oldState = currentState;
 				currentState = null;
 				String mime = e.getExpectedMimeType();
@@ -709,6 +716,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 				return;
 			}
 		}
+		markChanged();
 		if(persistent())
 		    context.jobRunner.setCheckpointASAP();
 	}
@@ -1,11 +1,8 @@
 package freenet.client.async;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInput;
 import java.io.DataInputStream;
-import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
@@ -13,15 +10,24 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
 
 import freenet.clients.fcp.ClientRequest;
 import freenet.clients.fcp.RequestIdentifier;
 import freenet.crypt.CRCChecksumChecker;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
+import freenet.crypt.SHA256;
 import freenet.node.DatabaseKey;
 import freenet.node.MasterKeysWrongPasswordException;
 import freenet.node.Node;
@@ -31,15 +37,13 @@ import freenet.node.RequestStarterGroup;
 import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Ticker;
-import freenet.support.api.Bucket;
 import freenet.support.io.DelayedFree;
-import freenet.support.io.FileBucket;
-import freenet.support.io.FileUtil;
 import freenet.support.io.PersistentTempBucketFactory;
 import freenet.support.io.PrependLengthOutputStream;
 import freenet.support.io.StorageFormatException;
 import freenet.support.io.TempBucketFactory;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 /** Top level of persistence mechanism for ClientRequest's (persistent downloads and uploads).
@@ -47,7 +51,9 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * 1) Splitfile persistence. The downloaded data and all the status for a splitfile is kept in a 
  * single random access file (technically a LockableRandomAccessBuffer).
  * 2) Java persistence. The overall list of ClientRequest's is stored to client.dat using 
- * serialization, by this class.
+ * serialization, by this class. Most checkpoints only write the requests which say they have changed, to 
+ * numbered increment files (client.dat.1, client.dat.2 etc), which are merged back into client.dat 
+ * in the background once they get big.
  * 3) A simple binary fallback. For complicated requests this will just record enough information 
  * to restart the request, but for simple splitfile downloads, we can resume from (1).
  * 
@@ -93,16 +99,51 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private final ChecksumChecker checker;
 
     // Can be set later ...
-    private Bucket writeToBucket;
     private File writeToFilename;
-    private File writeToBackupFilename;
     private File deleteAfterSuccessfulWrite;
     private File otherDeleteAfterSuccessfulWrite;
     private File dir;
     private String baseName;
+    /** Non-null if we write encrypted files. */
+    private DatabaseKey writeKey;
+    private Random random;
     
-    private static final long MAGIC = 0xd332925f3caf4aedL;
-    private static final int VERSION = 1;
+    // Incremental checkpoints. Protected by serializeCheckpoints.
+    /** client.dat, the backup and the increments. */
+    private CheckpointFiles files;
+    /** Digest of each request as last written. If null, the next checkpoint writes everything. */
+    private Map<RequestIdentifier, byte[]> writtenDigests;
+    /** When a checkpoint last serialized every request, even those which said they hadn't
+     * changed. 0 if the next one must. */
+    private long lastCheckedAll;
+    
+    // Stats. Protected by this.
+    private long checkpoints;
+    private long fullCheckpoints;
+    private long compactions;
+    private long lastCheckpointMillis;
+    private long lastCheckpointBytes;
+    private int lastCheckpointRequests;
+    private int lastCheckpointRequestsWritten;
+    private int lastCheckpointRequestsSerialized;
+    private int pendingIncrements;
+    /** When we started loading, or 0 if we haven't. */
+    private long startupStarted;
+    /** Time from starting to load until the first unfinished request had resumed, i.e. had been
+     * handed back to the request starters, or -1. A splitfile may still wait for its key filters
+     * before it actually sends anything. */
+    private long startupFirstRequestMillis = -1;
+    /** Time from starting to load until all requests were resumed, or -1. */
+    private long startupRestoredMillis = -1;
+    /** Unfinished requests resumed on startup, not counting those we failed to restore. */
+    private int startupRequestsResumed;
+    
+    /** Requests tell us when they change, see ClientRequest.clearChanged(). In case one of them
+     * doesn't, serialize them all and compare the digests this often. */
+    static final long CHECK_ALL_INTERVAL = HOURS.toMillis(1);
+    
+    /** Maximum threads used to deserialize requests on startup. */
+    private static final int LOAD_THREADS = 4;
     
     private static volatile boolean logMINOR;
     static {
@@ -138,14 +179,12 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         synchronized(serializeCheckpoints) {
             this.dir = dir;
             this.baseName = baseName;
+            this.random = random;
             if(noWrite) {
-                writeToBucket = null;
                 writeToFilename = null;
-                writeToBackupFilename = null;
-                deleteFile(dir, baseName, false, false);
-                deleteFile(dir, baseName, false, true);
-                deleteFile(dir, baseName, true, false);
-                deleteFile(dir, baseName, true, true);
+                if(files != null) files.reset();
+                files = new CheckpointFiles(dir, baseName, null, checker, serializeCheckpoints, random);
+                files.deleteAll();
                 onStarted(true);
                 if(salt == null) {
                     salt = new byte[32];
@@ -171,32 +210,25 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void deleteFile(File dir, String baseName, boolean backup, boolean encrypted) {
-        File f = makeFilename(dir, baseName, backup, encrypted);
-        try {
-            FileUtil.secureDelete(f);
-        } catch (IOException e) {
-            f.delete();
-            if(f.exists()) {
-                System.err.println("Failed to delete "+f+" when setting maximum security level.");
-                System.err.println("There may be traces on disk of your previous download queue.");
-                // FIXME useralert???
-            }
-        }
-    }
-
     private void innerSetFilesOnly(File dir, String baseName, boolean writeEncrypted,
             DatabaseKey encryptionKey) throws MasterKeysWrongPasswordException {
         if(writeEncrypted && encryptionKey == null)
             throw new MasterKeysWrongPasswordException();
         File oldWriteToFilename = writeToFilename;
-        writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
-        writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
-        writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+        writeKey = writeEncrypted ? encryptionKey : null;
+        if(files != null && files.sameFiles(dir, baseName)) {
+            files.setWriteKey(writeKey);
+        } else {
+            if(files != null) files.reset();
+            files = new CheckpointFiles(dir, baseName, writeKey, checker, serializeCheckpoints, random);
+        }
+        writeToFilename = CheckpointFiles.makeFilename(dir, baseName, false, writeEncrypted);
         if(writeToFilename.equals(oldWriteToFilename)) return;
+        // The increments must be the same format as client.dat.
+        writtenDigests = null;
         System.out.println("Will save downloads to "+writeToFilename);
-        deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
-        otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
+        deleteAfterSuccessfulWrite = CheckpointFiles.makeFilename(dir, baseName, false, !writeEncrypted);
+        otherDeleteAfterSuccessfulWrite = CheckpointFiles.makeFilename(dir, baseName, true, !writeEncrypted);
         queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -226,26 +258,34 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 throw new MasterKeysWrongPasswordException();
         }
         boolean failedSerialize = false;
+        synchronized(this) {
+            if(startupStarted == 0) startupStarted = System.currentTimeMillis();
+            // We may be retrying without serialization, which resumes everything again.
+            startupFirstRequestMillis = -1;
+            startupRestoredMillis = -1;
+            startupRequestsResumed = 0;
+        }
+        writeKey = writeEncrypted ? encryptionKey : null;
+        if(files != null) files.reset();
+        files = new CheckpointFiles(dir, baseName, writeKey, checker, serializeCheckpoints, random);
         PartialLoad loaded = new PartialLoad();
         if(clientDatExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, null), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, false, null, noSerialize, context, requestStarters);
         }
         if(clientDatCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, encryptionKey), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, false, encryptionKey, noSerialize, context, requestStarters);
         }
         if(clientDatBakExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, null), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, true, null, noSerialize, context, requestStarters);
         }
         if(clientDatBakCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, true, encryptionKey, noSerialize, context, requestStarters);
         }
         
         deleteAfterSuccessfulWrite = writeEncrypted ? clientDat : clientDatCrypt;
         otherDeleteAfterSuccessfulWrite = writeEncrypted ? clientDatBak : clientDatBakCrypt;
         
-        writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
-        writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
-        writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+        writeToFilename = CheckpointFiles.makeFilename(dir, baseName, false, writeEncrypted);
         
         if(loaded.doneSomething()) {
             if(!noSerialize) {
@@ -264,8 +304,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             int restoredRestarted = 0;
             int restoredFully = 0;
             int failed = 0;
-            // Resume the requests.
-            for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
+            // Resume the requests, most important first, so they can start while we resume the rest.
+            List<PartiallyLoadedRequest> partials = 
+                new ArrayList<PartiallyLoadedRequest>(loaded.partiallyLoadedRequests.values());
+            Collections.sort(partials, PRIORITY_ORDER);
+            for(PartiallyLoadedRequest partial : partials) {
                 ClientRequest req = partial.request;
                 if(req == null) continue;
                 try {
@@ -288,6 +331,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                         failed++;
                         break;
                     }
+                    if(partial.status != RequestLoadStatus.FAILED && !req.hasFinished())
+                        onRequestResumed();
                 } catch (Throwable t) {
                     if(partial.status == RequestLoadStatus.LOADED)
                         failedSerialize = true;
@@ -309,6 +354,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 System.out.println("Restarted "+restoredRestarted+" requests (due to data corruption)");
             if(failed > 0)
                 System.err.println("Failed to restore "+failed+" requests due to data corruption");
+            onAllResumed();
             return failedSerialize;
         } else {
             // FIXME backups etc!
@@ -321,23 +367,30 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    /** Create a Bucket for client.dat[.bak][.crypt].
-     * @param dir The parent directory.
-     * @param baseName The base name, usually "client.dat".
-     * @param backup True if we want the .bak file.
-     * @param encryptionKey Non-null if we want an encrypted file.
-     */
-    private Bucket makeBucket(File dir, String baseName, boolean backup, DatabaseKey encryptionKey) {
-        File filename = makeFilename(dir, baseName, backup, encryptionKey != null);
-        Bucket bucket = new FileBucket(filename, false, false, false, false);
-        if(encryptionKey != null)
-            bucket = encryptionKey.createEncryptedBucketForClientLayer(bucket);
-        return bucket;
+    /** Most important (lowest priority class) first. */
+    private static final Comparator<PartiallyLoadedRequest> PRIORITY_ORDER = 
+        new Comparator<PartiallyLoadedRequest>() {
+        
+        @Override
+        public int compare(PartiallyLoadedRequest a, PartiallyLoadedRequest b) {
+            if(a.request == null || b.request == null)
+                return (a.request == null ? 1 : 0) - (b.request == null ? 1 : 0);
+            return a.request.getPriority() - b.request.getPriority();
+        }
+        
+    };
+    
+    private synchronized void onRequestResumed() {
+        if(startupFirstRequestMillis == -1) {
+            startupFirstRequestMillis = System.currentTimeMillis() - startupStarted;
+            Logger.normal(this, "Resumed first request after "+startupFirstRequestMillis+"ms");
+        }
+        startupRequestsResumed++;
     }
     
-    private File makeFilename(File parent, String baseName, boolean backup, boolean encrypted) {
-        return new File(parent, baseName + (backup ? ".bak" : "") + (encrypted ? ".crypt" : ""));
-                
+    private synchronized void onAllResumed() {
+        startupRestoredMillis = System.currentTimeMillis() - startupStarted;
+        Logger.normal(this, "Resumed "+startupRequestsResumed+" requests after "+startupRestoredMillis+"ms");
     }
 
     private enum RequestLoadStatus {
@@ -412,87 +465,168 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void innerLoad(PartialLoad loaded, Bucket bucket, boolean noSerialize,
-            ClientContext context, RequestStarterGroup requestStarters, Random random) {
-        long length = bucket.size();
-        InputStream fis = null;
+    private void innerLoad(final PartialLoad loaded, boolean backup, DatabaseKey encryptionKey, 
+            boolean noSerialize, final ClientContext context, final RequestStarterGroup requestStarters) {
+        File filename = CheckpointFiles.makeFilename(dir, baseName, backup, encryptionKey != null);
+        boolean latest = !noSerialize && !loaded.doneSomething();
+        final RequestLoader loader = new RequestLoader(context, noSerialize);
         try {
-            fis = bucket.getInputStream();
-            innerLoad(loaded, fis, length, !noSerialize && !loaded.doneSomething(), context, 
-                    requestStarters, random, noSerialize);
+            CheckpointFiles.Trailer trailer = files.read(backup, encryptionKey, latest, 
+                    new CheckpointFiles.Reader() {
+                
+                @Override
+                public void onSalt(byte[] salt, boolean valid) {
+                    if(valid) loaded.setSalt(salt);
+                    requestStarters.setGlobalSalt(salt);
+                }
+                
+                @Override
+                public void onRequest(CheckpointFiles.StoredRequest stored) {
+                    if(stored.reqID != null && context.persistentRoot.hasRequest(stored.reqID)) {
+                        Logger.warning(this, "Not reading request because already have it");
+                        return;
+                    }
+                    loader.load(stored);
+                }
+                
+            });
+            loader.finish(loaded);
+            if(latest && trailer != null) {
+                try {
+                    // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
+                    applyTrailer(trailer);
+                } catch (Throwable t) {
+                    Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                }
+            }
         } catch (IOException e) {
             // FIXME tell user more obviously.
-            Logger.error(this, "Failed to load persistent requests from "+bucket+" : "+e, e);
-            System.err.println("Failed to load persistent requests from "+bucket+" : "+e);
+            Logger.error(this, "Failed to load persistent requests from "+filename+" : "+e, e);
+            System.err.println("Failed to load persistent requests from "+filename+" : "+e);
             e.printStackTrace();
             loaded.setSomethingFailed();
         } catch (Throwable t) {
-            Logger.error(this, "Failed to load persistent requests from "+bucket+" : "+t, t);
-            System.err.println("Failed to load persistent requests from "+bucket+" : "+t);
+            Logger.error(this, "Failed to load persistent requests from "+filename+" : "+t, t);
+            System.err.println("Failed to load persistent requests from "+filename+" : "+t);
             t.printStackTrace();
             loaded.setSomethingFailed();
-        } finally {
-            try {
-                if(fis != null) fis.close();
-            } catch (IOException e) {
-                System.err.println("Failed to load persistent requests: "+e);
-                e.printStackTrace();
-            }
         }
     }
     
-    private void innerLoad(PartialLoad loaded, InputStream fis, long length, boolean latest, 
-            ClientContext context, RequestStarterGroup requestStarters, Random random, boolean noSerialize) throws NodeInitException, IOException {
-        ObjectInputStream ois = new ObjectInputStream(fis);
-        long magic = ois.readLong();
-        if(magic != MAGIC) throw new IOException("Bad magic");
-        int version = ois.readInt();
-        if(version != VERSION) throw new IOException("Bad version");
-        byte[] salt = new byte[32];
-        try {
-            checker.readAndChecksum(ois, salt, 0, salt.length);
-            loaded.setSalt(salt);
-        } catch (ChecksumFailedException e1) {
-            Logger.error(this, "Unable to read global salt (checksum failed)");
-        }
-        requestStarters.setGlobalSalt(salt);
-        int requestCount = ois.readInt();
-        for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
-            RequestIdentifier reqID = readRequestIdentifier(ois);
-            if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
-                Logger.warning(this, "Not reading request because already have it");
-                skipChecksummedObject(ois, length); // Request itself
-                skipChecksummedObject(ois, length); // Recovery data
-                continue;
+    /** Serialize a request, in the same format as CheckpointFiles.readStoredRequest(). */
+    private byte[] serializeRequest(ClientRequest req) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        // Write the request identifier so we can skip reading the request if we already have it.
+        files.writeRequestIdentifier(dos, req.getRequestIdentifier());
+        // Write the actual request.
+        writeChecksummedObject(dos, req, req.toString());
+        // Write recovery data. This is just enough to restart the request from scratch, 
+        // but may support continuing the request in simple cases e.g. if a fetch is now
+        // just a single splitfile.
+        writeRecoveryData(dos, req);
+        dos.close();
+        return baos.toByteArray();
+    }
+    
+    /** Deserializes requests on several threads as they are read, and then adds them to the 
+     * PartialLoad in order on the calling thread. Restoring from recovery data, which may 
+     * open files, is also done on the calling thread. */
+    private class RequestLoader {
+        
+        private final ClientContext context;
+        private final boolean noSerialize;
+        private final int threads;
+        /** Limits the number of requests being decoded, and so held in memory, at once. */
+        private final Semaphore decoding;
+        private final List<LoadingRequest> requests = new ArrayList<LoadingRequest>();
+        
+        RequestLoader(ClientContext context, boolean noSerialize) {
+            this.context = context;
+            this.noSerialize = noSerialize;
+            this.threads = Math.min(LOAD_THREADS, Runtime.getRuntime().availableProcessors());
+            this.decoding = new Semaphore(threads);
+        }
+        
+        void load(CheckpointFiles.StoredRequest stored) {
+            final LoadingRequest request = new LoadingRequest(stored);
+            requests.add(request);
+            if(noSerialize) return;
+            if(threads <= 1) {
+                request.decode();
+                return;
             }
-            try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
-                        }
+            decoding.acquireUninterruptibly();
+            context.mainExecutor.execute(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        request.decode();
+                    } finally {
+                        decoding.release();
                     }
-                } else
-                    skipChecksummedObject(ois, length);
+                }
+                
+            }, "Loading persistent request");
+        }
+        
+        void finish(PartialLoad loaded) {
+            decoding.acquireUninterruptibly(threads);
+            decoding.release(threads);
+            for(LoadingRequest request : requests)
+                request.addTo(loaded);
+            requests.clear();
+        }
+        
+    }
+    
+    private class LoadingRequest {
+        
+        private final CheckpointFiles.StoredRequest stored;
+        private ClientRequest request;
+        private boolean checksumFailed;
+        private Throwable failure;
+        
+        LoadingRequest(CheckpointFiles.StoredRequest stored) {
+            this.stored = stored;
+        }
+        
+        void decode() {
+            try {
+                request = (ClientRequest) readChecksummedObject(
+                        new ByteArrayInputStream(stored.request), stored.request.length);
             } catch (ChecksumFailedException e) {
+                checksumFailed = true;
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+        
+        void addTo(PartialLoad loaded) {
+            RequestIdentifier reqID = stored.reqID;
+            if(checksumFailed) {
                 Logger.error(this, "Failed to load request (checksum failed)");
                 System.err.println("Failed to load a request (checksum failed)");
-            } catch (Throwable t) {
+            } else if(failure != null) {
                 // Some more serious problem. Try to load the rest anyway.
-                Logger.error(this, "Failed to load request: "+t, t);
-                System.err.println("Failed to load a request: "+t);
-                t.printStackTrace();
+                Logger.error(this, "Failed to load request: "+failure, failure);
+                System.err.println("Failed to load a request: "+failure);
+                failure.printStackTrace();
+            } else if(request != null) {
+                if(reqID != null) {
+                    if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
+                        Logger.error(this, "Request does not match request identifier, discarding");
+                        request = null;
+                    } else {
+                        loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
+                    }
+                }
             }
             if(request == null || logMINOR) {
                 try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
+                    ClientRequest restored = readRequestFromRecoveryData(
+                            new ByteArrayInputStream(stored.recovery), stored.recovery.length, reqID);
                     if(request == null && restored != null) {
                         request = restored;
                         boolean loadedFully = restored.fullyResumed();
@@ -518,37 +652,40 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     }
                     if(request == null)
                         loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+                } catch (IOException e) {
+                    Logger.error(this, "Failed to read recovery data for "+reqID+" : "+e, e);
+                    if(request == null)
+                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
                 }
-            } else {
-                skipChecksummedObject(ois, length);
-            }
-        }
-        if(latest) {
-            try {
-                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
-                readStatsAndBuckets(ois, length, context);
-            } catch (Throwable t) {
-                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
             }
         }
-        ois.close();
-        fis = null;
+        
     }
-
-    private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
-        PersistentStatsPutter storedStatsPutter = (PersistentStatsPutter) ois.readObject();
-        this.bandwidthStatsPutter.addFrom(storedStatsPutter);
-        int count = ois.readInt();
-        DelayedFree[] buckets = new DelayedFree[count];
-        for(int i=0;i<count;i++) {
+    
+    private void applyTrailer(CheckpointFiles.Trailer trailer) throws IOException, ClassNotFoundException {
+        this.bandwidthStatsPutter.addFrom(trailer.stats);
+        DelayedFree[] buckets = new DelayedFree[trailer.buckets.length];
+        for(int i=0;i<buckets.length;i++) {
             try {
-                buckets[i] = (DelayedFree) readChecksummedObject(ois, length);
+                buckets[i] = (DelayedFree) readChecksummedObject(
+                        new ByteArrayInputStream(trailer.buckets[i]), trailer.buckets[i].length);
             } catch (ChecksumFailedException e) {
                 Logger.warning(this, "Failed to load a bucket to free");
             }
         }
         persistentTempFactory.finishDelayedFree(buckets);
     }
+    
+    private CheckpointFiles.Trailer makeTrailer(DelayedFree[] buckets) throws IOException {
+        bandwidthStatsPutter.updateData(node);
+        byte[][] stored = new byte[buckets == null ? 0 : buckets.length][];
+        for(int i=0;i<stored.length;i++) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            writeChecksummedObject(baos, buckets[i], null);
+            stored[i] = baos.toByteArray();
+        }
+        return new CheckpointFiles.Trailer(bandwidthStatsPutter, stored);
+    }
 
     @Override
     protected void innerCheckpoint(boolean shutdown) {
@@ -557,10 +694,78 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     protected void save(boolean shutdown) {
         if(writeToFilename == null) return;
-        if(writeToFilename.exists()) {
-            FileUtil.renameTo(writeToFilename, writeToBackupFilename);
+        long start = System.currentTimeMillis();
+        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        ClientRequest[] requests = getRequests();
+        if(shutdown) {
+            for(ClientRequest req : requests) {
+                if(req == null) continue;
+                try {
+                    req.onShutdown(getClientContext());
+                } catch (Throwable t) {
+                    Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
+                }
+            }
         }
-        if(innerSave(shutdown)) {
+        Map<RequestIdentifier, byte[]> digests = new HashMap<RequestIdentifier, byte[]>();
+        boolean full = writtenDigests == null || files.tooManyIncrements();
+        boolean checkAll = full || start - lastCheckedAll >= CHECK_ALL_INTERVAL;
+        File written;
+        int requestsWritten = 0;
+        int requestsSerialized = 0;
+        long bytes;
+        CheckpointFiles.Writer writer = null;
+        try {
+            if(full) {
+                writer = files.startFull(salt);
+            } else {
+                // The requests we wrote before which have gone since.
+                Set<RequestIdentifier> current = new HashSet<RequestIdentifier>(requests.length);
+                for(ClientRequest req : requests)
+                    current.add(req.getRequestIdentifier());
+                List<RequestIdentifier> removed = new ArrayList<RequestIdentifier>();
+                for(RequestIdentifier reqID : writtenDigests.keySet())
+                    if(!current.contains(reqID)) removed.add(reqID);
+                writer = files.startIncrement(removed);
+            }
+            written = writer.filename;
+            for(ClientRequest req : requests) {
+                RequestIdentifier reqID = req.getRequestIdentifier();
+                // Clear it even if we write the request anyway, so it isn't written again next time.
+                boolean changed = req.clearChanged();
+                byte[] oldDigest = full ? null : writtenDigests.get(reqID);
+                if(oldDigest != null && !changed && !checkAll) {
+                    // Don't even serialize it.
+                    digests.put(reqID, oldDigest);
+                    continue;
+                }
+                byte[] data = serializeRequest(req);
+                requestsSerialized++;
+                byte[] digest = SHA256.digest(data);
+                digests.put(reqID, digest);
+                // It may not really have changed, e.g. if only transient fields have.
+                if(Arrays.equals(digest, oldDigest)) continue;
+                if(oldDigest != null && !changed)
+                    Logger.warning(this, "Request changed without telling us: "+req);
+                writer.write(data);
+                requestsWritten++;
+            }
+            bytes = writer.finish(makeTrailer(buckets));
+            writer = null;
+            Logger.normal(this, "Saved "+requestsWritten+" of "+requests.length+" requests to "+written);
+        } catch (IOException e) {
+            System.err.println("Failed to write persistent requests: "+e);
+            e.printStackTrace();
+            // We have cleared the requests' changed flags, so look at all of them next time.
+            lastCheckedAll = 0;
+            return;
+        } finally {
+            if(writer != null) writer.abort();
+        }
+        persistentTempFactory.finishDelayedFree(buckets);
+        writtenDigests = digests;
+        if(checkAll) lastCheckedAll = start;
+        if(full) {
             if(deleteAfterSuccessfulWrite != null) {
                 deleteAfterSuccessfulWrite.delete();
                 deleteAfterSuccessfulWrite = null;
@@ -570,69 +775,44 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 otherDeleteAfterSuccessfulWrite = null;
             }
         }
+        long time = System.currentTimeMillis() - start;
+        synchronized(this) {
+            checkpoints++;
+            if(full) fullCheckpoints++;
+            lastCheckpointMillis = time;
+            lastCheckpointBytes = bytes;
+            lastCheckpointRequests = requests.length;
+            lastCheckpointRequestsWritten = requestsWritten;
+            lastCheckpointRequestsSerialized = requestsSerialized;
+            pendingIncrements = files.pendingIncrements();
+        }
+        if(logMINOR) Logger.minor(this, "Checkpoint took "+time+"ms, serialized "+requestsSerialized+
+                " and wrote "+requestsWritten+" of "+requests.length+" requests, "+bytes+" bytes to "+written);
+        if(!full) maybeCompact();
     }
     
-    private boolean innerSave(boolean shutdown) {
-        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
-        OutputStream fos = null;
-        try {
-            fos = writeToBucket.getOutputStream();
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeLong(MAGIC);
-            oos.writeInt(VERSION);
-            checker.writeAndChecksum(oos, salt);
-            ClientRequest[] requests = getRequests();
-            if(shutdown) {
-                for(ClientRequest req : requests) {
-                    if(req == null) continue;
-                    try {
-                        req.onShutdown(getClientContext());
-                    } catch (Throwable t) {
-                        Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
+    /** Merge the increments into client.dat in the background once they are big enough. */
+    private void maybeCompact() {
+        if(!files.startCompacting()) return;
+        final CheckpointFiles compacting = files;
+        executor.execute(new Runnable() {
+            
+            @Override
+            public void run() {
+                if(!compacting.compact()) return;
+                synchronized(serializeCheckpoints) {
+                    int pending = compacting.pendingIncrements();
+                    synchronized(ClientLayerPersister.this) {
+                        compactions++;
+                        pendingIncrements = pending;
                     }
                 }
             }
-            oos.writeInt(requests.length);
-            for(ClientRequest req : requests) {
-                // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
-                // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
-                // Write recovery data. This is just enough to restart the request from scratch, 
-                // but may support continuing the request in simple cases e.g. if a fetch is now
-                // just a single splitfile.
-                writeRecoveryData(oos, req);
-            }
-            bandwidthStatsPutter.updateData(node);
-            oos.writeObject(bandwidthStatsPutter);
-            if(buckets == null) {
-                oos.writeInt(0);
-            } else {
-                oos.writeInt(buckets.length);
-                for(DelayedFree bucket : buckets)
-                    writeChecksummedObject(oos, bucket, null);
-            }
-            oos.close();
-            fos = null;
-            Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
-            persistentTempFactory.finishDelayedFree(buckets);
-            return true;
-        } catch (IOException e) {
-            System.err.println("Failed to write persistent requests: "+e);
-            e.printStackTrace();
-            return false;
-        } finally {
-            try {
-                if(fos != null) fos.close();
-            } catch (IOException e) {
-                System.err.println("Failed to write persistent requests: "+e);
-                e.printStackTrace();
-            }
-        }
+            
+        }, "Compacting "+baseName);
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
+    private void writeRecoveryData(OutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
         try {
@@ -649,7 +829,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private ClientRequest readRequestFromRecoveryData(ObjectInputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
+    private ClientRequest readRequestFromRecoveryData(InputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
         InputStream tmp = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             DataInputStream dis = new DataInputStream(tmp);
@@ -666,7 +846,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void writeChecksummedObject(ObjectOutputStream os, Object req, String name) throws IOException {
+    private void writeChecksummedObject(OutputStream os, Object req, String name) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         try {
             ObjectOutputStream innerOOS = new ObjectOutputStream(oos);
@@ -681,7 +861,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private Object readChecksummedObject(ObjectInputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
+    private Object readChecksummedObject(InputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
         InputStream ois = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             ObjectInputStream oo = new ObjectInputStream(ois);
@@ -698,12 +878,6 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void skipChecksummedObject(ObjectInputStream is, long totalLength) throws IOException {
-        long length = is.readLong();
-        if(length > totalLength) throw new IOException("Too long: "+length+" > "+totalLength);
-        FileUtil.skipFully(is, length + checker.checksumLength());
-    }
-
     private ClientRequest[] getRequests() {
         return clientCore.getPersistentRequests();
     }
@@ -712,38 +886,55 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         return newSalt;
     }
     
-    private RequestIdentifier readRequestIdentifier(DataInput is) throws IOException {
-        short length = is.readShort();
-        if(length <= 0) return null;
-        byte[] buf = new byte[length];
-        try {
-            checker.readAndChecksum(is, buf, 0, length);
-        } catch (ChecksumFailedException e) {
-            Logger.error(this, "Checksum failed reading RequestIdentifier. This is not serious but means we will have to read the next request even if we don't need it.");
-            return null;
-        }
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf));
-        try {
-            return new RequestIdentifier(dis);
-        } catch (IOException e) {
-            Logger.error(this, "Failed to parse RequestIdentifier in spite of valid checksum (probably a bug): "+e, e);
-            return null;
-        }
+    public synchronized File getWriteFilename() {
+        return writeToFilename;
     }
     
-    private void writeRequestIdentifier(DataOutput os, RequestIdentifier req) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        OutputStream oos = checker.checksumWriter(baos);
-        DataOutputStream dos = new DataOutputStream(oos);
-        req.writeTo(dos);
-        dos.close();
-        byte[] buf = baos.toByteArray();
-        os.writeShort(buf.length - checker.checksumLength());
-        os.write(buf);
+    /** Counters for loading and checkpointing the persistent requests. */
+    public static class CheckpointStats {
+        /** Checkpoints written since startup. */
+        public long checkpoints;
+        /** Checkpoints which rewrote client.dat rather than writing an increment. */
+        public long fullCheckpoints;
+        /** Times the increments have been merged into client.dat. */
+        public long compactions;
+        /** Time taken by the last checkpoint. */
+        public long lastMillis;
+        /** Size of the file written by the last checkpoint. */
+        public long lastBytes;
+        /** Persistent requests at the last checkpoint. */
+        public int lastRequests;
+        /** Requests written by the last checkpoint, because they had changed. */
+        public int lastRequestsWritten;
+        /** Requests serialized by the last checkpoint, because they said they had changed, or to
+         * check that they hadn't. */
+        public int lastRequestsSerialized;
+        /** Increments not yet merged into client.dat. */
+        public int pendingIncrements;
+        /** Time from starting to load until the first unfinished request had been resumed and 
+         * handed back to the request starters, or -1. */
+        public long startupFirstRequestMillis;
+        /** Time from starting to load until all requests were resumed, or -1. */
+        public long startupRestoredMillis;
+        /** Unfinished requests resumed on startup. */
+        public int startupRequestsResumed;
     }
-
-    public synchronized File getWriteFilename() {
-        return writeToFilename;
+    
+    public synchronized CheckpointStats getCheckpointStats() {
+        CheckpointStats stats = new CheckpointStats();
+        stats.checkpoints = checkpoints;
+        stats.fullCheckpoints = fullCheckpoints;
+        stats.compactions = compactions;
+        stats.lastMillis = lastCheckpointMillis;
+        stats.lastBytes = lastCheckpointBytes;
+        stats.lastRequests = lastCheckpointRequests;
+        stats.lastRequestsWritten = lastCheckpointRequestsWritten;
+        stats.lastRequestsSerialized = lastCheckpointRequestsSerialized;
+        stats.pendingIncrements = pendingIncrements;
+        stats.startupFirstRequestMillis = startupFirstRequestMillis;
+        stats.startupRestoredMillis = startupRestoredMillis;
+        stats.startupRequestsResumed = startupRequestsResumed;
+        return stats;
     }
 
     public void panic() {
@@ -753,18 +944,15 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     public void deleteAllFiles() {
         synchronized(serializeCheckpoints) {
-            deleteFile(dir, baseName, false, false);
-            deleteFile(dir, baseName, false, true);
-            deleteFile(dir, baseName, true, false);
-            deleteFile(dir, baseName, true, true);
+            if(files != null) files.deleteAll();
+            writtenDigests = null;
         }
     }
 
     public void disableWrite() {
         synchronized(serializeCheckpoints) {
             writeToFilename = null;
-            writeToBackupFilename = null;
-            writeToBucket = null;
+            if(files != null) files.reset();
         }
         super.disableWrite();
     }
@@ -215,6 +215,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 			Logger.error(this, "Failed to start insert: "+e, e);
 			synchronized(this) {
 				finished = true;
+				markChanged();
 				currentState = null;
 			}
 			// notify the client that the insert could not even be started
@@ -225,6 +226,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 			Logger.error(this, "Failed to start insert: "+e, e);
 			synchronized(this) {
 				finished = true;
+				markChanged();
 				currentState = null;
 			}
 			// notify the client that the insert could not even be started
@@ -235,6 +237,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 			Logger.error(this, "Failed to start insert: "+e, e);
 			synchronized(this) {
 				finished = true;
+				markChanged();
 				currentState = null;
 			}
 			// notify the client that the insert could not even be started
@@ -266,6 +269,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 	public void onSuccess(ClientPutState state, ClientContext context) {
 		synchronized(this) {
 			finished = true;
+			markChanged();
 			currentState = null;
 		}
 		if(super.failedBlocks > 0 || super.fatallyFailedBlocks > 0 || super.successfulBlocks < super.totalBlocks) {
@@ -285,6 +289,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 		if(logMINOR) Logger.minor(this, "onFailure() for "+this+" : "+state+" : "+e, e);
 		synchronized(this) {
 			finished = true;
+			markChanged();
 			currentState = null;
 		}
 		client.onFailure(e, this);
@@ -393,6 +398,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 		synchronized (this) {
 			if (currentState == oldState) {
 				currentState = newState;
+				markChanged();
 				return;
 			}
 		}
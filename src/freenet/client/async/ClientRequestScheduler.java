@@ -239,6 +239,16 @@ public class ClientRequestScheduler implements RequestScheduler {
 	    return selector.chooseRequest(fuzz, random, offeredKeys, starter, isRTScheduler, clientContext);
 	}
 	
+	/**
+	 * List a KeyListener's keys again, because it wants keys it had already found.
+	 * @param listener
+	 */
+	public void reindexPendingKeys(KeyListener listener) {
+		schedTransient.reindexPendingKeys(listener);
+		if(schedCore != null)
+			schedCore.reindexPendingKeys(listener);
+	}
+
 	/**
 	 * Remove a KeyListener from the list of KeyListeners.
 	 * @param getter
@@ -450,6 +460,29 @@ public class ClientRequestScheduler implements RequestScheduler {
 		if(schedCore == null) return 0;
 		return schedCore.countWaitingKeys();
 	}
+
+	/** Add the size of the indexes of the keys we are listening for to the stats. */
+	public void addKeyIndexStats(KeyIndexStats stats) {
+		schedTransient.addIndexStats(stats);
+		if(schedCore != null)
+			schedCore.addIndexStats(stats);
+	}
+
+	/** The size of the key index, summed over several trackers. */
+	public static class KeyIndexStats {
+		/** Listeners registered. */
+		public int listeners;
+		/** Listeners which are called for every key, because they are not in the index. */
+		public int unindexedListeners;
+		/** Keys in the index. */
+		public long keys;
+		/** Memory used by the index, including the fingerprints we keep to remove keys. */
+		public long bytes;
+		
+		public double bytesPerKey() {
+			return keys == 0 ? 0.0 : (double) bytes / keys;
+		}
+	}
 	
 	public boolean isInsertScheduler() {
 		return isInsertScheduler;
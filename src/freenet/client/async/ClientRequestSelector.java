@@ -44,22 +44,23 @@ import freenet.support.TimeUtil;
  * wakeup time is Long.MAX_VALUE) or because a key has been fetched repeatedly and has entered 
  * a cooldown period, meaning it will be fetchable in 30 minutes.
  * 
- * LOCKING: Consequently we need to lock the entire tree whenever we access either the tree or the
- * cooldown tracker (which really should be part of the tree, TODO!): When a request completes, we
- * start at the request itself and go up the tree until we stop updating the wakeup times. However
- * when we choose a request to send, we start at the top and go down (and update the cooldown times
- * when backtracking back up the tree if we don't find anything).
+ * When a request completes, we start at the request itself and go up the tree clearing or reducing
+ * the wakeup times. When we choose a request to send, we start at the top and go down, and set the
+ * wakeup time on each node where we find nothing to send, so the next request starter can skip it.
  * 
- * **We lock on ClientRequestSelector** when using the tree, including the cooldown times.
+ * LOCKING: There is no lock on the whole tree, so several request starters can choose requests, 
+ * and requests can complete, at the same time:
+ * - Wakeup times are updated without locking. A node only sets its wakeup time if nothing below it
+ * was woken up while it was looking (see WakeupTime), so a request cannot be hidden by a starter 
+ * racing with the request being woken up.
+ * - Each RGA and SRGA locks itself to change its contents. The SRGAs copy on write, so choosing a
+ * request only locks the RGA it takes the request from.
+ * - Something is only added to a node while holding the lock on the node's parent, and an empty 
+ * node is only removed by its parent after checking, under the parent's lock, that it is still
+ * empty. So we never lose a request added just as its RGA became empty.
+ * - If you need more than one lock, take the parent's before the child's.
  * 
- * REDFLAG LOCKING: Actually in the completion case we could find the top and then lock the whole 
- * tree, and then update the cooldowns; and/or we could avoid updating the cooldowns during request 
- * selection, e.g. by making sure that each structure always does a bottom-up update when something
- * changes, although that would not help with locking...
- * 
- * FIXME: More seriously, we should really combine the cooldown tracker and the RGAs. The RGAs and 
- * SRGAs should contain their own wakeup times. This could significantly simplify the code. 
- * CooldownTracker is left over from the DB4O era.
+ * The priorities are created up front and never removed, so they need no lock.
  */
 public class ClientRequestSelector implements KeysFetchingLocally {
 	
@@ -94,7 +95,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	/**
      * The base of the tree.
      */
-    protected RequestClientRGANode[] priorities;
+    protected final RequestClientRGANode[] priorities;
     
     protected final Deque<BaseSendableGet>recentSuccesses;
     
@@ -114,6 +115,8 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 			recentSuccesses = null;
 		}
 		priorities = new RequestClientRGANode[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(int i=0;i<priorities.length;i++)
+			priorities[i] = new RequestClientRGANode(null, this);
 	}
 	
 	private static volatile boolean logMINOR;
@@ -144,10 +147,8 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	private transient final HashSet<SendableRequestItemKey> runningInserts;
 	
 	/** Choose a priority to start requests from.
-	 * @return The priority chosen or the time at which a priority will have requests to send.
-	 * LOCKING: Synchronized because we may create new priorities. Both the cooldown queue and the 
-	 * RGA hierarchy, rooted at the priorities, use ClientRequestSelector lock. */
-	private synchronized long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
+	 * @return The priority chosen or the time at which a priority will have requests to send. */
+	private long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
 	    RequestClientRGANode result = null;
 		
 		long wakeupTime = Long.MAX_VALUE;
@@ -351,15 +352,8 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 				
 				if(logMINOR)
 					Logger.minor(this, "Got priority tracker "+chosenTracker);
-				RemoveRandomReturn val;
-				synchronized(this) {
-				    // We must hold the overall lock, just as in addToGrabArrays.
-				    // This is important for keeping the cooldown tracker consistent amongst other 
-				    // things: We can get a race condition between thread A reading the tree, 
-				    // finding nothing and setCachedWakeup(), and thread B waking up a request, 
-				    // resulting in the request not being accessible.
-				    val = chosenTracker.removeRandom(starter, context, now);
-				}
+				// No lock needed. See the class javadocs.
+				RemoveRandomReturn val = chosenTracker.removeRandom(starter, context, now);
 				SendableRequest req;
 				if(val == null) {
 					Logger.normal(this, "Priority "+choosenPriorityClass+" returned null - nothing to schedule, should remove priority");
@@ -385,10 +379,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 					if(clientGrabber != null) {
 						RandomGrabArray baseRGA = clientGrabber.getGrabber(req.getSchedulerGroup());
 						if(baseRGA != null) {
-							// Must synchronize to avoid nasty race conditions with cooldown.
-							synchronized(this) {
-								baseRGA.remove(req, context);
-							}
+							baseRGA.remove(req, context);
 						} else {
 							// Okay, it's been removed already. Cool.
 						}
@@ -618,21 +609,19 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
         if((priorityClass > RequestStarter.PAUSED_PRIORITY_CLASS) || (priorityClass < RequestStarter.MAXIMUM_PRIORITY_CLASS))
             throw new IllegalStateException("Invalid priority: "+priorityClass+" - range is "+RequestStarter.MAXIMUM_PRIORITY_CLASS+" (most important) to "+RequestStarter.PAUSED_PRIORITY_CLASS+" (least important)");
         // Client
-        synchronized(this) {
+        RequestClientRGANode clientGrabber = priorities[priorityClass];
+        // Hold the lock so the client's SRGA isn't removed for being empty while we add to it.
+        synchronized(clientGrabber) {
             ClientRequestRGANode requestGrabber = makeSRGAForClient(priorityClass, client, context);
             requestGrabber.add(cr, req, context);
         }
         sched.wakeStarter();
     }
 
+    /** Caller must hold the lock on priorities[priorityClass]. */
     private ClientRequestRGANode makeSRGAForClient(short priorityClass,
             RequestClient client, ClientContext context) {
         RequestClientRGANode clientGrabber = priorities[priorityClass];
-        if(clientGrabber == null) {
-            clientGrabber = new RequestClientRGANode(null, this);
-            priorities[priorityClass] = clientGrabber;
-            if(logMINOR) Logger.minor(this, "Registering client tracker for priority "+priorityClass+" : "+clientGrabber);
-        }
         // Request
         ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
         if(requestGrabber == null) {
@@ -653,27 +642,27 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
             return;
         }
         ClientRequestSchedulerGroup group = request.getSchedulerGroup();
-        synchronized(this) {
-            // First by priority
-            RequestClientRGANode clientGrabber = priorities[oldPrio];
-            if(clientGrabber == null) {
-                // Normal as most of the schedulers aren't relevant to any given insert/request.
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
+        RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga;
+        // First by priority
+        RequestClientRGANode clientGrabber = priorities[oldPrio];
+        synchronized(clientGrabber) {
             // Then by RequestClient
             ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
             if(requestGrabber == null) {
+                // Normal as most of the schedulers aren't relevant to any given insert/request.
                 if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
                 return;
             }
-            RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
+            rga = requestGrabber.getGrabber(group);
             if(rga == null) {
                 if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
                 return;
             }
             requestGrabber.maybeRemove(rga, context);
-            requestGrabber = makeSRGAForClient(newPrio, client, context);
+        }
+        // Only hold one priority's lock at a time.
+        synchronized(priorities[newPrio]) {
+            ClientRequestRGANode requestGrabber = makeSRGAForClient(newPrio, client, context);
             if(requestGrabber.getGrabber(group) != null) {
                 Logger.error(this, "RGA already exists for "+request+" : "+requestGrabber.getGrabber(group)+
                         " but want to insert "+rga, new Exception("error"));
@@ -683,11 +672,12 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
         }
     }
 
-    public synchronized long countQueuedRequests(ClientContext context) {
+    public long countQueuedRequests(ClientContext context) {
         long total = 0;
         for(int i=0;i<priorities.length;i++) {
             RequestClientRGANode prio = priorities[i];
-            if(prio == null || prio.isEmpty())
+            synchronized(prio) {
+            if(prio.isEmpty())
                 System.out.println("Priority "+i+" : empty");
             else {
                 System.out.println("Priority "+i+" : "+prio.size());
@@ -715,6 +705,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
                         }
                     }
             }
+            }
         }
         return total;
     }   
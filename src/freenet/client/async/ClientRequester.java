@@ -52,6 +52,10 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	 * persistent, and also we round-robin between different RequestClient's
 	 * in scheduling within a given priority class and retry count. */
 	protected transient RequestClient client;
+	/** Set when something which is serialized with the request may have changed, so the next
+	 * checkpoint must write it. Not persisted: the first checkpoint after loading writes
+	 * everything anyway. */
+	private transient volatile boolean changed;
 
 	/** What is our priority class? */
 	public short getPriorityClass() {
@@ -87,6 +91,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	protected synchronized boolean cancel() {
 		boolean ret = cancelled;
 		cancelled = true;
+		changed = true;
 		return ret;
 	}
 
@@ -182,6 +187,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		minSuccessBlocks = 0;
 		blockSetFinalized = false;
 		sentToNetwork = false;
+		changed = true;
 	}
 	
 	/** The set of blocks has been finalised, total will not change any
@@ -193,6 +199,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			if(blockSetFinalized) return;
 			blockSetFinalized = true;
+			changed = true;
 		}
 		if(logMINOR)
 			Logger.minor(this, "Finalized set of blocks for "+this, new Exception("debug"));
@@ -205,6 +212,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized (this) {
 			totalBlocks++;
 			wasFinalized = blockSetFinalized;
+			changed = true;
 		}
 
 		if (wasFinalized) {
@@ -223,6 +231,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized (this) {
 			totalBlocks += num;
 			wasFinalized = blockSetFinalized;
+			changed = true;
 		}
 
 		if (wasFinalized) {
@@ -243,6 +252,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			if(cancelled) return;
 			successfulBlocks++;
             latestSuccess = CurrentTimeUTC.get();
+            changed = true;
 		}
 		if(dontNotify) return;
 		notifyClients(context);
@@ -255,6 +265,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
         synchronized(this) {
             failedBlocks++;
             latestFailure = CurrentTimeUTC.get();
+            changed = true;
         }
         if(!dontNotify)
             notifyClients(context);
@@ -270,6 +281,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			fatallyFailedBlocks++;
             latestFailure = CurrentTimeUTC.get();
+            changed = true;
 		}
 		notifyClients(context);
 	}
@@ -278,6 +290,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	public synchronized void addMustSucceedBlocks(int blocks) {
 		totalBlocks += blocks;
 		minSuccessBlocks += blocks;
+		changed = true;
 		if(logMINOR) Logger.minor(this, "addMustSucceedBlocks("+blocks+"): total="+totalBlocks+" successful="+successfulBlocks+" failed="+failedBlocks+" required="+minSuccessBlocks); 
 	}
 
@@ -285,6 +298,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	public synchronized void addRedundantBlocksInsert(int blocks) {
 		totalBlocks += blocks;
 		minSuccessBlocks += blocks;
+		changed = true;
 		if(logMINOR) Logger.minor(this, "addMustSucceedBlocks("+blocks+"): total="+totalBlocks+" successful="+successfulBlocks+" failed="+failedBlocks+" required="+minSuccessBlocks); 
 	}
 	
@@ -314,6 +328,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			if(sentToNetwork) return;
 			sentToNetwork = true;
+			changed = true;
 		}
 		innerToNetwork(context);
 	}
@@ -334,6 +349,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
         // See ClientRequester.getLatestSuccess() for why this defaults to current time.
         this.latestSuccess = CurrentTimeUTC.get();
 		this.totalBlocks = 0;
+		this.changed = true;
 	}
 
 	/** Get client context object */
@@ -350,6 +366,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			oldPrio = priorityClass;
 			this.priorityClass = newPriorityClass;
+			changed = true;
 		}
 		if(logMINOR) Logger.minor(this, "Changing priority class of "+this+" from "+oldPrio+" to "+newPriorityClass);
 		ctx.getChkFetchScheduler(realTimeFlag).reregisterAll(this, oldPrio);
@@ -362,6 +379,22 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		return realTimeFlag;
 	}
 
+	/** Something which is serialized with the request, e.g. its ClientGetState's, has changed, so
+	 * the next checkpoint must write it. The counters and the state transitions here and in our
+	 * subclasses call this themselves. The ClientGetState's and ClientPutState's must call it 
+	 * whenever they change their own persistent fields, e.g. retry counts, without telling us 
+	 * through one of those. */
+	public void markChanged() {
+		changed = true;
+	}
+
+	/** @return True if the request may have changed since the last call, see markChanged(). */
+	public boolean clearChanged() {
+		boolean ret = changed;
+		changed = false;
+		return ret;
+	}
+
 	/** Is this request persistent? */
 	public boolean persistent() {
 		return client.persistent();
@@ -141,6 +141,7 @@ public class ContainerInserter implements ClientPutState, Serializable {
 			if(cancelled) return;
 			cancelled = true;
 		}
+		parent.markChanged();
 		// Must call onFailure so get removeFrom()'ed
 		cb.onFailure(new InsertException(InsertExceptionMode.CANCELLED), this, context);
 	}
@@ -263,6 +264,7 @@ public class ContainerInserter implements ClientPutState, Serializable {
 			if(finished) return;
 			finished = true;
 		}
+		parent.markChanged();
 		cb.onFailure(e, this, context);
 	}
 
@@ -21,8 +21,8 @@ public interface KeyListener {
 	/**
 	 * Fast guess at whether we want a key or not. Usually implemented by a 
 	 * bloom filter.
-	 * LOCKING: Should avoid external locking if possible. Will be called
-	 * within the CRSBase lock.
+	 * LOCKING: Should avoid external locking if possible. May be called by
+	 * several threads at once, without any lock held by the caller.
 	 * @return True if we probably want the key. False if we definitely don't
 	 * want it.
 	 */
@@ -62,6 +62,17 @@ public interface KeyListener {
 
 	public long countKeys();
 
+	/**
+	 * List the keys we still want, so KeyListenerTracker can index them, and
+	 * only call probablyWantKey() for keys which are in the index. It is
+	 * harmless to list keys we no longer want, but every key we want must be
+	 * listed. Called off-thread after the listener is registered, and again if
+	 * it is reindexed because it wants keys it had found; may read from disk.
+	 * @return The keys, or null if we can't list them (e.g. because they
+	 * change), in which case probablyWantKey() will be called for every key.
+	 */
+	public Key[] listKeys();
+
 	/**
 	 * @return The parent HasKeyListener. This does mean it will be pinned in
 	 * RAM, but it can be deactivated so it's not a big deal.
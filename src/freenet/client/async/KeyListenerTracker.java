@@ -7,17 +7,25 @@ import static java.lang.String.format;
 
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import freenet.client.async.ClientRequestScheduler.KeyIndexStats;
 import freenet.crypt.RandomSource;
 import freenet.crypt.SHA256;
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
 import freenet.keys.NodeSSK;
+import freenet.node.PrioRunnable;
 import freenet.node.SendableGet;
+import freenet.support.AtomicCountingBloomFilter;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
 
 /**
  * <p>Tracks exactly which keys we are listening for. This is 
@@ -28,6 +36,17 @@ import freenet.support.Logger.LogLevel;
  * <p>The queue of requests to run, and the algorithm to choose which to start, is in
  * @see ClientRequestSchedulerSelector .</p>
  * 
+ * <p>Every key that passes through the node is checked against every listener, so we keep an
+ * index of the keys the listeners want: a counting Bloom filter over the salted keys, which can
+ * be checked without locking. Once a listener has been registered, we ask it to list its keys
+ * (off-thread, as this may read from disk), and from then on only call it for keys which are in
+ * the index. Listeners which cannot list their keys, and those we haven't indexed yet, are
+ * called for every key. We remember the fingerprint of each key a listener added to the index,
+ * so that we can remove exactly those when it is removed or a key is found.</p>
+ * 
+ * LOCKING: Lookups do not lock; they use a snapshot of the listeners. Adding and removing
+ * listeners, and updating the index, is synchronized on this.
+ * 
  * PERSISTENCE: This class is NOT serialized, it is recreated on every startup, and downloads are
  * re-registered with this class (for KeyListeners) and downloads and uploads are re-registered 
  * with the ClientRequestSelector.
@@ -59,8 +78,20 @@ class KeyListenerTracker implements KeySalter {
 	final boolean isRTScheduler;
 	
 	protected final ClientRequestScheduler sched;
-	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
-	private final ArrayList<KeyListener> keyListeners;
+	/** Transient even for persistent scheduler. There is one for each of transient, persistent.
+	 * Replaced, not modified, so lookups can use it without locking. */
+	private volatile Listeners keyListeners;
+	/** The fingerprints each indexed listener added to the index. Protected by this. */
+	private final Map<KeyListener, IndexedKeys> indexedKeys;
+	/** The number of times each listener has been reindexed, so we can ignore keys listed
+	 * before the last time. Protected by this. */
+	private final Map<KeyListener, Integer> reindexed;
+	/** The number of fingerprints in the index. Protected by this. */
+	private long keysInIndex;
+	/** The index will hold at least this many keys without being rebuilt. */
+	static final int MIN_INDEX_CAPACITY = 1024;
+	/** Past this the index just gets more false positives. About 1.4GB with the fingerprints. */
+	static final int MAX_INDEX_CAPACITY = 100*1000*1000;
 
 	final boolean persistent;
 	
@@ -73,7 +104,9 @@ class KeyListenerTracker implements KeySalter {
 		this.isSSKScheduler = forSSKs;
 		this.isRTScheduler = forRT;
 		this.sched = sched;
-		keyListeners = new ArrayList<KeyListener>();
+		keyListeners = new Listeners(new KeyListener[0], new KeyListener[0], new AtomicCountingBloomFilter(MIN_INDEX_CAPACITY));
+		indexedKeys = new HashMap<KeyListener, IndexedKeys>();
+		reindexed = new HashMap<KeyListener, Integer>();
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
 		    random.nextBytes(globalSalt);
@@ -100,16 +133,26 @@ class KeyListenerTracker implements KeySalter {
 			// We have to register before checking the disk, so it may well get registered twice.
 			if(keyListeners.contains(listener))
 				return;
-			keyListeners.add(listener);
+			keyListeners = keyListeners.addUnindexed(listener);
 		}
 		if (logMINOR)
 			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
+		indexLater(listener);
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
 		boolean ret;
 		synchronized (this) {
-			ret = keyListeners.remove(listener);
+			Listeners old = keyListeners;
+			keyListeners = old.remove(listener);
+			ret = keyListeners != old;
+			reindexed.remove(listener);
+			IndexedKeys keys = indexedKeys.remove(listener);
+			if(keys != null) {
+				keys.removeAll(keyListeners.index);
+				keysInIndex -= keys.size;
+				maybeResizeIndex();
+			}
 		}
 		listener.onRemove();
 		if (logMINOR)
@@ -117,10 +160,117 @@ class KeyListenerTracker implements KeySalter {
 		return ret;
 	}
 	
+	/** The listener wants keys it had found, e.g. because its data was corrupted and its filters 
+	 * have been regenerated, so list its keys again. Until then it is called for every key. */
+	public void reindexPendingKeys(KeyListener listener) {
+		synchronized(this) {
+			if(!keyListeners.contains(listener)) return;
+			Integer count = reindexed.get(listener);
+			reindexed.put(listener, count == null ? 1 : count + 1);
+			IndexedKeys keys = indexedKeys.remove(listener);
+			if(keys != null) {
+				keys.removeAll(keyListeners.index);
+				keysInIndex -= keys.size;
+				keyListeners = keyListeners.moveToUnindexed(listener);
+				maybeResizeIndex();
+			}
+		}
+		if(logMINOR)
+			Logger.minor(this, "Reindexing "+listener+" on "+this);
+		indexLater(listener);
+	}
+	
+	/** Index the listener's keys off-thread, as listing them may read from disk. */
+	protected void indexLater(final KeyListener listener) {
+		sched.clientContext.mainExecutor.execute(new PrioRunnable() {
+
+			@Override
+			public void run() {
+				index(listener);
+			}
+
+			@Override
+			public int getPriority() {
+				return NativeThread.LOW_PRIORITY;
+			}
+
+		}, "Index keys for "+listener);
+	}
+	
+	/** Add the listener's keys to the index, after which probablyWantKey() will only be called
+	 * for keys in the index. */
+	void index(KeyListener listener) {
+		Integer generation;
+		synchronized(this) {
+			if(!keyListeners.isUnindexed(listener)) return;
+			generation = reindexed.get(listener);
+		}
+		Key[] keys;
+		try {
+			keys = listener.listKeys();
+		} catch (Throwable t) {
+			Logger.error(this, format("Error in listKeys callback for %s", listener), t);
+			return;
+		}
+		if(keys == null) return;
+		long[] fingerprints = new long[keys.length];
+		for(int i=0;i<keys.length;i++)
+			fingerprints[i] = AtomicCountingBloomFilter.fingerprint(saltKey(keys[i]));
+		Arrays.sort(fingerprints);
+		IndexedKeys indexed = new IndexedKeys(fingerprints);
+		synchronized(this) {
+			// May have been removed while we were listing the keys.
+			if(!keyListeners.isUnindexed(listener)) return;
+			// Or reindexed, in which case the keys may be out of date and a later job will index it.
+			Integer current = reindexed.get(listener);
+			if(current == null ? generation != null : !current.equals(generation)) return;
+			// Add the keys before lookups can skip the listener.
+			indexed.addAll(keyListeners.index);
+			indexedKeys.put(listener, indexed);
+			keysInIndex += indexed.size;
+			keyListeners = keyListeners.moveToIndexed(listener);
+			maybeResizeIndex();
+		}
+		if(logMINOR)
+			Logger.minor(this, "Indexed "+keys.length+" keys for "+listener+" on "+this);
+	}
+	
+	/** Rebuild the index if it is too small, or much too big, for the keys in it. Caller must
+	 * hold the lock. */
+	private void maybeResizeIndex() {
+		int capacity = keyListeners.index.getCapacity();
+		if(keysInIndex > capacity && capacity < MAX_INDEX_CAPACITY) {
+			resizeIndex((int) Math.min(MAX_INDEX_CAPACITY, keysInIndex * 2));
+		} else if(keysInIndex < capacity / 8 && capacity > MIN_INDEX_CAPACITY) {
+			resizeIndex((int) Math.max(MIN_INDEX_CAPACITY, keysInIndex * 2));
+		}
+	}
+	
+	private void resizeIndex(int capacity) {
+		if(logMINOR)
+			Logger.minor(this, "Resizing index on "+this+" to "+capacity+" for "+keysInIndex+" keys");
+		AtomicCountingBloomFilter index = new AtomicCountingBloomFilter(capacity);
+		for(IndexedKeys keys : indexedKeys.values())
+			keys.addAll(index);
+		// Lookups with the old snapshot still see a complete index.
+		keyListeners = keyListeners.withIndex(index);
+	}
+	
+	/** A listener found a key, so doesn't want it any more. Remove it from the index. */
+	private void onFoundKey(KeyListener listener, byte[] saltedKey) {
+		synchronized(this) {
+			IndexedKeys keys = indexedKeys.get(listener);
+			if(keys == null) return;
+			if(keys.remove(AtomicCountingBloomFilter.fingerprint(saltedKey), keyListeners.index))
+				keysInIndex--;
+		}
+	}
+	
 	public boolean removePendingKeys(HasKeyListener hasListener) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
-		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
+		Listeners listeners = keyListeners;
+		for (KeyListener[] list : listeners.lists()) {
+			for (KeyListener listener : list) {
 				HasKeyListener hkl;
 				try {
 					hkl = listener.getHasKeyListener();
@@ -167,18 +317,32 @@ class KeyListenerTracker implements KeySalter {
 		return priority;
 	}
 	
-	public synchronized long countWaitingKeys() {
+	public long countWaitingKeys() {
 		long count = 0;
-		for (KeyListener listener : keyListeners) {
-			try {
-				count += listener.countKeys();
-			} catch (Throwable t) {
-				Logger.error(this, format("Error in countKeys callback for %s", listener), t);
+		Listeners listeners = keyListeners;
+		for (KeyListener[] list : listeners.lists()) {
+			for (KeyListener listener : list) {
+				try {
+					count += listener.countKeys();
+				} catch (Throwable t) {
+					Logger.error(this, format("Error in countKeys callback for %s", listener), t);
+				}
 			}
 		}
 		return count;
 	}
 	
+	/** Add the size of the index to the stats. */
+	public synchronized void addIndexStats(KeyIndexStats stats) {
+		Listeners listeners = keyListeners;
+		stats.listeners += listeners.size();
+		stats.unindexedListeners += listeners.unindexed.length;
+		stats.keys += keysInIndex;
+		stats.bytes += listeners.index.getSizeBytes();
+		for(IndexedKeys keys : indexedKeys.values())
+			stats.bytes += keys.sizeBytes();
+	}
+	
 	public boolean anyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
@@ -197,10 +361,21 @@ class KeyListenerTracker implements KeySalter {
 		return false;
 	}
 	
-	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
+	public boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
+		Listeners listeners = keyListeners;
+		if(listeners.size() == 0) return false;
 		byte[] saltedKey = saltKey(key);
-		for (KeyListener listener : keyListeners) {
+		if(anyProbablyWantKey(listeners.unindexed, key, saltedKey))
+			return true;
+		if(listeners.indexed.length == 0 || 
+				!listeners.index.mightContain(AtomicCountingBloomFilter.fingerprint(saltedKey)))
+			return false;
+		return anyProbablyWantKey(listeners.indexed, key, saltedKey);
+	}
+	
+	private boolean anyProbablyWantKey(KeyListener[] list, Key key, byte[] saltedKey) {
+		for (KeyListener listener : list) {
 			try {
 				if (listener.probablyWantKey(key, saltedKey)) {
 					return true;
@@ -225,6 +400,7 @@ class KeyListenerTracker implements KeySalter {
 			try {
 				if (listener.handleBlock(key, saltedKey, block, context)) {
 					ret = true;
+					onFoundKey(listener, saltedKey);
 				}
 			} catch (Throwable t) {
 				Logger.error(this, format("Error in handleBlock callback for %s", listener), t);
@@ -301,19 +477,153 @@ class KeyListenerTracker implements KeySalter {
 	 */
 	private List<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
-		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
-				try {
-					if (!listener.probablyWantKey(key, saltedKey)) {
-						continue;
-					}
-				} catch (Throwable t) {
-					Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+		Listeners listeners = keyListeners;
+		probablyWantKey(listeners.unindexed, key, saltedKey, matches);
+		if(listeners.indexed.length != 0 && 
+				listeners.index.mightContain(AtomicCountingBloomFilter.fingerprint(saltedKey)))
+			probablyWantKey(listeners.indexed, key, saltedKey, matches);
+		return matches;
+	}
+	
+	private void probablyWantKey(KeyListener[] list, Key key, byte[] saltedKey, List<KeyListener> matches) {
+		for (KeyListener listener : list) {
+			try {
+				if (!listener.probablyWantKey(key, saltedKey)) {
 					continue;
 				}
-				matches.add(listener);
+			} catch (Throwable t) {
+				Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+				continue;
 			}
+			matches.add(listener);
 		}
-		return matches;
 	}
+	
+	/** An immutable snapshot of the listeners, and the index of the keys the indexed ones 
+	 * want. The index itself is updated in place. */
+	private static class Listeners {
+		
+		/** Listeners we call for every key. */
+		final KeyListener[] unindexed;
+		/** Listeners we only call for keys in the index. */
+		final KeyListener[] indexed;
+		final AtomicCountingBloomFilter index;
+		
+		Listeners(KeyListener[] unindexed, KeyListener[] indexed, AtomicCountingBloomFilter index) {
+			this.unindexed = unindexed;
+			this.indexed = indexed;
+			this.index = index;
+		}
+		
+		int size() {
+			return unindexed.length + indexed.length;
+		}
+		
+		KeyListener[][] lists() {
+			return new KeyListener[][] { unindexed, indexed };
+		}
+		
+		boolean contains(KeyListener listener) {
+			return indexOf(unindexed, listener) >= 0 || indexOf(indexed, listener) >= 0;
+		}
+		
+		boolean isUnindexed(KeyListener listener) {
+			return indexOf(unindexed, listener) >= 0;
+		}
+		
+		Listeners addUnindexed(KeyListener listener) {
+			KeyListener[] newUnindexed = Arrays.copyOf(unindexed, unindexed.length+1);
+			newUnindexed[unindexed.length] = listener;
+			return new Listeners(newUnindexed, indexed, index);
+		}
+		
+		Listeners moveToIndexed(KeyListener listener) {
+			KeyListener[] newIndexed = Arrays.copyOf(indexed, indexed.length+1);
+			newIndexed[indexed.length] = listener;
+			return new Listeners(without(unindexed, listener), newIndexed, index);
+		}
+		
+		Listeners moveToUnindexed(KeyListener listener) {
+			KeyListener[] newUnindexed = Arrays.copyOf(unindexed, unindexed.length+1);
+			newUnindexed[unindexed.length] = listener;
+			return new Listeners(newUnindexed, without(indexed, listener), index);
+		}
+		
+		/** @return This if the listener is not present. */
+		Listeners remove(KeyListener listener) {
+			KeyListener[] newUnindexed = without(unindexed, listener);
+			KeyListener[] newIndexed = without(indexed, listener);
+			if(newUnindexed == unindexed && newIndexed == indexed) return this;
+			return new Listeners(newUnindexed, newIndexed, index);
+		}
+		
+		Listeners withIndex(AtomicCountingBloomFilter newIndex) {
+			return new Listeners(unindexed, indexed, newIndex);
+		}
+		
+		private static int indexOf(KeyListener[] list, KeyListener listener) {
+			for(int i=0;i<list.length;i++)
+				if(list[i].equals(listener)) return i;
+			return -1;
+		}
+		
+		private static KeyListener[] without(KeyListener[] list, KeyListener listener) {
+			int i = indexOf(list, listener);
+			if(i < 0) return list;
+			KeyListener[] ret = new KeyListener[list.length-1];
+			System.arraycopy(list, 0, ret, 0, i);
+			System.arraycopy(list, i+1, ret, i, list.length-i-1);
+			return ret;
+		}
+		
+	}
+	
+	/** The fingerprints one listener added to the index, so we remove each exactly once. */
+	private static class IndexedKeys {
+		
+		/** Sorted. */
+		final long[] fingerprints;
+		/** Fingerprints which have been found and removed from the index. */
+		final BitSet removed;
+		/** Fingerprints still in the index. */
+		int size;
+		
+		IndexedKeys(long[] fingerprints) {
+			this.fingerprints = fingerprints;
+			this.removed = new BitSet(fingerprints.length);
+			this.size = fingerprints.length;
+		}
+		
+		void addAll(AtomicCountingBloomFilter index) {
+			for(int i=0;i<fingerprints.length;i++)
+				if(!removed.get(i)) index.add(fingerprints[i]);
+		}
+		
+		void removeAll(AtomicCountingBloomFilter index) {
+			for(int i=0;i<fingerprints.length;i++)
+				if(!removed.get(i)) index.remove(fingerprints[i]);
+		}
+		
+		/** @return True if the fingerprint was in the index and has been removed. */
+		boolean remove(long fingerprint, AtomicCountingBloomFilter index) {
+			int i = Arrays.binarySearch(fingerprints, fingerprint);
+			if(i < 0) return false;
+			// Duplicates are adjacent.
+			while(i > 0 && fingerprints[i-1] == fingerprint) i--;
+			for(;i<fingerprints.length && fingerprints[i] == fingerprint;i++) {
+				if(removed.get(i)) continue;
+				removed.set(i);
+				size--;
+				index.remove(fingerprint);
+				return true;
+			}
+			return false;
+		}
+		
+		long sizeBytes() {
+			return fingerprints.length * 8L + removed.size() / 8;
+		}
+		
+	}
+	
 }
@@ -86,6 +86,7 @@ public class MultiPutCompletionCallback implements PutCompletionCallback, Client
 			ListUtils.removeBySwapLast(waitingFor,state);
 			ListUtils.removeBySwapLast(waitingForBlockSet,state);
 			ListUtils.removeBySwapLast(waitingForFetchable,state);
+			parent.markChanged();
 			if(!(waitingFor.isEmpty() && started)) {
 				complete = false;
 			}
@@ -115,6 +116,7 @@ public class MultiPutCompletionCallback implements PutCompletionCallback, Client
 			ListUtils.removeBySwapLast(waitingFor,state);
 			ListUtils.removeBySwapLast(waitingForBlockSet,state);
 			ListUtils.removeBySwapLast(waitingForFetchable,state);
+			parent.markChanged();
 			if(!(waitingFor.isEmpty() && started)) {
 				this.e = e;
 				if(logMINOR) Logger.minor(this, "Still running: "+waitingFor.size()+" started = "+started);
@@ -141,6 +143,7 @@ public class MultiPutCompletionCallback implements PutCompletionCallback, Client
 		synchronized(this) {
 			if(finished) return;
 			finished = true;
+			parent.markChanged();
 			if(e != null && this.e != null && this.e != e) {
 				if(e.getMode() == InsertExceptionMode.CANCELLED) { // Cancelled is okay, ignore it, we cancel after failure sometimes.
 					// Ignore the new failure mode, use the old one
@@ -177,6 +180,7 @@ public class MultiPutCompletionCallback implements PutCompletionCallback, Client
 		waitingFor.add(ps);
 		waitingForBlockSet.add(ps);
 		waitingForFetchable.add(ps);
+		parent.markChanged();
 	}
 
 	public void arm(ClientContext context) {
@@ -186,6 +190,7 @@ public class MultiPutCompletionCallback implements PutCompletionCallback, Client
 		boolean doCancel;
 		synchronized(this) {
 			started = true;
+			parent.markChanged();
 			allDone = waitingFor.isEmpty();
 			allGotBlocks = waitingForBlockSet.isEmpty();
 			doCancel = cancelling;
@@ -214,6 +219,7 @@ public class MultiPutCompletionCallback implements PutCompletionCallback, Client
 			    else Logger.error(this, "Encoded twice with different keys for "+this+" : "+encodedKey+" -> "+key);
 			}
 			encodedKey = key;
+			parent.markChanged();
 		}
 		cb.onEncode(key, this, context);
 	}
@@ -236,6 +242,7 @@ public class MultiPutCompletionCallback implements PutCompletionCallback, Client
 		if(generator == oldState)
 			generator = newState;
 		if(oldState == newState) return;
+		parent.markChanged();
 		for(int i=0;i<waitingFor.size();i++) {
 			if(waitingFor.get(i) == oldState) {
 				waitingFor.set(i, newState);
@@ -275,6 +282,7 @@ public class MultiPutCompletionCallback implements PutCompletionCallback, Client
 	public void onBlockSetFinished(ClientPutState state, ClientContext context) {
 		synchronized(this) {
 			ListUtils.removeBySwapLast(this.waitingForBlockSet,state);
+			parent.markChanged();
 			if(!started) return;
 			if(!waitingForBlockSet.isEmpty()) return;
 		}
@@ -295,6 +303,7 @@ public class MultiPutCompletionCallback implements PutCompletionCallback, Client
 	public void onFetchable(ClientPutState state) {
 		synchronized(this) {
 			ListUtils.removeBySwapLast(this.waitingForFetchable,state);
+			parent.markChanged();
 			if(!started) return;
 			if(!waitingForFetchable.isEmpty()) return;
 			if(calledFetchable) {
@@ -302,6 +311,7 @@ public class MultiPutCompletionCallback implements PutCompletionCallback, Client
 				return;
 			}
 			calledFetchable = true;
+			parent.markChanged();
 		}
 		cb.onFetchable(this);
 	}
@@ -191,6 +191,7 @@ public class SingleBlockInserter extends SendableInsert implements ClientPutStat
 			if(resultingKey != null) return;
 			resultingKey = key;
 		}
+		parent.markChanged();
 		if(!persistent) {
 			context.mainExecutor.execute(new Runnable() {
 				
@@ -226,6 +227,7 @@ public class SingleBlockInserter extends SendableInsert implements ClientPutStat
 			shouldSend = (resultingKey == null);
 			resultingKey = block.getClientKey();
 		}
+		if(shouldSend) parent.markChanged();
 		if(logMINOR)
 			Logger.minor(this, "Encoded "+resultingKey.getURI()+" for "+this+" shouldSend="+shouldSend+" dontSendEncoded="+dontSendEncoded);
 		if(shouldSend && !dontSendEncoded)
@@ -269,6 +271,8 @@ public class SingleBlockInserter extends SendableInsert implements ClientPutStat
 			Logger.error(this, "Unknown LowLevelPutException code: "+e.code);
 			errors.inc(InsertExceptionMode.INTERNAL_ERROR);
 		}
+		// The errors, retries and consecutive RNFs are all persistent.
+		parent.markChanged();
 		if(e.code == LowLevelPutException.ROUTE_NOT_FOUND || e.code == LowLevelPutException.ROUTE_REALLY_NOT_FOUND) {
 			consecutiveRNFs++;
 			if(logMINOR) Logger.minor(this, "Consecutive RNFs: "+consecutiveRNFs+" / "+ctx.consecutiveRNFsCountAsSuccess);
@@ -383,6 +387,7 @@ public class SingleBlockInserter extends SendableInsert implements ClientPutStat
 		synchronized(this) {
 			if(extraInserts > 0 && !ctx.getCHKOnly) {
 				if(++completedInserts <= extraInserts) {
+					parent.markChanged();
 					if(logMINOR) Logger.minor(this, "Completed inserts "+completedInserts+" of extra inserts "+extraInserts+" on "+this);
 					return; // Let it repeat until we've done enough inserts. It hasn't been unregistered yet.
 				}
@@ -424,6 +429,7 @@ public class SingleBlockInserter extends SendableInsert implements ClientPutStat
 			if(finished) return;
 			finished = true;
 		}
+		parent.markChanged();
 		if(freeData) {
 			sourceData.free();
 			sourceData = null;
@@ -343,6 +343,8 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 			// So a SingleKeyListener isn't created.
 			finished = true;
 		}
+		// Walking the metadata changes our metadata, key, meta strings and decompressors.
+		parent.markChanged();
 		while(true) {
 			if(metaSnoop != null) {
 				if(metaSnoop.snoopMetadata(metadata, context)) {
@@ -1252,6 +1254,11 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 			this.tag = tag;
 		}
 		
+		@Override
+		public void onTagChanged() {
+			parent.markChanged();
+		}
+		
 		public MyUSKFetcherCallback(ClientRequester requester, GetCompletionCallback cb, USK usk, ArrayList<String> metaStrings, FetchContext ctx, ArchiveContext actx, boolean realTimeFlag, int maxRetries, int recursionLevel, boolean dontTellClientGet, long l, boolean persistent, boolean datastoreOnly) {
 			this.parent = requester;
 			this.cb = cb;
@@ -583,6 +583,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 
 		@Override
 		public synchronized void onTransition(ClientPutState oldState, ClientPutState newState, ClientContext context) {
+			parent.markChanged();
 			if(persistent) { // FIXME debug-point
 				if(logMINOR) Logger.minor(this, "Transition: "+oldState+" -> "+newState);
 			}
@@ -594,6 +595,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 		
 		@Override
 		public void onSuccess(ClientPutState state, ClientContext context) {
+			parent.markChanged();
 			if(logMINOR) Logger.minor(this, "onSuccess("+state+") for "+this);
 			boolean lateStart = false;
 			synchronized(this) {
@@ -641,6 +643,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 
 		@Override
 		public void onFailure(InsertException e, ClientPutState state, ClientContext context) {
+			parent.markChanged();
 			boolean toFail = true;
 			synchronized(this) {
 				if(logMINOR)
@@ -664,6 +667,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 
 		@Override
 		public void onMetadata(Metadata meta, ClientPutState state, ClientContext context) {
+			parent.markChanged();
 			InsertException e = null;
 			if(logMINOR) Logger.minor(this, "Got metadata for "+this+" from "+state);
 			synchronized(this) {
@@ -774,6 +778,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 		}
 
 		private void fail(InsertException e, ClientContext context) {
+			parent.markChanged();
 			if(logMINOR) Logger.minor(this, "Failing: "+e, e);
 			ClientPutState oldSFI = null;
 			ClientPutState oldMetadataPutter = null;
@@ -806,6 +811,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ClientContext context) {
+			parent.markChanged();
 			if(persistent) // FIXME debug-point
 				if(logMINOR) Logger.minor(this, "onEncode() for "+this+" : "+state+" : "+key);
 			synchronized(this) {
@@ -819,6 +825,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 
 		@Override
 		public void cancel(ClientContext context) {
+			parent.markChanged();
 			if(logMINOR) Logger.minor(this, "Cancelling "+this);
 			ClientPutState oldSFI = null;
 			ClientPutState oldMetadataPutter = null;
@@ -844,6 +851,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 
 		@Override
 		public void onBlockSetFinished(ClientPutState state, ClientContext context) {
+			parent.markChanged();
 			synchronized(this) {
 				if(state == sfi)
 					splitInsertSetBlocks = true;
@@ -869,6 +877,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 
 		@Override
 		public void onFetchable(ClientPutState state) {
+			parent.markChanged();
 
 			if(persistent) // FIXME debug-point
 				if(logMINOR) Logger.minor(this, "onFetchable on "+this);
@@ -908,6 +917,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 		 * @return True unless we don't have all URI's and so can't remove sfi.
 		 */
 		private boolean startMetadata(ClientContext context) {
+			parent.markChanged();
 			if(persistent) // FIXME debug-point
 				if(logMINOR) Logger.minor(this, "startMetadata() on "+this);
 			try {
@@ -937,6 +947,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 		
 		@Override
 		public void onMetadata(Bucket meta, ClientPutState state, ClientContext context) {
+			parent.markChanged();
 			if(logMINOR) Logger.minor(this, "Got metadata bucket for "+this+" from "+state);
 			boolean freeIt = false;
 			synchronized(this) {
@@ -1015,6 +1026,7 @@ class SingleFileInserter implements ClientPutState, Serializable {
 			if(cancelled) return;
 			cancelled = true;
 		}
+		parent.markChanged();
 		if(freeData) {
 			block.free();
 		}
@@ -28,6 +28,11 @@ public class SingleKeyListener implements KeyListener {
 		else return 1;
 	}
 
+	@Override
+	public Key[] listKeys() {
+		return new Key[] { key };
+	}
+
 	@Override
 	public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
 		if(!key.equals(this.key)) return -1;
@@ -20,11 +20,13 @@ import freenet.crypt.ChecksumFailedException;
 import freenet.keys.ClientCHKBlock;
 import freenet.keys.FreenetURI;
 import freenet.node.BaseSendableGet;
+import freenet.node.PrioRunnable;
 import freenet.support.Logger;
 import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.InsufficientDiskSpaceException;
+import freenet.support.io.NativeThread;
 import freenet.support.io.PooledFileRandomAccessBuffer;
 import freenet.support.io.ResumeFailedException;
 import freenet.support.io.StorageFormatException;
@@ -187,7 +189,34 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
     @Override
     public void schedule(ClientContext context) {
         if(storage.start(false))
-            getter.schedule(context, false);
+            scheduleGetter(false);
+    }
+    
+    /** Schedule the getter once the key listener can recognise our blocks. After a resume its 
+     * filters are still on disk, and any block arriving before they are loaded, whether fetched 
+     * by the getter or found in the datastore, would be dropped. So load them off-thread first. */
+    private void scheduleGetter(final boolean noCheckStore) {
+        final SplitFileFetcherKeyListener keyListener = storage.keyListener;
+        if(keyListener.filtersLoaded()) {
+            getter.schedule(context, noCheckStore);
+            return;
+        }
+        context.mainExecutor.execute(new PrioRunnable() {
+
+            @Override
+            public void run() {
+                // If it fails, the fetch has failed.
+                if(!keyListener.loadFilters()) return;
+                if(hasFinished()) return;
+                getter.schedule(context, noCheckStore);
+            }
+
+            @Override
+            public int getPriority() {
+                return NativeThread.NORM_PRIORITY;
+            }
+
+        }, "Load key filters for "+this);
     }
     
     /** Fail the whole splitfile request when we get an IOException on writing to or reading from 
@@ -392,8 +421,11 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         if(hasFinished()) return;
         Logger.error(this, "Restarting download "+this+" after data corruption");
         // We need to fetch more blocks. Some of them may even be in the datastore.
+        // The keys we had found are wanted again, so the scheduler must list them again.
+        context.getChkFetchScheduler(realTimeFlag).reindexPendingKeys(storage.keyListener);
         getter.unregister(context, getPriorityClass());
         getter.schedule(context, false);
+        parent.markChanged();
         context.jobRunner.setCheckpointASAP();
     }
 
@@ -448,7 +480,7 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         }
         getter = new SplitFileFetcherGet(this, storage);
         if (storage.start(resumed)) {
-            getter.schedule(context, storage.hasCheckedStore());
+            scheduleGetter(storage.hasCheckedStore());
         }
     }
 
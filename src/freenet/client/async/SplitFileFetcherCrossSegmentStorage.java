@@ -189,8 +189,7 @@ public class SplitFileFetcherCrossSegmentStorage {
         
         if(realTotalDataBlocks < dataBlockCount) {
             // Decode.
-            codec.decode(dataBlocks, checkBlocks, dataBlocksFound, checkBlocksFound, 
-                    CHKBlock.DATA_LENGTH);
+            parent.fecDecode(codec, dataBlocks, checkBlocks, dataBlocksFound, checkBlocksFound);
             for(int i=0;i<dataBlockCount;i++) {
                 if(!dataBlocksFound[i]) {
                     checkDecodedBlock(i, dataBlocks[i]);
@@ -201,7 +200,7 @@ public class SplitFileFetcherCrossSegmentStorage {
         
         if(realTotalCrossCheckBlocks < crossCheckBlockCount) {
             // Decode.
-            codec.encode(dataBlocks, checkBlocks, checkBlocksFound, CHKBlock.DATA_LENGTH);
+            parent.fecEncode(codec, dataBlocks, checkBlocks, checkBlocksFound);
             for(int i=0;i<crossCheckBlockCount;i++) {
                 if(!checkBlocksFound[i]) {
                     checkDecodedBlock(i+dataBlockCount, checkBlocks[i]);
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -52,11 +53,16 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     private final int perSegmentBloomFilterSizeBytes;
     /** Number of hashes for the per-segment bloom filters. */
     private final int perSegmentK;
+    /** Number of segments, and so of per-segment filters. */
+    private final int segments;
     /** The overall bloom filter, containing all the keys, salted with the global hash. When a key
-     * is found, it is removed from this. */
-    private final CountingBloomFilter filter;
-    /** The per-segment bloom filters, containing the keys for each segment. These are not changed. */
-    private final BinaryBloomFilter[] segmentFilters;
+     * is found, it is removed from this. Null until loaded, see loadFilters(). */
+    private volatile CountingBloomFilter filter;
+    /** The per-segment bloom filters, containing the keys for each segment. These are not changed.
+     * Set after filter, so if this is non-null, both are. */
+    private volatile BinaryBloomFilter[] segmentFilters;
+    /** If true we will regenerate the main filter when loading, because the salt has changed. */
+    private final boolean newSalt;
     private boolean finishedSetup;
     private final boolean persistent;
     /** Does the main bloom filter need writing? */
@@ -82,6 +88,8 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         this.storage = storage;
         this.localSalt = localSalt;
         this.persistent = persistent;
+        this.segments = segments;
+        this.newSalt = false;
         int mainElementsPerKey = DEFAULT_MAIN_BLOOM_ELEMENTS_PER_KEY;
         mainBloomK = (int) (mainElementsPerKey * 0.7);
         long elementsLong = origSize * mainElementsPerKey;
@@ -99,26 +107,13 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         perSegmentSize = (perSegmentSize + 7) & ~7;
         perSegmentBloomFilterSizeBytes = perSegmentSize / 8;
         perSegmentK = BloomFilter.optimialK(perSegmentSize, segBlocks);
-        segmentFilters = new BinaryBloomFilter[segments];
-        byte[] segmentsFilterBuffer = new byte[perSegmentBloomFilterSizeBytes * segments];
-        ByteBuffer baseBuffer = ByteBuffer.wrap(segmentsFilterBuffer);
-        int start = 0;
-        int end = perSegmentBloomFilterSizeBytes;
-        for(int i=0;i<segments;i++) {
-            baseBuffer.position(start);
-            baseBuffer.limit(end);
-            ByteBuffer slice;
-            
-            slice = baseBuffer.slice();
-            segmentFilters[i] = new BinaryBloomFilter(slice, perSegmentBloomFilterSizeBytes * 8, perSegmentK);
-            start += perSegmentBloomFilterSizeBytes;
-            end += perSegmentBloomFilterSizeBytes;
-        }
-        byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
-        filter.setWarnOnRemoveFromEmpty();
+        filter = makeMainFilter(new byte[mainBloomFilterSizeBytes]);
+        segmentFilters = makeSegmentFilters(new byte[perSegmentBloomFilterSizeBytes * segments]);
     }
     
+    /** Resume from the static settings stored in the file. The filters themselves are large, so 
+     * we don't read them here, but off-thread before the fetcher starts sending requests, see 
+     * SplitFileFetcher.scheduleGetter(). */
     public SplitFileFetcherKeyListener(SplitFileFetcherStorage storage, 
             SplitFileFetcherStorageCallback callback, DataInputStream dis, boolean persistent, boolean newSalt) 
     throws IOException, StorageFormatException {
@@ -140,15 +135,20 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         perSegmentK = dis.readInt();
         if(perSegmentK < 0)
             throw new StorageFormatException("Bad per segment bloom filter K");
-        int segments = storage.segments.length;
-        segmentFilters = new BinaryBloomFilter[segments];
-        byte[] segmentsFilterBuffer = new byte[perSegmentBloomFilterSizeBytes * segments];
-        try {
-            storage.preadChecksummed(storage.offsetSegmentBloomFilters, segmentsFilterBuffer, 0, segmentsFilterBuffer.length);
-        } catch (ChecksumFailedException e) {
-            Logger.error(this, "Checksummed read for segment filters at "+storage.offsetSegmentBloomFilters+" failed for "+this+": "+e);
-            mustRegenerateSegmentFilters = true;
-        }
+        segments = storage.segments.length;
+        this.newSalt = newSalt;
+        if(newSalt) mustRegenerateMainFilter = true;
+    }
+    
+    private CountingBloomFilter makeMainFilter(byte[] filterBuffer) {
+        CountingBloomFilter filter = 
+            new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
+        filter.setWarnOnRemoveFromEmpty();
+        return filter;
+    }
+    
+    private BinaryBloomFilter[] makeSegmentFilters(byte[] segmentsFilterBuffer) {
+        BinaryBloomFilter[] segmentFilters = new BinaryBloomFilter[segments];
         ByteBuffer baseBuffer = ByteBuffer.wrap(segmentsFilterBuffer);
         int start = 0;
         int end = perSegmentBloomFilterSizeBytes;
@@ -162,19 +162,62 @@ public class SplitFileFetcherKeyListener implements KeyListener {
             start += perSegmentBloomFilterSizeBytes;
             end += perSegmentBloomFilterSizeBytes;
         }
-        byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
-        if(!newSalt) {
+        return segmentFilters;
+    }
+    
+    /** Read the filters from the file if we haven't already. If they are corrupted, regenerate
+     * them from the keys. 
+     * @return False if we failed to read them and the fetch has failed. */
+    boolean loadFilters() {
+        if(segmentFilters != null) return true;
+        boolean regenerate = false;
+        IOException failed = null;
+        synchronized(this) {
+            if(segmentFilters != null) return true;
+            long start = System.currentTimeMillis();
+            byte[] segmentsFilterBuffer = new byte[perSegmentBloomFilterSizeBytes * segments];
+            byte[] filterBuffer = new byte[mainBloomFilterSizeBytes];
             try {
-                storage.preadChecksummed(storage.offsetMainBloomFilter, filterBuffer, 0, mainBloomFilterSizeBytes);
-            } catch (ChecksumFailedException e) {
-                Logger.error(this, "Checksummed read for main filters at "+storage.offsetMainBloomFilter+" failed for "+this+": "+e);
-                mustRegenerateMainFilter = true;
+                try {
+                    storage.preadChecksummed(storage.offsetSegmentBloomFilters, segmentsFilterBuffer, 0, segmentsFilterBuffer.length);
+                } catch (ChecksumFailedException e) {
+                    Logger.error(this, "Checksummed read for segment filters at "+storage.offsetSegmentBloomFilters+" failed for "+this+": "+e);
+                    mustRegenerateSegmentFilters = true;
+                    regenerate = true;
+                }
+                if(!newSalt) {
+                    try {
+                        storage.preadChecksummed(storage.offsetMainBloomFilter, filterBuffer, 0, mainBloomFilterSizeBytes);
+                    } catch (ChecksumFailedException e) {
+                        Logger.error(this, "Checksummed read for main filters at "+storage.offsetMainBloomFilter+" failed for "+this+": "+e);
+                        mustRegenerateMainFilter = true;
+                        regenerate = true;
+                    }
+                }
+            } catch (IOException e) {
+                Logger.error(this, "Unable to read filters for "+this+" : "+e, e);
+                failed = e;
+            }
+            if(failed == null) {
+                filter = makeMainFilter(filterBuffer);
+                segmentFilters = makeSegmentFilters(segmentsFilterBuffer);
+                if(logMINOR) Logger.minor(this, "Loaded filters for "+this+" in "+
+                        (System.currentTimeMillis() - start)+"ms");
             }
-        } else {
-            mustRegenerateMainFilter = true;
         }
-        filter = new CountingBloomFilter(mainBloomFilterSizeBytes * 8 / 2, mainBloomK, filterBuffer);
-        filter.setWarnOnRemoveFromEmpty();
+        if(failed != null) {
+            fetcher.failOnDiskError(failed);
+            return false;
+        }
+        // Already regenerating if the salt changed, see needsKeys().
+        if(regenerate && !newSalt)
+            storage.regenerateKeyFilters();
+        return true;
+    }
+
+    /** @return True unless we have resumed and haven't read the filters yet. */
+    boolean filtersLoaded() {
+        return segmentFilters != null;
     }
 
     /**
@@ -182,6 +225,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
      * @param keys
      */
     synchronized void addKey(Key key, int segNo, KeySalter salter) {
+        if(!loadFilters()) return;
         if(finishedSetup && !(mustRegenerateMainFilter || mustRegenerateSegmentFilters)) 
             throw new IllegalStateException();
         if(mustRegenerateMainFilter || !finishedSetup) {
@@ -212,6 +256,8 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     /** The segment bloom filters should only need to be written ONCE, and can all be written at 
      * once. Include a checksum. */
     void initialWriteSegmentBloomFilters(long fileOffset) throws IOException {
+        BinaryBloomFilter[] segmentFilters = this.segmentFilters;
+        if(segmentFilters == null) return; // Unchanged.
         OutputStream cos = storage.writeChecksummedTo(fileOffset, totalSegmentBloomFiltersSize());
         for(BinaryBloomFilter segFilter : segmentFilters) {
             segFilter.writeTo(cos);
@@ -220,7 +266,7 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     }
     
     int totalSegmentBloomFiltersSize() {
-        return perSegmentBloomFilterSizeBytes * segmentFilters.length + storage.checksumLength;
+        return perSegmentBloomFilterSizeBytes * segments + storage.checksumLength;
     }
     
     void maybeWriteMainBloomFilter(long fileOffset) throws IOException {
@@ -233,18 +279,25 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 
     /** Write the main segment filter, which does get updated. Include a checksum. */
     void innerWriteMainBloomFilter(long fileOffset) throws IOException {
+        CountingBloomFilter filter = this.filter;
+        if(filter == null) return; // Unchanged.
         OutputStream cos = storage.writeChecksummedTo(fileOffset, paddedMainBloomFilterSize());
         filter.writeTo(cos);
         cos.close();
     }
     
     public int paddedMainBloomFilterSize() {
-        assert(mainBloomFilterSizeBytes == filter.getSizeBytes());
+        assert(filter == null || mainBloomFilterSizeBytes == filter.getSizeBytes());
         return mainBloomFilterSizeBytes + storage.checksumLength;
     }
 
     @Override
     public boolean probablyWantKey(Key key, byte[] saltedKey) {
+        // This must not block: it is called for every key. Until the filters are loaded, say 
+        // no. The fetcher doesn't schedule the getter until then, see 
+        // SplitFileFetcher.scheduleGetter(), so none of these are blocks we asked for.
+        BinaryBloomFilter[] segmentFilters = this.segmentFilters;
+        if(segmentFilters == null) return false;
         if(filter.checkFilter(saltedKey)) {
             byte[] salted = localSaltKey(key);
             for(int i=0;i<segmentFilters.length;i++) {
@@ -259,6 +312,9 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     @Override
     public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
         // Caller has already called probablyWantKey(), so don't do it again.
+        // That returned true, so the filters are loaded.
+        BinaryBloomFilter[] segmentFilters = this.segmentFilters;
+        if(segmentFilters == null) return -1;
         byte[] salted = localSaltKey(key);
         for(int i=0;i<segmentFilters.length;i++) {
             if(segmentFilters[i].checkFilter(salted)) {
@@ -278,6 +334,8 @@ public class SplitFileFetcherKeyListener implements KeyListener {
     @Override
     public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock block, ClientContext context) {
         // Caller has already called probablyWantKey(), so don't do it again.
+        BinaryBloomFilter[] segmentFilters = this.segmentFilters;
+        if(segmentFilters == null) return false;
         boolean found = false;
         byte[] salted = localSaltKey(key);
         if(logMINOR)
@@ -323,6 +381,24 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         throw new UnsupportedOperationException();
     }
 
+    /** Called off-thread when we are registered, so we load the filters here too, rather than
+     * on whichever thread first checks a key. */
+    @Override
+    public Key[] listKeys() {
+        if(!loadFilters()) return null;
+        ArrayList<Key> keys = new ArrayList<Key>();
+        try {
+            for(SplitFileFetcherSegmentStorage segment : storage.segments) {
+                for(NodeCHK key : segment.listWantedKeys())
+                    keys.add(key);
+            }
+        } catch (IOException e) {
+            Logger.error(this, "Unable to read keys for "+this+" : "+e, e);
+            return null;
+        }
+        return keys.toArray(new Key[keys.size()]);
+    }
+
     @Override
     public HasKeyListener getHasKeyListener() {
         return fetcher.getHasKeyListener();
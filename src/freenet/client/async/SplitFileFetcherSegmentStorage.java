@@ -492,7 +492,7 @@ public class SplitFileFetcherSegmentStorage {
         }
         if(validDataBlocks < blocksForDecode()) {
             if(logMINOR) Logger.minor(this, "Decoding in memory for "+this);
-            parent.fecCodec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, CHKBlock.DATA_LENGTH);
+            parent.fecDecode(parent.fecCodec, dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent);
         }
         boolean capturingBinaryBlob = parent.fetcher.wantBinaryBlob();
         boolean checkDecodedKeys = FORCE_CHECK_FEC_KEYS || capturingBinaryBlob;
@@ -507,7 +507,7 @@ public class SplitFileFetcherSegmentStorage {
         if(!checkDecodedKeys)
             parent.finishedSuccess(this);
         triggerAllCrossSegmentCallbacks();
-        parent.fecCodec.encode(dataBlocks, checkBlocks, checkBlocksPresent, CHKBlock.DATA_LENGTH);
+        parent.fecEncode(parent.fecCodec, dataBlocks, checkBlocks, checkBlocksPresent);
         // Check these *after* we complete, to reduce the critical path.
         // FIXME possibility of inconsistency with malicious splitfiles?
         if(checkDecodedKeys) {
@@ -1092,6 +1092,15 @@ public class SplitFileFetcherSegmentStorage {
         }
     }
 
+    /** @return The keys we have not yet fetched, or none if the segment has finished. */
+    NodeCHK[] listWantedKeys() throws IOException {
+        synchronized(this) {
+            if(succeeded || failed || finished) return new NodeCHK[0];
+        }
+        SplitFileSegmentKeys keys = getSegmentKeys();
+        return keys.listNodeKeys(copyDownloadedBlocks(), false);
+    }
+
     /** Write minimal fixed metadata for the segment. This should include lengths rather than 
      * offsets. Does not write cross-segment block assignments; these are handled by the 
      * cross-segments. 
@@ -41,6 +41,7 @@ import freenet.node.SendableRequestItemKey;
 import freenet.support.Logger;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.RandomArrayIterator;
+import freenet.support.SizeUtil;
 import freenet.support.Ticker;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
@@ -151,6 +152,11 @@ public class SplitFileFetcherStorage {
     final Ticker ticker;
     final PersistentJobRunner jobRunner;
     final MemoryLimitedJobRunner memoryLimitedJobRunner;
+    /** Blocks decoded or encoded by FEC for this download, in this session. */
+    private long fecBlocks;
+    /** Time spent on FEC for this download in this session, in nanoseconds. Decodes running at
+     * the same time both count, so this can exceed the elapsed time. */
+    private long fecTime;
     /** Final length of the downloaded data. *BEFORE* decompression, filtering, etc. I.e. this is 
      * the length of the data on disk, which will be written by the StreamGenerator. */
     final long finalLength;
@@ -949,52 +955,58 @@ public class SplitFileFetcherStorage {
             }
         }
         if(keyListener.needsKeys()) {
-            try {
-                this.jobRunner.queue(new PersistentJob() {
-
-                    @Override
-                    public boolean run(ClientContext context) {
-                        System.out.println("Regenerating filters for "+SplitFileFetcherStorage.this);
-                        Logger.error(this, "Regenerating filters for "+SplitFileFetcherStorage.this);
-                        KeySalter salt = fetcher.getSalter();
-                        for(int i=0;i<segments.length;i++) {
-                            SplitFileFetcherSegmentStorage segment = segments[i];
+            regenerateKeyFilters();
+            return false;
+        }
+        return true;
+    }
+    
+    /** Regenerate the Bloom filters from the keys, e.g. because they were corrupted or the 
+     * global salt has changed, and then restart the fetch. */
+    void regenerateKeyFilters() {
+        try {
+            this.jobRunner.queue(new PersistentJob() {
+
+                @Override
+                public boolean run(ClientContext context) {
+                    System.out.println("Regenerating filters for "+SplitFileFetcherStorage.this);
+                    Logger.error(this, "Regenerating filters for "+SplitFileFetcherStorage.this);
+                    KeySalter salt = fetcher.getSalter();
+                    for(int i=0;i<segments.length;i++) {
+                        SplitFileFetcherSegmentStorage segment = segments[i];
+                        try {
                             try {
-                                try {
-                                    SplitFileSegmentKeys keys = segment.readSegmentKeys();
-                                    for(int j=0;j<keys.totalKeys();j++) {
-                                        keyListener.addKey(keys.getKey(j, null, false).getNodeKey(false), i, salt);
-                                    }
-                                } catch (IOException e) {
-                                    failOnDiskError(e);
-                                    return false;
+                                SplitFileSegmentKeys keys = segment.readSegmentKeys();
+                                for(int j=0;j<keys.totalKeys();j++) {
+                                    keyListener.addKey(keys.getKey(j, null, false).getNodeKey(false), i, salt);
                                 }
-                            } catch (ChecksumFailedException e) {
+                            } catch (IOException e) {
                                 failOnDiskError(e);
                                 return false;
                             }
+                        } catch (ChecksumFailedException e) {
+                            failOnDiskError(e);
+                            return false;
                         }
-                        keyListener.addedAllKeys();
-                        try {
-                            keyListener.initialWriteSegmentBloomFilters(offsetSegmentBloomFilters);
-                            keyListener.innerWriteMainBloomFilter(offsetMainBloomFilter);
-                        } catch (IOException e) {
-                            if(persistent)
-                                failOnDiskError(e);
-                        }
-                        fetcher.restartedAfterDataCorruption();
-                        Logger.warning(this, "Finished regenerating filters for "+SplitFileFetcherStorage.this);
-                        System.out.println("Finished regenerating filters for "+SplitFileFetcherStorage.this);
-                        return false;
                     }
-                    
-                }, NativeThread.LOW_PRIORITY+1);
-            } catch (PersistenceDisabledException e) {
-                // Ignore.
-            }
-            return false;
+                    keyListener.addedAllKeys();
+                    try {
+                        keyListener.initialWriteSegmentBloomFilters(offsetSegmentBloomFilters);
+                        keyListener.innerWriteMainBloomFilter(offsetMainBloomFilter);
+                    } catch (IOException e) {
+                        if(persistent)
+                            failOnDiskError(e);
+                    }
+                    fetcher.restartedAfterDataCorruption();
+                    Logger.warning(this, "Finished regenerating filters for "+SplitFileFetcherStorage.this);
+                    System.out.println("Finished regenerating filters for "+SplitFileFetcherStorage.this);
+                    return false;
+                }
+                
+            }, NativeThread.LOW_PRIORITY+1);
+        } catch (PersistenceDisabledException e) {
+            // Ignore.
         }
-        return true;
     }
     
     OutputStream checksumOutputStream(OutputStream os) {
@@ -1127,6 +1139,71 @@ public class SplitFileFetcherStorage {
         return fetcher.getPriorityClass();
     }
 
+    /** Run a FEC decode for a segment or cross-segment, using idle FEC threads if there are
+     * any, and count it in the decode stats. */
+    void fecDecode(FECCodec codec, byte[][] dataBlocks, byte[][] checkBlocks, 
+            boolean[] dataBlocksPresent, boolean[] checkBlocksPresent) {
+        int threads = reserveFECThreads(codec);
+        try {
+            long start = System.nanoTime();
+            codec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, 
+                    CHKBlock.DATA_LENGTH, memoryLimitedJobRunner.getExecutor(), threads);
+            addFECStats(countMissing(dataBlocksPresent), System.nanoTime() - start);
+        } finally {
+            memoryLimitedJobRunner.releaseThreads(threads);
+        }
+    }
+    
+    /** Run a FEC encode for a segment or cross-segment, using idle FEC threads if there are
+     * any, and count it in the decode stats. */
+    void fecEncode(FECCodec codec, byte[][] dataBlocks, byte[][] checkBlocks, 
+            boolean[] checkBlocksPresent) {
+        int threads = reserveFECThreads(codec);
+        try {
+            long start = System.nanoTime();
+            codec.encode(dataBlocks, checkBlocks, checkBlocksPresent, CHKBlock.DATA_LENGTH, 
+                    memoryLimitedJobRunner.getExecutor(), threads);
+            addFECStats(countMissing(checkBlocksPresent), System.nanoTime() - start);
+        } finally {
+            memoryLimitedJobRunner.releaseThreads(threads);
+        }
+    }
+    
+    /** Reserve idle threads for a FEC decode or encode, if the codec can use them. */
+    private int reserveFECThreads(FECCodec codec) {
+        if(!codec.canSplitWork()) return 0;
+        return memoryLimitedJobRunner.reserveThreads(MAX_EXTRA_FEC_THREADS);
+    }
+    
+    private static int countMissing(boolean[] present) {
+        int count = 0;
+        for(boolean b : present)
+            if(!b) count++;
+        return count;
+    }
+    
+    private synchronized void addFECStats(int blocks, long time) {
+        fecBlocks += blocks;
+        fecTime += time;
+    }
+    
+    /** Number of bytes decoded or encoded by FEC for this download in this session. */
+    public synchronized long getFECBytes() {
+        return fecBlocks * CHKBlock.DATA_LENGTH;
+    }
+    
+    /** Time spent decoding or encoding for this download in this session, in milliseconds. */
+    public synchronized long getFECTime() {
+        return TimeUnit.NANOSECONDS.toMillis(fecTime);
+    }
+    
+    /** FEC throughput for this download in this session, in bytes per second, or 0 if we
+     * haven't done any FEC yet. */
+    public synchronized long getFECRate() {
+        if(fecTime == 0) return 0;
+        return (long) (fecBlocks * CHKBlock.DATA_LENGTH * 1e9 / fecTime);
+    }
+
     /** A segment successfully completed. 
      * @throws PersistenceDisabledException */
     public void finishedSuccess(SplitFileFetcherSegmentStorage segment) {
@@ -1154,6 +1231,10 @@ public class SplitFileFetcherStorage {
                     if(succeeded) return false;
                     succeeded = true;
                 }
+                if(getFECBytes() > 0)
+                    Logger.normal(SplitFileFetcherStorage.this, "FEC for "+fetcher+": "+
+                            SizeUtil.formatSize(getFECBytes())+" in "+getFECTime()+"ms ("+
+                            SizeUtil.formatSize(getFECRate())+"/sec)");
                 fetcher.onSuccess();
                 return true;
             }
@@ -1196,6 +1277,9 @@ public class SplitFileFetcherStorage {
         };
     }
 
+    /** Maximum number of extra threads to split a single FEC decode or encode across, if the
+     * MemoryLimitedJobRunner has idle threads. */
+    static final int MAX_EXTRA_FEC_THREADS = Runtime.getRuntime().availableProcessors() - 1;
     static final long LAZY_WRITE_METADATA_DELAY = TimeUnit.MINUTES.toMillis(5);
     
     private final PersistentJob writeMetadataJob = new PersistentJob() {
@@ -1567,6 +1567,12 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		return watchingKeys.size();
 	}
 
+	@Override
+	public Key[] listKeys() {
+		// The slots we watch change as we find editions.
+		return null;
+	}
+
 	@Override
 	public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
 		if(!(key instanceof NodeSSK)) return -1;
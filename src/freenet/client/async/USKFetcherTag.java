@@ -85,8 +85,13 @@ class USKFetcherTag implements ClientGetState, USKFetcherCallback, Serializable
 		return tag;
 	}
 	
-	synchronized void updatedEdition(long ed) {
-		if(edition < ed) edition = ed;
+	void updatedEdition(long ed) {
+		synchronized(this) {
+			if(edition >= ed) return;
+			edition = ed;
+		}
+		if(callback instanceof USKFetcherTagCallback)
+			((USKFetcherTagCallback)callback).onTagChanged();
 	}
 
 	public void start(USKManager manager, ClientContext context) {
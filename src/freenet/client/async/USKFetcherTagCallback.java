@@ -4,4 +4,8 @@ public interface USKFetcherTagCallback extends USKFetcherCallback {
 	
 	public void setTag(USKFetcherTag tag, ClientContext context);
 
+	/** The tag's persistent state has changed, so the request it belongs to must be written at
+	 * the next checkpoint. */
+	public void onTagChanged();
+
 }
@@ -100,6 +100,7 @@ public class USKInserter implements ClientPutState, USKFetcherCallback, PutCompl
 				Logger.minor(this, "scheduling fetcher for "+pubUSK.getURI());
 			if(finished) return;
 			fetcher = context.uskManager.getFetcherForInsertDontSchedule(persistent ? pubUSK.copy() : pubUSK, parent.priorityClass, this, parent.getClient(), context, persistent, ctx.ignoreUSKDatehints);
+			parent.markChanged();
 			if(logMINOR)
 				Logger.minor(this, "scheduled: "+fetcher);
 		}
@@ -112,6 +113,7 @@ public class USKInserter implements ClientPutState, USKFetcherCallback, PutCompl
 		synchronized(this) {
 			edition = Math.max(l, edition);
 			consecutiveCollisions = 0;
+			parent.markChanged();
 			if((lastContentWasMetadata == isMetadata) && hisData != null
 					&& (codec == compressionCodec)) {
 				try {
@@ -193,6 +195,7 @@ public class USKInserter implements ClientPutState, USKFetcherCallback, PutCompl
 		synchronized(this) {
 			if(finished) return;
 			edition = edNo;
+			parent.markChanged();
 			if(logMINOR)
 				Logger.minor(this, "scheduling insert for "+pubUSK.getURI()+ ' ' +edition);
 			sbi = new SingleBlockInserter(parent, data, compressionCodec, privUSK.getInsertableSSK(edition).getInsertURI(),
@@ -219,6 +222,7 @@ public class USKInserter implements ClientPutState, USKFetcherCallback, PutCompl
 		USK newEdition = pubUSK.copy(edition);
 		finished = true;
 		sbi = null;
+		parent.markChanged();
 		FreenetURI targetURI = pubUSK.getSSK(edition).getURI();
 		FreenetURI realURI = ((SingleBlockInserter)state).getURI(context);
 		if(!targetURI.equals(realURI))
@@ -241,6 +245,7 @@ public class USKInserter implements ClientPutState, USKFetcherCallback, PutCompl
 	public void onFailure(InsertException e, ClientPutState state, ClientContext context) {
 		synchronized(this) {
 			sbi = null;
+			parent.markChanged();
 			if(e.getMode() == InsertExceptionMode.COLLISION) {
 				// Try the next slot
 				edition++;
@@ -336,6 +341,7 @@ public class USKInserter implements ClientPutState, USKFetcherCallback, PutCompl
 			tag = fetcher;
 			fetcher = null;
 		}
+		parent.markChanged();
 		if(tag != null) {
 			tag.cancel(context);
 		}
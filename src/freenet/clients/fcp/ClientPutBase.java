@@ -289,6 +289,8 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	public void receive(final ClientEvent ce, ClientContext context) {
 		if(finished) return;
 		if(logMINOR) Logger.minor(this, "Receiving event "+ce+" on "+this);
+		// We keep the latest progress etc.
+		markChanged();
 		if(ce instanceof SplitfileProgressEvent) {
 			if((verbosity & VERBOSITY_SPLITFILE_PROGRESS) == VERBOSITY_SPLITFILE_PROGRESS) {
 				SimpleProgressMessage progress = 
@@ -64,6 +64,9 @@ public abstract class ClientRequest implements Serializable {
 	protected long completionTime;
 
 	protected transient RequestClient lowLevelClient;
+	/** Set when something which is serialized with the request may have changed, so the next
+	 * checkpoint must write it. See also ClientRequester.markChanged(). */
+	private transient volatile boolean changed;
 	private final int hashCode; // for debugging it is good to have a persistent id
 	
 	@Override
@@ -247,11 +250,28 @@ public abstract class ClientRequest implements Serializable {
 		return priorityClass;
 	}
 
+	/** Something which is serialized with the request has changed, so the next checkpoint must
+	 * write it. */
+	protected void markChanged() {
+		changed = true;
+	}
+
+	/** @return True if the request, or its ClientRequester, may have changed since the last call,
+	 * so the next checkpoint must write it. Only persistent requests are tracked. */
+	public boolean clearChanged() {
+		boolean ret = changed;
+		changed = false;
+		ClientRequester r = getClientRequest();
+		if(r != null && r.clearChanged()) ret = true;
+		return ret;
+	}
+
 	/** Free cached data bucket(s) */
 	protected abstract void freeData(); 
 
 	/** Request completed. But we may have to stick around until we are acked. */
 	protected void finish() {
+		changed = true;
 		if(persistence == Persistence.CONNECTION)
 			origHandler.finishedClientRequest(this);
 		else
@@ -348,6 +368,7 @@ public abstract class ClientRequest implements Serializable {
 			return; // quick return, nothing was changed
 		}
 		
+		changed = true;
 		server.core.clientContext.jobRunner.setCheckpointASAP();
 		
 		// this could become too complex with more parameters, but for now its ok
@@ -41,6 +41,7 @@ import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
+import freenet.store.caching.CachingFreenetStoreTracker;
 import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
@@ -633,6 +634,7 @@ public class StatisticsToadlet extends Toadlet {
 		HTMLNode threadsInfoboxContent = node.addChild("div", "class", "infobox-content");
 		int[] activeThreadsByPriority = stats.getActiveThreadsByPriority();
 		int[] waitingThreadsByPriority = stats.getWaitingThreadsByPriority();
+		int[] queuedJobsByPriority = stats.getQueuedJobsByPriority();
 		
 		HTMLNode threadsByPriorityTable = threadsInfoboxContent.addChild("table", "border", "0");
 		HTMLNode row = threadsByPriorityTable.addChild("tr");
@@ -640,13 +642,20 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("priority"));
 		row.addChild("th", l10n("running"));
 		row.addChild("th", l10n("waiting"));
+		if(queuedJobsByPriority != null)
+			row.addChild("th", l10n("queuedJobs"));
 		
 		for(int i=0; i<activeThreadsByPriority.length; i++) {
 			row = threadsByPriorityTable.addChild("tr");
 			row.addChild("td", String.valueOf(i+1));
 			row.addChild("td", String.valueOf(activeThreadsByPriority[i]));
 			row.addChild("td", String.valueOf(waitingThreadsByPriority[i]));
+			if(queuedJobsByPriority != null)
+				row.addChild("td", String.valueOf(queuedJobsByPriority[i]));
 		}
+		double jobDelay = stats.getAverageJobDelay();
+		if(jobDelay >= 0)
+			threadsInfoboxContent.addChild("p", l10n("averageJobDelay", "time", fix1p2.format(jobDelay)));
 	}
 
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
@@ -825,6 +834,14 @@ public class StatisticsToadlet extends Toadlet {
 			}
 		}
 
+		CachingFreenetStoreTracker tracker = node.getCachingFreenetStoreTracker();
+		if(tracker != null) {
+			storeSizeInfoboxContent.addChild("p", l10n("writeCache",
+					new String[] { "blocks", "rate", "time" },
+					new String[] { thousandPoint.format(tracker.getQueuedBlocks()),
+						SizeUtil.formatSize((long) tracker.getBytesWrittenPerSecond()),
+						TimeUtil.formatTime((long) tracker.getAverageFlushTime(), 2, true) }));
+		}
 	}
 
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
@@ -1277,6 +1294,9 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectRequestRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKRequestRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKRequestRT())+" (SSK)");
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
+		overviewList.addChild("li", "threadsWaitingForMessages:\u00a0" + node.getUSM().getWaitingThreadCount());
+		long packetsSent = Math.max(1, node.ps.getPacketsSent());
+		overviewList.addChild("li", "packetSenderPerPacket:\u00a0" + fix1p1.format((double) node.ps.getLoopIterations() / packetsSent)+" loops, "+fix1p1.format((double) node.ps.getPeersExamined() / packetsSent)+" peers examined");
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
@@ -33,6 +33,15 @@ public class PersistentConfig extends Config {
 		super.finishedInit();
 	}
 
+	/** Get the value of an option from the config file, before its SubConfig has been created.
+	 * For settings needed before the node starts, such as the executor. */
+	public synchronized String getRawOption(String prefix, String name) {
+		if(finishedInit)
+			throw new IllegalStateException("getRawOption("+prefix+", "+name+") but persistent config has been finishedInit() already!");
+		if(origConfigFileContents == null) return null;
+		return origConfigFileContents.get(prefix + SimpleFieldSet.MULTI_LEVEL_CHAR + name);
+	}
+
 	public SimpleFieldSet exportFieldSet() {
 		return exportFieldSet(false);
 	}
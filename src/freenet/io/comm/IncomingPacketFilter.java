@@ -13,7 +13,9 @@ public interface IncomingPacketFilter {
 		DECODED,
 		NOT_DECODED,
 		DIDNT_WANT_OPENNET,
-		SHUTTING_DOWN
+		SHUTTING_DOWN,
+		/** Passed to another thread to decode. */
+		QUEUED
 	}
 	
     /**
@@ -57,33 +57,66 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 	@Override
 	public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
 		if(logMINOR) Logger.minor(this, "Packet length "+length+" from "+peer);
+		PeerNode opn = getPeerNode(peer);
+		if(opn != null && processFromPeer(buf, offset, length, peer, opn, now))
+			return DECODED.DECODED;
+		return processUnmatched(buf, offset, length, peer, opn, now);
+	}
+
+	/** @return The connected or handshaking peer at the given address, or null. */
+	PeerNode getPeerNode(Peer peer) {
 		node.random.acceptTimerEntropy(fnpTimingSource, 0.25);
 		PeerNode opn = node.peers.getByPeer(peer, mangler);
-
-		if(opn != null) {
-			if(opn.handleReceivedPacket(buf, offset, length, now, peer)) {
-				if(logMINOR) successfullyDecodedPackets.incrementAndGet();
-				return DECODED.DECODED;
-			}
-		} else {
+		if(opn == null)
 			Logger.normal(this, "Got packet from unknown address");
-		}
-		DECODED decoded = mangler.process(buf, offset, length, peer, opn, now);
-		if(decoded == DECODED.DECODED) {
+		return opn;
+	}
+
+	/** Try to decrypt a data packet from the peer at the source address. This is the common
+	 * case, and only touches the peer's own state. */
+	boolean processFromPeer(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
+		if(opn.handleReceivedPacket(buf, offset, length, now, peer)) {
 			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
-		} else if(decoded == DECODED.NOT_DECODED) {
+			return true;
+		}
+		return false;
+	}
+
+	/** Handle a packet which is not a data packet from the peer at the source address:
+	 * handshakes, and peers which have changed address. */
+	DECODED processUnmatched(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
+		DECODED decoded = processHandshake(buf, offset, length, peer, opn, now);
+		if(decoded == DECODED.NOT_DECODED) {
 			
-			for(PeerNode pn : crypto.getPeerNodes()) {
+			for(PeerNode pn : getPeerNodes()) {
 				if(pn == opn) continue;
-				if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
-					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+				if(processFromPeer(buf, offset, length, peer, pn, now))
 					return DECODED.DECODED;
-				}
 			}
 			
-			if(logMINOR) failedDecodePackets.incrementAndGet();
+			failedDecode();
 		}
 		return decoded;
 	}
 
+	/** Let the mangler try a packet, e.g. a handshake. If it can't, any of our peers may have
+	 * sent it from a new address. */
+	DECODED processHandshake(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now) {
+		DECODED decoded = mangler.process(buf, offset, length, peer, opn, now);
+		if(decoded == DECODED.DECODED) {
+			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+		}
+		return decoded;
+	}
+
+	/** @return The peers a packet from an unknown address may have come from. */
+	PeerNode[] getPeerNodes() {
+		return crypto.getPeerNodes();
+	}
+
+	/** No peer could decrypt a packet. */
+	void failedDecode() {
+		if(logMINOR) failedDecodePackets.incrementAndGet();
+	}
+
 }
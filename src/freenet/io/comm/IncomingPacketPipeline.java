@@ -0,0 +1,260 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.node.PeerNode;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Decrypts incoming packets on several threads, so that one core does not limit how much we
+ * can receive. The socket thread only looks up the peer for the source address, copies the
+ * packet and queues it. Packets from a known peer are decrypted, and their messages
+ * dispatched, on one of a fixed set of decrypt threads chosen by the peer, so each peer's
+ * packets are still handled in the order they were received. Everything else (handshakes,
+ * packets from unknown addresses, and packets a peer could not decrypt) goes to a single auth
+ * thread, so FNPPacketMangler still sees only one packet at a time.
+ *
+ * Only a peer's own decrypt thread ever decrypts with its keys. If the auth thread can't
+ * handle a packet, it may be from a peer which has changed address, so it is passed along the
+ * decrypt threads, each trying the peers it owns, until one of them decrypts it.
+ *
+ * Each thread has a bounded queue. If a queue is full the packet is dropped, as the
+ * operating system would drop it if we did not read the socket fast enough.
+ */
+public class IncomingPacketPipeline implements IncomingPacketFilter {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, IncomingPacketPipeline.class);
+			}
+		});
+	}
+
+	/** Maximum number of packets waiting for each thread. */
+	static final int QUEUE_SIZE = 1024;
+
+	private final IncomingPacketFilterImpl filter;
+	private final Stage[] decryptStages;
+	private final Stage authStage;
+	private final String name;
+	private final AtomicLong droppedPackets = new AtomicLong();
+	private volatile boolean running = true;
+
+	/**
+	 * @param threads The number of decrypt threads. There is always one auth thread as well.
+	 */
+	public IncomingPacketPipeline(IncomingPacketFilterImpl filter, int threads, String name) {
+		if(threads < 1) throw new IllegalArgumentException("Need at least one decrypt thread");
+		this.filter = filter;
+		this.name = name;
+		decryptStages = new Stage[threads];
+		for(int i = 0; i < threads; i++)
+			decryptStages[i] = new Stage(false);
+		authStage = new Stage(true);
+	}
+
+	public void start(Executor executor) {
+		for(int i = 0; i < decryptStages.length; i++)
+			executor.execute(decryptStages[i], "Packet decrypt "+i+" for "+name);
+		executor.execute(authStage, "Packet auth for "+name);
+	}
+
+	public void stop() {
+		running = false;
+		// If a queue is full the thread will see running is false on its next packet.
+		for(Stage stage : decryptStages)
+			stage.queue.offer(STOP);
+		authStage.queue.offer(STOP);
+	}
+
+	@Override
+	public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+		if(!running) return DECODED.SHUTTING_DOWN;
+		if(logMINOR) Logger.minor(this, "Packet length "+length+" from "+peer);
+		PeerNode opn = filter.getPeerNode(peer);
+		Stage stage = opn == null ? authStage : stageFor(opn);
+		// The caller will reuse buf.
+		byte[] data = Arrays.copyOfRange(buf, offset, offset + length);
+		if(!stage.offer(new ReceivedPacket(data, peer, opn, now)))
+			return DECODED.NOT_DECODED;
+		return DECODED.QUEUED;
+	}
+
+	/** @return The decrypt stage which handles all packets for the peer. */
+	private Stage stageFor(PeerNode pn) {
+		return decryptStages[(pn.hashCode() & Integer.MAX_VALUE) % decryptStages.length];
+	}
+
+	@Override
+	public boolean isDisconnected(PeerContext context) {
+		return filter.isDisconnected(context);
+	}
+
+	/** @return The number of packets dropped because a queue was full. */
+	public long getDroppedPackets() {
+		return droppedPackets.get();
+	}
+
+	/** @return Totals for the decrypt threads. */
+	public StageStats getDecryptStats() {
+		StageStats stats = new StageStats();
+		for(Stage stage : decryptStages)
+			stage.addTo(stats);
+		return stats;
+	}
+
+	/** @return Totals for the auth thread. */
+	public StageStats getAuthStats() {
+		StageStats stats = new StageStats();
+		authStage.addTo(stats);
+		return stats;
+	}
+
+	/** Counters for one stage of the pipeline, summed over its threads. */
+	public static class StageStats {
+		/** Packets waiting now. */
+		public int queued;
+		/** Packets handled so far. */
+		public long packets;
+		/** Total time packets have waited in the queue. */
+		public long queueNanos;
+		/** Total time spent handling packets. */
+		public long processNanos;
+
+		/** @return The average time a packet waited in the queue, in microseconds. */
+		public double averageQueueMicros() {
+			return packets == 0 ? 0.0 : queueNanos / 1000.0 / packets;
+		}
+
+		/** @return The average time to handle a packet, in microseconds. */
+		public double averageProcessMicros() {
+			return packets == 0 ? 0.0 : processNanos / 1000.0 / packets;
+		}
+	}
+
+	private static class ReceivedPacket {
+		final byte[] data;
+		final Peer peer;
+		final PeerNode opn;
+		final long now;
+		/** System.nanoTime() when queued, for stats. */
+		long queuedTime;
+		/** If we are looking for the peer which sent it, the decrypt stage whose peers are
+		 * trying it, otherwise -1. */
+		int searching = -1;
+
+		ReceivedPacket(byte[] data, Peer peer, PeerNode opn, long now) {
+			this.data = data;
+			this.peer = peer;
+			this.opn = opn;
+			this.now = now;
+		}
+	}
+
+	/** Queued to make a thread exit. */
+	private static final ReceivedPacket STOP = new ReceivedPacket(null, null, null, 0);
+
+	/** A thread and its queue. */
+	private class Stage implements PrioRunnable {
+
+		private final ArrayBlockingQueue<ReceivedPacket> queue = new ArrayBlockingQueue<ReceivedPacket>(QUEUE_SIZE);
+		private final boolean auth;
+		// Only written by our own thread.
+		private volatile long packets;
+		private volatile long queueNanos;
+		private volatile long processNanos;
+
+		Stage(boolean auth) {
+			this.auth = auth;
+		}
+
+		boolean offer(ReceivedPacket packet) {
+			packet.queuedTime = System.nanoTime();
+			if(queue.offer(packet)) return true;
+			droppedPackets.incrementAndGet();
+			if(logMINOR) Logger.minor(this, "Dropping packet from "+packet.peer+": queue full");
+			return false;
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				ReceivedPacket packet;
+				try {
+					packet = queue.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(packet == STOP || !running) return;
+				// Reset if we pass it on to the auth stage.
+				long queuedTime = packet.queuedTime;
+				long start = System.nanoTime();
+				try {
+					if(auth)
+						handleUnmatched(packet);
+					else if(packet.searching >= 0)
+						search(packet);
+					else if(!filter.processFromPeer(packet.data, 0, packet.data.length, packet.peer, packet.opn, packet.now))
+						authStage.offer(packet);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " from " + filter, t);
+				}
+				long end = System.nanoTime();
+				queueNanos += start - queuedTime;
+				processNanos += end - start;
+				packets++;
+			}
+		}
+
+		private void handleUnmatched(ReceivedPacket packet) {
+			DECODED decoded = filter.processHandshake(packet.data, 0, packet.data.length, packet.peer, packet.opn, packet.now);
+			if(decoded != DECODED.NOT_DECODED) return;
+			// Any peer may have sent it, including the one at the source address if it has
+			// completed a handshake since its decrypt thread tried it. Don't decrypt it here,
+			// that would race with the peer's own decrypt thread.
+			packet.searching = 0;
+			decryptStages[0].offer(packet);
+		}
+
+		/** Try a packet from an unknown sender with the peers we own, and if none of them
+		 * decrypt it, pass it to the next decrypt stage. */
+		private void search(ReceivedPacket packet) {
+			for(PeerNode pn : filter.getPeerNodes()) {
+				if(stageFor(pn) != this) continue;
+				if(filter.processFromPeer(packet.data, 0, packet.data.length, packet.peer, pn, packet.now))
+					return;
+			}
+			if(++packet.searching < decryptStages.length)
+				decryptStages[packet.searching].offer(packet);
+			else
+				filter.failedDecode();
+		}
+
+		void addTo(StageStats stats) {
+			stats.queued += queue.size();
+			stats.packets += packets;
+			stats.queueNanos += queueNanos;
+			stats.processNanos += processNanos;
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MAX_PRIORITY;
+		}
+
+	}
+
+}
@@ -20,13 +20,12 @@
 package freenet.io.comm;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 import freenet.support.ByteBufferInputStream;
@@ -70,7 +69,13 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	/** Primitive fields, unboxed, indexed by MessageType.fieldSlot(). Floating point values
+	 * are stored as their raw bits. Null if there are none. */
+	private final long[] _primitives;
+	/** Other fields, indexed by MessageType.fieldSlot(). Null if there are none. */
+	private final Object[] _objects;
+	/** Bit n is set if field n has been set. */
+	private long _setFields;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -107,14 +112,8 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
+			for (int i = 0; i < mspec.getFieldCount(); i++) {
+				m.readField(i, bb);
 			}
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
@@ -167,6 +166,8 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		_primitives = spec.primitiveFieldCount() == 0 ? null : new long[spec.primitiveFieldCount()];
+		_objects = spec.objectFieldCount() == 0 ? null : new Object[spec.objectFieldCount()];
 	}
 
 	/** Drops sub-messages, and makes it locally originated */
@@ -174,7 +175,9 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_primitives = m._primitives == null ? null : m._primitives.clone();
+		_objects = m._objects == null ? null : m._objects.clone();
+		_setFields = m._setFields;
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -184,47 +187,117 @@ public class Message {
 	}
 
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		return getBoolean(_spec.getFieldIndex(key));
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		return getByte(_spec.getFieldIndex(key));
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		return getShort(_spec.getFieldIndex(key));
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		return getInt(_spec.getFieldIndex(key));
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		return getLong(_spec.getFieldIndex(key));
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		return getDouble(_spec.getFieldIndex(key));
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		return getFloat(_spec.getFieldIndex(key));
+	}
+
+	/* Accessors by field number, see MessageType.getFieldIndex(). Like the by-name versions,
+	 * these throw if the field is not set, or ClassCastException if it has a different type. */
+
+	public boolean getBoolean(int field) {
+		return getPrimitive(field, MessageType.FIELD_BOOLEAN) != 0;
+	}
+
+	public byte getByte(int field) {
+		return (byte) getPrimitive(field, MessageType.FIELD_BYTE);
+	}
+
+	public short getShort(int field) {
+		return (short) getPrimitive(field, MessageType.FIELD_SHORT);
+	}
+
+	public int getInt(int field) {
+		return (int) getPrimitive(field, MessageType.FIELD_INT);
+	}
+
+	public long getLong(int field) {
+		return getPrimitive(field, MessageType.FIELD_LONG);
+	}
+
+	public double getDouble(int field) {
+		return Double.longBitsToDouble(getPrimitive(field, MessageType.FIELD_DOUBLE));
+	}
+
+	public float getFloat(int field) {
+		return Float.intBitsToFloat((int) getPrimitive(field, MessageType.FIELD_FLOAT));
+	}
+
+	public Object getObject(int field) {
+		if (!isSet(field)) return null;
+		int slot = _spec.fieldSlot(field);
+		switch (_spec.fieldCode(field)) {
+		case MessageType.FIELD_BOOLEAN:
+			return _primitives[slot] != 0;
+		case MessageType.FIELD_BYTE:
+			return (byte) _primitives[slot];
+		case MessageType.FIELD_SHORT:
+			return (short) _primitives[slot];
+		case MessageType.FIELD_INT:
+			return (int) _primitives[slot];
+		case MessageType.FIELD_LONG:
+			return _primitives[slot];
+		case MessageType.FIELD_FLOAT:
+			return Float.intBitsToFloat((int) _primitives[slot]);
+		case MessageType.FIELD_DOUBLE:
+			return Double.longBitsToDouble(_primitives[slot]);
+		default:
+			return _objects[slot];
+		}
+	}
+
+	public boolean isSet(int field) {
+		return field >= 0 && (_setFields & (1L << field)) != 0;
+	}
+
+	private long getPrimitive(int field, byte code) {
+		if (!isSet(field)) {
+			// Compatible with unboxing a missing value.
+			throw new NullPointerException(field < 0 ? "No such field in " + _spec.getName() :
+				_spec.fieldName(field) + " not set in " + _spec.getName());
+		}
+		if (_spec.fieldCode(field) != code) {
+			throw new ClassCastException(_spec.fieldName(field) + " is a " + _spec.fieldType(field).getName());
+		}
+		return _primitives[_spec.fieldSlot(field)];
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
 	public Object getObject(String key) {
-		return _payload.get(key);
+		return getObject(_spec.getFieldIndex(key));
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -233,31 +306,40 @@ public class Message {
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		setPrimitive(key, MessageType.FIELD_BOOLEAN, b ? 1 : 0, Boolean.class);
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		setPrimitive(key, MessageType.FIELD_BYTE, b, Byte.class);
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		setPrimitive(key, MessageType.FIELD_SHORT, s, Short.class);
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		setPrimitive(key, MessageType.FIELD_INT, i, Integer.class);
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		setPrimitive(key, MessageType.FIELD_LONG, l, Long.class);
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		setPrimitive(key, MessageType.FIELD_DOUBLE, Double.doubleToRawLongBits(d), Double.class);
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		setPrimitive(key, MessageType.FIELD_FLOAT, Float.floatToRawIntBits(f), Float.class);
+	}
+
+	private void setPrimitive(String key, byte code, long bits, Class<?> type) {
+		int field = fieldToSet(key);
+		if (_spec.fieldCode(field) != code) {
+			throw new IncorrectTypeException("Got " + type + ", expected " + _spec.typeOf(key));
+		}
+		_primitives[_spec.fieldSlot(field)] = bits;
+		_setFields |= 1L << field;
 	}
 
 	public void set(String key, Object value) {
@@ -267,7 +349,118 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		setChecked(_spec.getFieldIndex(key), value);
+	}
+
+	/** @return The number of the field, which must be defined. */
+	private int fieldToSet(String key) {
+		int field = _spec.getFieldIndex(key);
+		if (field < 0) {
+			throw new IllegalStateException("Cannot set field \"" + key + "\" which is not defined" +
+			                                " in the message type \"" + _spec.getName() + "\".");
+		}
+		return field;
+	}
+
+	/** Set a field to a value already known to be of the right type. */
+	private void setChecked(int field, Object value) {
+		int slot = _spec.fieldSlot(field);
+		switch (_spec.fieldCode(field)) {
+		case MessageType.FIELD_BOOLEAN:
+			_primitives[slot] = ((Boolean) value) ? 1 : 0;
+			break;
+		case MessageType.FIELD_BYTE:
+		case MessageType.FIELD_SHORT:
+		case MessageType.FIELD_INT:
+		case MessageType.FIELD_LONG:
+			_primitives[slot] = ((Number) value).longValue();
+			break;
+		case MessageType.FIELD_FLOAT:
+			_primitives[slot] = Float.floatToRawIntBits((Float) value);
+			break;
+		case MessageType.FIELD_DOUBLE:
+			_primitives[slot] = Double.doubleToRawLongBits((Double) value);
+			break;
+		default:
+			_objects[slot] = value;
+		}
+		_setFields |= 1L << field;
+	}
+
+	/** Read a field from a packet, in the format written by writeFields(). */
+	private void readField(int field, DataInput dis) throws IOException {
+		int slot = _spec.fieldSlot(field);
+		switch (_spec.fieldCode(field)) {
+		case MessageType.FIELD_BOOLEAN:
+			// Only 0 and 1 are written, anything else indicates a problem.
+			final byte bool = dis.readByte();
+			if (bool != 0 && bool != 1) throw new IOException("Boolean is non boolean value: " + bool);
+			_primitives[slot] = bool;
+			break;
+		case MessageType.FIELD_BYTE:
+			_primitives[slot] = dis.readByte();
+			break;
+		case MessageType.FIELD_SHORT:
+			_primitives[slot] = dis.readShort();
+			break;
+		case MessageType.FIELD_INT:
+			_primitives[slot] = dis.readInt();
+			break;
+		case MessageType.FIELD_LONG:
+			_primitives[slot] = dis.readLong();
+			break;
+		case MessageType.FIELD_FLOAT:
+			_primitives[slot] = Float.floatToRawIntBits(dis.readFloat());
+			break;
+		case MessageType.FIELD_DOUBLE:
+			_primitives[slot] = Double.doubleToRawLongBits(dis.readDouble());
+			break;
+		case MessageType.FIELD_LINKED_LIST:
+			set(_spec.fieldName(field), Serializer.readListFromDataInputStream(
+					_spec.getLinkedListTypes().get(_spec.fieldName(field)), dis));
+			return;
+		default:
+			// Check the type, e.g. Key.read() may return a different kind of key.
+			set(_spec.fieldName(field), Serializer.readFromDataInputStream(_spec.fieldType(field), dis));
+			return;
+		}
+		_setFields |= 1L << field;
+	}
+
+	/** Write the message type and the fields, but not the sub-messages. */
+	private void writeFields(DataOutputStream dos) throws IOException {
+		dos.writeInt(_spec.getName().hashCode());
+		for (int field = 0; field < _spec.getFieldCount(); field++) {
+			if (!isSet(field)) {
+				throw new IllegalStateException(_spec.fieldName(field) + " not set in " + _spec.getName());
+			}
+			int slot = _spec.fieldSlot(field);
+			switch (_spec.fieldCode(field)) {
+			case MessageType.FIELD_BOOLEAN:
+				dos.writeBoolean(_primitives[slot] != 0);
+				break;
+			case MessageType.FIELD_BYTE:
+				dos.writeByte((int) _primitives[slot]);
+				break;
+			case MessageType.FIELD_SHORT:
+				dos.writeShort((int) _primitives[slot]);
+				break;
+			case MessageType.FIELD_INT:
+				dos.writeInt((int) _primitives[slot]);
+				break;
+			case MessageType.FIELD_LONG:
+				dos.writeLong(_primitives[slot]);
+				break;
+			case MessageType.FIELD_FLOAT:
+				dos.writeFloat(Float.intBitsToFloat((int) _primitives[slot]));
+				break;
+			case MessageType.FIELD_DOUBLE:
+				dos.writeDouble(Double.longBitsToDouble(_primitives[slot]));
+				break;
+			default:
+				Serializer.writeToDataOutputStream(_objects[slot], dos);
+			}
+		}
 	}
 
 	public byte[] encodeToPacket() {
@@ -277,35 +470,71 @@ public class Message {
 	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
 
 		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
+		EncodeBuffer out = EncodeBuffer.get();
+		byte[] buf;
 		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+			writeFields(out.dos);
+			if (_subMessages != null && includeSubMessages) {
+				for (Message _subMessage : _subMessages) {
+					// Length is filled in afterwards.
+					int lengthPos = out.size();
+					out.dos.writeShort(0);
+					_subMessage.writeFields(out.dos);
+					out.setShort(lengthPos, out.size() - lengthPos - 2);
+				}
 			}
-			dos.flush();
+			buf = out.toByteArray();
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new IllegalStateException(e.getMessage());
+		} finally {
+			out.release();
 		}
 
-		if (_subMessages != null && includeSubMessages) {
-			for (Message _subMessage : _subMessages) {
-				byte[] temp = _subMessage.encodeToPacket(false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
-				}
+		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
+		return buf;
+	}
+
+	/** Buffer reused by encodeToPacket() on each thread, so that encoding a message only
+	 * allocates the result. */
+	private static class EncodeBuffer extends ByteArrayOutputStream {
+
+		private static final ThreadLocal<EncodeBuffer> buffers = new ThreadLocal<EncodeBuffer>();
+
+		/** Don't keep a buffer which has grown bigger than this. */
+		private static final int MAX_KEEP = 16384;
+
+		final DataOutputStream dos = new DataOutputStream(this);
+		private boolean inUse;
+
+		private EncodeBuffer() {
+			super(256);
+		}
+
+		static EncodeBuffer get() {
+			EncodeBuffer out = buffers.get();
+			if (out == null) {
+				out = new EncodeBuffer();
+				buffers.set(out);
+			} else if (out.inUse) {
+				// Called recursively, e.g. from toString() while logging.
+				out = new EncodeBuffer();
 			}
+			out.reset();
+			out.inUse = true;
+			return out;
 		}
 
-		byte[] buf = baos.toByteArray();
-		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
-		return buf;
+		void release() {
+			inUse = false;
+			if (buf.length > MAX_KEEP && buffers.get() == this) buffers.remove();
+		}
+
+		/** Overwrite two bytes already written with a big-endian short. */
+		void setShort(int pos, int value) {
+			buf[pos] = (byte) (value >>> 8);
+			buf[pos + 1] = (byte) value;
+		}
 	}
 
 	@Override
@@ -313,9 +542,9 @@ public class Message {
 		StringBuilder ret = new StringBuilder(1000);
 		String comma = "";
 		ret.append(_spec.getName()).append(" {");
-		for (String name : _spec.getFields().keySet()) {
+		for (int field = 0; field < _spec.getFieldCount(); field++) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(_spec.fieldName(field)).append('=').append(getObject(field));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,17 +564,46 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		return isSet(_spec.getFieldIndex(fieldName));
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
 		return r;
 	}
 
+	/** @return True if the field is set and equal to the value. Does not box primitive
+	 * fields. */
+	public boolean isFieldEqual(String fieldName, Object value) {
+		int field = _spec.getFieldIndex(fieldName);
+		if (!isSet(field)) return false;
+		int slot = _spec.fieldSlot(field);
+		switch (_spec.fieldCode(field)) {
+		case MessageType.FIELD_BOOLEAN:
+			return value instanceof Boolean && ((Boolean) value) == (_primitives[slot] != 0);
+		case MessageType.FIELD_BYTE:
+			return value instanceof Byte && (Byte) value == _primitives[slot];
+		case MessageType.FIELD_SHORT:
+			return value instanceof Short && (Short) value == _primitives[slot];
+		case MessageType.FIELD_INT:
+			return value instanceof Integer && (Integer) value == _primitives[slot];
+		case MessageType.FIELD_LONG:
+			return value instanceof Long && (Long) value == _primitives[slot];
+		case MessageType.FIELD_FLOAT:
+			// Compare as Float.equals() does.
+			return value instanceof Float && Float.floatToIntBits((Float) value) ==
+				Float.floatToIntBits(Float.intBitsToFloat((int) _primitives[slot]));
+		case MessageType.FIELD_DOUBLE:
+			return value instanceof Double && Double.doubleToLongBits((Double) value) ==
+				Double.doubleToLongBits(Double.longBitsToDouble(_primitives[slot]));
+		default:
+			return value.equals(_objects[slot]);
+		}
+	}
+
 	public static class FieldNotSetException extends RuntimeException {
 		private static final long serialVersionUID = 1L;
 
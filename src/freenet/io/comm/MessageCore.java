@@ -23,10 +23,10 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.io.comm.MessageFilter.MATCHED;
 import freenet.node.PeerNode;
@@ -56,7 +56,7 @@ public class MessageCore {
 	private Dispatcher _dispatcher;
 	private Executor _executor;
 	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
 	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
@@ -65,6 +65,8 @@ public class MessageCore {
 	private static final long MAX_FILTER_REMOVE_TIME = SECONDS.toMillis(10);
 	private static final long MIN_FILTER_REMOVE_TIME = SECONDS.toMillis(1);
 	private long startedTime;
+	/** Number of threads blocked in waitFor() */
+	private final AtomicInteger _waitingThreads = new AtomicInteger();
 	
 	public synchronized long getStartedTime() {
 		return startedTime;
@@ -122,46 +124,31 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
+		ArrayList<MessageFilter> timedOutFilters = new ArrayList<MessageFilter>();
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
+			// Filters whose timeout has passed are at the front of the index, but filters with
+			// callbacks are all checked because their callbacks may say they should time out.
+			// See also the end of waitFor() for another weird case.
+			nextTimeout = Math.min(nextTimeout, _filters.removeTimedOut(tStart, timedOutFilters));
+			if(logMINOR) {
+				for(MessageFilter f : timedOutFilters) {
+					Logger.minor(this, "Removing "+f);
+					for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
+						Message m = it.next();
+						MATCHED status = f.match(m, true, tStart);
+						if (status == MATCHED.MATCHED) {
+							// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+							Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
+							break;
 						}
 					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
 			}
 		}
 		
-		if(timedOutFilters != null) {
-			for(MessageFilter f : timedOutFilters) {
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		for(MessageFilter f : timedOutFilters) {
+			f.setMessage(null);
+			f.onTimedOut(_executor);
 		}
 		
 		long tEnd = System.currentTimeMillis();
@@ -196,11 +183,10 @@ public class MessageCore {
 		MessageFilter match = null;
 		ArrayList<MessageFilter> timedOut = null;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
+			for (MessageFilter f : _filters.candidates(m)) {
 				if (f.matched()) {
 					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
+					_filters.remove(f);
 					continue;
 				}
 				MATCHED status = f.match(m, tStart);
@@ -208,11 +194,11 @@ public class MessageCore {
 					if(timedOut == null)
 						timedOut = new ArrayList<MessageFilter>();
 					timedOut.add(f);
-					i.remove();
+					_filters.remove(f);
 					continue;
 				} else if(status == MATCHED.MATCHED) {
 					matched = true;
-					i.remove();
+					_filters.remove(f);
 					match = f;
 					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
 					f.setMessage(m);
@@ -267,13 +253,12 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
+				for (MessageFilter f : _filters.candidates(m)) {
 					MATCHED status = f.match(m, tStart);
 					if(status == MATCHED.MATCHED) {
 						matched = true;
 						match = f;
-						i.remove();
+						_filters.remove(f);
 						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
 						match.setMessage(m);
 						break; // Only one match permitted per message
@@ -281,7 +266,7 @@ public class MessageCore {
 						if(timedOut == null)
 							timedOut = new ArrayList<MessageFilter>();
 						timedOut.add(f);
-						i.remove();
+						_filters.remove(f);
 						continue;
 					}
 				}
@@ -323,14 +308,12 @@ public class MessageCore {
 	public void onDisconnect(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters.all()) {
 			    if(f.matchesDroppedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -345,14 +328,12 @@ public class MessageCore {
 	public void onRestart(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters.all()) {
 			    if(f.matchesRestartedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
+			    	_filters.remove(f);
 			    }
 			}
 	    }
@@ -412,22 +393,10 @@ public class MessageCore {
 			}
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				if(!_filters.add(filter))
+					Logger.error(this, "Filter "+filter+" is already in the filter list!");
+				else if(logMINOR) Logger.minor(this, "Added filter with timeout "+timeout);
+				return;
 			}
 		}
 		if(ret != null) {
@@ -495,22 +464,9 @@ public class MessageCore {
 			}
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				if(!_filters.add(filter))
+					Logger.error(this, "Filter "+filter+" is already in the filter list!");
+				else if(logMINOR) Logger.minor(this, "Added filter with timeout "+filter.getTimeout()+" : "+filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -525,23 +481,16 @@ public class MessageCore {
 		// So we have to release it here
 		if(ret == null) {	
 			if(logMINOR) Logger.minor(this, "Waiting...");
-			synchronized (filter) {
-				try {
-					// Precaution against filter getting matched between being added to _filters and
-					// here - bug discovered by Mason
-					// Check reallyTimedOut() too a) for paranoia, b) for filters with a callback (we could conceivably waitFor() them).
-				    while(!(filter.matched() || (filter.droppedConnection() != null) || (filter.reallyTimedOut(now = System.currentTimeMillis())))) {
-						long wait = filter.getTimeout()-now;
-						if(wait <= 0)
-							break;
-						filter.wait(wait);
-					}
-				    if(filter.droppedConnection() != null)
-				        throw new DisconnectedException();
-				} catch (InterruptedException e) {
-				}
-				ret = filter.getMessage();
+			_waitingThreads.incrementAndGet();
+			try {
+				filter.waitForMatch();
+			} catch (InterruptedException e) {
+			} finally {
+				_waitingThreads.decrementAndGet();
 			}
+			if(filter.droppedConnection() != null)
+				throw new DisconnectedException();
+			ret = filter.getMessage();
 			if(logMINOR) Logger.minor(this, "Returning "+ret+" from "+filter);
 		}
 		
@@ -561,11 +510,7 @@ public class MessageCore {
 				}
 			}
 			filter.clearMatched();
-			// We must remove it from _filters before we return, or when it is re-added,
-			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
+			// We must remove it from _filters before we return, or it could never be re-added.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
@@ -626,6 +571,22 @@ public class MessageCore {
 		return messageCounts;
 	}
 
+	/**
+	 * @return the number of filters waiting for a message
+	 */
+	public int getFilterCount() {
+		synchronized(_filters) {
+			return _filters.size();
+		}
+	}
+
+	/**
+	 * @return the number of threads currently blocked in waitFor()
+	 */
+	public int getWaitingThreadCount() {
+		return _waitingThreads.get();
+	}
+
 	public Executor getExecutor() {
 		return _executor;
 	}
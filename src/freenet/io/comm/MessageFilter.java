@@ -21,6 +21,9 @@ package freenet.io.comm;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import freenet.node.PrioRunnable;
 import freenet.support.Executor;
@@ -59,6 +62,16 @@ public final class MessageFilter {
     private AsyncMessageFilterCallback _callback;
     private ByteCounter _ctr;
     private boolean _setTimeout = false;
+    /** Threads in waitFor() park on this rather than on the filter's monitor, so a waiting
+     * thread never holds a monitor. Taken after the filter's own lock, never before it. */
+    private final ReentrantLock _waitLock = new ReentrantLock();
+    private final Condition _wakeup = _waitLock.newCondition();
+    /** Position in MessageCore's filter index: the timeout when it was added, the order in
+     * which it was added, and the keys it is filed under, or null if it is not in the index.
+     * LOCKING: Protected by the index's lock. */
+    long _indexedTimeout;
+    long _indexedOrder;
+    MessageFilterIndex.Key[] _indexedKeys;
 
     private MessageFilter() {
         _timeoutFromWait = true;
@@ -131,6 +144,22 @@ public final class MessageFilter {
 		return this;
 	}
 	
+	MessageType getType() {
+		return _type;
+	}
+
+	MessageFilter getOr() {
+		return _or;
+	}
+
+	/** @return The value this filter requires for a field, or null if it does not match on it. */
+	Object getField(String fieldName) {
+		synchronized (_fields) {
+			int i = _fieldNames.indexOf(fieldName);
+			return i < 0 ? null : _fields.get(i);
+		}
+	}
+
 	/**
 	 Returns the source that this filter (or chain) matches
 	 */
@@ -224,12 +253,7 @@ public final class MessageFilter {
 		}
 		synchronized (_fields) {
 			for (int i = 0; i < _fieldNames.size(); i++) {
-				final String fieldName = _fieldNames.get(i);
-				if (!m.isSet(fieldName)) {
-					return resultNoMatch;
-				}
-				final Object fieldValue = _fields.get(i);
-				if (!fieldValue.equals(m.getFromPayload(fieldName))) {
+				if (!m.isFieldEqual(_fieldNames.get(i), _fields.get(i))) {
 					return resultNoMatch;
 				}
 			}
@@ -280,7 +304,36 @@ public final class MessageFilter {
         _message = message;
         // Avoid race conditions where it is removed from the filter list because of a timeout but not woken up.
         _matched = true;
-        notifyAll();
+        wakeWaiters();
+    }
+
+    private void wakeWaiters() {
+    	_waitLock.lock();
+    	try {
+    		_wakeup.signalAll();
+    	} finally {
+    		_waitLock.unlock();
+    	}
+    }
+
+    /**
+     * Block until the filter is matched, a connection is dropped or restarted, or it times out.
+     * Called by MessageCore.waitFor() after the filter has been added to the filter list.
+     */
+    void waitForMatch() throws InterruptedException {
+    	_waitLock.lock();
+    	try {
+    		long now;
+    		// Check reallyTimedOut() too a) for paranoia, b) for filters with a callback (we could conceivably waitFor() them).
+    		while(!(_matched || (_droppedConnection != null) || reallyTimedOut(now = System.currentTimeMillis()))) {
+    			long wait = _timeout - now;
+    			if(wait <= 0)
+    				break;
+    			_wakeup.await(wait, TimeUnit.MILLISECONDS);
+    		}
+    	} finally {
+    		_waitLock.unlock();
+    	}
     }
 
     public long getInitialTimeout() {
@@ -335,7 +388,7 @@ public final class MessageFilter {
     	synchronized(this) {
     		cb = _callback;
     		_droppedConnection = ctx;
-    		notifyAll();
+    		wakeWaiters();
     		_ctr = null;
     	}
     	if(cb != null) {
@@ -370,7 +423,7 @@ public final class MessageFilter {
     	synchronized(this) {
     		_droppedConnection = ctx;
     		cb = _callback;
-    		notifyAll();
+    		wakeWaiters();
     		_ctr = null;
     	}
     	if(cb != null) {
@@ -439,7 +492,7 @@ public final class MessageFilter {
 	public void onTimedOut(Executor executor) {
 		final AsyncMessageFilterCallback cb;
 		synchronized(this) {
-			notifyAll();
+			wakeWaiters();
 			cb = _callback;
 		}
 		if(cb != null) {
@@ -0,0 +1,229 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The pending MessageFilter's of a MessageCore. Filters are indexed by message type, source and
+ * UID, so an incoming message is only checked against the filters which could match it, and are
+ * kept in order of timeout, so expired filters can be removed without scanning all of them.
+ *
+ * A filter with or()'ed alternatives is indexed under each alternative. A filter (or alternative)
+ * without a type is checked against every message. As with the old single list, where several
+ * filters match a message, the one with the nearest timeout is tried first, and ties go to the
+ * filter added first.
+ *
+ * LOCKING: Not thread-safe. MessageCore synchronizes on the index.
+ */
+final class MessageFilterIndex {
+
+	/** Order of timeout when added, then order of addition. */
+	private static final Comparator<MessageFilter> ORDER = new Comparator<MessageFilter>() {
+
+		@Override
+		public int compare(MessageFilter f1, MessageFilter f2) {
+			if(f1._indexedTimeout != f2._indexedTimeout)
+				return f1._indexedTimeout < f2._indexedTimeout ? -1 : 1;
+			if(f1._indexedOrder != f2._indexedOrder)
+				return f1._indexedOrder < f2._indexedOrder ? -1 : 1;
+			return 0;
+		}
+
+	};
+
+	/** All filters, in ORDER */
+	private final TreeSet<MessageFilter> byTimeout = new TreeSet<MessageFilter>(ORDER);
+	/** Filters with a callback, which may ask to be timed out early, in ORDER */
+	private final TreeSet<MessageFilter> withCallback = new TreeSet<MessageFilter>(ORDER);
+	/** Filters by the type, source and UID they match. Each bucket is kept in ORDER. */
+	private final HashMap<Key, ArrayList<MessageFilter>> byKey = new HashMap<Key, ArrayList<MessageFilter>>();
+	/** Filters which match any type, in ORDER */
+	private final ArrayList<MessageFilter> untyped = new ArrayList<MessageFilter>();
+	private long added;
+
+	/** The type, source and UID a filter matches. Source and UID are null if the filter matches
+	 * any source or any UID. */
+	static final class Key {
+		final MessageType type;
+		final PeerContext source;
+		final Long uid;
+		private final int hashCode;
+
+		Key(MessageType type, PeerContext source, Long uid) {
+			this.type = type;
+			this.source = source;
+			this.uid = uid;
+			int h = type.hashCode();
+			if(source != null) h = h * 31 + source.hashCode();
+			if(uid != null) h = h * 31 + uid.hashCode();
+			this.hashCode = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this) return true;
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return hashCode == k.hashCode && type.equals(k.type) &&
+				(source == null ? k.source == null : source.equals(k.source)) &&
+				(uid == null ? k.uid == null : uid.equals(k.uid));
+		}
+	}
+
+	int size() {
+		return byTimeout.size();
+	}
+
+	/**
+	 * Add a filter. Its timeout must already be set, and must not change while it is in the index.
+	 * @return False if the filter is already in the index.
+	 */
+	boolean add(MessageFilter f) {
+		if(f._indexedKeys != null) return false;
+		f._indexedTimeout = f.getTimeout();
+		f._indexedOrder = added++;
+		f._indexedKeys = keys(f);
+		byTimeout.add(f);
+		if(f.hasCallback())
+			withCallback.add(f);
+		for(Key key : f._indexedKeys) {
+			ArrayList<MessageFilter> bucket;
+			if(key == null) {
+				bucket = untyped;
+			} else {
+				bucket = byKey.get(key);
+				if(bucket == null) {
+					bucket = new ArrayList<MessageFilter>(1);
+					byKey.put(key, bucket);
+				}
+			}
+			int i = Collections.binarySearch(bucket, f, ORDER);
+			bucket.add(-i - 1, f);
+		}
+		return true;
+	}
+
+	/** @return False if the filter was not in the index. */
+	boolean remove(MessageFilter f) {
+		if(f._indexedKeys == null) return false;
+		byTimeout.remove(f);
+		withCallback.remove(f);
+		for(Key key : f._indexedKeys) {
+			ArrayList<MessageFilter> bucket = key == null ? untyped : byKey.get(key);
+			int i = Collections.binarySearch(bucket, f, ORDER);
+			bucket.remove(i);
+			if(bucket.isEmpty() && key != null)
+				byKey.remove(key);
+		}
+		f._indexedKeys = null;
+		return true;
+	}
+
+	/** @return The filters which might match the message, in the order in which they should be
+	 * tried. */
+	List<MessageFilter> candidates(Message m) {
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		Object o = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+		Long uid = o instanceof Long ? (Long) o : null;
+		ArrayList<MessageFilter> result = new ArrayList<MessageFilter>();
+		int buckets = addBucket(result, new Key(type, source, uid));
+		if(uid != null)
+			buckets += addBucket(result, new Key(type, source, null));
+		if(source != null) {
+			buckets += addBucket(result, new Key(type, null, uid));
+			if(uid != null)
+				buckets += addBucket(result, new Key(type, null, null));
+		}
+		if(!untyped.isEmpty()) {
+			result.addAll(untyped);
+			buckets++;
+		}
+		if(buckets > 1) {
+			Collections.sort(result, ORDER);
+			// A filter with alternatives may be in more than one bucket.
+			MessageFilter prev = null;
+			for(Iterator<MessageFilter> i = result.iterator(); i.hasNext();) {
+				MessageFilter f = i.next();
+				if(f == prev) i.remove();
+				prev = f;
+			}
+		}
+		return result;
+	}
+
+	private int addBucket(ArrayList<MessageFilter> result, Key key) {
+		ArrayList<MessageFilter> bucket = byKey.get(key);
+		if(bucket == null) return 0;
+		result.addAll(bucket);
+		return 1;
+	}
+
+	/**
+	 * Remove the filters which have timed out, either because their timeout has passed or because
+	 * their callback says they should time out.
+	 * @param now Filters with a timeout earlier than this have timed out.
+	 * @param timedOut Filters removed are added to this list, in order of timeout.
+	 * @return The earliest timeout of the remaining filters with callbacks, or Long.MAX_VALUE.
+	 */
+	long removeTimedOut(long now, List<MessageFilter> timedOut) {
+		while(!byTimeout.isEmpty() && byTimeout.first()._indexedTimeout < now) {
+			MessageFilter f = byTimeout.first();
+			remove(f);
+			timedOut.add(f);
+		}
+		long nextTimeout = Long.MAX_VALUE;
+		ArrayList<MessageFilter> cancelled = null;
+		for(MessageFilter f : withCallback) {
+			if(f.timedOut(now)) {
+				if(cancelled == null)
+					cancelled = new ArrayList<MessageFilter>();
+				cancelled.add(f);
+			} else if(f.getTimeout() < nextTimeout) {
+				nextTimeout = f.getTimeout();
+			}
+		}
+		if(cancelled != null) {
+			for(MessageFilter f : cancelled) {
+				remove(f);
+				timedOut.add(f);
+			}
+		}
+		return nextTimeout;
+	}
+
+	/** @return All the filters, in order of timeout. */
+	List<MessageFilter> all() {
+		return new ArrayList<MessageFilter>(byTimeout);
+	}
+
+	/** @return The keys a filter is indexed under, with null meaning any type. */
+	private static Key[] keys(MessageFilter f) {
+		ArrayList<Key> keys = new ArrayList<Key>(1);
+		for(MessageFilter alt = f; alt != null; alt = alt.getOr()) {
+			Key key = null;
+			MessageType type = alt.getType();
+			if(type != null) {
+				Object uid = alt.getField(DMT.UID);
+				key = new Key(type, alt.getSource(), uid instanceof Long ? (Long) uid : null);
+			}
+			if(!keys.contains(key))
+				keys.add(key);
+		}
+		return keys.toArray(new Key[keys.size()]);
+	}
+
+}
@@ -19,6 +19,7 @@
 
 package freenet.io.comm;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -37,6 +38,16 @@ public class MessageType {
 	private final LinkedList<String> _orderedFields = new LinkedList<String>();
 	private final HashMap<String, Class<?>> _fields = new HashMap<String, Class<?>>();
 	private final HashMap<String, Class<?>> _linkedListTypes = new HashMap<String, Class<?>>();
+	/* The compiled layout, which Message uses to store and encode fields without boxing
+	 * primitives or looking up each field in a map. Indexed by field number, in wire order. */
+	private final HashMap<String, Integer> _fieldIndex = new HashMap<String, Integer>();
+	private String[] _fieldNames = new String[0];
+	private Class<?>[] _fieldTypes = new Class<?>[0];
+	private byte[] _fieldCodes = new byte[0];
+	/** Index of the field in Message's primitive or object array, depending on its code. */
+	private int[] _fieldSlots = new int[0];
+	private int _primitiveFields;
+	private int _objectFields;
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
@@ -68,8 +79,85 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		if (_fieldIndex.containsKey(name))
+			throw new IllegalArgumentException("Field " + name + " already defined in " + _name);
+		int index = _fieldNames.length;
+		if (index == MAX_FIELDS)
+			throw new IllegalArgumentException("Too many fields in " + _name);
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		byte code = codeOf(type);
+		_fieldIndex.put(name, index);
+		_fieldNames = Arrays.copyOf(_fieldNames, index + 1);
+		_fieldNames[index] = name;
+		_fieldTypes = Arrays.copyOf(_fieldTypes, index + 1);
+		_fieldTypes[index] = type;
+		_fieldCodes = Arrays.copyOf(_fieldCodes, index + 1);
+		_fieldCodes[index] = code;
+		_fieldSlots = Arrays.copyOf(_fieldSlots, index + 1);
+		_fieldSlots[index] = code < FIELD_OBJECT ? _primitiveFields++ : _objectFields++;
+	}
+
+	/** Field codes. The primitive types come first, and are stored unboxed in a Message. */
+	static final byte FIELD_BOOLEAN = 0;
+	static final byte FIELD_BYTE = 1;
+	static final byte FIELD_SHORT = 2;
+	static final byte FIELD_INT = 3;
+	static final byte FIELD_LONG = 4;
+	static final byte FIELD_FLOAT = 5;
+	static final byte FIELD_DOUBLE = 6;
+	/** Anything else, read and written by Serializer. */
+	static final byte FIELD_OBJECT = 7;
+	static final byte FIELD_LINKED_LIST = 8;
+
+	/** Message keeps track of which fields are set in a long. */
+	static final int MAX_FIELDS = 64;
+
+	private static byte codeOf(Class<?> type) {
+		if (type == Boolean.class) return FIELD_BOOLEAN;
+		if (type == Byte.class) return FIELD_BYTE;
+		if (type == Short.class) return FIELD_SHORT;
+		if (type == Integer.class) return FIELD_INT;
+		if (type == Long.class) return FIELD_LONG;
+		if (type == Float.class) return FIELD_FLOAT;
+		if (type == Double.class) return FIELD_DOUBLE;
+		if (type == LinkedList.class) return FIELD_LINKED_LIST;
+		return FIELD_OBJECT;
+	}
+
+	/** @return The number of the field, for the Message accessors which take one, or -1 if
+	 * there is no such field. Callers on hot paths can look this up once. */
+	public int getFieldIndex(String name) {
+		Integer index = _fieldIndex.get(name);
+		return index == null ? -1 : index;
+	}
+
+	public int getFieldCount() {
+		return _fieldNames.length;
+	}
+
+	String fieldName(int index) {
+		return _fieldNames[index];
+	}
+
+	Class<?> fieldType(int index) {
+		return _fieldTypes[index];
+	}
+
+	byte fieldCode(int index) {
+		return _fieldCodes[index];
+	}
+
+	int fieldSlot(int index) {
+		return _fieldSlots[index];
+	}
+
+	int primitiveFieldCount() {
+		return _primitiveFields;
+	}
+
+	int objectFieldCount() {
+		return _objectFields;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -15,9 +15,19 @@ import java.net.DatagramSocket;
 import java.net.DatagramSocketImpl;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.AddressTracker;
 import freenet.io.comm.Peer.LocalAddressException;
@@ -30,6 +40,13 @@ import freenet.support.transport.ip.IPUtil;
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
 
 	private final DatagramSocket _sock;
+	/** Non-blocking channel behind _sock if we are using NIO, otherwise null */
+	private final DatagramChannel _channel;
+	private final Selector _selector;
+	/** Packets waiting for the NIO channel to become writable. LOCKING: Synchronize on it. */
+	private final ArrayDeque<QueuedPacket> _outgoing = new ArrayDeque<QueuedPacket>();
+	/** Packets dropped because _outgoing was full. */
+	private final AtomicLong droppedSendPackets = new AtomicLong();
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -94,6 +111,18 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			}
 		}
 
+		private static int getFd(DatagramChannel c) {
+			int ret = -1;
+			try {
+				Field f = c.getClass().getDeclaredField("fdVal");
+				f.setAccessible(true);
+				ret = f.getInt(c);
+			} catch (Exception e) {
+			   Logger.error(UdpSocketHandler.class, e.getMessage(), e);
+			}
+			return ret;
+		}
+
 		private static int getFd(DatagramSocket s) {
 			int ret = -1;
 			try {
@@ -115,7 +144,16 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		public static boolean setAddressPreference(DatagramSocket s, SOCKET_ADDR_PREFERENCE p) {
 			if(!Platform.isLinux())
 			    return false;
-			int fd = getFd(s);
+			return setAddressPreference(getFd(s), p);
+		}
+
+		public static boolean setAddressPreference(DatagramChannel c, SOCKET_ADDR_PREFERENCE p) {
+			if(!Platform.isLinux())
+			    return false;
+			return setAddressPreference(getFd(c), p);
+		}
+
+		private static boolean setAddressPreference(int fd, SOCKET_ADDR_PREFERENCE p) {
 			if(fd <= 2)
 			    return false;
 			int ret = -1;
@@ -127,6 +165,14 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		this(listenPort, bindto, node, startupTime, title, collector, false);
+	}
+
+	/**
+	 * @param useNio If true, use a non-blocking DatagramChannel, which reads all the packets
+	 * waiting on each wakeup into a pool of direct buffers, and never blocks senders.
+	 */
+	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector, boolean useNio) throws SocketException {
 		this.node = node;
 		this.collector = collector;
 		this.title = title;
@@ -137,7 +183,30 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		if(useNio) {
+			DatagramChannel channel = null;
+			Selector selector = null;
+			try {
+				channel = DatagramChannel.open();
+				channel.socket().bind(new InetSocketAddress(bindto, listenPort));
+				channel.configureBlocking(false);
+				selector = Selector.open();
+				channel.register(selector, SelectionKey.OP_READ);
+			} catch (IOException e) {
+				closeQuietly(channel, selector);
+				if(e instanceof SocketException) throw (SocketException) e;
+				SocketException se = new SocketException("Could not open channel: "+e);
+				se.initCause(e);
+				throw se;
+			}
+			_channel = channel;
+			_selector = selector;
+			_sock = channel.socket();
+		} else {
+			_channel = null;
+			_selector = null;
+			_sock = new DatagramSocket(listenPort, bindto);
+		}
 		int sz = _sock.getReceiveBufferSize();
 		if(sz < 65536) {
 			_sock.setReceiveBufferSize(65536);
@@ -153,7 +222,9 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		} catch (SocketException e) {
 			Logger.error(this, "Failed to setTrafficClass with "+node.getTrafficClass().value,e);
 		}
-		boolean r = socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
+		boolean r = _channel != null ?
+				socketOptions.setAddressPreference(_channel, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC) :
+				socketOptions.setAddressPreference(_sock, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
 		if(logMINOR) Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port "+ listenPort + " is a "+(r ? "success" : "failure"));
 //		}
 		// Only used for debugging, no need to seed from Yarrow
@@ -162,6 +233,19 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		tracker.startSend(startupTime);
 	}
 
+	private static void closeQuietly(DatagramChannel channel, Selector selector) {
+		try {
+			if(selector != null) selector.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		try {
+			if(channel != null) channel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
 	/** Must be called, or we will NPE in run() */
 	@Override
 	public void setLowLevelFilter(IncomingPacketFilter f) {
@@ -180,7 +264,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	public void run() { // Listen for packets
 		tracker.startReceive(System.currentTimeMillis());
 		try {
-			runLoop();
+			if(_channel != null)
+				runNioLoop();
+			else
+				runLoop();
 		} catch (Throwable t) {
 			// Impossible? It keeps on exiting. We get the below,
 			// but not this...
@@ -237,40 +324,110 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		boolean gotPacket = getPacket(packet);
 		long now = System.currentTimeMillis();
 		if (gotPacket) {
-			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
-			long endTime = System.currentTimeMillis();
-			if(endTime - startTime > 50) {
-				if(endTime-startTime > 3000) {
-					Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
-				} else {
-					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
-				}
-			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
+			handlePacket(packet.getData(), packet.getOffset(), packet.getLength(),
+					packet.getAddress(), packet.getPort(), now);
+		} else {
+			if(logDEBUG) Logger.debug(this, "No packet received");
+		}
+	}
+
+	/** Number of direct buffers to receive into before handing the packets to the filter. */
+	private static final int RECEIVE_BATCH = 32;
+
+	private void runNioLoop() {
+		ByteBuffer[] buffers = new ByteBuffer[RECEIVE_BATCH];
+		InetSocketAddress[] sources = new InetSocketAddress[RECEIVE_BATCH];
+		for(int i = 0; i < RECEIVE_BATCH; i++)
+			buffers[i] = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
+		// The filter must copy anything it keeps, so we can reuse one array for all packets.
+		byte[] buf = new byte[MAX_RECEIVE_SIZE];
+		SelectionKey key = _channel.keyFor(_selector);
+		while (_active) {
 			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+				boolean wantWrite;
+				synchronized(_outgoing) {
+					wantWrite = !_outgoing.isEmpty();
+				}
+				key.interestOps(wantWrite ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+				_selector.select();
+				_selector.selectedKeys().clear();
+				flushOutgoing();
+				int count;
+				// Keep reading until there is nothing left, without going back to the selector.
+				while((count = receiveBatch(buffers, sources)) > 0) {
+					long now = System.currentTimeMillis();
+					for(int i = 0; i < count; i++) {
+						ByteBuffer b = buffers[i];
+						b.flip();
+						int length = b.remaining();
+						b.get(buf, 0, length);
+						b.clear();
+						handlePacket(buf, 0, length, sources[i].getAddress(), sources[i].getPort(), now);
 					}
+					if(count < RECEIVE_BATCH) break;
+				}
+			} catch (ClosedSelectorException e) {
+				if(_active) throw e;
+			} catch (ClosedChannelException e) {
+				if(_active) throw new RuntimeException(e);
+			} catch (IOException e) {
+				if(_active) {
+					Logger.error(this, "Caught " + e, e);
 				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
 			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
+				System.err.println("Caught "+t);
+				t.printStackTrace(System.err);
+				Logger.error(this, "Caught " + t, t);
 			}
-		} else {
-			if(logDEBUG) Logger.debug(this, "No packet received");
+		}
+	}
+
+	/** @return The number of packets read, each into the corresponding buffer. */
+	private int receiveBatch(ByteBuffer[] buffers, InetSocketAddress[] sources) throws IOException {
+		int count = 0;
+		while(count < buffers.length) {
+			SocketAddress source = _channel.receive(buffers[count]);
+			if(source == null) break;
+			InetSocketAddress address = (InetSocketAddress) source;
+			sources[count] = address;
+			boolean isLocal = !IPUtil.isValidAddress(address.getAddress(), false);
+			collector.addInfo(address.getAddress(), address.getPort(),
+					getHeadersLength(address.getAddress()) + buffers[count].position(), 0, isLocal);
+			count++;
+		}
+		if(logMINOR && count > 0) Logger.minor(this, "Received "+count+" packets");
+		return count;
+	}
+
+	private void handlePacket(byte[] data, int offset, int length, InetAddress address, int port, long now) {
+		long startTime = System.currentTimeMillis();
+		Peer peer = new Peer(address, port);
+		tracker.receivedPacketFrom(peer);
+		long endTime = System.currentTimeMillis();
+		if(endTime - startTime > 50) {
+			if(endTime-startTime > 3000) {
+				Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
+			} else {
+				if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+			}
+		}
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			startTime = System.currentTimeMillis();
+			lowLevelFilter.process(data, offset, length, peer, now);
+			endTime = System.currentTimeMillis();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000) {
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				} else {
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+				}
+			}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
 		}
 	}
 
@@ -328,21 +485,104 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
 		int port = destination.getPort();
+		if(_channel != null) {
+			sendNio(blockToSend, destination, address, port);
+			return;
+		}
 		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
 		packet.setAddress(address);
 		packet.setPort(port);
 
 		try {
 			_sock.send(packet);
-			tracker.sentPacketTo(destination);
-			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
-			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
+			onSent(destination, address, port, blockToSend.length);
 		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
-				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
-			} else {
-				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
+			onSendFailed(destination, address, e);
+		}
+	}
+
+	private void onSent(Peer destination, InetAddress address, int port, int length) {
+		tracker.sentPacketTo(destination);
+		boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+		collector.addInfo(address, port, 0, getHeadersLength(address) + length, isLocal);
+		if(logMINOR) Logger.minor(this, "Sent packet length "+length+" to "+address+':'+port);
+	}
+
+	private void onSendFailed(Peer destination, InetAddress address, IOException e) {
+		if(address instanceof Inet6Address) {
+			Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
+		} else {
+			Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
+		}
+	}
+
+	/** Packets queued beyond this are dropped, as the kernel would if its send buffer was full. */
+	private static final int MAX_QUEUED_PACKETS = 1024;
+
+	private static class QueuedPacket {
+		final ByteBuffer data;
+		final InetSocketAddress target;
+		final Peer destination;
+
+		QueuedPacket(ByteBuffer data, InetSocketAddress target, Peer destination) {
+			this.data = data;
+			this.target = target;
+			this.destination = destination;
+		}
+	}
+
+	/**
+	 * Send a packet without blocking. If the socket's send buffer is full, queue it, and the
+	 * receive thread will send it, and any packets queued after it, when the channel is writable.
+	 */
+	private void sendNio(byte[] blockToSend, Peer destination, InetAddress address, int port) {
+		ByteBuffer data = ByteBuffer.wrap(blockToSend);
+		InetSocketAddress target = new InetSocketAddress(address, port);
+		synchronized(_outgoing) {
+			// Don't overtake packets which are already queued.
+			if(_outgoing.isEmpty()) {
+				try {
+					if(_channel.send(data, target) > 0) {
+						onSent(destination, address, port, blockToSend.length);
+						return;
+					}
+				} catch (IOException e) {
+					onSendFailed(destination, address, e);
+					return;
+				}
+			}
+			if(_outgoing.size() >= MAX_QUEUED_PACKETS) {
+				droppedSendPackets.incrementAndGet();
+				if(logMINOR) Logger.minor(this, "Send queue full, dropping packet to "+destination);
+				return;
+			}
+			_outgoing.addLast(new QueuedPacket(data, target, destination));
+			if(_outgoing.size() > 1) return;
+		}
+		// Get the receive thread to wait for the channel to become writable.
+		_selector.wakeup();
+	}
+
+	/** @return The number of packets dropped because the send queue was full. Always 0 unless
+	 * we are using NIO. */
+	public long getDroppedSendPackets() {
+		return droppedSendPackets.get();
+	}
+
+	/** Called by the receive thread to send queued packets. */
+	private void flushOutgoing() {
+		synchronized(_outgoing) {
+			while(!_outgoing.isEmpty()) {
+				QueuedPacket packet = _outgoing.peekFirst();
+				int length = packet.data.remaining();
+				try {
+					if(_channel.send(packet.data, packet.target) == 0)
+						return;
+					onSent(packet.destination, packet.target.getAddress(), packet.target.getPort(), length);
+				} catch (IOException e) {
+					onSendFailed(packet.destination, packet.target.getAddress(), e);
+				}
+				_outgoing.removeFirst();
 			}
 		}
 	}
@@ -408,6 +648,13 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		synchronized (this) {
 			_active = false;
 			_sock.close();
+			if(_selector != null) {
+				try {
+					_selector.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
 
 			if(!_started) return;
 			while (!_isDone) {
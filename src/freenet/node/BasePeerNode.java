@@ -38,6 +38,10 @@ public interface BasePeerNode extends PeerContext {
 
 	void wakeUpSender();
 
+	/** Something has been queued which will need sending, but not immediately. Tell the
+	 * PacketSender to look at us on its next loop, without waking it up. */
+	void sendTimesChanged();
+
 	int getMaxPacketSize();
 
 	PeerMessageQueue getMessageQueue();
@@ -50,7 +54,14 @@ public interface BasePeerNode extends PeerContext {
 
 	boolean shouldThrottle();
 
-	void sentThrottledBytes(int length);
+	/** Count bytes sent against the output bandwidth limit.
+	 * @param realTimeBytes Bytes of realtime data, messages and overheads.
+	 * @param bulkBytes Bytes of bulk data. */
+	void sentThrottledBytes(int realTimeBytes, int bulkBytes);
+
+	/** Can we send a packet of this size containing realtime (or bulk) data without going over
+	 * the output bandwidth limit? Always true if we don't throttle this peer. */
+	boolean canSendThrottled(boolean realTime, int bytes);
 
 	void onNotificationOnlyPacketSent(int length);
 
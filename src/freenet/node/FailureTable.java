@@ -9,6 +9,7 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
@@ -35,8 +36,8 @@ import freenet.support.io.NativeThread;
 // Otherwise it will be much too easy to trace a request if an attacker busts the node afterwards.
 // We can use an HMAC or something to authenticate offers.
 
-// LOCKING: Always take the FailureTable lock first if you need both. Take the FailureTableEntry 
-// lock only on cheap internal operations.
+// LOCKING: Always take the Shard lock first if you need both. Take the FailureTableEntry 
+// lock only on cheap internal operations. Never take more than one Shard lock at once.
 
 /**
  * Tracks recently DNFed keys, where they were routed to, what the location was at the time, who requested them.
@@ -61,16 +62,22 @@ public class FailureTable {
 		});
 	}
 
-	/** FailureTableEntry's by key. Note that we push an entry only when sentTime changes. */
-	private final LRUMap<Key,FailureTableEntry> entriesByKey;
-	/** BlockOfferList by key. Synchronized on self, as it doesn't interact with the main FT. */
-	private final LRUMap<Key,BlockOfferList> blockOfferListByKey;
+	/** The table is split by routing key, each part with its own lock, LRU order and limits, so
+	 * requests for different keys rarely wait for each other, and the cleaner only ever holds 
+	 * one shard's lock. */
+	private final Shard[] shards;
 	private final Node node;
 	
+	/** Number of shards. Must be a power of 2. */
+	static final int SHARDS = 16;
 	/** Maximum number of keys to track */
 	static final int MAX_ENTRIES = 20*1000;
 	/** Maximum number of offers to track */
 	static final int MAX_OFFERS = 10*1000;
+	/** Maximum number of keys to track in each shard */
+	static final int MAX_ENTRIES_PER_SHARD = MAX_ENTRIES / SHARDS;
+	/** Maximum number of offers to track in each shard */
+	static final int MAX_OFFERS_PER_SHARD = MAX_OFFERS / SHARDS;
 	/** Terminate a request if there was a DNF on the same key less than 10 minutes ago.
 	 * Maximum time for any FailureTable i.e. for this period after a DNF, we will avoid the node that 
 	 * DNFed. */
@@ -90,8 +97,9 @@ public class FailureTable {
 	static final long CLEANUP_PERIOD = MINUTES.toMillis(10);
 
 	FailureTable(Node node) {
-		entriesByKey = LRUMap.createSafeMap();
-		blockOfferListByKey = LRUMap.createSafeMap();
+		shards = new Shard[SHARDS];
+		for(int i=0;i<SHARDS;i++)
+			shards[i] = new Shard();
 		this.node = node;
 		offerAuthenticatorKey = new byte[32];
 		node.random.nextBytes(offerAuthenticatorKey);
@@ -103,6 +111,72 @@ public class FailureTable {
 		offerExecutor.start(node.executor, "FailureTable offers executor for "+node.getDarknetPortNumber());
 	}
 	
+	/**
+	 * Part of the table. Holds the entries and offers for the keys whose routing key maps to it.
+	 * LOCKING: Everything here, including the counters, is protected by lock. Use lock() and 
+	 * unlock() so that contention is counted.
+	 */
+	private static final class Shard {
+		private final ReentrantLock lock = new ReentrantLock();
+		/** FailureTableEntry's by key. Note that we push an entry only when sentTime changes. */
+		final LRUMap<Key,FailureTableEntry> entriesByKey = LRUMap.createSafeMap();
+		/** BlockOfferList by key. */
+		final LRUMap<Key,BlockOfferList> blockOfferListByKey = LRUMap.createSafeMap();
+		/** Lookups of entries on behalf of requests and offers */
+		long lookups;
+		/** Lookups which found an entry */
+		long hits;
+		/** Times we had to wait for the lock */
+		long contended;
+		
+		void lock() {
+			if(lock.tryLock()) return;
+			lock.lock();
+			contended++;
+		}
+		
+		void unlock() {
+			lock.unlock();
+		}
+		
+		/** Look up an entry, counting the lookup. Caller must hold the lock. */
+		FailureTableEntry lookup(Key key) {
+			lookups++;
+			FailureTableEntry entry = entriesByKey.get(key);
+			if(entry != null) hits++;
+			return entry;
+		}
+		
+		/** Get or create the entry for a key and make it the most recently used. Caller must 
+		 * hold the lock. */
+		FailureTableEntry push(Key key, long now) {
+			FailureTableEntry entry = entriesByKey.get(key);
+			if(entry == null)
+				entry = new FailureTableEntry(key);
+			entry.pushedTime = now;
+			entriesByKey.push(key, entry);
+			return entry;
+		}
+		
+		/** Drop the least recently used entries if there are too many, or if they have not been 
+		 * touched for so long that everything in them has expired. Caller must hold the lock. */
+		void trimEntries(long now) {
+			while(!entriesByKey.isEmpty()) {
+				FailureTableEntry entry = entriesByKey.peekValue();
+				if(entriesByKey.size() > MAX_ENTRIES_PER_SHARD || entry.pushedTime + MAX_LIFETIME < now) {
+					entriesByKey.popKey();
+				} else {
+					return;
+				}
+			}
+		}
+	}
+	
+	private Shard shard(Key key) {
+		// Routing keys are hashes, so any byte will do.
+		return shards[key.getRoutingKey()[0] & (SHARDS - 1)];
+	}
+	
 	/**
 	 * Called when we route to a node and it fails for some reason, but we continue the request.
 	 * Normally the timeout will be the time it took to route to that node and wait for its 
@@ -125,18 +199,18 @@ public class FailureTable {
 		}
 		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) return;
 		long now = System.currentTimeMillis();
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null)
-				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+		Shard shard = shard(key);
+		shard.lock();
+		try {
+			FailureTableEntry entry = shard.push(key, now);
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
 			// We have to do this inside the lock to prevent race condition with the cleaner causing us to get dropped because isEmpty() before updating.
 			entry.failedTo(routedTo, rfTimeout, ftTimeout, now, htl);
 
-			trimEntries(now);
+			shard.trimEntries(now);
+		} finally {
+			shard.unlock();
 		}
 	}
 	
@@ -160,12 +234,10 @@ public class FailureTable {
 		}
 		if(!(node.enableULPRDataPropagation || node.enablePerNodeFailureTables)) return;
 		long now = System.currentTimeMillis();
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null)
-				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+		Shard shard = shard(key);
+		shard.lock();
+		try {
+			FailureTableEntry entry = shard.push(key, now);
 
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
@@ -176,48 +248,45 @@ public class FailureTable {
 			if(requestor != null)
 				entry.addRequestor(requestor, now, origHTL);
 			
-			trimEntries(now);
-		}
-	}
-	
-	private synchronized void trimEntries(long now) {
-		while(entriesByKey.size() > MAX_ENTRIES) {
-			entriesByKey.popKey();
+			shard.trimEntries(now);
+		} finally {
+			shard.unlock();
 		}
 	}
 
-	// LOCKING: Synchronized on FailureTable because we need to remove self in deleteOffer(). 
+	// LOCKING: Locks the Shard because we need to remove self in deleteOffer(). 
 	private final class BlockOfferList {
 		private BlockOffer[] offers;
 		final FailureTableEntry entry;
+		private final Shard shard;
 		
-		BlockOfferList(FailureTableEntry entry, BlockOffer offer) {
+		BlockOfferList(FailureTableEntry entry, BlockOffer offer, Shard shard) {
 			this.entry = entry;
 			this.offers = new BlockOffer[] { offer };
+			this.shard = shard;
 		}
 
-		public long expires() {
-			synchronized(blockOfferListByKey) {
-				long last = 0;
-				for(BlockOffer offer: offers) {
-					if(offer.offeredTime > last) last = offer.offeredTime;
-				}
-				return last + OFFER_EXPIRY_TIME;
+		/** Caller must hold the shard lock. */
+		long expires() {
+			long last = 0;
+			for(BlockOffer offer: offers) {
+				if(offer.offeredTime > last) last = offer.offeredTime;
 			}
+			return last + OFFER_EXPIRY_TIME;
 		}
 
-		public boolean isEmpty(long now) {
-			synchronized(blockOfferListByKey) {
-				for(BlockOffer offer: offers) {
-					if(!offer.isExpired(now)) return false;
-				}
-				return true;
+		/** Caller must hold the shard lock. */
+		boolean isEmpty(long now) {
+			for(BlockOffer offer: offers) {
+				if(!offer.isExpired(now)) return false;
 			}
+			return true;
 		}
 
 		public void deleteOffer(BlockOffer offer) {
 			if(logMINOR) Logger.minor(this, "Deleting "+offer+" from "+this);
-			synchronized(blockOfferListByKey) {
+			shard.lock();
+			try {
 				int idx = -1;
 				final int offerLength = offers.length;
 				for(int i=0;i<offerLength;i++) {
@@ -231,15 +300,27 @@ public class FailureTable {
 					System.arraycopy(offers, idx + 1, newOffers, idx, offers.length - idx - 1);
 				offers = newOffers;
 				if(offers.length > 1) return;
-				blockOfferListByKey.removeKey(entry.key);
+				shard.blockOfferListByKey.removeKey(entry.key);
+			} finally {
+				shard.unlock();
 			}
 			node.clientCore.dequeueOfferedKey(entry.key);
 		}
 
-		public void addOffer(BlockOffer offer) {
-			synchronized(blockOfferListByKey) {
-				offers = Arrays.copyOf(offers, offers.length+1);
-				offers[offers.length-1] = offer;
+		/** Caller must hold the shard lock. */
+		void addOffer(BlockOffer offer) {
+			offers = Arrays.copyOf(offers, offers.length+1);
+			offers[offers.length-1] = offer;
+		}
+		
+		/** The offers. Takes the shard lock to read the field, but the array is replaced rather
+		 * than changed, so the caller can use the result after the lock is released. */
+		BlockOffer[] getOffers() {
+			shard.lock();
+			try {
+				return offers;
+			} finally {
+				shard.unlock();
 			}
 		}
 		
@@ -294,16 +375,18 @@ public class FailureTable {
 		Key key = block.getKey();
 		if(key == null) throw new NullPointerException();
 		FailureTableEntry entry;
-		synchronized(blockOfferListByKey) {
-			blockOfferListByKey.removeKey(key);
-		}
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		shard.lock();
+		try {
+			shard.blockOfferListByKey.removeKey(key);
+			entry = shard.entriesByKey.get(key);
 			if(entry == null) {
 				if(logMINOR) Logger.minor(this, "Key not found in entriesByKey");
 				return; // Nobody cares
 			}
-			entriesByKey.removeKey(key);
+			shard.entriesByKey.removeKey(key);
+		} finally {
+			shard.unlock();
 		}
 		if(logMINOR) Logger.minor(this, "Offering key");
 		if(!node.enableULPRDataPropagation) return;
@@ -325,13 +408,15 @@ public class FailureTable {
 		if(!node.enableULPRDataPropagation) return;
 		if(logMINOR)
 			Logger.minor(this, "Offered key "+key+" by peer "+peer);
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) {
+		Shard shard = shard(key);
+		shard.lock();
+		try {
+			if(shard.lookup(key) == null) {
 				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
 				return; // we haven't asked for it
 			}
+		} finally {
+			shard.unlock();
 		}
 		offerExecutor.execute(new Runnable() {
 			@Override
@@ -361,12 +446,16 @@ public class FailureTable {
 		// Re-check after potentially long disk I/O.
 		FailureTableEntry entry;
 		long now = System.currentTimeMillis();
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		shard.lock();
+		try {
+			entry = shard.entriesByKey.get(key);
 			if(entry == null) {
 				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
 				return; // we haven't asked for it
 			}
+		} finally {
+			shard.unlock();
 		}
 
 		/*
@@ -402,34 +491,31 @@ public class FailureTable {
 		boolean heAsked = entry.askedByPeer(peer, now);
 		if(!(weAsked || heAsked)) {
 			if(logMINOR) Logger.minor(this, "Not propagating key: weAsked="+weAsked+" heAsked="+heAsked);
-			if(entry.isEmpty(now)) {
-				synchronized(this) {
-					entriesByKey.removeKey(key);
-				}
-			}
+			if(entry.isEmpty(now))
+				removeEntry(shard, entry);
 			return;
 		}
-		if(entry.isEmpty(now)) {
-			synchronized(this) {
-				entriesByKey.removeKey(key);
-			}
-		}
+		if(entry.isEmpty(now))
+			removeEntry(shard, entry);
 		
 		// Valid offer.
 		
 		// Add to offers list
 		
-		synchronized(blockOfferListByKey) {			
+		BlockOffer offer = new BlockOffer(peer, now, authenticator, peer.getBootID());
+		shard.lock();
+		try {
 			if(logMINOR) Logger.minor(this, "Valid offer");
-			BlockOfferList bl = blockOfferListByKey.get(key);
-			BlockOffer offer = new BlockOffer(peer, now, authenticator, peer.getBootID());
+			BlockOfferList bl = shard.blockOfferListByKey.get(key);
 			if(bl == null) {
-				bl = new BlockOfferList(entry, offer);
+				bl = new BlockOfferList(entry, offer, shard);
 			} else {
 				bl.addOffer(offer);
 			}
-			blockOfferListByKey.push(key, bl);
-			trimOffersList(now);
+			shard.blockOfferListByKey.push(key, bl);
+			trimOffersList(shard, now);
+		} finally {
+			shard.unlock();
 		}
 		
 		// Accept the offer.
@@ -443,17 +529,28 @@ public class FailureTable {
 		node.clientCore.queueOfferedKey(key, false);
 	}
 
-	private void trimOffersList(long now) {
-		synchronized(blockOfferListByKey) {
-			while(true) {
-				if(blockOfferListByKey.isEmpty()) return;
-				BlockOfferList bl = blockOfferListByKey.peekValue();
-				if(bl.isEmpty(now) || bl.expires() < now || blockOfferListByKey.size() > MAX_OFFERS) {
-					if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+blockOfferListByKey.size());
-					blockOfferListByKey.popKey();
-				} else {
-					return;
-				}
+	/** Remove an entry if it is still the one for its key. */
+	private void removeEntry(Shard shard, FailureTableEntry entry) {
+		shard.lock();
+		try {
+			if(shard.entriesByKey.get(entry.key) == entry)
+				shard.entriesByKey.removeKey(entry.key);
+		} finally {
+			shard.unlock();
+		}
+	}
+
+	/** Caller must hold the shard lock. */
+	private void trimOffersList(Shard shard, long now) {
+		LRUMap<Key,BlockOfferList> blockOfferListByKey = shard.blockOfferListByKey;
+		while(true) {
+			if(blockOfferListByKey.isEmpty()) return;
+			BlockOfferList bl = blockOfferListByKey.peekValue();
+			if(bl.isEmpty(now) || bl.expires() < now || blockOfferListByKey.size() > MAX_OFFERS_PER_SHARD) {
+				if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+blockOfferListByKey.size());
+				blockOfferListByKey.popKey();
+			} else {
+				return;
 			}
 		}
 	}
@@ -600,7 +697,7 @@ public class FailureTable {
 			recentOffers = new ArrayList<BlockOffer>();
 			expiredOffers = new ArrayList<BlockOffer>();
 			long now = System.currentTimeMillis();
-			for(BlockOffer offer: offerList.offers) {
+			for(BlockOffer offer: offerList.getOffers()) {
 				if(!offer.isExpired(now))
 					recentOffers.add(offer);
 				else
@@ -655,17 +752,25 @@ public class FailureTable {
 	 * @return True if there are any offers, false otherwise.
 	 */
 	public boolean hadAnyOffers(Key key) {
-		synchronized(blockOfferListByKey) {
-			return blockOfferListByKey.get(key) != null;
+		Shard shard = shard(key);
+		shard.lock();
+		try {
+			return shard.blockOfferListByKey.get(key) != null;
+		} finally {
+			shard.unlock();
 		}
 	}
 
 	public OfferList getOffers(Key key) {
 		if(!node.enableULPRDataPropagation) return null;
 		BlockOfferList bl;
-		synchronized(blockOfferListByKey) {
-			bl = blockOfferListByKey.get(key);
+		Shard shard = shard(key);
+		shard.lock();
+		try {
+			bl = shard.blockOfferListByKey.get(key);
 			if(bl == null) return null;
+		} finally {
+			shard.unlock();
 		}
 		return new OfferList(bl);
 	}
@@ -678,8 +783,12 @@ public class FailureTable {
 
 	public TimedOutNodesList getTimedOutNodesList(Key key) {
 		if(!node.enablePerNodeFailureTables) return null;
-		synchronized(this) {
-			return entriesByKey.get(key);
+		Shard shard = shard(key);
+		shard.lock();
+		try {
+			return shard.lookup(key);
+		} finally {
+			shard.unlock();
 		}
 	}
 	
@@ -699,33 +808,51 @@ public class FailureTable {
 		private void realRun() {
 			if(logMINOR) Logger.minor(this, "Starting FailureTable cleanup");
 			long startTime = System.currentTimeMillis();
+			for(Shard shard : shards)
+				cleanup(shard);
+			long endTime = System.currentTimeMillis();
+			if(logMINOR) Logger.minor(this, "Finished FailureTable cleanup took "+(endTime-startTime)+"ms");
+		}
+
+		private void cleanup(Shard shard) {
 			FailureTableEntry[] entries;
-			synchronized(FailureTable.this) {
-				entries = new FailureTableEntry[entriesByKey.size()];
-				entriesByKey.valuesToArray(entries);
+			long now = System.currentTimeMillis();
+			shard.lock();
+			try {
+				shard.trimEntries(now);
+				trimOffersList(shard, now);
+				entries = new FailureTableEntry[shard.entriesByKey.size()];
+				shard.entriesByKey.valuesToArray(entries);
+			} finally {
+				shard.unlock();
 			}
 			for(FailureTableEntry entry: entries) {
 				if(entry.cleanup()) {
-					synchronized(FailureTable.this) {
+					shard.lock();
+					try {
 						synchronized(entry) {
-						if(entry.isEmpty()) {
+						if(entry.isEmpty() && shard.entriesByKey.get(entry.key) == entry) {
 							if(logMINOR) Logger.minor(this, "Removing entry for "+entry.key);
-							entriesByKey.removeKey(entry.key);
+							shard.entriesByKey.removeKey(entry.key);
 						}
 						}
+					} finally {
+						shard.unlock();
 					}
 				}
 			}
-			long endTime = System.currentTimeMillis();
-			if(logMINOR) Logger.minor(this, "Finished FailureTable cleanup took "+(endTime-startTime)+"ms");
 		}
 	}
 
 	public boolean peersWantKey(Key key, PeerNode apartFrom) {
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		shard.lock();
+		try {
+			entry = shard.lookup(key);
 			if(entry == null) return false; // Nobody cares
+		} finally {
+			shard.unlock();
 		}
 		return entry.othersWant(apartFrom);
 	}
@@ -733,10 +860,50 @@ public class FailureTable {
         /** @return The lowest HTL at which any peer has requested this key recently */
 	public short minOfferedHTL(Key key, short htl) {
 		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
+		Shard shard = shard(key);
+		shard.lock();
+		try {
+			entry = shard.lookup(key);
 			if(entry == null) return htl;
+		} finally {
+			shard.unlock();
 		}
 		return entry.minRequestorHTL(htl);
 	}
+
+	/** Totals over all the shards, for the stats page. */
+	public static class FailureTableStats {
+		/** Keys tracked */
+		public int entries;
+		/** Keys we have offers for */
+		public int offers;
+		/** Lookups of entries on behalf of requests and offers */
+		public long lookups;
+		/** Lookups which found an entry */
+		public long hits;
+		/** Times we had to wait for a shard lock */
+		public long contended;
+
+		/** @return The proportion of lookups which found an entry. */
+		public double hitRate() {
+			return lookups == 0 ? 0.0 : ((double) hits) / lookups;
+		}
+	}
+
+	public FailureTableStats getStats() {
+		FailureTableStats stats = new FailureTableStats();
+		for(Shard shard : shards) {
+			shard.lock();
+			try {
+				stats.entries += shard.entriesByKey.size();
+				stats.offers += shard.blockOfferListByKey.size();
+				stats.lookups += shard.lookups;
+				stats.hits += shard.hits;
+				stats.contended += shard.contended;
+			} finally {
+				shard.unlock();
+			}
+		}
+		return stats;
+	}
 }
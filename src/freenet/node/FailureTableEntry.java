@@ -36,6 +36,9 @@ class FailureTableEntry implements TimedOutNodesList {
 	long receivedTime;
 	/** Time we last received a DNF after sending a request for a key */
 	long sentTime;
+	/** Time the FailureTable last pushed this entry to the top of its LRU. Protected by the 
+	 * FailureTable shard lock. */
+	long pushedTime;
 	/** WeakReference's to PeerNodeUnlocked's who have requested the key */
 	WeakReference<? extends PeerNodeUnlocked>[] requestorNodes;
 	/** Times at which they requested it */
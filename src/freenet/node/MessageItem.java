@@ -7,12 +7,15 @@ import freenet.io.comm.AsyncMessageCallback;
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
+import freenet.support.DoublyLinkedListImpl;
 import freenet.support.Logger;
 
 /** A queued byte[], maybe including a Message, and a callback, which may be null.
  * Note that we always create the byte[] on construction, as almost everywhere
- * which uses a MessageItem needs to know its length immediately. */
-public class MessageItem {
+ * which uses a MessageItem needs to know its length immediately. While it is 
+ * queued, it is on one of the PeerMessageQueue's lists, so it can be removed 
+ * without searching and without allocating a list node. */
+public class MessageItem extends DoublyLinkedListImpl.Item<MessageItem> {
 
 	final Message msg;
 	final byte[] buf;
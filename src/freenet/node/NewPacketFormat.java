@@ -6,9 +6,9 @@ package freenet.node;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -22,6 +22,7 @@ import freenet.io.comm.Peer.LocalAddressException;
 import freenet.io.xfer.PacketThrottle;
 import freenet.node.NewPacketFormatKeyContext.AddedAcks;
 import freenet.support.Fields;
+import freenet.support.IntHashMap;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -73,15 +74,18 @@ public class NewPacketFormat implements PacketFormat {
 	 * LOCKING: Protected by (this). */
 	private final SparseBitmap ackedMessages = new SparseBitmap();
 
-	private final HashMap<Integer, PartiallyReceivedBuffer> receiveBuffers = new HashMap<>();
-	private final HashMap<Integer, SparseBitmap> receiveMaps = new HashMap<>();
-	/** The first message id that hasn't been fully received */
+	/** Partially received messages by message ID.
+	 * LOCKING: Protected by receiveLock. */
+	private final IntHashMap<PartiallyReceivedBuffer> receiveBuffers = new IntHashMap<>();
+	/** The first message id that hasn't been fully received
+	 * LOCKING: Protected by receiveLock. */
 	private int messageWindowPtrReceived;
+	/** LOCKING: Protected by receiveLock. */
 	private final SparseBitmap receivedMessages= new SparseBitmap();
 
 	/** How much of our receive buffer have we used? Equal to how much is used of the
 	 * sender's send buffer. The receive buffer is actually implemented in receiveBuffers.
-	 * LOCKING: Protected by receiveBufferSizeLock. */
+	 * LOCKING: Protected by receiveLock. */
 	private int receiveBufferUsed = 0;
 	/** How much of the other side's buffer have we used? Or alternatively, how much space
 	 * have we used in our send buffer, namely startedByPrio? 
@@ -92,11 +96,14 @@ public class NewPacketFormat implements PacketFormat {
 	 * Justification: The outgoing buffer and the buffer usage should be protected by 
 	 * the same lock, for consistency. The buffer usage and the connection status must
 	 * be protected by the same lock, so we don't send packets when we are disconnected 
-	 * and get race conditions in onDisconnect(). The incoming buffer estimate could be
-	 * separated in theory. */
+	 * and get race conditions in onDisconnect(). The incoming buffer usage is protected by
+	 * receiveLock. */
 	private final Object sendBufferLock = new Object();
-	/** Lock protecting the size of the receive buffer. */
-	private final Object receiveBufferSizeLock = new Object();
+	/** Lock protecting the receive side: the partially received messages, the receive window,
+	 * the receive buffer usage, and the highest sequence number received on each key. Never
+	 * held at the same time as (this) or sendBufferLock, so decrypting and reassembling
+	 * messages does not block sending to the same peer. */
+	private final Object receiveLock = new Object();
 	
 	private long timeLastSentPacket;
 	private long timeLastSentPayload;
@@ -160,7 +167,7 @@ public class NewPacketFormat implements PacketFormat {
 	}
 
 	List<byte[]> handleDecryptedPacket(NPFPacket packet, SessionKey sessionKey) {
-		List<byte[]> fullyReceived = new LinkedList<>();
+		List<byte[]> fullyReceived = null;
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		for(int ack : packet.getAcks()) {
@@ -196,121 +203,130 @@ public class NewPacketFormat implements PacketFormat {
 			for(Message msg : lossyMessages)
 				pn.handleMessage(msg);
 		}
-		for(MessageFragment fragment : packet.getFragments()) {
-			if(messageWindowPtrReceived + MSG_WINDOW_SIZE > NUM_MESSAGE_IDS) {
-				int upperBound = (messageWindowPtrReceived + MSG_WINDOW_SIZE) % NUM_MESSAGE_IDS;
-				if((fragment.messageID > upperBound) && (fragment.messageID < messageWindowPtrReceived)) {
-					if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
-					continue;
-				}
-			} else {
-				int upperBound = messageWindowPtrReceived + MSG_WINDOW_SIZE;
-				if(!((fragment.messageID >= messageWindowPtrReceived) && (fragment.messageID < upperBound))) {
-					if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
-					continue;
+		List<MessageFragment> fragments = packet.getFragments();
+		boolean receiveBufferHalfFull;
+		synchronized(receiveLock) {
+			for(MessageFragment fragment : fragments) {
+				byte[] completed = handleFragment(fragment);
+				if(completed == REJECTED) {
+					dontAck = true;
+				} else if(completed != null) {
+					if(fullyReceived == null)
+						fullyReceived = new ArrayList<>(fragments.size());
+					fullyReceived.add(completed);
 				}
 			}
-			synchronized(receivedMessages) {
-				if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
+			receiveBufferHalfFull = receiveBufferUsed > MAX_RECEIVE_BUFFER_SIZE / 2;
+		}
+
+		if(!dontAck) {
+			int seqno = packet.getSequenceNumber();
+			int acksQueued = keyContext.queueAck(seqno);
+			boolean addedAck = acksQueued >= 0;
+			if(acksQueued > MAX_ACKS)
+				wakeUp = true;
+			if(addedAck) {
+				if(receiveBufferHalfFull)
+					wakeUp = true;
+				if(wakeUp)
+					pn.wakeUpSender();
+				else
+					pn.sendTimesChanged();
 			}
+		}
 
-			PartiallyReceivedBuffer recvBuffer = receiveBuffers.get(fragment.messageID);
-			SparseBitmap recvMap = receiveMaps.get(fragment.messageID);
-			if(recvBuffer == null) {
-				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Creating buffer");
 
-				recvBuffer = new PartiallyReceivedBuffer(this);
-				if(fragment.firstFragment) {
-					if(!recvBuffer.setMessageLength(fragment.messageLength)) {
-						dontAck = true;
-						continue;
-					}
-				} else {
-					synchronized(receiveBufferSizeLock) {
-						if((receiveBufferUsed + fragment.fragmentLength) > MAX_RECEIVE_BUFFER_SIZE) {
-							if(logMINOR) Logger.minor(this, "Could not create buffer, would excede max size");
-							dontAck = true;
-							continue;
-						}
-					}
-				}
+		if(fullyReceived == null)
+			return Collections.emptyList();
+		return fullyReceived;
+	}
 
-				recvMap = new SparseBitmap();
-				receiveBuffers.put(fragment.messageID, recvBuffer);
-				receiveMaps.put(fragment.messageID, recvMap);
-			} else {
-				if(fragment.firstFragment) {
-					if(!recvBuffer.setMessageLength(fragment.messageLength)) {
-						dontAck = true;
-						continue;
-					}
-				}
-			}
+	/** Returned by handleFragment() if we could not store the fragment, so must not ack. */
+	private static final byte[] REJECTED = new byte[0];
 
-			if(!recvBuffer.add(fragment.fragmentData, fragment.fragmentOffset)) {
-				dontAck = true;
-				continue;
+	/**
+	 * Add a received fragment to its message.
+	 * LOCKING: Caller must hold receiveLock.
+	 * @return The message if it is now complete, REJECTED if the fragment could not be stored
+	 * and should not be acked, or null.
+	 */
+	private byte[] handleFragment(MessageFragment fragment) {
+		if(messageWindowPtrReceived + MSG_WINDOW_SIZE > NUM_MESSAGE_IDS) {
+			int upperBound = (messageWindowPtrReceived + MSG_WINDOW_SIZE) % NUM_MESSAGE_IDS;
+			if((fragment.messageID > upperBound) && (fragment.messageID < messageWindowPtrReceived)) {
+				if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
+				return null;
 			}
-			if(fragment.fragmentLength == 0) {
-				Logger.warning(this, "Received fragment of length 0");
-				continue;
+		} else {
+			int upperBound = messageWindowPtrReceived + MSG_WINDOW_SIZE;
+			if(!((fragment.messageID >= messageWindowPtrReceived) && (fragment.messageID < upperBound))) {
+				if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
+				return null;
 			}
-			recvMap.add(fragment.fragmentOffset, fragment.fragmentOffset + fragment.fragmentLength - 1);
-			if((recvBuffer.messageLength != -1) && recvMap.contains(0, recvBuffer.messageLength - 1)) {
-				receiveBuffers.remove(fragment.messageID);
-				receiveMaps.remove(fragment.messageID);
-
-				synchronized(receivedMessages) {
-					if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
-					receivedMessages.add(fragment.messageID, fragment.messageID);
-
-					int oldWindow = messageWindowPtrReceived;
-					while(receivedMessages.contains(messageWindowPtrReceived, messageWindowPtrReceived)) {
-						messageWindowPtrReceived++;
-						if(messageWindowPtrReceived == NUM_MESSAGE_IDS) messageWindowPtrReceived = 0;
-					}
+		}
+		if(receivedMessages.contains(fragment.messageID, fragment.messageID)) return null;
 
-					if(messageWindowPtrReceived < oldWindow) {
-						receivedMessages.remove(oldWindow, NUM_MESSAGE_IDS - 1);
-						receivedMessages.remove(0, messageWindowPtrReceived);
-					} else {
-						receivedMessages.remove(oldWindow, messageWindowPtrReceived);
-					}
-				}
+		PartiallyReceivedBuffer recvBuffer = receiveBuffers.get(fragment.messageID);
+		if(recvBuffer == null) {
+			if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Creating buffer");
 
-				synchronized(sendBufferLock) {
-					receiveBufferUsed -= recvBuffer.messageLength;
-					if(logDEBUG) Logger.debug(this, "Removed " + recvBuffer.messageLength + " from buffer. Total is now " + receiveBufferUsed);
+			recvBuffer = new PartiallyReceivedBuffer(this);
+			if(fragment.firstFragment) {
+				if(!recvBuffer.setMessageLength(fragment.messageLength)) {
+					return REJECTED;
 				}
-
-				fullyReceived.add(recvBuffer.buffer);
-				
-				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Completed");
 			} else {
-				if(logDEBUG) Logger.debug(this, "Message id " + fragment.messageID + ": " + recvMap);
+				if((receiveBufferUsed + fragment.fragmentLength) > MAX_RECEIVE_BUFFER_SIZE) {
+					if(logMINOR) Logger.minor(this, "Could not create buffer, would excede max size");
+					return REJECTED;
+				}
 			}
-		}
 
-		if(!dontAck) {
-			int seqno = packet.getSequenceNumber();
-			int acksQueued = keyContext.queueAck(seqno);
-			boolean addedAck = acksQueued >= 0;
-			if(acksQueued > MAX_ACKS)
-				wakeUp = true;
-			if(addedAck) {
-				if(!wakeUp) {
-					synchronized(sendBufferLock) {
-						if(receiveBufferUsed > MAX_RECEIVE_BUFFER_SIZE / 2)
-							wakeUp = true;
-					}
+			receiveBuffers.put(fragment.messageID, recvBuffer);
+		} else {
+			if(fragment.firstFragment) {
+				if(!recvBuffer.setMessageLength(fragment.messageLength)) {
+					return REJECTED;
 				}
-				if(wakeUp)
-					pn.wakeUpSender();
 			}
 		}
 
+		if(!recvBuffer.add(fragment.fragmentData, fragment.fragmentOffset)) {
+			return REJECTED;
+		}
+		if(fragment.fragmentLength == 0) {
+			Logger.warning(this, "Received fragment of length 0");
+			return null;
+		}
+		SparseBitmap recvMap = recvBuffer.received;
+		recvMap.add(fragment.fragmentOffset, fragment.fragmentOffset + fragment.fragmentLength - 1);
+		if((recvBuffer.messageLength != -1) && recvMap.contains(0, recvBuffer.messageLength - 1)) {
+			receiveBuffers.remove(fragment.messageID);
 
-		return fullyReceived;
+			receivedMessages.add(fragment.messageID, fragment.messageID);
+
+			int oldWindow = messageWindowPtrReceived;
+			while(receivedMessages.contains(messageWindowPtrReceived, messageWindowPtrReceived)) {
+				messageWindowPtrReceived++;
+				if(messageWindowPtrReceived == NUM_MESSAGE_IDS) messageWindowPtrReceived = 0;
+			}
+
+			if(messageWindowPtrReceived < oldWindow) {
+				receivedMessages.remove(oldWindow, NUM_MESSAGE_IDS - 1);
+				receivedMessages.remove(0, messageWindowPtrReceived);
+			} else {
+				receivedMessages.remove(oldWindow, messageWindowPtrReceived);
+			}
+
+			receiveBufferUsed -= recvBuffer.bufferSize();
+			if(logDEBUG) Logger.debug(this, "Removed " + recvBuffer.bufferSize() + " from buffer. Total is now " + receiveBufferUsed);
+
+			if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Completed");
+			return recvBuffer.finish();
+		} else {
+			if(logDEBUG) Logger.debug(this, "Message id " + fragment.messageID + ": " + recvMap);
+			return null;
+		}
 	}
 
 	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
@@ -330,7 +346,7 @@ public class NewPacketFormat implements PacketFormat {
 
 		// Move the watchlist if needed
 		int highestReceivedSeqNum;
-		synchronized(this) {
+		synchronized(receiveLock) {
 			highestReceivedSeqNum = keyContext.highestReceivedSeqNum;
 		}
 		// The entry for the highest received sequence number is kept in the middle of the list
@@ -412,7 +428,7 @@ public class NewPacketFormat implements PacketFormat {
 		NPFPacket p = NPFPacket.create(payload, pn);
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
-		synchronized(this) {
+		synchronized(receiveLock) {
 			if(seqNumGreaterThan(sequenceNumber, keyContext.highestReceivedSeqNum, 31)) {
 				keyContext.highestReceivedSeqNum = sequenceNumber;
 			}
@@ -546,7 +562,14 @@ public class NewPacketFormat implements PacketFormat {
 		pn.sentPacket();
 		pn.reportOutgoingBytes(data.length);
 		if(pn.shouldThrottle()) {
-			pn.sentThrottledBytes(data.length);
+			// Count the packet against realtime and bulk in proportion to what it carries.
+			int bulkLength = 0;
+			for(MessageFragment frag : packet.getFragments()) {
+				if(frag.wrapper.getItem().getPriority() == DMT.PRIORITY_BULK_DATA)
+					bulkLength += frag.fragmentLength;
+			}
+			int bulkBytes = (int) ((long) data.length * bulkLength / Math.max(1, packet.getLength()));
+			pn.sentThrottledBytes(data.length - bulkBytes, bulkBytes);
 		}
 		if(packet.getFragments().size() == 0) {
 			pn.onNotificationOnlyPacketSent(data.length);
@@ -768,6 +791,10 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 				}
 			}
 			
+			// Which kinds of data the output bandwidth limit lets us add.
+			boolean canSendRealtime = pn.canSendThrottled(true, maxPacketSize);
+			boolean canSendBulk = pn.canSendThrottled(false, maxPacketSize);
+			
 			fragments:
 				for(int i = 0; i < startedByPrio.size(); i++) {
 
@@ -788,7 +815,7 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 							if(cantSend) break;
 							boolean wasGeneratedPing = false;
 							
-							MessageItem item = messageQueue.grabQueuedMessageItem(i);
+							MessageItem item = messageQueue.grabQueuedMessageItem(i, canSendRealtime, canSendBulk);
 							if(item == null) {
 								if(mustSendKeepalive && packet.noFragments()) {
 									// Create a ping for keepalive purposes.
@@ -1228,19 +1255,29 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 		}
 	}
 
+	/** A message being reassembled from its fragments.
+	 * LOCKING: Protected by the NewPacketFormat's receiveLock. */
 	private static class PartiallyReceivedBuffer {
 		private int messageLength;
+		/** Length of the data we have room for: messageLength if known, otherwise the end of
+		 * the furthest fragment so far. This is what is counted in receiveBufferUsed. */
+		private int length;
+		/** May be bigger than length, if we are still growing it. */
 		private byte[] buffer;
+		/** The ranges of the message we have received */
+		private final SparseBitmap received = new SparseBitmap();
 		private final NewPacketFormat npf;
 
 		private PartiallyReceivedBuffer(NewPacketFormat npf) {
 			messageLength = -1;
-			buffer = new byte[0];
+			buffer = EMPTY;
 			this.npf = npf;
 		}
 
+		private static final byte[] EMPTY = new byte[0];
+
 		private boolean add(byte[] data, int dataOffset) {
-			if(buffer.length < (dataOffset + data.length)) {
+			if(length < (dataOffset + data.length)) {
 				if(!resize(dataOffset + data.length)) return false;
 			}
 
@@ -1255,30 +1292,49 @@ addOldLoop:			for(Map<Integer, MessageWrapper> started : startedByPrio) {
 
 			this.messageLength = messageLength;
 
-			if(buffer.length > messageLength) {
-				Logger.warning(this, "Buffer is larger than set message length! (" + buffer.length + ">" + messageLength + ")");
+			if(length > messageLength) {
+				Logger.warning(this, "Buffer is larger than set message length! (" + length + ">" + messageLength + ")");
 			}
 
 			return resize(messageLength);
 		}
 
-		private boolean resize(int length) {
-			if(logDEBUG) Logger.debug(this, "Resizing from " + buffer.length + " to " + length);
+		private boolean resize(int newLength) {
+			if(logDEBUG) Logger.debug(this, "Resizing from " + length + " to " + newLength);
 
-			synchronized(npf.receiveBufferSizeLock) {
-				if((npf.receiveBufferUsed + (length - buffer.length)) > MAX_RECEIVE_BUFFER_SIZE) {
-					if(logMINOR) Logger.minor(this, "Could not resize buffer, would excede max size");
-					return false;
-				}
-
-				npf.receiveBufferUsed += (length - buffer.length);
-				if(logDEBUG) Logger.debug(this, "Added " + (length - buffer.length) + " to buffer. Total is now " + npf.receiveBufferUsed);
+			if((npf.receiveBufferUsed + (newLength - length)) > MAX_RECEIVE_BUFFER_SIZE) {
+				if(logMINOR) Logger.minor(this, "Could not resize buffer, would excede max size");
+				return false;
 			}
 
-			buffer = Arrays.copyOf(buffer, length);
+			npf.receiveBufferUsed += (newLength - length);
+			if(logDEBUG) Logger.debug(this, "Added " + (newLength - length) + " to buffer. Total is now " + npf.receiveBufferUsed);
+
+			if(messageLength == newLength) {
+				// Length is known, allocate exactly.
+				if(buffer.length != newLength)
+					buffer = Arrays.copyOf(buffer, newLength);
+			} else if(buffer.length < newLength) {
+				// Fragments arriving before the first one: grow geometrically rather than
+				// copying the buffer for every fragment.
+				buffer = Arrays.copyOf(buffer, Math.max(newLength, buffer.length * 2));
+			}
+			length = newLength;
 
 			return true;
 		}
+
+		/** @return The space counted in receiveBufferUsed. */
+		private int bufferSize() {
+			return length;
+		}
+
+		/** @return The completed message. */
+		private byte[] finish() {
+			if(buffer.length != messageLength)
+				buffer = Arrays.copyOf(buffer, messageLength);
+			return buffer;
+		}
 	}
 	
 	@Override
@@ -123,10 +123,11 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.PooledExecutor;
 import freenet.support.PrioritizedTicker;
+import freenet.support.QueueingExecutor;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Ticker;
-import freenet.support.TokenBucket;
+import freenet.support.TimerWheelTicker;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -486,6 +487,9 @@ public class Node implements TimeSkewDetectorCallback {
 	private String storeType;
 	private boolean storeUseSlotFilters;
 	private boolean storeSaltHashResizeOnStart;
+	private boolean storeUseMmap;
+	private boolean useQueueingExecutor;
+	private boolean useTimerWheelTicker;
 	
 	/** Minimum total datastore size */
 	static final long MIN_STORE_SIZE = 32 * 1024 * 1024;
@@ -642,11 +646,11 @@ public class Node implements TimeSkewDetectorCallback {
 
 	public final Executor executor;
 	public final PacketSender ps;
-	public final PrioritizedTicker ticker;
+	public final Ticker ticker;
 	final DNSRequester dnsr;
 	final NodeDispatcher dispatcher;
 	public final UptimeEstimator uptime;
-	public final TokenBucket outputThrottle;
+	public final OutputThrottle outputThrottle;
 	public boolean throttleLocalData;
 	private int outputBandwidthLimit;
 	private int inputBandwidthLimit;
@@ -1475,9 +1479,61 @@ public class Node implements TimeSkewDetectorCallback {
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
 		ps = new PacketSender(this);
-		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
+
+		nodeConfig.register("useTimerWheelTicker", false, sortOrder++, true, false, "Node.useTimerWheelTicker", "Node.useTimerWheelTickerLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return useTimerWheelTicker;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					useTimerWheelTicker = val;
+				}
+
+				throw new NodeNeedRestartException("Need to restart to change useTimerWheelTicker");
+			}
+
+		});
+
+		useTimerWheelTicker = nodeConfig.getBoolean("useTimerWheelTicker");
+		if(useTimerWheelTicker)
+			ticker = new TimerWheelTicker(executor, getDarknetPortNumber());
+		else
+			ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
+		else if(executor instanceof QueueingExecutor)
+			((QueueingExecutor)executor).setTicker(ticker);
+
+		// Read by NodeStarter before the node is created.
+		nodeConfig.register("useQueueingExecutor", false, sortOrder++, true, false, "Node.useQueueingExecutor", "Node.useQueueingExecutorLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return useQueueingExecutor;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					useQueueingExecutor = val;
+				}
+
+				throw new NodeNeedRestartException("Need to restart to change useQueueingExecutor");
+			}
+
+		});
+
+		useQueueingExecutor = nodeConfig.getBoolean("useQueueingExecutor");
 
 		Logger.normal(Node.class, "Creating node...");
 
@@ -1540,7 +1596,7 @@ public class Node implements TimeSkewDetectorCallback {
 		// FIXME: make compatible with alternate transports.
 		bucketSize = Math.max(bucketSize, 2048);
 		try {
-		outputThrottle = new TokenBucket(bucketSize, SECONDS.toNanos(1) / obwLimit, obwLimit/2);
+		outputThrottle = new OutputThrottle(bucketSize, SECONDS.toNanos(1) / obwLimit, obwLimit/2);
 		} catch (IllegalArgumentException e) {
 			throw new NodeInitException(NodeInitException.EXIT_BAD_BWLIMIT, e.getMessage());
 		}
@@ -2057,6 +2113,29 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeUseMmap", false, sortOrder++, true, false, "Node.storeUseMmap", "Node.storeUseMmapLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeUseMmap;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeUseMmap = val;
+				}
+
+				throw new NodeNeedRestartException("Need to restart to change storeUseMmap");
+			}
+
+		});
+
+		storeUseMmap = nodeConfig.getBoolean("storeUseMmap");
+
 		this.storeDir = setupProgramDir(installConfig, "storeDir", userDir().file("datastore").getPath(), "Node.storeDirectory", "Node.storeDirectoryLong", nodeConfig);
 		installConfig.finishedInitialization();
 
@@ -3080,7 +3159,8 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
-		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+		        storeUseMmap);
 		cb.setStore(fs);
 		if(cachingFreenetStoreMaxSize > 0)
 			return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker);
@@ -3106,7 +3186,10 @@ public class Node implements TimeSkewDetectorCallback {
 		if(opennet != null)
 			opennet.start();
 		ps.start(nodeStats);
-		ticker.start();
+		if(ticker instanceof TimerWheelTicker)
+			((TimerWheelTicker)ticker).start();
+		else
+			((PrioritizedTicker)ticker).start();
 		scheduleVersionTransition();
 		usm.start(ticker);
 
@@ -3637,6 +3720,12 @@ public class Node implements TimeSkewDetectorCallback {
             return sskClientcache;
         }
 
+	/** @return The tracker for the write cache in front of the datastore, or null if it is
+	 * disabled. */
+	public CachingFreenetStoreTracker getCachingFreenetStoreTracker() {
+		return cachingFreenetStoreTracker;
+	}
+
 	/**
 	 * This method returns all statistics info for our data store stats table
 	 *
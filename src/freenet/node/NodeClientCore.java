@@ -538,6 +538,25 @@ public class NodeClientCore implements Persistable {
 					    }
 
 				    }, false);
+		nodeConfig.register("useTableFECCodec", false, sortOrder++, true, false,
+				    "NodeClientCore.useTableFECCodec",
+				    "NodeClientCore.useTableFECCodecLong",
+				    new BooleanCallback() {
+
+					    @Override
+					    public Boolean get() {
+						    return FECCodec.getUseTableCodec();
+					    }
+
+					    @Override
+					    public void set(Boolean val)
+							    throws InvalidConfigValueException,
+								   NodeNeedRestartException {
+						    FECCodec.setUseTableCodec(val);
+					    }
+
+				    });
+		FECCodec.setUseTableCodec(nodeConfig.getBoolean("useTableFECCodec"));
 		long defaultMemoryLimitedJobMemoryLimit = FECCodec.MIN_MEMORY_ALLOCATION;
 		long overallMemoryLimit = NodeStarter.getMemoryLimitBytes();
 		if (overallMemoryLimit > 512 * 1024 * 1024) {
@@ -21,6 +21,7 @@ import freenet.crypt.ciphers.Rijndael;
 import freenet.io.AddressTracker.Status;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.IncomingPacketFilterImpl;
+import freenet.io.comm.IncomingPacketPipeline;
 import freenet.io.comm.Peer;
 import freenet.io.comm.UdpSocketHandler;
 import freenet.keys.FreenetURI;
@@ -47,6 +48,8 @@ public class NodeCrypto {
 	/** The object which handles our specific UDP port, pulls messages from it, feeds them to the packet mangler for decryption etc */
 	final UdpSocketHandler socket;
 	public FNPPacketMangler packetMangler;
+	/** Decrypts incoming packets on several threads, or null if we decrypt on the socket thread. */
+	private IncomingPacketPipeline pipeline;
 	// FIXME: abstract out address stuff? Possibly to something like NodeReference?
 	final int portNumber;
 	/** @see PeerNode.identity */
@@ -104,7 +107,7 @@ public class NodeCrypto {
 			for(int i=0;i<200000;i++) {
 				int portNo = 1024 + random.nextInt(65535-1024);
 				try {
-					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector);
+					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector, config.useNioSocket());
 					port = u.getPortNumber();
 					break;
 				} catch (Exception e) {
@@ -118,7 +121,7 @@ public class NodeCrypto {
 				throw new NodeInitException(NodeInitException.EXIT_NO_AVAILABLE_UDP_PORTS, "Could not find an available UDP port number for FNP (none specified)");
 		} else {
 			try {
-				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector, config.useNioSocket());
 			} catch (Exception e) {
 				Logger.error(this, "Caught "+e, e);
 				System.err.println(e);
@@ -263,7 +266,15 @@ public class NodeCrypto {
 
 	public void start() {
 		socket.calculateMaxPacketSize();
-		socket.setLowLevelFilter(new IncomingPacketFilterImpl(packetMangler, node, this));
+		IncomingPacketFilterImpl filter = new IncomingPacketFilterImpl(packetMangler, node, this);
+		int decryptThreads = config.decryptThreads();
+		if(decryptThreads > 0) {
+			pipeline = new IncomingPacketPipeline(filter, decryptThreads, getTitle(portNumber));
+			pipeline.start(node.executor);
+			socket.setLowLevelFilter(pipeline);
+		} else {
+			socket.setLowLevelFilter(filter);
+		}
 		packetMangler.start();
 		socket.start();
 	}
@@ -460,6 +471,14 @@ public class NodeCrypto {
 	public void stop() {
 		config.stopping(this);
 		socket.close();
+		if(pipeline != null)
+			pipeline.stop();
+	}
+
+	/** @return The pipeline decrypting incoming packets, or null if we decrypt them on the
+	 * socket thread. */
+	IncomingPacketPipeline getPipeline() {
+		return pipeline;
 	}
 
 	public PeerNode[] getPeerNodes() {
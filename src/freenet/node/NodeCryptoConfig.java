@@ -53,6 +53,12 @@ public class NodeCryptoConfig {
 	
 	/** If false we won't make any effort do disguise the length of packets */
 	private boolean paddDataPackets;
+
+	/** Use a non-blocking NIO channel for the UDP socket? */
+	private boolean useNioSocket;
+
+	/** Number of threads to decrypt incoming packets on, or 0 to use the socket thread. */
+	private int decryptThreads;
 	
 	NodeCryptoConfig(SubConfig config, int sortOrder, boolean isOpennet, SecurityLevels securityLevels) throws NodeInitException {
 		config.register("listenPort", -1 /* means random */, sortOrder++, true, true,
@@ -240,6 +246,46 @@ public class NodeCryptoConfig {
 		});
 		
 		paddDataPackets = config.getBoolean("paddDataPackets");
+
+		config.register("useNioSocket", false, sortOrder++, true, false, "Node.useNioSocket", "Node.useNioSocketLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return useNioSocket;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if (val.equals(get()))
+					return;
+				useNioSocket = val;
+				throw new NodeNeedRestartException("useNioSocket");
+			}
+		});
+
+		useNioSocket = config.getBoolean("useNioSocket");
+
+		config.register("decryptThreads", 0, sortOrder++, true, false, "Node.decryptThreads", "Node.decryptThreadsLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				synchronized(NodeCryptoConfig.this) {
+					return decryptThreads;
+				}
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0) throw new InvalidConfigValueException("decryptThreads must not be negative");
+				synchronized(NodeCryptoConfig.this) {
+					if(val == decryptThreads) return;
+					decryptThreads = val;
+				}
+				throw new NodeNeedRestartException("decryptThreads");
+			}
+		}, false);
+
+		decryptThreads = config.getInt("decryptThreads");
 		securityLevels.addNetworkThreatLevelListener(new SecurityLevelListener<NETWORK_THREAT_LEVEL>() {
 
 			@Override
@@ -328,4 +374,12 @@ public class NodeCryptoConfig {
 	public boolean paddDataPackets() {
 		return paddDataPackets;
 	}
+
+	public synchronized boolean useNioSocket() {
+		return useNioSocket;
+	}
+
+	public synchronized int decryptThreads() {
+		return decryptThreads;
+	}
 }
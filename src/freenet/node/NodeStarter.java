@@ -27,6 +27,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.PooledExecutor;
 import freenet.support.ProcessPriority;
+import freenet.support.QueueingExecutor;
 import freenet.support.SimpleFieldSet;
 import freenet.support.io.NativeThread;
 
@@ -137,7 +138,12 @@ public class NodeStarter implements WrapperListener {
 		// First, set up logging. It is global, and may be shared between several nodes.
 		SubConfig loggingConfig = cfg.createSubConfig("logger");
 
-		PooledExecutor executor = new PooledExecutor();
+		// The node registers this option, but we need the executor before we have the node.
+		Executor executor;
+		if(Boolean.parseBoolean(cfg.getRawOption("node", "useQueueingExecutor")))
+			executor = new QueueingExecutor();
+		else
+			executor = new PooledExecutor();
 
 		try {
 			System.out.println("Creating logger...");
@@ -149,7 +155,10 @@ public class NodeStarter implements WrapperListener {
 		}
 
 		System.out.println("Starting executor...");
-		executor.start();
+		if(executor instanceof QueueingExecutor)
+			((QueueingExecutor) executor).start();
+		else
+			((PooledExecutor) executor).start();
 
 		// Prevent timeouts for a while. The DiffieHellman init for example could take some time on a very slow system.
 		WrapperManager.signalStarting(500000);
@@ -7,27 +7,36 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
 
+import freenet.client.async.ClientLayerPersister.CheckpointStats;
+import freenet.client.async.ClientRequestScheduler.KeyIndexStats;
 import freenet.config.InvalidConfigValueException;
 import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.RandomSource;
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
+import freenet.io.comm.IncomingPacketPipeline;
+import freenet.io.comm.IncomingPacketPipeline.StageStats;
 import freenet.io.comm.Message;
 import freenet.io.xfer.BlockTransmitter.BlockTimeCallback;
 import freenet.io.xfer.BulkTransmitter;
 import freenet.l10n.NodeL10n;
+import freenet.node.FailureTable.FailureTableStats;
 import freenet.node.RequestTracker.CountedRequests;
 import freenet.node.RequestTracker.WaitingForSlots;
 import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreLocationStats;
 import freenet.store.StoreCallback;
+import freenet.support.AtomicTokenBucket;
+import freenet.support.FileLoggerHook;
 import freenet.support.HTMLNode;
 import freenet.support.Histogram2;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.PooledExecutor;
+import freenet.support.QueueingExecutor;
 import freenet.support.SimpleFieldSet;
 import freenet.support.StringCounter;
 import freenet.support.TimeUtil;
@@ -1926,6 +1935,22 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return node.executor.waitingThreads();
 	}
 
+	/** Jobs waiting for a thread by priority, or null if the executor doesn't queue jobs. */
+	public int[] getQueuedJobsByPriority() {
+		if(node.executor instanceof QueueingExecutor)
+			return ((QueueingExecutor) node.executor).queuedJobs();
+		return null;
+	}
+
+	/** Average time for the executor to start a job in milliseconds, or -1 if unknown. */
+	public double getAverageJobDelay() {
+		if(node.executor instanceof QueueingExecutor)
+			return ((QueueingExecutor) node.executor).getAverageJobDelay();
+		if(node.executor instanceof PooledExecutor)
+			return ((PooledExecutor) node.executor).getAverageJobDelay();
+		return -1;
+	}
+
 	public int getThreadLimit() {
 		return threadLimit;
 	}
@@ -1982,7 +2007,53 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("backedOffPercent", backedOffPercent.currentValue());
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.usm.getUnclaimedFIFOSize());
+		fs.put("threadsWaitingForMessages", node.usm.getWaitingThreadCount());
+		fs.put("packetSenderLoops", node.ps.getLoopIterations());
+		fs.put("packetSenderPeersExamined", node.ps.getPeersExamined());
+		fs.put("packetSenderPacketsSent", node.ps.getPacketsSent());
+		addOutputThrottleStats(fs, "outputThrottle", node.outputThrottle.getTotal());
+		for(boolean opennet : new boolean[] { false, true }) {
+			addOutputThrottleStats(fs, "outputThrottle"+(opennet ? "Opennet" : "Darknet"), 
+					node.outputThrottle.getNetwork(opennet));
+			for(boolean realTime : new boolean[] { false, true })
+				addOutputThrottleStats(fs, "outputThrottle"+OutputThrottle.className(opennet, realTime),
+						node.outputThrottle.getClassBucket(opennet, realTime));
+		}
+		addTransportStats(fs, "darknet", node.darknetCrypto);
+		OpennetManager om = node.getOpennet();
+		if(om != null)
+			addTransportStats(fs, "opennet", om.crypto);
+		FailureTableStats failureTableStats = node.failureTable.getStats();
+		fs.put("failureTableEntries", failureTableStats.entries);
+		fs.put("failureTableOffers", failureTableStats.offers);
+		fs.put("failureTableLookups", failureTableStats.lookups);
+		fs.put("failureTableHitRate", failureTableStats.hitRate());
+		fs.put("failureTableContended", failureTableStats.contended);
+		KeyIndexStats keyIndexStats = node.clientCore.requestStarters.getKeyIndexStats();
+		fs.put("keyListeners", keyIndexStats.listeners);
+		fs.put("keyListenersUnindexed", keyIndexStats.unindexedListeners);
+		fs.put("keyIndexKeys", keyIndexStats.keys);
+		fs.put("keyIndexBytesPerKey", keyIndexStats.bytesPerKey());
+		CheckpointStats checkpointStats = node.clientCore.clientLayerPersister.getCheckpointStats();
+		fs.put("clientCheckpoints", checkpointStats.checkpoints);
+		fs.put("clientCheckpointsFull", checkpointStats.fullCheckpoints);
+		fs.put("clientCheckpointCompactions", checkpointStats.compactions);
+		fs.put("clientCheckpointMillis", checkpointStats.lastMillis);
+		fs.put("clientCheckpointBytes", checkpointStats.lastBytes);
+		fs.put("clientCheckpointRequests", checkpointStats.lastRequests);
+		fs.put("clientCheckpointRequestsWritten", checkpointStats.lastRequestsWritten);
+		fs.put("clientCheckpointRequestsSerialized", checkpointStats.lastRequestsSerialized);
+		fs.put("clientCheckpointIncrements", checkpointStats.pendingIncrements);
+		fs.put("clientStartupFirstRequestMillis", checkpointStats.startupFirstRequestMillis);
+		fs.put("clientStartupRestoredMillis", checkpointStats.startupRestoredMillis);
+		fs.put("clientStartupRequestsResumed", checkpointStats.startupRequestsResumed);
 		fs.put("RAMBucketPoolSize", node.clientCore.tempBucketFactory.getRamUsed());
+		FileLoggerHook logHook = Node.logConfigHandler == null ? null : Node.logConfigHandler.getFileLoggerHook();
+		if(logHook != null) {
+			fs.put("logQueuedRecords", logHook.getQueuedRecords());
+			fs.put("logQueuedBytes", logHook.listBytes());
+			fs.put("logDroppedRecords", logHook.getDroppedRecords());
+		}
 
 		/* gather connection statistics */
 		PeerNodeStatus[] peerNodeStatuses = peers.getPeerNodeStatuses(true);
@@ -2248,6 +2319,37 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return fs;
 	}
 
+	/** Guaranteed rate, total bytes sent and current deficit for one output bandwidth class. */
+	private static void addOutputThrottleStats(SimpleFieldSet fs, String prefix, AtomicTokenBucket bucket) {
+		fs.put(prefix+"Rate", bucket.getRate());
+		fs.put(prefix+"Bytes", bucket.getTaken());
+		fs.put(prefix+"Deficit", bucket.getDeficit());
+	}
+
+	/** Packets one transport dropped because a queue was full, on the way out or in. */
+	private static void addTransportStats(SimpleFieldSet fs, String prefix, NodeCrypto crypto) {
+		fs.put(prefix+"SendDropped", crypto.socket.getDroppedSendPackets());
+		addReceivePipelineStats(fs, prefix, crypto);
+	}
+
+	/** Queue depth and per stage latency of the decrypt threads for one transport, if it has
+	 * them. Times are averages in microseconds. */
+	private static void addReceivePipelineStats(SimpleFieldSet fs, String prefix, NodeCrypto crypto) {
+		IncomingPacketPipeline pipeline = crypto.getPipeline();
+		if(pipeline == null) return;
+		StageStats decrypt = pipeline.getDecryptStats();
+		StageStats auth = pipeline.getAuthStats();
+		fs.put(prefix+"DecryptQueued", decrypt.queued);
+		fs.put(prefix+"DecryptPackets", decrypt.packets);
+		fs.put(prefix+"DecryptQueueTime", decrypt.averageQueueMicros());
+		fs.put(prefix+"DecryptTime", decrypt.averageProcessMicros());
+		fs.put(prefix+"AuthQueued", auth.queued);
+		fs.put(prefix+"AuthPackets", auth.packets);
+		fs.put(prefix+"AuthQueueTime", auth.averageQueueMicros());
+		fs.put(prefix+"AuthTime", auth.averageProcessMicros());
+		fs.put(prefix+"ReceiveDropped", pipeline.getDroppedPackets());
+	}
+
 	public boolean isTestnetEnabled() {
 		return Node.isTestnetEnabled();
 	}
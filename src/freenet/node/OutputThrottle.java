@@ -0,0 +1,143 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import freenet.support.AtomicTokenBucket;
+
+/**
+ * Limits the node's throttled output bandwidth. There is one bucket for the whole output limit,
+ * split between darknet and opennet peers, each of which is split again between realtime and
+ * bulk data. Each class is guaranteed its share of its parent's rate, and can borrow whatever
+ * its parent has spare. So bulk transfers can use all the bandwidth when nothing else wants it,
+ * but can't starve realtime requests (or vice versa), and opennet can't starve darknet.
+ *
+ * Nothing here takes a lock: see AtomicTokenBucket.
+ */
+public class OutputThrottle {
+
+	/** Share of the output limit guaranteed to darknet peers. Opennet gets the rest. */
+	static final double DARKNET_SHARE = 0.5;
+	/** Share of each network's bandwidth guaranteed to realtime data. Bulk gets the rest. */
+	static final double REALTIME_SHARE = 0.5;
+	/** Every bucket must have room for at least one packet. */
+	static final int MIN_BUCKET_SIZE = 2048;
+
+	private final AtomicTokenBucket total;
+	/** Darknet, opennet. */
+	private final AtomicTokenBucket[] networks;
+	/** Indexed by index(opennet, realTime). */
+	private final AtomicTokenBucket[] classes;
+
+	/**
+	 * @param max The maximum size of the bucket for the whole limit, in bytes.
+	 * @param nanosPerTick The number of nanoseconds between adding each byte.
+	 * @param initialValue The number of bytes we can send immediately.
+	 */
+	public OutputThrottle(long max, long nanosPerTick, long initialValue) {
+		total = new AtomicTokenBucket(max, nanosPerTick, initialValue);
+		networks = new AtomicTokenBucket[2];
+		classes = new AtomicTokenBucket[4];
+		for(int i=0;i<2;i++) {
+			boolean opennet = i == 1;
+			networks[i] = child(total, networkShare(opennet), initialValue);
+			for(boolean realTime : new boolean[] { false, true })
+				classes[index(opennet, realTime)] = child(networks[i], classShare(realTime), initialValue);
+		}
+	}
+
+	private static double networkShare(boolean opennet) {
+		return opennet ? 1.0 - DARKNET_SHARE : DARKNET_SHARE;
+	}
+
+	private static double classShare(boolean realTime) {
+		return realTime ? REALTIME_SHARE : 1.0 - REALTIME_SHARE;
+	}
+
+	private static AtomicTokenBucket child(AtomicTokenBucket parent, double share, long initialValue) {
+		return new AtomicTokenBucket(parent, childMax(parent, share), childNanosPerTick(parent, share),
+				(long) (initialValue * share));
+	}
+
+	private static long childMax(AtomicTokenBucket parent, double share) {
+		return Math.max(MIN_BUCKET_SIZE, (long) (parent.getMax() * share));
+	}
+
+	private static long childNanosPerTick(AtomicTokenBucket parent, double share) {
+		return Math.max(1, (long) (parent.getNanosPerTick() / share));
+	}
+
+	private static int index(boolean opennet, boolean realTime) {
+		return (opennet ? 2 : 0) + (realTime ? 1 : 0);
+	}
+
+	/** @return The name of a traffic class, e.g. DarknetRealtime, for stats. */
+	public static String className(boolean opennet, boolean realTime) {
+		return (opennet ? "Opennet" : "Darknet") + (realTime ? "Realtime" : "Bulk");
+	}
+
+	/** The bucket for the whole output limit. */
+	public AtomicTokenBucket getTotal() {
+		return total;
+	}
+
+	public AtomicTokenBucket getNetwork(boolean opennet) {
+		return networks[opennet ? 1 : 0];
+	}
+
+	public AtomicTokenBucket getClassBucket(boolean opennet, boolean realTime) {
+		return classes[index(opennet, realTime)];
+	}
+
+	/** Get the number of bytes we can send now, ignoring the classes. */
+	public long getCount() {
+		return total.getCount();
+	}
+
+	public long getNanosPerTick() {
+		return total.getNanosPerTick();
+	}
+
+	/** Count bytes which don't belong to any class against the whole limit, e.g. handshakes. */
+	public void forceGrab(long bytes) {
+		total.forceGrab(bytes);
+	}
+
+	/** Count bytes sent to a peer, against its class and all the buckets above it. */
+	public void forceGrab(boolean opennet, boolean realTime, long bytes) {
+		if(bytes == 0) return;
+		classes[index(opennet, realTime)].forceGrab(bytes);
+	}
+
+	/** Can we send this many bytes of realtime or bulk data to a darknet or opennet peer now? */
+	public boolean canSend(boolean opennet, boolean realTime, int bytes) {
+		return classes[index(opennet, realTime)].canGrab(bytes);
+	}
+
+	/** Can we send this many bytes of either realtime or bulk data to a peer now? */
+	public boolean canSend(boolean opennet, int bytes) {
+		return canSend(opennet, true, bytes) || canSend(opennet, false, bytes);
+	}
+
+	/** Estimate how long until we can send this many bytes of either realtime or bulk data to a
+	 * peer, in nanoseconds. */
+	public long nanosUntilCanSend(boolean opennet, int bytes) {
+		return Math.min(classes[index(opennet, true)].nanosUntilCanGrab(bytes),
+				classes[index(opennet, false)].nanosUntilCanGrab(bytes));
+	}
+
+	/** Change the whole limit, and the classes' shares of it. */
+	public void changeNanosAndBucketSize(long nanosPerTick, long newMax) {
+		total.changeNanosAndBucketSize(nanosPerTick, newMax);
+		for(int i=0;i<2;i++) {
+			boolean opennet = i == 1;
+			double share = networkShare(opennet);
+			networks[i].changeNanosAndBucketSize(childNanosPerTick(total, share), childMax(total, share));
+			for(boolean realTime : new boolean[] { false, true }) {
+				share = classShare(realTime);
+				classes[index(opennet, realTime)].changeNanosAndBucketSize(
+						childNanosPerTick(networks[i], share), childMax(networks[i], share));
+			}
+		}
+	}
+}
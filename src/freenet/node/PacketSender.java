@@ -9,6 +9,9 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 
 import freenet.l10n.NodeL10n;
 import freenet.support.LogThresholdCallback;
@@ -23,10 +26,12 @@ import freenet.support.math.MersenneTwister;
  *
  *         Thread that sends a packet whenever: - A packet needs to be resent immediately -
  *         Acknowledgments or resend requests need to be sent urgently.
+ *
+ * We keep the time at which each peer next needs attention in a heap, and on each loop only
+ * look at the peers which are due, or which have told us something has changed (wakeUp(PeerNode)
+ * and peerChanged(PeerNode)). Every peer is still looked at at least every MAX_COALESCING_DELAY,
+ * for disconnection checks etc.
  */
-// j16sdiz (22-Dec-2008):
-// FIXME this is the only class implements Ticker, everbody is using this as
-// a generic task scheduler. Either rename this class, or create another tricker for non-Packet tasks
 public class PacketSender implements Runnable {
 
 	private static volatile boolean logMINOR;
@@ -66,6 +71,48 @@ public class PacketSender implements Runnable {
 	long lastReceivedPacketFromAnyNode;
 	private MersenneTwister localRandom;
 
+	/** The peers list we last saw, so we can tell when it changes */
+	private PeerNode[] lastPeers;
+	/** Scheduling state for each peer. Only accessed by the PacketSender thread. */
+	private final IdentityHashMap<PeerNode, PeerState> peerStates = new IdentityHashMap<PeerNode, PeerState>();
+	/** Peers by the time at which we next need to look at them */
+	private final DeadlineHeap deadlines = new DeadlineHeap();
+	/** Peers which have changed since the last loop. LOCKING: Synchronize on this. */
+	private HashSet<PeerNode> changedPeers = new HashSet<PeerNode>();
+	/** Swapped with changedPeers on each loop, to avoid allocating. */
+	private HashSet<PeerNode> examineChanged = new HashSet<PeerNode>();
+	private final ArrayList<PeerState> toExamine = new ArrayList<PeerState>();
+
+	// Per-loop results of looking at the peers. Only used by the PacketSender thread.
+
+	/** The earliest time at which a peer needs to send a packet, which is before
+	 * now. Throttled if canSendThrottled, otherwise not throttled.
+	 * Note: we only use it to sort the full-packed peers by priority, don't rely on it when setting nextActionTime!*/
+	private long lowestUrgentSendTime;
+	/** The peer(s) which lowestUrgentSendTime is referring to */
+	private final ArrayList<PeerNode> urgentSendPeers = new ArrayList<PeerNode>();
+	/** The earliest time at which a peer needs to send a packet, which is after
+	 * now, where there is a full packet's worth of data to send.
+	 * Throttled if canSendThrottled, otherwise not throttled. */
+	private long lowestFullPacketSendTime;
+	/** The peer(s) which lowestFullPacketSendTime is referring to */
+	private final ArrayList<PeerNode> urgentFullPacketPeers = new ArrayList<PeerNode>();
+	/** All the peers with a full packet queued which is not yet urgent. */
+	private final ArrayList<PeerNode> fullPacketPeers = new ArrayList<PeerNode>();
+	/** The earliest time at which a peer needs to send an ack, before now. */
+	private long lowestAckTime;
+	/** The peer(s) which lowestAckTime is referring to */
+	private final ArrayList<PeerNode> ackPeers = new ArrayList<PeerNode>();
+	/** The earliest time at which a peer needs to handshake. */
+	private long lowestHandshakeTime;
+	/** The peer(s) which lowestHandshakeTime is referring to */
+	private final ArrayList<PeerNode> handshakePeers = new ArrayList<PeerNode>();
+
+	// Statistics. Only written by the PacketSender thread.
+	private volatile long loopIterations;
+	private volatile long peersExamined;
+	private volatile long packetsSent;
+
 	PacketSender(Node node) {
 		this.node = node;
 		myThread = new NativeThread(this, "PacketSender thread for " + node.getDarknetPortNumber(), NativeThread.MAX_PRIORITY, false);
@@ -120,7 +167,6 @@ public class PacketSender implements Runnable {
 		 * ran out of bandwidth. We start the loop from here next time.
 		 */
 		while(true) {
-			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
 			try {
 				realRun();
 			} catch(Throwable t) {
@@ -144,182 +190,74 @@ public class PacketSender implements Runnable {
 	 * It does not attempt to ensure fairness, it attempts to minimise latency. Fairness is best
 	 * dealt with at a higher level e.g. requests, although some transfers are not part of requests,
 	 * e.g. bulk f2f transfers, so we may need to reconsider this eventually...
+	 * 
+	 * Only peers which are due or have changed are considered. A peer which is not due cannot
+	 * have anything overdue, so this gives the same choice as looking at every peer.
 	 */
 	private void realRun() {
 		long now = System.currentTimeMillis();
-                PeerManager pm;
-		PeerNode[] nodes;
+		loopIterations++;
 
-        pm = node.peers;
-        nodes = pm.myPeers();
+		PeerNode[] nodes = node.peers.myPeers();
+		if(nodes != lastPeers)
+			updatePeers(nodes, now);
 
 		long nextActionTime = Long.MAX_VALUE;
 		long oldTempNow = now;
 
-		final boolean canSendThrottled;
-
+		// Darknet and opennet peers each have a share of the output bandwidth limit.
 		int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
-		long count = node.outputThrottle.getCount();
-		if(count > MAX_PACKET_SIZE)
-			canSendThrottled = true;
-		else {
-			long canSendAt = node.outputThrottle.getNanosPerTick() * (MAX_PACKET_SIZE - count);
-			canSendAt = MILLISECONDS.convert(canSendAt + MILLISECONDS.toNanos(1) - 1, NANOSECONDS);
-			if(logMINOR)
-				Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
-			nextActionTime = Math.min(nextActionTime, now + canSendAt);
-			canSendThrottled = false;
+		/** When we will next be able to send throttled packets */
+		final long throttledSendTimeDarknet = throttledSendTime(false, MAX_PACKET_SIZE, now);
+		final long throttledSendTimeOpennet = throttledSendTime(true, MAX_PACKET_SIZE, now);
+		final boolean canSendThrottledDarknet = throttledSendTimeDarknet <= now;
+		final boolean canSendThrottledOpennet = throttledSendTimeOpennet <= now;
+		if(!canSendThrottledDarknet)
+			nextActionTime = Math.min(nextActionTime, throttledSendTimeDarknet);
+		if(!canSendThrottledOpennet)
+			nextActionTime = Math.min(nextActionTime, throttledSendTimeOpennet);
+
+		lowestUrgentSendTime = Long.MAX_VALUE;
+		urgentSendPeers.clear();
+		lowestFullPacketSendTime = Long.MAX_VALUE;
+		urgentFullPacketPeers.clear();
+		fullPacketPeers.clear();
+		lowestAckTime = Long.MAX_VALUE;
+		ackPeers.clear();
+		lowestHandshakeTime = Long.MAX_VALUE;
+		handshakePeers.clear();
+
+		HashSet<PeerNode> changed;
+		synchronized(this) {
+			changed = changedPeers;
+			changedPeers = examineChanged;
 		}
-		
-		/** The earliest time at which a peer needs to send a packet, which is before
-		 * now. Throttled if canSendThrottled, otherwise not throttled. 
-		 * Note: we only use it to sort the full-packed peers by priority, don't rely on it when setting nextActionTime!*/
-		long lowestUrgentSendTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestUrgentSendTime is referring to */
-		ArrayList<PeerNode> urgentSendPeers = null;
-		/** The earliest time at which a peer needs to send a packet, which is after
-		 * now, where there is a full packet's worth of data to send. 
-		 * Throttled if canSendThrottled, otherwise not throttled. */
-		long lowestFullPacketSendTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestFullPacketSendTime is referring to */
-		ArrayList<PeerNode> urgentFullPacketPeers = null;
-		/** The earliest time at which a peer needs to send an ack, before now. */
-		long lowestAckTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestAckTime is referring to */
-		ArrayList<PeerNode> ackPeers = null;
-		/** The earliest time at which a peer needs to handshake. */
-		long lowestHandshakeTime = Long.MAX_VALUE;
-		/** The peer(s) which lowestHandshakeTime is referring to */
-		ArrayList<PeerNode> handshakePeers = null;
-
-		for(PeerNode pn: nodes) {
-			now = System.currentTimeMillis();
-			
-			// Basic peer maintenance.
-			
-			// For purposes of detecting not having received anything, which indicates a 
-			// serious connectivity problem, we want to look for *any* packets received, 
-			// including auth packets.
-			lastReceivedPacketFromAnyNode =
-				Math.max(pn.lastReceivedPacketTime(), lastReceivedPacketFromAnyNode);
-			pn.maybeOnConnect();
-			if(pn.shouldDisconnectAndRemoveNow() && !pn.isDisconnecting()) {
-				// Might as well do it properly.
-				node.peers.disconnectAndRemove(pn, true, true, false);
-			}
-
-			if(pn.isConnected()) {
-				
-				boolean shouldThrottle = pn.shouldThrottle();
-				
-				pn.checkForLostPackets();
-
-				// Is the node dead?
-				// It might be disconnected in terms of FNP but trying to reconnect via JFK's, so we need to use the time when we last got a *data* packet.
-				if(now - pn.lastReceivedDataPacketTime() > pn.maxTimeBetweenReceivedPackets()) {
-					Logger.normal(this, "Disconnecting from " + pn + " - haven't received packets recently");
-					// Hopefully this is a transient network glitch, but stuff will have already started to timeout, so lets dump the pending messages.
-					pn.disconnected(true, false);
-					continue;
-				} else if(now - pn.lastReceivedAckTime() > pn.maxTimeBetweenReceivedAcks() && !pn.isDisconnecting()) {
-					// FIXME better to disconnect immediately??? Or check canSend()???
-					Logger.normal(this, "Disconnecting from " + pn + " - haven't received acks recently");
-					// Do it properly.
-					// There appears to be connectivity from them to us but not from us to them.
-					// So it is helpful for them to know that we are disconnecting.
-					node.peers.disconnect(pn, true, true, false, true, false, SECONDS.toMillis(5));
-					continue;
-				} else if(pn.isRoutable() && pn.noLongerRoutable()) {
-					/*
-					 NOTE: Whereas isRoutable() && noLongerRoutable() are generally mutually exclusive, this
-					 code will only execute because of the scheduled-runnable in start() which executes
-					 updateVersionRoutablity() on all our peers. We don't disconnect the peer, but mark it
-					 as being incompatible.
-					 */
-					pn.invalidate(now);
-					Logger.normal(this, "shouldDisconnectNow has returned true : marking the peer as incompatible: "+pn);
-					continue;
-				}
-
-				// The peer is connected.
-				
-				if(canSendThrottled || !shouldThrottle) {
-					// We can send to this peer.
-					long sendTime = pn.getNextUrgentTime(now);
-					if(sendTime != Long.MAX_VALUE) {
-						if(sendTime <= now) {
-							// Message is urgent.
-							if(sendTime < lowestUrgentSendTime) {
-								lowestUrgentSendTime = sendTime;
-								if(urgentSendPeers != null)
-									urgentSendPeers.clear();
-								else
-									urgentSendPeers = new ArrayList<PeerNode>();
-							}
-							if(sendTime <= lowestUrgentSendTime)
-								urgentSendPeers.add(pn);
-						} else if(pn.fullPacketQueued()) {
-							if(sendTime < lowestFullPacketSendTime) {
-								lowestFullPacketSendTime = sendTime;
-								if(urgentFullPacketPeers != null)
-									urgentFullPacketPeers.clear();
-								else
-									urgentFullPacketPeers = new ArrayList<PeerNode>();
-							}
-							if(sendTime <= lowestFullPacketSendTime)
-								urgentFullPacketPeers.add(pn);
-						}
-					}
-				} else if(shouldThrottle && !canSendThrottled) {
-					long ackTime = pn.timeSendAcks();
-					if(ackTime != Long.MAX_VALUE) {
-						if(ackTime <= now) {
-							if(ackTime < lowestAckTime) {
-								lowestAckTime = ackTime;
-								if(ackPeers != null)
-									ackPeers.clear();
-								else
-									ackPeers = new ArrayList<PeerNode>();
-							}
-							if(ackTime <= lowestAckTime)
-								ackPeers.add(pn);
-						}
-					}
-				}
-				
-				if(canSendThrottled || !shouldThrottle) {
-					long urgentTime = pn.getNextUrgentTime(now);
-					// Should spam the logs, unless there is a deadlock
-					if(urgentTime < Long.MAX_VALUE && logMINOR)
-						Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn);
-					nextActionTime = Math.min(nextActionTime, urgentTime);
-				} else {
-					nextActionTime = Math.min(nextActionTime, pn.timeCheckForLostPackets());
-				}
-			} else
-				// Not connected
+		examineChanged = changed;
+		for(PeerNode pn : changed) {
+			PeerState state = peerStates.get(pn);
+			if(state != null)
+				deadlines.update(state, now);
+		}
+		changed.clear();
+		while(!deadlines.isEmpty() && deadlines.peek().deadline <= now)
+			toExamine.add(deadlines.poll());
+		peersExamined += toExamine.size();
 
-				if(pn.noContactDetails())
-					pn.startARKFetcher();
+		for(PeerState state : toExamine) {
+			PeerNode pn = state.pn;
+			now = System.currentTimeMillis();
+			boolean opennet = pn.isOpennet();
+			long deadline = examinePeer(pn, now, opennet ? canSendThrottledOpennet : canSendThrottledDarknet,
+					opennet ? throttledSendTimeOpennet : throttledSendTimeDarknet);
+			// Check it again within MAX_COALESCING_DELAY anyway, for the maintenance.
+			deadlines.update(state, Math.min(deadline, now + MAX_COALESCING_DELAY));
 
-			long handshakeTime = pn.timeSendHandshake(now);
-			if(handshakeTime != Long.MAX_VALUE) {
-				if(handshakeTime < lowestHandshakeTime) {
-					lowestHandshakeTime = handshakeTime;
-					if(handshakePeers != null)
-						handshakePeers.clear();
-					else
-						handshakePeers = new ArrayList<PeerNode>();
-				}
-				if(handshakeTime <= lowestHandshakeTime)
-					handshakePeers.add(pn);
-			}
-			
 			long tempNow = System.currentTimeMillis();
 			if((tempNow - oldTempNow) > SECONDS.toMillis(5))
 				Logger.error(this, "tempNow is more than 5 seconds past oldTempNow (" + (tempNow - oldTempNow) + ") in PacketSender working with " + pn.userToString());
 			oldTempNow = tempNow;
 		}
+		toExamine.clear();
 		
 		// We may send a packet, send an ack-only packet, or send a handshake.
 		
@@ -353,6 +291,7 @@ public class PacketSender implements Runnable {
 				if(toSendPacket.maybeSendPacket(now, false)) {
 					// Round-robin over the loop to update nextActionTime appropriately
 					nextActionTime = now;
+					sentPacket(toSendPacket, now);
 				}
 			} catch (BlockedTooLongException e) {
 				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendPacket+" : "+("(new packet format)")+" (version "+toSendPacket.getVersionNumber()+") - DISCONNECTING!");
@@ -363,6 +302,7 @@ public class PacketSender implements Runnable {
 				if(toSendAckOnly.maybeSendPacket(now, true)) {
                     // Round-robin over the loop to update nextActionTime appropriately
                     nextActionTime = now;
+                    sentPacket(toSendAckOnly, now);
 				}
 			} catch (BlockedTooLongException e) {
 				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendAckOnly+" : "+("(new packet format)")+" (version "+toSendAckOnly.getVersionNumber()+") - DISCONNECTING!");
@@ -392,6 +332,9 @@ public class PacketSender implements Runnable {
 			long afterHandshakeTime = System.currentTimeMillis();
 			if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
 				Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + toSendHandshake.userToString());
+			PeerState state = peerStates.get(toSendHandshake);
+			if(state != null)
+				deadlines.update(state, now);
 		}
 		
 		// All of these take into account whether the data can be sent already.
@@ -400,9 +343,8 @@ public class PacketSender implements Runnable {
 		nextActionTime = Math.min(nextActionTime, lowestFullPacketSendTime);
 		nextActionTime = Math.min(nextActionTime, lowestAckTime);
 		nextActionTime = Math.min(nextActionTime, lowestHandshakeTime);
-
-		// FIXME: If we send something we will have to go around the loop again.
-		// OPTIMISATION: We could track the second best, and check how many are in the array.
+		if(!deadlines.isEmpty())
+			nextActionTime = Math.min(nextActionTime, deadlines.peek().deadline);
 		
 		/* Attempt to connect to old-opennet-peers.
 		 * Constantly send handshake packets, in order to get through a NAT.
@@ -457,6 +399,7 @@ public class PacketSender implements Runnable {
 			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
 				Logger.error(this, "Have not received any packets from any node in last " + SECONDS.convert(Node.ALARM_TIME, MILLISECONDS) + " seconds");
 				lastReportedNoPackets = now;
+				lastReceivedPacketFromAnyNode = now;
 			}
 
 		if(sleepTime > 0) {
@@ -477,6 +420,169 @@ public class PacketSender implements Runnable {
 		}
 	}
 
+	/** When we will next be able to send a throttled packet to a darknet or opennet peer: now 
+	 * if we can send one already. */
+	private long throttledSendTime(boolean opennet, int maxPacketSize, long now) {
+		long nanos = node.outputThrottle.nanosUntilCanSend(opennet, maxPacketSize);
+		if(nanos == 0) return now;
+		if(nanos == Long.MAX_VALUE) return Long.MAX_VALUE;
+		long canSendAt = MILLISECONDS.convert(nanos + MILLISECONDS.toNanos(1) - 1, NANOSECONDS);
+		if(logMINOR)
+			Logger.minor(this, "Can send throttled packets to "+(opennet ? "opennet" : "darknet")+" peers in "+canSendAt+"ms");
+		return now + canSendAt;
+	}
+
+	/**
+	 * Look at a peer, do any maintenance needed, and add it to the candidates for sending a
+	 * packet if it has anything due.
+	 * @return The time at which we next need to look at the peer.
+	 */
+	private long examinePeer(PeerNode pn, long now, boolean canSendThrottled, long throttledSendTime) {
+		long deadline = Long.MAX_VALUE;
+
+		// Basic peer maintenance.
+
+		// For purposes of detecting not having received anything, which indicates a 
+		// serious connectivity problem, we want to look for *any* packets received, 
+		// including auth packets.
+		lastReceivedPacketFromAnyNode =
+			Math.max(pn.lastReceivedPacketTime(), lastReceivedPacketFromAnyNode);
+		pn.maybeOnConnect();
+		if(pn.shouldDisconnectAndRemoveNow() && !pn.isDisconnecting()) {
+			// Might as well do it properly.
+			node.peers.disconnectAndRemove(pn, true, true, false);
+		}
+
+		if(pn.isConnected()) {
+
+			boolean shouldThrottle = pn.shouldThrottle();
+
+			pn.checkForLostPackets();
+
+			// Is the node dead?
+			// It might be disconnected in terms of FNP but trying to reconnect via JFK's, so we need to use the time when we last got a *data* packet.
+			if(now - pn.lastReceivedDataPacketTime() > pn.maxTimeBetweenReceivedPackets()) {
+				Logger.normal(this, "Disconnecting from " + pn + " - haven't received packets recently");
+				// Hopefully this is a transient network glitch, but stuff will have already started to timeout, so lets dump the pending messages.
+				pn.disconnected(true, false);
+				return deadline;
+			} else if(now - pn.lastReceivedAckTime() > pn.maxTimeBetweenReceivedAcks() && !pn.isDisconnecting()) {
+				// FIXME better to disconnect immediately??? Or check canSend()???
+				Logger.normal(this, "Disconnecting from " + pn + " - haven't received acks recently");
+				// Do it properly.
+				// There appears to be connectivity from them to us but not from us to them.
+				// So it is helpful for them to know that we are disconnecting.
+				node.peers.disconnect(pn, true, true, false, true, false, SECONDS.toMillis(5));
+				return deadline;
+			} else if(pn.isRoutable() && pn.noLongerRoutable()) {
+				/*
+				 NOTE: Whereas isRoutable() && noLongerRoutable() are generally mutually exclusive, this
+				 code will only execute because of the scheduled-runnable in start() which executes
+				 updateVersionRoutablity() on all our peers. We don't disconnect the peer, but mark it
+				 as being incompatible.
+				 */
+				pn.invalidate(now);
+				Logger.normal(this, "shouldDisconnectNow has returned true : marking the peer as incompatible: "+pn);
+				return deadline;
+			}
+
+			// The peer is connected.
+
+			if(canSendThrottled || !shouldThrottle) {
+				// We can send to this peer.
+				long sendTime = pn.getNextUrgentTime(now);
+				if(sendTime != Long.MAX_VALUE) {
+					if(sendTime <= now) {
+						// Message is urgent.
+						if(sendTime < lowestUrgentSendTime) {
+							lowestUrgentSendTime = sendTime;
+							urgentSendPeers.clear();
+						}
+						if(sendTime <= lowestUrgentSendTime)
+							urgentSendPeers.add(pn);
+					} else if(pn.fullPacketQueued()) {
+						fullPacketPeers.add(pn);
+						if(sendTime < lowestFullPacketSendTime) {
+							lowestFullPacketSendTime = sendTime;
+							urgentFullPacketPeers.clear();
+						}
+						if(sendTime <= lowestFullPacketSendTime)
+							urgentFullPacketPeers.add(pn);
+					}
+				}
+				// Should spam the logs, unless there is a deadlock
+				if(sendTime < Long.MAX_VALUE && logMINOR)
+					Logger.minor(this, "Next urgent time: " + sendTime + "(in "+(sendTime - now)+") for " + pn);
+				deadline = Math.min(deadline, sendTime);
+			} else {
+				long ackTime = pn.timeSendAcks();
+				if(ackTime != Long.MAX_VALUE) {
+					if(ackTime <= now) {
+						if(ackTime < lowestAckTime) {
+							lowestAckTime = ackTime;
+							ackPeers.clear();
+						}
+						if(ackTime <= lowestAckTime)
+							ackPeers.add(pn);
+					}
+				}
+				deadline = Math.min(deadline, ackTime);
+				deadline = Math.min(deadline, pn.timeCheckForLostPackets());
+				// It may have data to send once the throttle allows it.
+				deadline = Math.min(deadline, throttledSendTime);
+			}
+		} else
+			// Not connected
+
+			if(pn.noContactDetails())
+				pn.startARKFetcher();
+
+		long handshakeTime = pn.timeSendHandshake(now);
+		if(handshakeTime != Long.MAX_VALUE) {
+			if(handshakeTime < lowestHandshakeTime) {
+				lowestHandshakeTime = handshakeTime;
+				handshakePeers.clear();
+			}
+			if(handshakeTime <= lowestHandshakeTime)
+				handshakePeers.add(pn);
+		}
+		deadline = Math.min(deadline, handshakeTime);
+		return deadline;
+	}
+
+	/** Called when we have sent a packet to a peer. Look at it again straight away, and at the
+	 * other peers with a full packet queued, as the old loop over all peers would. */
+	private void sentPacket(PeerNode pn, long now) {
+		packetsSent++;
+		PeerState state = peerStates.get(pn);
+		if(state != null)
+			deadlines.update(state, now);
+		for(PeerNode full : fullPacketPeers) {
+			state = peerStates.get(full);
+			if(state != null)
+				deadlines.update(state, now);
+		}
+	}
+
+	/** The list of peers has changed. Add any new peers, to be looked at straight away, and
+	 * forget any which have gone. */
+	private void updatePeers(PeerNode[] nodes, long now) {
+		IdentityHashMap<PeerNode, PeerState> old = new IdentityHashMap<PeerNode, PeerState>(peerStates);
+		for(PeerNode pn : nodes) {
+			PeerState state = old.remove(pn);
+			if(state == null) {
+				state = new PeerState(pn);
+				peerStates.put(pn, state);
+				deadlines.update(state, now);
+			}
+		}
+		for(PeerState state : old.values()) {
+			peerStates.remove(state.pn);
+			deadlines.remove(state);
+		}
+		lastPeers = nodes;
+	}
+
 	/** Wake up, and send any queued packets. */
 	void wakeUp() {
 		// Wake up if needed
@@ -485,6 +591,133 @@ public class PacketSender implements Runnable {
 		}
 	}
 
+	/** Wake up, and look at the given peer, e.g. because it has a full packet to send. */
+	void wakeUp(PeerNode pn) {
+		synchronized(this) {
+			changedPeers.add(pn);
+			notifyAll();
+		}
+	}
+
+	/** Look at the given peer on the next loop, without waking up. Called when something has
+	 * been queued which will need sending, but not immediately. */
+	void peerChanged(PeerNode pn) {
+		synchronized(this) {
+			changedPeers.add(pn);
+		}
+	}
+
+	/** Number of times around the send loop so far */
+	public long getLoopIterations() {
+		return loopIterations;
+	}
+
+	/** Number of times we have looked at a peer so far */
+	public long getPeersExamined() {
+		return peersExamined;
+	}
+
+	/** Number of data or ack packets sent from the send loop so far */
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	/** Scheduling state for a peer. Only accessed by the PacketSender thread. */
+	private static final class PeerState {
+		final PeerNode pn;
+		/** The time at which we next need to look at the peer */
+		long deadline;
+		/** Position in the DeadlineHeap, or -1 */
+		int index = -1;
+
+		PeerState(PeerNode pn) {
+			this.pn = pn;
+		}
+	}
+
+	/** Binary heap of PeerState's by deadline. Each PeerState knows its position, so changing a
+	 * deadline is O(log n) and does not allocate. */
+	private static final class DeadlineHeap {
+		private PeerState[] heap = new PeerState[16];
+		private int size;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		PeerState peek() {
+			return heap[0];
+		}
+
+		PeerState poll() {
+			PeerState first = heap[0];
+			remove(first);
+			return first;
+		}
+
+		/** Set the deadline, adding the peer if it is not in the heap. */
+		void update(PeerState state, long deadline) {
+			if(state.index < 0) {
+				if(size == heap.length)
+					heap = Arrays.copyOf(heap, size * 2);
+				state.deadline = deadline;
+				state.index = size;
+				heap[size++] = state;
+				siftUp(state.index);
+			} else if(deadline < state.deadline) {
+				state.deadline = deadline;
+				siftUp(state.index);
+			} else if(deadline > state.deadline) {
+				state.deadline = deadline;
+				siftDown(state.index);
+			}
+		}
+
+		void remove(PeerState state) {
+			int i = state.index;
+			if(i < 0) return;
+			state.index = -1;
+			PeerState last = heap[--size];
+			heap[size] = null;
+			if(i == size) return;
+			heap[i] = last;
+			last.index = i;
+			siftDown(i);
+			siftUp(last.index);
+		}
+
+		private void siftUp(int i) {
+			PeerState state = heap[i];
+			while(i > 0) {
+				int parent = (i - 1) >>> 1;
+				PeerState p = heap[parent];
+				if(p.deadline <= state.deadline) break;
+				heap[i] = p;
+				p.index = i;
+				i = parent;
+			}
+			heap[i] = state;
+			state.index = i;
+		}
+
+		private void siftDown(int i) {
+			PeerState state = heap[i];
+			int half = size >>> 1;
+			while(i < half) {
+				int child = 2 * i + 1;
+				int right = child + 1;
+				if(right < size && heap[right].deadline < heap[child].deadline)
+					child = right;
+				if(state.deadline <= heap[child].deadline) break;
+				heap[i] = heap[child];
+				heap[i].index = i;
+				i = child;
+			}
+			heap[i] = state;
+			state.index = i;
+		}
+	}
+
 	protected String l10n(String key, String[] patterns, String[] values) {
 		return NodeL10n.getBase().getString("PacketSender."+key, patterns, values);
 	}
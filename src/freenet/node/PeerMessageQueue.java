@@ -1,13 +1,11 @@
 package freenet.node;
 
+import java.util.ArrayDeque;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.Map;
 
 import freenet.io.comm.DMT;
-import freenet.support.DoublyLinkedList;
 import freenet.support.DoublyLinkedListImpl;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -17,6 +15,11 @@ import freenet.support.MutableBoolean;
 /**
  * Queue of messages to send to a node. Ordered first by priority then by time.
  * Will soon be round-robin between different transfers/UIDs/clients too.
+ * 
+ * Messages are kept on intrusive lists (MessageItem is a list item), so queueing,
+ * sending and removing a message doesn't allocate or search. The sizes of the queues
+ * are kept as running totals and the next urgent time is cached, so the packet 
+ * sender can ask about them as often as it likes.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 public class PeerMessageQueue {
@@ -39,6 +42,10 @@ public class PeerMessageQueue {
 	private boolean mustSendLoadRT;
 	private boolean mustSendLoadBulk;
 	
+	// Reused by grabQueuedMessageItem(), we're protected by the overall synchronized.
+	private final MutableBoolean addPeerLoadStatsRT = new MutableBoolean();
+	private final MutableBoolean addPeerLoadStatsBulk = new MutableBoolean();
+	
 	private class PrioQueue {
 		
 		// FIXME refactor into PrioQueue and RoundRobinByUIDPrioQueue
@@ -53,28 +60,31 @@ public class PeerMessageQueue {
 		 * to the last send. Block transfers need this - both realtime and bulk. */
 		final boolean roundRobinBetweenUIDs;
 		
+		/** Everything we know about one UID. It is active if it is on nonEmptyItemsWithID
+		 * or emptyItemsWithID, i.e. we are doing round-robin for it. Otherwise it is only in
+		 * itemsByID, to find its non-urgent messages. */
 		private class Items extends DoublyLinkedListImpl.Item<Items> {
-			/** List of messages to send. Stuff to send first is at the beginning. */
-			final LinkedList<MessageItem> items;
+			/** List of urgent messages to send. Stuff to send first is at the beginning. */
+			final DoublyLinkedListImpl<MessageItem> items;
+			/** Messages with this UID which are still in itemsNonUrgent, in the order they
+			 * were queued. Usually very short. Created lazily. */
+			private ArrayDeque<MessageItem> pending;
 			final long id;
 			long timeLastSent;
 			Items(long id, long initialTimeLastSent) {
-				items = new LinkedList<MessageItem>();
+				items = new DoublyLinkedListImpl<MessageItem>();
 				this.id = id;
 				timeLastSent = initialTimeLastSent;
 			}
-			public void addLast(MessageItem item) {
-				items.addLast(item);
-			}
-			public void addFirst(MessageItem item) {
-				items.addFirst(item);
+			boolean isActive() {
+				return getParent() != null;
 			}
-			public boolean remove(MessageItem item) {
-				return items.remove(item);
+			boolean hasPending() {
+				return pending != null && !pending.isEmpty();
 			}
 			@Override
 			public String toString() {
-				return super.toString()+":"+id+":"+items.size()+":"+timeLastSent;
+				return super.toString()+":"+id+":"+items.size()+":"+timeLastSent+":"+(pending == null ? 0 : pending.size());
 			}
 		}
 		
@@ -93,11 +103,31 @@ public class PeerMessageQueue {
 		/** Items which have been sent within the last 10 minutes, so we need to track
 		 * them for good round-robin, but which we don't have anything queued on right now. */
 		DoublyLinkedListImpl<Items> emptyItemsWithID;
+		/** Every UID we are doing round-robin for, or have non-urgent messages for. */
 		Map<Long, Items> itemsByID;
 		/** Non-urgent messages. Same order as in Items, so stuff to send first is at
 		 * the beginning. */
-		LinkedList<MessageItem> itemsNonUrgent;
+		DoublyLinkedListImpl<MessageItem> itemsNonUrgent;
 		// Construct structures lazily, we're protected by the overall synchronized.
+		
+		/** Number of messages queued, urgent or not. */
+		int count;
+		/** Total length of messages queued. */
+		long bytes;
+		/** Number of messages on the lists in nonEmptyItemsWithID. */
+		int urgentCount;
+		/** Total length of messages on the lists in nonEmptyItemsWithID. */
+		long urgentBytes;
+		/** Number of active Items with pending messages, which move to the urgent list when 
+		 * the Items is due. */
+		int activeWithPending;
+		/** Cached result of getNextUrgentTime(), valid if urgentTimeValid. */
+		private long cachedUrgentTime;
+		private boolean urgentTimeValid;
+
+		private void changed() {
+			urgentTimeValid = false;
+		}
 
 		/** Add a new message. For a normal priority level, we just add it to the end of the list.
 		 * It will be sent after the messages that are already queued, and its deadline is effectively
@@ -108,13 +138,17 @@ public class PeerMessageQueue {
 			// Clear the deadline for the item.
 			item.clearDeadline();
 			if(logMINOR) checkOrder();
+			count++;
+			bytes += item.getLength();
+			changed();
 			if(roundRobinBetweenUIDs) {
 				long id = item.getID();
 				if(itemsByID != null) {
 					Items it = itemsByID.get(id);
-					if(it != null && it.timeLastSent > 0 && it.timeLastSent + timeout <= System.currentTimeMillis()) {
-						it.addLast(item);
-						if(it.getParent() == emptyItemsWithID)
+					if(it != null && it.isActive() && it.timeLastSent > 0 && it.timeLastSent + timeout <= System.currentTimeMillis()) {
+						boolean wasEmpty = it.items.isEmpty();
+						addUrgent(it, item, false);
+						if(wasEmpty)
 							moveFromEmptyToNonEmptyBackward(it);
 						else
 							assert(it.getParent() == nonEmptyItemsWithID);
@@ -128,93 +162,161 @@ public class PeerMessageQueue {
 		
 		private void addToNonUrgent(MessageItem item) {
 			if(itemsNonUrgent == null)
-				itemsNonUrgent = new LinkedList<MessageItem>();
-			ListIterator<MessageItem> it = itemsNonUrgent.listIterator(itemsNonUrgent.size());
+				itemsNonUrgent = new DoublyLinkedListImpl<MessageItem>();
 			// MessageItem's can be created out of order, so the timestamps may not be consistent.
 			// CONCURRENCY: This is not a problem in addNonUrgentMessages() because it is always called from one thread.
-			while(true) {
-				if(!it.hasPrevious()) {
-					it.add(item);
-					if(logMINOR) checkOrder();
-					return;
-				}
-				MessageItem prev = it.previous();
-				if(item.submitted >= prev.submitted) {
-					it.next();
-					it.add(item);
-					if(logMINOR) checkOrder();
-					return;
+			MessageItem prev = itemsNonUrgent.tail();
+			while(prev != null && item.submitted < prev.submitted)
+				prev = prev.getPrev();
+			// Inserts at the beginning if prev is null.
+			itemsNonUrgent.insertNext(prev, item);
+			if(roundRobinBetweenUIDs)
+				addPending(item);
+			if(logMINOR) checkOrder();
+		}
+		
+		/** Index a message which has just been added to itemsNonUrgent by its UID. */
+		private void addPending(MessageItem item) {
+			long id = item.getID();
+			if(itemsByID == null)
+				itemsByID = new HashMap<Long, Items>();
+			Items tracker = itemsByID.get(id);
+			if(tracker == null) {
+				// Not active until we move something to the urgent list for it.
+				tracker = new Items(id, -1);
+				itemsByID.put(id, tracker);
+			}
+			if(tracker.pending == null)
+				tracker.pending = new ArrayDeque<MessageItem>();
+			if(tracker.pending.isEmpty() && tracker.isActive())
+				activeWithPending++;
+			tracker.pending.addLast(item);
+		}
+		
+		/** Remove a message from itemsNonUrgent, and from its UID's pending messages. */
+		private void removeNonUrgent(MessageItem item) {
+			itemsNonUrgent.remove(item);
+			if(!roundRobinBetweenUIDs) return;
+			Items tracker = itemsByID.get(item.getID());
+			if(tracker == null || tracker.pending == null || !tracker.pending.remove(item)) {
+				Logger.error(this, "Non-urgent message was not indexed by UID: "+item+" tracker "+tracker);
+				return;
+			}
+			if(tracker.pending.isEmpty()) {
+				if(tracker.isActive())
+					activeWithPending--;
+				else
+					itemsByID.remove(tracker.id);
+			}
+		}
+		
+		private void addUrgent(Items list, MessageItem item, boolean first) {
+			if(first)
+				list.items.unshift(item);
+			else
+				list.items.push(item);
+			urgentCount++;
+			urgentBytes += item.getLength();
+		}
+		
+		private void removeUrgent(Items list, MessageItem item) {
+			list.items.remove(item);
+			urgentCount--;
+			urgentBytes -= item.getLength();
+		}
+		
+		/** Called after adding an inactive Items to one of the lists. */
+		private void activate(Items list) {
+			if(list.hasPending())
+				activeWithPending++;
+		}
+		
+		/** Called after removing an active Items from the lists. We only need to keep it if
+		 * it is indexing non-urgent messages. */
+		private void deactivate(Items list) {
+			if(list.hasPending())
+				activeWithPending--;
+			else {
+				Items old = itemsByID.remove(list.id);
+				if(old == null)
+					Logger.error(this, "List was not in the items by ID tracker: "+list.id);
+				else if(old != list)
+					Logger.error(this, "Different list in the items by ID tracker: "+old+" not "+list+" for "+list.id);
+			}
+		}
+
+		/** Move a non-urgent message to the urgent list for its UID, creating or activating the
+		 * list if necessary. */
+		private void moveToUrgent(MessageItem item) {
+			if(logMINOR) Logger.minor(this, "Moving message to urgent list: "+item);
+			removeNonUrgent(item);
+			long id = item.getID();
+			Items list = itemsByID.get(id);
+			if(list == null) {
+				list = new Items(id, item.submitted);
+				itemsByID.put(id, list);
+				addToNonEmptyForward(list);
+			} else if(!list.isActive()) {
+				list.timeLastSent = item.submitted;
+				addToNonEmptyForward(list);
+				activate(list);
+			} else if(list.items.isEmpty()) {
+				if(list.getParent() == nonEmptyItemsWithID) {
+					Logger.error(this, "Was empty but was in nonEmptyItemsWithID: "+list);
+				} else {
+					assert(list.getParent() == emptyItemsWithID);
+					// It already exists, so it has a valid time.
+					// Which is probably in the past, so use Forward.
+					// Must add it to the list before moving to non-empty because of assertion.
+					moveFromEmptyToNonEmptyForward(list);
 				}
+			} else {
+				assert(list.getParent() == nonEmptyItemsWithID);
 			}
+			addUrgent(list, item, false);
 		}
 
+		/** Move messages which are urgent because of when they were submitted, or because we 
+		 * haven't sent anything for their UID recently, to the urgent lists. */
 		private void moveToUrgent(long now) {
 			if(logMINOR) checkOrder();
-			if(itemsNonUrgent == null) return;
-			ListIterator<MessageItem> it = itemsNonUrgent.listIterator();
 			int moved = 0;
-			while(it.hasNext()) {
-				MessageItem item = it.next();
-				Items list = null;
-				long id = item.getID();
-				if(itemsByID != null)
-					list = itemsByID.get(id);
-				boolean moveIt = false;
-				if(list != null && roundRobinBetweenUIDs) {
-					if(list.timeLastSent + timeout <= now)
-						moveIt = true;
-				}
-				if(item.submitted + timeout <= now) {
-					moveIt = true;
-				}
-				if(moveIt) {
-					if(logMINOR) Logger.minor(this, "Moving message to urgent list: "+item);
-					if(logMINOR) checkOrder();
-					// Move to urgent list
-					if(itemsByID == null) {
-						itemsByID = new HashMap<Long, Items>();
-						if(nonEmptyItemsWithID == null)
-							nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-						list = new Items(id, item.submitted);
-						addToNonEmptyForward(list);
-						itemsByID.put(id, list);
-						if(logMINOR) checkOrder();
-					} else {
-						if(list == null) {
-							list = new Items(id, item.submitted);
-							if(nonEmptyItemsWithID == null)
-								nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-							addToNonEmptyForward(list);
-							itemsByID.put(id, list);
-							if(logMINOR) checkOrder();
-						} else {
-							if(list.items.isEmpty()) {
-								if(list.getParent() == nonEmptyItemsWithID) {
-									Logger.error(this, "Was empty but was in nonEmptyItemsWithID: "+list);
-								} else {
-									assert(list.getParent() == emptyItemsWithID);
-									// It already exists, so it has a valid time.
-									// Which is probably in the past, so use Forward.
-									// Must add it to the list before moving to non-empty because of assertion.
-									moveFromEmptyToNonEmptyForward(list);
-								}
-							} else {
-								assert(list.getParent() == nonEmptyItemsWithID);
-							}
-							if(logMINOR) checkOrder();
-						}
-					}
-					list.addLast(item);
-					it.remove();
+			if(itemsNonUrgent != null) {
+				// Ordered by submitted.
+				MessageItem item;
+				while((item = itemsNonUrgent.head()) != null && item.submitted + timeout <= now) {
+					moveToUrgent(item);
 					moved++;
-					if(logMINOR) checkOrder();
-				} else if(!roundRobinBetweenUIDs)
-					break;
+				}
+			}
+			if(activeWithPending > 0) {
+				moved += moveDuePending(nonEmptyItemsWithID, now);
+				moved += moveDuePending(emptyItemsWithID, now);
 			}
+			if(moved > 0) changed();
 			if(logDEBUG && moved > 0)
 				Logger.debug(this, "Moved "+moved+" items to urgent round-robin");
 			if(logMINOR) checkOrder();
 		}
+		
+		/** Move the pending messages of Items which are due to the urgent lists.
+		 * @param lists Ordered by timeLastSent, so the Items which are due are at the beginning. */
+		private int moveDuePending(DoublyLinkedListImpl<Items> lists, long now) {
+			if(lists == null) return 0;
+			int moved = 0;
+			Items list = lists.head();
+			while(list != null && activeWithPending > 0 && list.timeLastSent + timeout <= now) {
+				// Moving messages may move list from the empty list to the non-empty list.
+				Items next = list.getNext();
+				MessageItem item;
+				while(list.pending != null && (item = list.pending.peekFirst()) != null) {
+					moveToUrgent(item);
+					moved++;
+				}
+				list = next;
+			}
+			return moved;
+		}
 
 		private void moveFromEmptyToNonEmptyForward(Items list) {
 			// Presumably is in emptyItemsWithID
@@ -281,6 +383,9 @@ public class PeerMessageQueue {
 		/** Add a new message to the beginning i.e. send it as soon as possible (e.g. if
 		 * we tried to send it and failed); it is assumed to already be urgent. */
 		public void addFirst(MessageItem item) {
+			count++;
+			bytes += item.getLength();
+			changed();
 			// Keep the old deadline for the item.
 			if(!roundRobinBetweenUIDs) {
 				addToNonUrgent(item);
@@ -288,60 +393,60 @@ public class PeerMessageQueue {
 			}
 			if(logMINOR) checkOrder();
 			long id = item.getID();
-			Items list;
-			if(itemsByID == null) {
+			if(itemsByID == null)
 				itemsByID = new HashMap<Long, Items>();
+			Items list = itemsByID.get(id);
+			if(list == null) {
+				list = new Items(id, -1);
 				if(nonEmptyItemsWithID == null)
 					nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-				list = new Items(id, -1);
-				addToNonEmptyForward(list);
+				nonEmptyItemsWithID.unshift(list);
 				itemsByID.put(id, list);
+			} else if(!list.isActive()) {
+				list.timeLastSent = -1;
+				if(nonEmptyItemsWithID == null)
+					nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
+				nonEmptyItemsWithID.unshift(list);
+				activate(list);
 			} else {
-				list = itemsByID.get(id);
-				if(list == null) {
-					list = new Items(id, -1);
-					if(nonEmptyItemsWithID == null)
-						nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-					nonEmptyItemsWithID.unshift(list);
-					itemsByID.put(id, list);
-				} else {
-					if(list.items.isEmpty()) {
-						assert(list.getParent() == emptyItemsWithID);
-						// It already exists, so it has a valid time.
-						// Which is probably in the past, so use Forward.
-						moveFromEmptyToNonEmptyForward(list);
-					} else
-						assert(list.getParent() == nonEmptyItemsWithID);
-				}
+				if(list.items.isEmpty()) {
+					assert(list.getParent() == emptyItemsWithID);
+					// It already exists, so it has a valid time.
+					// Which is probably in the past, so use Forward.
+					moveFromEmptyToNonEmptyForward(list);
+				} else
+					assert(list.getParent() == nonEmptyItemsWithID);
 			}
-			list.addFirst(item);
+			addUrgent(list, item, true);
 			if(logMINOR) checkOrder();
 		}
 
 		public int size() {
-			int size = 0;
-			if(nonEmptyItemsWithID != null)
-				for(Items items : nonEmptyItemsWithID)
-					size += items.items.size();
-			if(itemsNonUrgent != null)
-				size += itemsNonUrgent.size();
-			return size;
+			return count;
 		}
 
-		public int addTo(MessageItem[] output, int ptr) {
+		/** Remove all the messages, in the order they would have been sent (roughly), and 
+		 * add them to output. */
+		public int drainTo(MessageItem[] output, int ptr) {
 			if(nonEmptyItemsWithID != null)
-				for(Items list : nonEmptyItemsWithID)
-					for(MessageItem item : list.items)
+				for(Items list : nonEmptyItemsWithID) {
+					MessageItem item;
+					while((item = list.items.shift()) != null)
 						output[ptr++] = item;
-			if(itemsNonUrgent != null)
-				for(MessageItem item : itemsNonUrgent)
+				}
+			if(itemsNonUrgent != null) {
+				MessageItem item;
+				while((item = itemsNonUrgent.shift()) != null)
 					output[ptr++] = item;
+			}
+			clear();
 			return ptr;
 		}
 		
 		/** Check that nonEmptyItemsWithID is ordered correctly. 
 		 * LOCKING: Caller must synchronize on PeerMessageQueue.this. */
 		private void checkOrder() {
+			int urgent = 0;
 			if(nonEmptyItemsWithID != null) {
 				long prev = -1;
 				Items prevItems = null;
@@ -351,8 +456,11 @@ public class PeerMessageQueue {
 						Logger.error(this, "Inconsistent order in non empty items with ID: prev timeout was "+prev+" for "+prevItems+" but this timeout is "+thisTime+" for "+items, new Exception("error"));
 					prev = thisTime;
 					prevItems = items;
+					urgent += items.items.size();
 				}
 			}
+			if(urgent != urgentCount)
+				Logger.error(this, "Urgent count is "+urgentCount+" but there are "+urgent+" urgent messages", new Exception("error"));
 			if(itemsNonUrgent != null) {
 				long prev = -1;
 				MessageItem prevItem = null;
@@ -362,6 +470,8 @@ public class PeerMessageQueue {
 					prev = item.submitted;
 					prevItem = item;
 				}
+				if(urgent + itemsNonUrgent.size() != count)
+					Logger.error(this, "Count is "+count+" but there are "+(urgent + itemsNonUrgent.size())+" messages", new Exception("error"));
 			}
 		}
 
@@ -370,210 +480,149 @@ public class PeerMessageQueue {
 		 * addMessages().
 		 * @param t The initial urgent time. What we return must be less than or 
 		 * equal to this. Convenient for chaining. 
-		 * @param stopIfBeforeTime If the next urgent time is <= to this time, 
-		 * return immediately.
 		 */
-		public long getNextUrgentTime(long t, long stopIfBeforeTime) {
+		public long getNextUrgentTime(long t) {
+			if(!urgentTimeValid) {
+				cachedUrgentTime = computeNextUrgentTime();
+				urgentTimeValid = true;
+			}
+			return Math.min(t, cachedUrgentTime);
+		}
+		
+		private long computeNextUrgentTime() {
+			long t = Long.MAX_VALUE;
+			// Ordered by submitted, so only the first one matters, apart from its UID.
+			if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty())
+				t = itemsNonUrgent.head().submitted + timeout;
 			if(!roundRobinBetweenUIDs) {
-				if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
-					t = Math.min(t, itemsNonUrgent.getFirst().submitted + timeout);
-					if(t <= stopIfBeforeTime) return t;
-				}
 				assert(nonEmptyItemsWithID == null);
 				assert(itemsByID == null);
-			} else {
-				if(nonEmptyItemsWithID != null) {
-					for(Items items : nonEmptyItemsWithID) {
-						if(items.items.size() == 0) continue;
-						if(items.timeLastSent > 0) {
-							t = Math.min(t, items.timeLastSent + timeout);
-							if(t <= stopIfBeforeTime) return t;
-						} else {
-							// It is possible that something requeued isn't urgent, so check anyway.
-							t = Math.min(t, items.items.getFirst().submitted + timeout);
-							if(t <= stopIfBeforeTime) return t;
-						}
-					}
-				}
-				if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
-					for(MessageItem item : itemsNonUrgent) {
-						long uid = item.getID();
-						Items items = itemsByID == null ? null : itemsByID.get(uid);
-						if(items != null && items.timeLastSent > 0) {
-							t = Math.min(t, items.timeLastSent + timeout);
-							if(t <= stopIfBeforeTime) return t;
-						} else {
-							t = Math.min(t, item.submitted + timeout);
-							if(t <= stopIfBeforeTime) return t;
-							if(itemsByID == null) break; // Only the first one matters, since none have been sent.
-						}
-					}
-				}
-			}
-			return t;
-		}
-
-		/**
-		 * Add the size of messages in this queue to <code>length</code> until
-		 * length is larger than <code>maxSize</code>, or all messages have
-		 * been added.
-		 * @param length the starting length
-		 * @param maxSize the size at which to stop
-		 * @return the resulting length after adding messages
-		 */
-		public int addSize(int length, int maxSize) {
-			if(itemsNonUrgent != null) {
-				for(MessageItem item : itemsNonUrgent) {
-					int thisLen = item.getLength();
-					length += thisLen;
-					if(length > maxSize) return length;
-				}
+				return t;
 			}
 			if(nonEmptyItemsWithID != null) {
-				for(Items list : nonEmptyItemsWithID) {
-					for(MessageItem item : list.items) {
-						int thisLen = item.getLength();
-						length += thisLen;
-						if(length > maxSize) return length;
+				for(Items items : nonEmptyItemsWithID) {
+					if(items.items.isEmpty()) continue;
+					if(items.timeLastSent > 0) {
+						// Ordered by timeLastSent.
+						t = Math.min(t, items.timeLastSent + timeout);
+						break;
+					} else {
+						// It is possible that something requeued isn't urgent, so check anyway.
+						t = Math.min(t, items.items.head().submitted + timeout);
 					}
 				}
 			}
-			return length;
+			if(activeWithPending > 0) {
+				// Non-urgent messages become urgent when their UID is due.
+				t = Math.min(t, firstPendingDue(nonEmptyItemsWithID));
+				t = Math.min(t, firstPendingDue(emptyItemsWithID));
+			}
+			return t;
+		}
+		
+		private long firstPendingDue(DoublyLinkedListImpl<Items> lists) {
+			if(lists == null) return Long.MAX_VALUE;
+			// Ordered by timeLastSent.
+			for(Items items : lists)
+				if(items.hasPending()) return items.timeLastSent + timeout;
+			return Long.MAX_VALUE;
 		}
 		
 		private MessageItem addNonUrgentMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
 			if(logMINOR) checkOrder();
 			if(itemsNonUrgent == null) return null;
-			MessageItem ret;
-			for(ListIterator<MessageItem> items = itemsNonUrgent.listIterator();items.hasNext();) {
-				MessageItem item = items.next();
-				items.remove();
-				item.setDeadline(item.submitted + timeout);
-				ret = item;
-				if(itemsByID != null) {
-					long id = item.getID();
-					Items tracker = itemsByID.get(id);
-					if(tracker != null) {
-						tracker.timeLastSent = now;
-						DoublyLinkedList<? super Items> parent = tracker.getParent();
-						// Demote the corresponding tracker to maintain round-robin.
-						if(tracker.items.isEmpty()) {
-							if(logDEBUG) Logger.debug(this, "Moving "+tracker+" to end of empty list in addNonUrgentMessages");
-							if(emptyItemsWithID == null)
-								emptyItemsWithID = new DoublyLinkedListImpl<Items>();
-							if(parent == null) {
-								Logger.error(this, "Tracker is in itemsByID but not in either list! (empty)");
-							} else if(parent == emptyItemsWithID) {
-								// Normal. Remove it so we can re-add it in the right place.
-								emptyItemsWithID.remove(tracker);
-							} else if(parent == nonEmptyItemsWithID) {
-								Logger.error(this, "Tracker is in non empty items list when is empty");
-								nonEmptyItemsWithID.remove(tracker);
-							} else
-								assert(false);
-							addToEmptyBackward(tracker);
-						} else {
-							if(logDEBUG) Logger.debug(this, "Moving "+tracker+" to end of non-empty list in addNonUrgentMessages");
-							if(nonEmptyItemsWithID == null)
-								nonEmptyItemsWithID = new DoublyLinkedListImpl<Items>();
-							if(parent == null) {
-								Logger.error(this, "Tracker is in itemsByID but not in either list! (non-empty)");
-							} else if(parent == nonEmptyItemsWithID) {
-								// Normal. Remove it so we can re-add it in the right place.
-								nonEmptyItemsWithID.remove(tracker);
-							} else if(parent == emptyItemsWithID) {
-								Logger.error(this, "Tracker is in empty items list when is non-empty");
-								emptyItemsWithID.remove(tracker);
-							} else
-								assert(false);
-							addToNonEmptyBackward(tracker);
-						}
+			MessageItem item = itemsNonUrgent.head();
+			if(item == null) return null;
+			removeNonUrgent(item);
+			count--;
+			bytes -= item.getLength();
+			changed();
+			item.setDeadline(item.submitted + timeout);
+			if(itemsByID != null) {
+				long id = item.getID();
+				Items tracker = itemsByID.get(id);
+				if(tracker != null && tracker.isActive()) {
+					tracker.timeLastSent = now;
+					// Demote the corresponding tracker to maintain round-robin.
+					if(tracker.items.isEmpty()) {
+						if(logDEBUG) Logger.debug(this, "Moving "+tracker+" to end of empty list in addNonUrgentMessages");
+						if(tracker.getParent() == nonEmptyItemsWithID) {
+							Logger.error(this, "Tracker is in non empty items list when is empty");
+							nonEmptyItemsWithID.remove(tracker);
+						} else
+							emptyItemsWithID.remove(tracker);
+						addToEmptyBackward(tracker);
+					} else {
+						if(logDEBUG) Logger.debug(this, "Moving "+tracker+" to end of non-empty list in addNonUrgentMessages");
+						if(tracker.getParent() == emptyItemsWithID) {
+							Logger.error(this, "Tracker is in empty items list when is non-empty");
+							emptyItemsWithID.remove(tracker);
+						} else
+							nonEmptyItemsWithID.remove(tracker);
+						addToNonEmptyBackward(tracker);
 					}
 				}
-				if(mustSendLoadRT && item.sendLoadRT && !addPeerLoadStatsRT.value) {
-					addPeerLoadStatsRT.value = true;
-					mustSendLoadRT = false;
-				} else if(mustSendLoadBulk && item.sendLoadBulk && !addPeerLoadStatsBulk.value) {
-					addPeerLoadStatsBulk.value = true;
-					mustSendLoadBulk = false;
-				}
-				if(logMINOR) checkOrder();
-				
-				if(ret != null) return ret;
+			}
+			if(mustSendLoadRT && item.sendLoadRT && !addPeerLoadStatsRT.value) {
+				addPeerLoadStatsRT.value = true;
+				mustSendLoadRT = false;
+			} else if(mustSendLoadBulk && item.sendLoadBulk && !addPeerLoadStatsBulk.value) {
+				addPeerLoadStatsBulk.value = true;
+				mustSendLoadBulk = false;
 			}
 			if(logMINOR) checkOrder();
-			return null;
+			return item;
 		}
 
 		/**
-		 * Add messages to <code>messages</code> until there are no more
-		 * messages to add.
-		 *
-		 * @param now the current time
-		 * @param messages the list that messages will be added to
-		 * @param maxMessages 
-		 * @return the size of <code>messages</code>, multiplied by -1 if there were
-		 * messages that didn't fit
+		 * Take the first message from the UID we sent to least recently, and move its UID to 
+		 * the end of the round-robin.
+		 * @return The message, or null if there are no urgent messages.
 		 */
 		private MessageItem addUrgentMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
 			if(logMINOR) checkOrder();
-			MessageItem ret;
-			while(true) {
-				int lists = 0;
-				if(nonEmptyItemsWithID == null) {
-					if(logMINOR) Logger.minor(this, "No non-empty items to send, not sending any urgent messages");
-					return null;
-				}
-				lists += nonEmptyItemsWithID.size();
-				Items list = nonEmptyItemsWithID.head();
-				for(int i=0;i<lists && list != null;i++) {
-					if(logMINOR) checkOrder();
-					if(list.items.isEmpty()) {
-						// Should not happen, but check for it anyway since it keeps happening. :(
-						Logger.error(this, "List is in nonEmptyItemsWithID yet it is empty?!: "+list);
-						nonEmptyItemsWithID.remove(list);
-						addToEmptyBackward(list);
-						if(nonEmptyItemsWithID.isEmpty()) {
-							if(logMINOR) Logger.minor(this, "Run out of non-empty items to send");
-							return null;
-						}
-						list = nonEmptyItemsWithID.head();
-						continue;
-					}
-					MessageItem item = list.items.getFirst();
-					list.items.removeFirst();
-					// Move to end of list.
-					Items prev = list.getPrev();
-					nonEmptyItemsWithID.remove(list);
-					item.setDeadline(list.timeLastSent + timeout);
-					list.timeLastSent = now;
-					if(!list.items.isEmpty()) {
-						if(logDEBUG) Logger.debug(this, "Moving "+list+" to end of non empty list in addUrgentMessages");
-						addToNonEmptyBackward(list);
-					} else {
-						if(logDEBUG) Logger.debug(this, "Moving "+list+" to end of empty list in addUrgentMessages");
-						addToEmptyBackward(list);
-					}
-					if(prev == null)
-						list = nonEmptyItemsWithID.head();
-					else
-						list = prev.getNext();
-					ret = item;
-					if(mustSendLoadRT && item.sendLoadRT && !addPeerLoadStatsRT.value) {
-						addPeerLoadStatsRT.value = true;
-						mustSendLoadRT = false;
-					} else if(mustSendLoadBulk && item.sendLoadBulk && !addPeerLoadStatsBulk.value) {
-						addPeerLoadStatsBulk.value = true;
-						mustSendLoadBulk = false;
-					}
-					if(logMINOR) checkOrder();
-					if(ret != null) return ret;
-				}
+			if(nonEmptyItemsWithID == null) {
+				if(logMINOR) Logger.minor(this, "No non-empty items to send, not sending any urgent messages");
+				return null;
+			}
+			Items list;
+			while((list = nonEmptyItemsWithID.head()) != null) {
+				if(!list.items.isEmpty()) break;
+				// Should not happen, but check for it anyway since it keeps happening. :(
+				Logger.error(this, "List is in nonEmptyItemsWithID yet it is empty?!: "+list);
+				nonEmptyItemsWithID.remove(list);
+				addToEmptyBackward(list);
+			}
+			if(list == null) {
 				if(logDEBUG)
 					Logger.debug(this, "No more messages queued at this priority");
-				if(logMINOR) checkOrder();
 				return null;
 			}
+			MessageItem item = list.items.head();
+			removeUrgent(list, item);
+			count--;
+			bytes -= item.getLength();
+			changed();
+			// Move to end of list.
+			nonEmptyItemsWithID.remove(list);
+			item.setDeadline(list.timeLastSent + timeout);
+			list.timeLastSent = now;
+			if(!list.items.isEmpty()) {
+				if(logDEBUG) Logger.debug(this, "Moving "+list+" to end of non empty list in addUrgentMessages");
+				addToNonEmptyBackward(list);
+			} else {
+				if(logDEBUG) Logger.debug(this, "Moving "+list+" to end of empty list in addUrgentMessages");
+				addToEmptyBackward(list);
+			}
+			if(mustSendLoadRT && item.sendLoadRT && !addPeerLoadStatsRT.value) {
+				addPeerLoadStatsRT.value = true;
+				mustSendLoadRT = false;
+			} else if(mustSendLoadBulk && item.sendLoadBulk && !addPeerLoadStatsBulk.value) {
+				addPeerLoadStatsBulk.value = true;
+				mustSendLoadBulk = false;
+			}
+			if(logMINOR) checkOrder();
+			return item;
 		}
 
 		
@@ -591,15 +640,20 @@ public class PeerMessageQueue {
 		 * @return
 		 */
 		MessageItem addPriorityMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
+			if(count == 0) return null;
 			// Urgent messages first.
 			if(logMINOR) {
 				int nonEmpty = nonEmptyItemsWithID == null ? 0 : nonEmptyItemsWithID.size();
 				int empty = emptyItemsWithID == null ? 0 : emptyItemsWithID.size();
 				int byID = itemsByID == null ? 0 : itemsByID.size();
-				if(nonEmpty + empty < byID) {
-					Logger.error(this, "Leaking itemsByID? non empty = "+nonEmpty+" empty = "+empty+" by ID = "+byID+" on "+this);
+				int pendingOnly = 0;
+				if(itemsByID != null)
+					for(Items items : itemsByID.values())
+						if(!items.isActive()) pendingOnly++;
+				if(nonEmpty + empty + pendingOnly < byID) {
+					Logger.error(this, "Leaking itemsByID? non empty = "+nonEmpty+" empty = "+empty+" pending only = "+pendingOnly+" by ID = "+byID+" on "+this);
 				} else if(logDEBUG)
-					Logger.debug(this, "Items: non empty "+nonEmpty+" empty "+empty+" by ID "+byID+" on "+this);
+					Logger.debug(this, "Items: non empty "+nonEmpty+" empty "+empty+" pending only "+pendingOnly+" by ID "+byID+" on "+this);
 			}
 			if(roundRobinBetweenUIDs)
 				moveToUrgent(now);
@@ -630,14 +684,9 @@ public class PeerMessageQueue {
 					return;
 				}
 				if(list.timeLastSent == -1 || now - list.timeLastSent > FORGET_AFTER) {
-					// FIXME: Urgh, what a braindead API! remove(Object) on a Map<Long, Items> !?!?!?!
-					// Anyway we'd better check the return value!
-					Items old = itemsByID.remove(list.id);
-					if(old == null)
-						Logger.error(this, "List was not in the items by ID tracker: "+list.id);
-					else if(old != list)
-						Logger.error(this, "Different list in the items by ID tracker: "+old+" not "+list+" for "+list.id);
 					emptyItemsWithID.remove(list);
+					deactivate(list);
+					changed();
 					removed++;
 				} else {
 					if(logDEBUG && removed > 0)
@@ -647,36 +696,40 @@ public class PeerMessageQueue {
 			}
 		}
 
-		public void clear() {
+		/** Forget everything. The caller must have removed the messages from the lists. */
+		private void clear() {
 			emptyItemsWithID = null;
 			nonEmptyItemsWithID = null;
 			itemsByID = null;
 			itemsNonUrgent = null;
-			if(logMINOR) checkOrder();
+			count = 0;
+			bytes = 0;
+			urgentCount = 0;
+			urgentBytes = 0;
+			activeWithPending = 0;
+			changed();
 		}
 
 		public boolean removeMessage(MessageItem item) {
 			if(logMINOR) checkOrder();
-			long id = item.getID();
-			Items list;
-			if(itemsByID != null) {
-				list = itemsByID.get(id);
-				if(list != null) {
-					if(list.remove(item)) {
-						if(list.items.isEmpty()) {
-							nonEmptyItemsWithID.remove(list);
-							addToEmptyBackward(list);
-						}
-						if(logMINOR) checkOrder();
-						return true;
-					}
+			if(item.getParent() == null) return false;
+			if(itemsNonUrgent != null && item.getParent() == itemsNonUrgent) {
+				removeNonUrgent(item);
+			} else {
+				Items list = itemsByID == null ? null : itemsByID.get(item.getID());
+				if(list == null || item.getParent() != list.items)
+					return false;
+				removeUrgent(list, item);
+				if(list.items.isEmpty()) {
+					nonEmptyItemsWithID.remove(list);
+					addToEmptyBackward(list);
 				}
 			}
+			count--;
+			bytes -= item.getLength();
+			changed();
 			if(logMINOR) checkOrder();
-			if(itemsNonUrgent != null)
-				return itemsNonUrgent.remove(item);
-			else
-				return false;
+			return true;
 		}
 		
 		public void removeUIDs(Long[] list) {
@@ -685,27 +738,19 @@ public class PeerMessageQueue {
 			for(Long l : list) {
 				Items items = itemsByID.get(l);
 				if(items == null) continue;
-				if(items.items.isEmpty()) {
-					itemsByID.remove(l);
+				if(items.isActive() && items.items.isEmpty()) {
 					assert(emptyItemsWithID != null);
 					assert(items.getParent() == emptyItemsWithID);
 					emptyItemsWithID.remove(items);
+					deactivate(items);
+					changed();
 				}
 			}
 			if(logMINOR) checkOrder();
 		}
 
 		public boolean isEmpty() {
-			if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
-				return false;
-			}
-			if(nonEmptyItemsWithID != null) {
-				for(Items items : nonEmptyItemsWithID) {
-					if(items.items.size() == 0) continue;
-					return false;
-				}
-			}
-			return true;
+			return count == 0;
 		}
 
 	}
@@ -728,42 +773,24 @@ public class PeerMessageQueue {
 	/**
 	 * Queue a <code>MessageItem</code> and return an estimate of the size of
 	 * this queue. The value returned is the estimated number of bytes
-	 * needed for sending the all messages in this queue. Note that if the
-	 * returned estimate is higher than 1024, it might not cover all messages.
+	 * needed for sending the all messages in this queue.
 	 * @param item the <code>MessageItem</code> to queue
+	 * @param maxSize Not used, the estimate is always for the whole queue.
 	 * @return an estimate of the size of this queue
 	 */
 	public synchronized int queueAndEstimateSize(MessageItem item, int maxSize) {
 		enqueuePrioritizedMessageItem(item);
-		int x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNonUrgent != null) {
-				for(MessageItem it : pq.itemsNonUrgent) {
-					x += it.getLength() + 2;
-					if(x > maxSize)
-						break;
-				}
-			}
-			if(pq.nonEmptyItemsWithID != null) {
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items) {
-						x += it.getLength() + 2;
-						if(x > maxSize)
-							break;
-					}
-			}
-		}
-		return x;
+		long x = 0;
+		for(PrioQueue pq : queuesByPriority)
+			x += pq.bytes + 2 * pq.count;
+		return (int) Math.min(Integer.MAX_VALUE, x);
 	}
 
+	/** @return The number of bytes of urgent messages queued. */
 	public synchronized long getMessageQueueLengthBytes() {
 		long x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.nonEmptyItemsWithID != null)
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items)
-						x += it.getLength() + 2;
-		}
+		for(PrioQueue pq : queuesByPriority)
+			x += pq.urgentBytes + 2 * pq.urgentCount;
 		return x;
 	}
 
@@ -793,23 +820,21 @@ public class PeerMessageQueue {
 			mustSendLoadBulk = true;
 	}
 
+	/** Remove all the messages, e.g. when we disconnect. */
 	public synchronized MessageItem[] grabQueuedMessageItems() {
 		int size = 0;
 		for(PrioQueue queue : queuesByPriority)
 			size += queue.size();
 		MessageItem[] output = new MessageItem[size];
 		int ptr = 0;
-		for(PrioQueue queue : queuesByPriority) {
-			ptr = queue.addTo(output, ptr);
-			queue.clear();
-		}
+		for(PrioQueue queue : queuesByPriority)
+			ptr = queue.drainTo(output, ptr);
 		return output;
 	}
 
 	/**
 	 * Get the time at which the next message must be sent. If any message is
-	 * overdue, we will return a value less than now, which may not be completely
-	 * accurate.
+	 * overdue, we will return a value less than now.
 	 * @param t The current next urgent time. The return value will be no greater
 	 * than this.
 	 * @param returnIfBefore The current time. If the next urgent time is less than 
@@ -819,7 +844,7 @@ public class PeerMessageQueue {
 	 */
 	public synchronized long getNextUrgentTime(long t, long returnIfBefore) {
 		for(PrioQueue queue: queuesByPriority) {
-			t = Math.min(t, queue.getNextUrgentTime(t, returnIfBefore));
+			t = queue.getNextUrgentTime(t);
 			if(t <= returnIfBefore) return t; // How much in the past doesn't matter, as long as it's in the past.
 		}
 		return t;
@@ -845,24 +870,22 @@ public class PeerMessageQueue {
 	 * messages in this queue is greater than <code>maxSize</code>
 	 */
 	public synchronized boolean mustSendSize(int minSize, int maxSize) {
-		int length = minSize;
-		for(PrioQueue items : queuesByPriority) {
-			length = items.addSize(length, maxSize);
-			if(length > maxSize) return true;
-		}
-		return false;
+		long length = minSize;
+		for(PrioQueue items : queuesByPriority)
+			length += items.bytes;
+		return length > maxSize;
 	}
 
 	/** Grab a message to send. WARNING: PeerMessageQueue not only removes the message,
 	 * it assumes it has been sent for purposes of fairness between UID's. You should try
 	 * not to call this function if you are not going to be able to send the message: 
-	 * check in advance if possible. */
-	public synchronized MessageItem grabQueuedMessageItem(int minPriority) {
+	 * check in advance if possible. 
+	 * @param canSendRealtime False if realtime data is over its share of the output bandwidth 
+	 * limit, so we should only send other messages.
+	 * @param canSendBulk False if bulk data is over its share of the output bandwidth limit. */
+	public synchronized MessageItem grabQueuedMessageItem(int minPriority, boolean canSendRealtime, boolean canSendBulk) {
 		long now = System.currentTimeMillis();
 		
-		MutableBoolean addPeerLoadStatsRT = new MutableBoolean();
-		MutableBoolean addPeerLoadStatsBulk = new MutableBoolean();
-		
 		addPeerLoadStatsRT.value = true;
 		addPeerLoadStatsBulk.value = true;
 		
@@ -881,32 +904,38 @@ public class PeerMessageQueue {
 		// Otherwise try whichever is more urgent, favouring realtime if there is a draw.
 		// Realtime is supposed to be bursty.
 		
-		if(queuesByPriority[DMT.PRIORITY_REALTIME_DATA].isEmpty()) {
+		if(queuesByPriority[DMT.PRIORITY_REALTIME_DATA].isEmpty() || !canSendRealtime) {
 			tryRealtimeFirst = false;
-		} else if(queuesByPriority[DMT.PRIORITY_BULK_DATA].isEmpty()) {
+		} else if(queuesByPriority[DMT.PRIORITY_BULK_DATA].isEmpty() || !canSendBulk) {
 			tryRealtimeFirst = true;
-		} else if(queuesByPriority[DMT.PRIORITY_BULK_DATA].getNextUrgentTime(Long.MAX_VALUE, 0) >= queuesByPriority[DMT.PRIORITY_REALTIME_DATA].getNextUrgentTime(Long.MAX_VALUE, 0)) {
+		} else if(queuesByPriority[DMT.PRIORITY_BULK_DATA].getNextUrgentTime(Long.MAX_VALUE) >= queuesByPriority[DMT.PRIORITY_REALTIME_DATA].getNextUrgentTime(Long.MAX_VALUE)) {
 			tryRealtimeFirst = true;
 		} else {
 			tryRealtimeFirst = false;
 		}
 		
-		// FIXME token bucket?
+		// Whichever is over its share of the bandwidth limit (see OutputThrottle) is skipped.
 		if(tryRealtimeFirst) {
 			// Try realtime first
 			if(logMINOR) Logger.minor(this, "Trying realtime first");
-			MessageItem ret = queuesByPriority[DMT.PRIORITY_REALTIME_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			MessageItem ret = null;
+			if(canSendRealtime)
+				ret = queuesByPriority[DMT.PRIORITY_REALTIME_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
 			if(ret != null) return ret;
 			if(logMINOR) Logger.minor(this, "Trying bulk");
-			ret = queuesByPriority[DMT.PRIORITY_BULK_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			if(canSendBulk)
+				ret = queuesByPriority[DMT.PRIORITY_BULK_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
 			if(ret != null) return ret;
 		} else {
 			// Try bulk first
 			if(logMINOR) Logger.minor(this, "Trying bulk first");
-			MessageItem ret = queuesByPriority[DMT.PRIORITY_BULK_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			MessageItem ret = null;
+			if(canSendBulk)
+				ret = queuesByPriority[DMT.PRIORITY_BULK_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
 			if(ret != null) return ret;
 			if(logMINOR) Logger.minor(this, "Trying realtime");
-			ret = queuesByPriority[DMT.PRIORITY_REALTIME_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			if(canSendRealtime)
+				ret = queuesByPriority[DMT.PRIORITY_REALTIME_DATA].addPriorityMessages(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
 			if(ret != null) return ret;
 		}
 		for(int i=DMT.PRIORITY_BULK_DATA+1;i<DMT.NUM_PRIORITIES;i++) {
@@ -930,7 +959,9 @@ public class PeerMessageQueue {
 
 	public synchronized void removeUIDsFromMessageQueues(Long[] list) {
 		for(PrioQueue queue : queuesByPriority) {
-			queue.removeUIDs(list);
+			// Only the round-robin queues track UID's.
+			if(queue.roundRobinBetweenUIDs)
+				queue.removeUIDs(list);
 		}
 	}
 }
@@ -1092,17 +1092,24 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(x > maxSize || !node.enablePacketCoalescing) {
 			// If there is a packet's worth to send, wake up the packetsender.
 			wakeUpSender();
+		} else {
+			sendTimesChanged();
 		}
 		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
+		// It will look at us on its next loop, which is within the maximum
+		// coalescing delay (100ms) because it wakes up every 100ms *anyway*.
 		return item;
 	}
 	
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
-		node.ps.wakeUp();
+		node.ps.wakeUp(this);
+	}
+
+	@Override
+	public void sendTimesChanged() {
+		node.ps.peerChanged(this);
 	}
 
 	@Override
@@ -5412,8 +5419,15 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	}
 	
 	@Override
-	public void sentThrottledBytes(int count) {
-		node.outputThrottle.forceGrab(count);
+	public void sentThrottledBytes(int realTimeBytes, int bulkBytes) {
+		boolean opennet = isOpennet();
+		node.outputThrottle.forceGrab(opennet, true, realTimeBytes);
+		node.outputThrottle.forceGrab(opennet, false, bulkBytes);
+	}
+
+	@Override
+	public boolean canSendThrottled(boolean realTime, int bytes) {
+		return !shouldThrottle() || node.outputThrottle.canSend(isOpennet(), realTime, bytes);
 	}
 	
 	@Override
@@ -5,6 +5,7 @@ package freenet.node;
 
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequestScheduler;
+import freenet.client.async.ClientRequestScheduler.KeyIndexStats;
 import freenet.config.Config;
 import freenet.config.EnumerableOptionCallback;
 import freenet.config.InvalidConfigValueException;
@@ -368,6 +369,16 @@ public class RequestStarterGroup {
 			sskPutSchedulerRT.countQueuedRequests();
 	}
 
+	/** @return The size of the indexes of the keys the fetch schedulers are listening for. */
+	public KeyIndexStats getKeyIndexStats() {
+		KeyIndexStats stats = new KeyIndexStats();
+		chkFetchSchedulerBulk.addKeyIndexStats(stats);
+		sskFetchSchedulerBulk.addKeyIndexStats(stats);
+		chkFetchSchedulerRT.addKeyIndexStats(stats);
+		sskFetchSchedulerRT.addKeyIndexStats(stats);
+		return stats;
+	}
+
 	public ClientRequestScheduler getScheduler(boolean ssk, boolean insert,
 			boolean realTime) {
 		if(realTime) {
@@ -48,6 +48,13 @@ public class RequestTag extends UIDTag {
 		this.start = start;
 		this.isSSK = isSSK;
 	}
+	
+	/** For tests, which don't have a Node. */
+	RequestTag(boolean isSSK, START start, WeakReference<PeerNode> sourceRef, boolean realTimeFlag, long uid, RequestTracker tracker) {
+		super(sourceRef, realTimeFlag, uid, tracker);
+		this.start = start;
+		this.isSSK = isSSK;
+	}
 
 	public void setRequestSenderFinished(int status) {
 		boolean noRecordUnlock;
@@ -194,6 +201,7 @@ public class RequestTag extends UIDTag {
 
 	public synchronized void completedDownstreamTransfers() {
 		this.completedDownstreamTransfers = true;
+		countsChanged();
 	}
 
 	@Override
@@ -22,31 +22,22 @@ public class RequestTracker {
 		Logger.registerClass(RequestTracker.class);
 	}
 	
-	// The runningLocal* are secondary. That is, we take the lock on the
-	// corresponding running* when accessing runningLocal*. Local requests
-	// have a tag in *both*.
+	// Each registry has the running requests of one type, and the local ones separately.
+	// Local requests have a tag in *both*. Offer replies are never local.
 	
-	private final HashMap<Long,RequestTag> runningCHKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningLocalCHKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningSSKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningLocalSSKGetUIDsBulk;
-	private final HashMap<Long,InsertTag> runningCHKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningLocalCHKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningSSKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningLocalSSKPutUIDsBulk;
-	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsBulk;
-	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsBulk;
-
-	private final HashMap<Long,RequestTag> runningCHKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningLocalCHKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningSSKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningLocalSSKGetUIDsRT;
-	private final HashMap<Long,InsertTag> runningCHKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningLocalCHKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningSSKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningLocalSSKPutUIDsRT;
-	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsRT;
-	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsRT;
+	private final UIDRegistry<RequestTag> runningCHKGetUIDsBulk;
+	private final UIDRegistry<RequestTag> runningSSKGetUIDsBulk;
+	private final UIDRegistry<InsertTag> runningCHKPutUIDsBulk;
+	private final UIDRegistry<InsertTag> runningSSKPutUIDsBulk;
+	private final UIDRegistry<OfferReplyTag> runningCHKOfferReplyUIDsBulk;
+	private final UIDRegistry<OfferReplyTag> runningSSKOfferReplyUIDsBulk;
+
+	private final UIDRegistry<RequestTag> runningCHKGetUIDsRT;
+	private final UIDRegistry<RequestTag> runningSSKGetUIDsRT;
+	private final UIDRegistry<InsertTag> runningCHKPutUIDsRT;
+	private final UIDRegistry<InsertTag> runningSSKPutUIDsRT;
+	private final UIDRegistry<OfferReplyTag> runningCHKOfferReplyUIDsRT;
+	private final UIDRegistry<OfferReplyTag> runningSSKOfferReplyUIDsRT;
 	
 	private final PeerManager peers;
 	private final Ticker ticker;
@@ -60,27 +51,19 @@ public class RequestTracker {
 	RequestTracker(PeerManager peers, Ticker ticker) {
 		this.peers = peers;
 		this.ticker = ticker;
-		runningCHKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningLocalCHKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningSSKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningLocalSSKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningCHKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningLocalCHKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningSSKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningLocalSSKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningCHKOfferReplyUIDsRT = new HashMap<Long,OfferReplyTag>();
-		runningSSKOfferReplyUIDsRT = new HashMap<Long,OfferReplyTag>();
-
-		runningCHKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningLocalCHKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningSSKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningLocalSSKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningCHKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningLocalCHKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningSSKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningLocalSSKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningCHKOfferReplyUIDsBulk = new HashMap<Long,OfferReplyTag>();
-		runningSSKOfferReplyUIDsBulk = new HashMap<Long,OfferReplyTag>();
+		runningCHKGetUIDsRT = new UIDRegistry<RequestTag>(false);
+		runningSSKGetUIDsRT = new UIDRegistry<RequestTag>(false);
+		runningCHKPutUIDsRT = new UIDRegistry<InsertTag>(true);
+		runningSSKPutUIDsRT = new UIDRegistry<InsertTag>(true);
+		runningCHKOfferReplyUIDsRT = new UIDRegistry<OfferReplyTag>(false);
+		runningSSKOfferReplyUIDsRT = new UIDRegistry<OfferReplyTag>(false);
+
+		runningCHKGetUIDsBulk = new UIDRegistry<RequestTag>(false);
+		runningSSKGetUIDsBulk = new UIDRegistry<RequestTag>(false);
+		runningCHKPutUIDsBulk = new UIDRegistry<InsertTag>(true);
+		runningSSKPutUIDsBulk = new UIDRegistry<InsertTag>(true);
+		runningCHKOfferReplyUIDsBulk = new UIDRegistry<OfferReplyTag>(false);
+		runningSSKOfferReplyUIDsBulk = new UIDRegistry<OfferReplyTag>(false);
 		
 		transferringRequestSendersRT = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestSendersBulk = new HashMap<NodeCHK, RequestSender>();
@@ -95,23 +78,18 @@ public class RequestTracker {
 		// If these are switched around, we must remember to remove from both.
 		if(offerReply) {
 			// local irrelevant for OfferReplyTag's.
-			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			return innerLock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
+			return innerLock(getOfferTracker(ssk, realTimeFlag), (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
 		} else if(insert) {
-			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
-			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk, local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local);
+			return innerLock(getInsertTracker(ssk, realTimeFlag), (InsertTag)tag, uid, ssk, insert, offerReply, local);
 		} else {
-			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk,false, realTimeFlag);
-			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local);
+			return innerLock(getRequestTracker(ssk, realTimeFlag), (RequestTag)tag, uid, ssk, insert, offerReply, local);
 		}
 	}
 
-	private<T extends UIDTag> boolean innerLock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
-		synchronized(overallMap) {
-			if(logMINOR) Logger.minor(this, "Locking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
-			T oldTag = overallMap.get(uid);
+	private<T extends UIDTag> boolean innerLock(UIDRegistry<T> registry, T tag, long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
+		synchronized(registry) {
+			if(logMINOR) Logger.minor(this, "Locking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+registry.size(), new Exception("debug"));
+			T oldTag = registry.get(uid);
 			if(oldTag != null) {
 				if(oldTag == tag) {
 					Logger.error(this, "Tag already registered: "+tag, new Exception("debug"));
@@ -119,25 +97,27 @@ public class RequestTracker {
 					return false;
 				}
 			}
-			overallMap.put(uid, tag);
-			if(logMINOR) Logger.minor(this, "Locked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
+			registry.put(uid, tag);
+			if(logMINOR) Logger.minor(this, "Locked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+registry.size());
 			if(local) {
-				if(logMINOR) Logger.minor(this, "Locking (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size(), new Exception("debug"));
-				oldTag = localMap.get(uid);
+				if(logMINOR) Logger.minor(this, "Locking (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+registry.localSize(), new Exception("debug"));
+				oldTag = registry.getLocal(uid);
 				if(oldTag != null) {
 					if(oldTag == tag) {
 						Logger.error(this, "Tag already registered (local): "+tag, new Exception("debug"));
 					} else {
 						// Violates the invariant that local requests are always registered on the main (non-local) map too.
 						Logger.error(this, "Different tag already registered (local) EVEN THOUGH NOT ON MAIN MAP: "+tag, new Exception("debug"));
-						overallMap.remove(uid);
+						registry.remove(uid);
 						return false;
 					}
 				}
-				localMap.put(uid, tag);
-				if(logMINOR) Logger.minor(this, "Locked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size());
+				registry.putLocal(uid, tag);
+				if(logMINOR) Logger.minor(this, "Locked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+registry.localSize());
 			}
 		}
+		// Not while holding the registry's lock, see UIDRegistry.
+		tag.startCounting(registry, local);
 		return true;
 	}
 
@@ -151,60 +131,51 @@ public class RequestTracker {
 			completed(uid);
 
 		if(offerReply) {
-			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			innerUnlock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false, canFail);
+			innerUnlock(getOfferTracker(ssk, realTimeFlag), (OfferReplyTag)tag, uid, ssk, insert, offerReply, false, canFail);
 		} else if(insert) {
-			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
-			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk,local, realTimeFlag) : null;
-			innerUnlock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
+			innerUnlock(getInsertTracker(ssk, realTimeFlag), (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
 		} else {
-			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk, false, realTimeFlag);
-			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
-			innerUnlock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
+			innerUnlock(getRequestTracker(ssk, realTimeFlag), (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
 		}
 	}
 
 	/**
 	 * Do the actual unlock.
 	 * @param <T> The type of the tag.
-	 * @param overallMap The overall map for this group of requests. LOCKING:
-	 * We use the overallMap as lock for both.
-	 * @param localMap The local map if any. We check on overallMap and then
-	 * remove from both.
+	 * @param registry The registry for this group of requests. We check the overall
+	 * map and then remove from both it and the local map.
 	 * @param tag The tag to remove.
 	 * @param uid The UID of the tag.
 	 * @param ssk Whether it is an SSK.
 	 * @param insert Whether it is an insert.
 	 * @param offerReply Whether it is an offer reply.
-	 * @param local Whether it is local. If it is local we use both maps. If
-	 * it is not we expect the latter to be null.
+	 * @param local Whether it is local. If it is local we use both maps.
 	 * @param canFail
 	 */
-	private<T extends UIDTag> void innerUnlock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
-		synchronized(overallMap) {
-			if(logMINOR) Logger.minor(this, "Unlocking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
-			if(overallMap.get(uid) != tag) {
+	private<T extends UIDTag> void innerUnlock(UIDRegistry<T> registry, T tag, long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
+		tag.stopCounting(registry);
+		synchronized(registry) {
+			if(logMINOR) Logger.minor(this, "Unlocking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+registry.size(), new Exception("debug"));
+			if(registry.get(uid) != tag) {
 				if(canFail) {
-					if(logMINOR) Logger.minor(this, "Can fail and did fail: removing "+tag+" got "+overallMap.get(uid)+" for "+uid);
+					if(logMINOR) Logger.minor(this, "Can fail and did fail: removing "+tag+" got "+registry.get(uid)+" for "+uid);
 				} else {
-					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+overallMap.get(uid));
+					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+registry.get(uid));
 				}
 			} else
-				overallMap.remove(uid);
-			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
+				registry.remove(uid);
+			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+registry.size());
 			if(local) {
-				if(localMap.get(uid) != tag) {
+				if(registry.getLocal(uid) != tag) {
 					if(canFail) {
-						if(logMINOR) Logger.minor(this, "Can fail and did fail (local): removing "+tag+" got "+localMap.get(uid)+" for "+uid);
+						if(logMINOR) Logger.minor(this, "Can fail and did fail (local): removing "+tag+" got "+registry.getLocal(uid)+" for "+uid);
 					} else {
-						Logger.error(this, "Removing "+tag+" for "+uid+" returned (local) "+localMap.get(uid));
+						Logger.error(this, "Removing "+tag+" for "+uid+" returned (local) "+registry.getLocal(uid));
 					}
 				} else
-					localMap.remove(uid);
-				if(logMINOR) Logger.minor(this, "Unlocked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size());
+					registry.removeLocal(uid);
+				if(logMINOR) Logger.minor(this, "Unlocked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+registry.localSize());
 				
-			} else {
-				assert(localMap == null);
 			}
 		}
 	}
@@ -238,43 +209,22 @@ public class RequestTracker {
 	 * @param counterSourceRestarted Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
-		synchronized(mapLock) {
-			int count = 0;
-			int transfersOut = 0;
-			int transfersIn = 0;
-			int countSR = 0;
-			int transfersOutSR = 0;
-			int transfersInSR = 0;
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				// The overall running* map can include local. But the local map can't include non-local.
-				if((!local) && tag.wasLocal) continue;
-				int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-				int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-				count++;
-				transfersOut += out;
-				transfersIn += in;
-				if(counterSourceRestarted != null && tag.countAsSourceRestarted()) {
-					countSR++;
-					transfersOutSR += out;
-					transfersInSR += in;
-				}
-				if(logDEBUG) Logger.debug(this, "UID "+entry.getKey()+" : out "+transfersOut+" in "+transfersIn);
-			}
-			counter.total += count;
-			counter.expectedTransfersIn += transfersIn;
-			counter.expectedTransfersOut += transfersOut;
-			if(counterSourceRestarted != null) {
-				counterSourceRestarted.total += countSR;
-				counterSourceRestarted.expectedTransfersIn += transfersInSR;
-				counterSourceRestarted.expectedTransfersOut += transfersOutSR;
-			}
-		}
+		// The tags keep the totals up to date, so we don't need to look at each request.
+		UIDRegistry<? extends UIDTag> registry = getTracker(ssk, insert, offer, realTimeFlag);
+		addTotals(registry, local, 0, transfersPerInsert, ignoreLocalVsRemote, counter);
+		if(counterSourceRestarted != null)
+			addTotals(registry, local, UIDRegistry.SOURCE_RESTARTED, transfersPerInsert, ignoreLocalVsRemote, counterSourceRestarted);
+		if(logDEBUG) Logger.debug(this, "Counted "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+counter.total+" out "+counter.expectedTransfersOut+" in "+counter.expectedTransfersIn);
+	}
+	
+	private static void addTotals(UIDRegistry<?> registry, boolean local, int offset, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter) {
+		counter.total += registry.total(local, offset + UIDRegistry.COUNT);
+		counter.expectedTransfersIn += registry.total(local, offset + 
+				(ignoreLocalVsRemote ? UIDRegistry.TRANSFERS_IN_IGNORE_LOCAL : UIDRegistry.TRANSFERS_IN));
+		int out = registry.total(local, offset + 
+				(ignoreLocalVsRemote ? UIDRegistry.TRANSFERS_OUT_IGNORE_LOCAL : UIDRegistry.TRANSFERS_OUT));
+		// An insert counts as one outgoing transfer in the totals.
+		counter.expectedTransfersOut += registry.insert ? out * transfersPerInsert : out;
 	}
 
 	/**
@@ -300,12 +250,9 @@ public class RequestTracker {
 	 * @param counterSR Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(PeerNode source, boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
-		synchronized(mapLock) {
+		UIDRegistry<? extends UIDTag> registry = getTracker(ssk, insert, offer, realTimeFlag);
+		// The local map is locked by the registry too.
+		synchronized(registry) {
 			int count = 0;
 			int transfersOut = 0;
 			int transfersIn = 0;
@@ -317,8 +264,7 @@ public class RequestTracker {
 				// remote map despite having source == null. However, if a request is in the
 				// local map it will always have source == null.
 				if(source != null && local) return;
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
+				for(UIDTag tag : registry.tags(local)) {
 					// The overall running* map can include local. But the local map can't include non-local.
 					if((!local) && tag.wasLocal) continue;
 					if(tag.getSource() == source) {
@@ -332,8 +278,8 @@ public class RequestTracker {
 							transfersOutSR += out;
 							transfersInSR += in;
 						}
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+entry.getKey()+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
+						if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+tag.uid+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
+					} else if(logDEBUG) Logger.debug(this, "Not counting "+tag.uid);
 				}
 				if(logMINOR) Logger.minor(this, "Returning count: "+count+" in: "+transfersIn+" out: "+transfersOut);
 				counter.total += count;
@@ -347,25 +293,24 @@ public class RequestTracker {
 			} else {
 				// hasSourceRestarted is irrelevant for requests *to* a node.
 				// FIXME improve efficiency!
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
+				for(UIDTag tag : registry.tags(local)) {
 					// The overall running* map can include local. But the local map can't include non-local.
 					if((!local) && tag.wasLocal) continue;
 					// Ordinary requests can be routed to an offered key.
 					// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
 					if(tag.currentlyFetchingOfferedKeyFrom(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
+						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+tag.uid);
 						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
 						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
 						count++;
 					} else if(tag.currentlyRoutingTo(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
+						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+tag.uid);
 						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
 						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
 						count++;
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
+					} else if(logDEBUG) Logger.debug(this, "Not counting "+tag.uid);
 				}
-				if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+map.size()+" for "+source);
+				if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+(local ? registry.localSize() : registry.size())+" for "+source);
 				counter.total += count;
 				counter.expectedTransfersIn += transfersIn;
 				counter.expectedTransfersOut += transfersOut;
@@ -390,18 +335,14 @@ public class RequestTracker {
 	 * restarted, requests where the originator PeerNode has been removed from the routing table
 	 * etc. */
 	public void countAllRequestsByIncomingPeer(boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, Map<PeerNode, CountedRequests> counterMap) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
-		synchronized(mapLock) {
+		UIDRegistry<? extends UIDTag> registry = getTracker(ssk, insert, offer, realTimeFlag);
+		// The local map is locked by the registry too.
+		synchronized(registry) {
 			if(!requestsToNode) {
 				// If a request is adopted by us as a result of a timeout, it can be in the
 				// remote map despite having source == null. However, if a request is in the
 				// local map it will always have source == null.
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
+				for(UIDTag tag : registry.tags(local)) {
 					// The overall running* map can include local. But the local map can't include non-local.
 					if((!local) && tag.wasLocal) continue;
 					PeerNode source = tag.getSource(); // Can be null in various cases
@@ -444,11 +385,11 @@ public class RequestTracker {
 		return slots;
 	}
 	
-	private void countRequestsWaitingForSlots(HashMap<Long, ? extends UIDTag> runningUIDs, WaitingForSlots slots) {
+	private void countRequestsWaitingForSlots(UIDRegistry<? extends UIDTag> runningUIDs, WaitingForSlots slots) {
 		// FIXME use a counter, but that means make sure it always removes it when something bad happens.
 		
 		synchronized(runningUIDs) {
-			for(UIDTag tag : runningUIDs.values()) {
+			for(UIDTag tag : runningUIDs.tags(false)) {
 				if(!tag.isWaitingForSlot()) continue;
 				if(tag.isLocal())
 					slots.local++;
@@ -463,50 +404,32 @@ public class RequestTracker {
 		tag.reassignToSelf();
 	}
 
-	private HashMap<Long, ? extends UIDTag> getTracker(boolean local, boolean ssk,
+	private UIDRegistry<? extends UIDTag> getTracker(boolean ssk,
 			boolean insert, boolean offer, boolean realTimeFlag) {
 		if(offer)
 			return getOfferTracker(ssk, realTimeFlag);
 		else if(insert)
-			return getInsertTracker(ssk, local, realTimeFlag);
+			return getInsertTracker(ssk, realTimeFlag);
 		else
-			return getRequestTracker(ssk, local, realTimeFlag);
+			return getRequestTracker(ssk, realTimeFlag);
 	}
 
 
-	private HashMap<Long, RequestTag> getRequestTracker(boolean ssk, boolean local, boolean realTimeFlag) {
-		if(realTimeFlag) {
-			if(ssk) {
-				return local ? runningLocalSSKGetUIDsRT : runningSSKGetUIDsRT;
-			} else {
-				return local ? runningLocalCHKGetUIDsRT : runningCHKGetUIDsRT;
-			}
-		} else {
-			if(ssk) {
-				return local ? runningLocalSSKGetUIDsBulk : runningSSKGetUIDsBulk;
-			} else {
-				return local ? runningLocalCHKGetUIDsBulk : runningCHKGetUIDsBulk;
-			}
-		}
+	private UIDRegistry<RequestTag> getRequestTracker(boolean ssk, boolean realTimeFlag) {
+		if(realTimeFlag)
+			return ssk ? runningSSKGetUIDsRT : runningCHKGetUIDsRT;
+		else
+			return ssk ? runningSSKGetUIDsBulk : runningCHKGetUIDsBulk;
 	}
 
-	private HashMap<Long, InsertTag> getInsertTracker(boolean ssk, boolean local, boolean realTimeFlag) {
-		if(realTimeFlag) {
-			if(ssk) {
-				return local ? runningLocalSSKPutUIDsRT : runningSSKPutUIDsRT;
-			} else {
-				return local ? runningLocalCHKPutUIDsRT : runningCHKPutUIDsRT;
-			}
-		} else {
-			if(ssk) {
-				return local ? runningLocalSSKPutUIDsBulk : runningSSKPutUIDsBulk;
-			} else {
-				return local ? runningLocalCHKPutUIDsBulk : runningCHKPutUIDsBulk;
-			}
-		}
+	private UIDRegistry<InsertTag> getInsertTracker(boolean ssk, boolean realTimeFlag) {
+		if(realTimeFlag)
+			return ssk ? runningSSKPutUIDsRT : runningCHKPutUIDsRT;
+		else
+			return ssk ? runningSSKPutUIDsBulk : runningCHKPutUIDsBulk;
 	}
 
-	private HashMap<Long, OfferReplyTag> getOfferTracker(boolean ssk, boolean realTimeFlag) {
+	private UIDRegistry<OfferReplyTag> getOfferTracker(boolean ssk, boolean realTimeFlag) {
 		if(realTimeFlag)
 			return ssk ? runningSSKOfferReplyUIDsRT : runningCHKOfferReplyUIDsRT;
 		else
@@ -542,16 +465,16 @@ public class RequestTracker {
 			}
 		}
 
-		private void checkUIDs(HashMap<Long, ? extends UIDTag> map) {
-			Long[] uids;
-			UIDTag[] tags;
-			synchronized(map) {
-				uids = map.keySet().toArray(new Long[map.size()]);
-				tags = map.values().toArray(new UIDTag[map.size()]);
+		private void checkUIDs(UIDRegistry<? extends UIDTag> registry) {
+			ArrayList<UIDTag> tags;
+			synchronized(registry) {
+				tags = new ArrayList<UIDTag>(registry.size());
+				for(UIDTag tag : registry.tags(false))
+					tags.add(tag);
 			}
 			long now = System.currentTimeMillis();
-			for(int i=0;i<uids.length;i++) {
-				tags[i].maybeLogStillPresent(now, uids[i]);
+			for(UIDTag tag : tags) {
+				tag.maybeLogStillPresent(now, tag.uid);
 			}
 		}
 	};
@@ -573,172 +496,72 @@ public class RequestTracker {
 	}
 
 	private void onRestartOrDisconnect(PeerNode pn,
-			HashMap<Long, ? extends UIDTag> uids) {
+			UIDRegistry<? extends UIDTag> uids) {
 		synchronized(uids) {
-			for(UIDTag tag : uids.values()) {
+			for(UIDTag tag : uids.tags(false)) {
 				if(tag.isSource(pn))
 					tag.onRestartOrDisconnectSource();
 			}
 		}
 	}
 	
+	// The sizes are volatile so these don't need to lock the registries.
+	
 	public int getNumSSKRequests() {
-		int total = 0;
 		// running* include all requests, local and remote.
-		synchronized(runningSSKGetUIDsBulk) {
-			total += runningSSKGetUIDsBulk.size();
-		}
-		synchronized(runningSSKGetUIDsRT) {
-			total += runningSSKGetUIDsRT.size();
-		}
-		return total;
+		return runningSSKGetUIDsBulk.size() + runningSSKGetUIDsRT.size();
 	}
 
 	public int getNumCHKRequests() {
-		int total = 0;
-		synchronized(runningCHKGetUIDsBulk) {
-			total += runningCHKGetUIDsBulk.size();
-		}
-		synchronized(runningCHKGetUIDsRT) {
-			total += runningCHKGetUIDsRT.size();
-		}
-		return total;
+		return runningCHKGetUIDsBulk.size() + runningCHKGetUIDsRT.size();
 	}
 
 	public int getNumSSKInserts() {
-		int total = 0;
-		synchronized(runningSSKPutUIDsBulk) {
-			total += runningSSKPutUIDsBulk.size();
-		}
-		synchronized(runningSSKPutUIDsRT) {
-			total += runningSSKPutUIDsRT.size();
-		}
-		return total;
+		return runningSSKPutUIDsBulk.size() + runningSSKPutUIDsRT.size();
 	}
 
 	public int getNumCHKInserts() {
-		int total = 0;
-		synchronized(runningCHKPutUIDsBulk) {
-			total += runningCHKPutUIDsBulk.size();
-		}
-		synchronized(runningCHKPutUIDsRT) {
-			total += runningCHKPutUIDsRT.size();
-		}
-		return total;
+		return runningCHKPutUIDsBulk.size() + runningCHKPutUIDsRT.size();
 	}
 
 	public int getNumLocalSSKRequests() {
-		int total = 0;
-		synchronized(runningSSKGetUIDsBulk) {
-			total += runningLocalSSKGetUIDsBulk.size();
-		}
-		synchronized(runningSSKGetUIDsRT) {
-			total += runningLocalSSKGetUIDsRT.size();
-		}
-		return total;
+		return runningSSKGetUIDsBulk.localSize() + runningSSKGetUIDsRT.localSize();
 	}
 
 	public int getNumLocalCHKRequests() {
-		int total = 0;
-		synchronized(runningCHKGetUIDsBulk) {
-			total += runningLocalCHKGetUIDsBulk.size();
-		}
-		synchronized(runningCHKGetUIDsRT) {
-			total += runningLocalCHKGetUIDsRT.size();
-		}
-		return total;
+		return runningCHKGetUIDsBulk.localSize() + runningCHKGetUIDsRT.localSize();
 	}
 
 	public int getNumRemoteCHKRequests() {
-		int total = 0;
-		synchronized(runningCHKGetUIDsBulk) {
-			total += runningCHKGetUIDsBulk.size();
-			total -= runningLocalCHKGetUIDsBulk.size();
-		}
-		synchronized(runningCHKGetUIDsRT) {
-			total += runningCHKGetUIDsRT.size();
-			total -= runningLocalCHKGetUIDsRT.size();
-		}
-		return total;
+		return runningCHKGetUIDsBulk.remoteSize() + runningCHKGetUIDsRT.remoteSize();
 	}
 
 	public int getNumRemoteSSKRequests() {
-		int total = 0;
-		synchronized(runningSSKGetUIDsBulk) {
-			total += runningSSKGetUIDsBulk.size();
-			total -= runningLocalSSKGetUIDsBulk.size();
-		}
-		synchronized(runningSSKGetUIDsRT) {
-			total += runningSSKGetUIDsRT.size();
-			total -= runningLocalSSKGetUIDsRT.size();
-		}
-		return total;
+		return runningSSKGetUIDsBulk.remoteSize() + runningSSKGetUIDsRT.remoteSize();
 	}
 
 	public int getNumLocalCHKInserts() {
-		int total = 0;
-		synchronized(runningCHKPutUIDsBulk) {
-			total += runningLocalCHKPutUIDsBulk.size();
-		}
-		synchronized(runningCHKPutUIDsRT) {
-			total += runningLocalCHKPutUIDsRT.size();
-		}
-		return total;
+		return runningCHKPutUIDsBulk.localSize() + runningCHKPutUIDsRT.localSize();
 	}
 
 	public int getNumLocalSSKInserts() {
-		int total = 0;
-		synchronized(runningSSKPutUIDsBulk) {
-			total += runningLocalSSKPutUIDsBulk.size();
-		}
-		synchronized(runningSSKPutUIDsRT) {
-			total += runningLocalSSKPutUIDsRT.size();
-		}
-		return total;
+		return runningSSKPutUIDsBulk.localSize() + runningSSKPutUIDsRT.localSize();
 	}
 
 	public int getNumRemoteCHKInserts() {
-		int total = 0;
-		synchronized(runningCHKPutUIDsBulk) {
-			total += runningCHKPutUIDsBulk.size() - runningLocalCHKPutUIDsBulk.size();
-		}
-		synchronized(runningCHKPutUIDsRT) {
-			total += runningCHKPutUIDsRT.size() - runningLocalCHKPutUIDsRT.size();
-		}
-		return total;
+		return runningCHKPutUIDsBulk.remoteSize() + runningCHKPutUIDsRT.remoteSize();
 	}
 
 	public int getNumRemoteSSKInserts() {
-		int total = 0;
-		synchronized(runningSSKPutUIDsRT) {
-			total += runningSSKPutUIDsRT.size() - runningLocalSSKPutUIDsRT.size();
-		}
-		synchronized(runningSSKPutUIDsBulk) {
-			total += runningSSKPutUIDsBulk.size() - runningLocalSSKPutUIDsBulk.size();
-		}
-		return total;
+		return runningSSKPutUIDsRT.remoteSize() + runningSSKPutUIDsBulk.remoteSize();
 	}
 
 	public int getNumSSKOfferReplies() {
-		int total = 0;
-		synchronized(runningSSKOfferReplyUIDsRT) {
-			total += runningSSKOfferReplyUIDsRT.size();
-		}
-		synchronized(runningSSKOfferReplyUIDsBulk) {
-			total += runningSSKOfferReplyUIDsBulk.size();
-		}
-		return total;
+		return runningSSKOfferReplyUIDsRT.size() + runningSSKOfferReplyUIDsBulk.size();
 	}
 
 	public int getNumCHKOfferReplies() {
-		int total = 0;
-		synchronized(runningCHKOfferReplyUIDsRT) {
-			total += runningCHKOfferReplyUIDsRT.size();
-		}
-		synchronized(runningCHKOfferReplyUIDsBulk) {
-			total += runningCHKOfferReplyUIDsBulk.size();
-		}
-		return total;
+		return runningCHKOfferReplyUIDsRT.size() + runningCHKOfferReplyUIDsBulk.size();
 	}
 
 	public int getNumSSKOfferReplies(boolean realTimeFlag) {
@@ -764,9 +587,10 @@ public class RequestTracker {
 		addRunningUIDs(runningCHKOfferReplyUIDsBulk, list);
 	}
 	
-	private void addRunningUIDs(HashMap<Long, ? extends UIDTag> runningUIDs, List<Long> list) {
+	private void addRunningUIDs(UIDRegistry<? extends UIDTag> runningUIDs, List<Long> list) {
 		synchronized(runningUIDs) {
-			list.addAll(runningUIDs.keySet());
+			for(UIDTag tag : runningUIDs.tags(false))
+				list.add(tag.uid);
 		}
 	}
 
@@ -0,0 +1,139 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import freenet.support.LongHashMap;
+
+/**
+ * The running requests of one type (CHK or SSK; request, insert or offer reply; realtime or
+ * bulk), by UID, for RequestTracker. Keeps running totals of how many requests there are and
+ * how many transfers they are expected to cause, so that load management can count the running
+ * requests without looking at each one.
+ *
+ * The totals are kept up to date by the tags: a tag is counted from when it is locked until it
+ * is unlocked, and tells us whenever something changes which affects its expected transfers.
+ *
+ * LOCKING: Synchronize on the registry to use the maps, as with the HashMap's it replaces. The
+ * sizes and totals can be read at any time without locking. The tags update the totals with
+ * their own locks held, so must not take the registry's lock.
+ */
+class UIDRegistry<T extends UIDTag> {
+
+	// Indexes into the totals, and into what each tag is counted as.
+	static final int COUNT = 0;
+	static final int TRANSFERS_IN = 1;
+	static final int TRANSFERS_IN_IGNORE_LOCAL = 2;
+	/** Multiplied by the transfers per insert for inserts. */
+	static final int TRANSFERS_OUT = 3;
+	static final int TRANSFERS_OUT_IGNORE_LOCAL = 4;
+	/** Add this to the above to get the totals for requests which count as source restarted. */
+	static final int SOURCE_RESTARTED = 5;
+	static final int FIELDS = 10;
+
+	/** All running requests of this type, local and remote. */
+	private final LongHashMap<T> all;
+	/** Locally originated requests, which are in all too. */
+	private final LongHashMap<T> local;
+	private volatile int size;
+	private volatile int localSize;
+	/** Totals for requests in the local map. */
+	private final AtomicIntegerArray localTotals;
+	/** Totals for requests which were not originated locally. */
+	private final AtomicIntegerArray remoteTotals;
+	final boolean insert;
+
+	UIDRegistry(boolean insert) {
+		this.insert = insert;
+		all = new LongHashMap<T>();
+		local = new LongHashMap<T>();
+		localTotals = new AtomicIntegerArray(FIELDS);
+		remoteTotals = new AtomicIntegerArray(FIELDS);
+	}
+
+	T get(long uid) {
+		return all.get(uid);
+	}
+
+	void put(long uid, T tag) {
+		all.put(uid, tag);
+		size = all.size();
+	}
+
+	void remove(long uid) {
+		all.remove(uid);
+		size = all.size();
+	}
+
+	T getLocal(long uid) {
+		return local.get(uid);
+	}
+
+	void putLocal(long uid, T tag) {
+		local.put(uid, tag);
+		localSize = local.size();
+	}
+
+	void removeLocal(long uid) {
+		local.remove(uid);
+		localSize = local.size();
+	}
+
+	/** All the running requests, or only the local ones. Caller must hold the lock while
+	 * iterating. */
+	Iterable<T> tags(boolean localOnly) {
+		return localOnly ? local.values() : all.values();
+	}
+
+	/** @return The number of running requests, local and remote. No lock needed. */
+	int size() {
+		return size;
+	}
+
+	/** @return The number of running locally originated requests. No lock needed. */
+	int localSize() {
+		return localSize;
+	}
+
+	/** @return The number of running requests not originated locally. No lock needed. */
+	int remoteSize() {
+		return size - localSize;
+	}
+
+	/**
+	 * Get a total for the requests which are counted.
+	 * @param localOnly If true, only locally originated requests, otherwise only requests which
+	 * were not originated locally.
+	 * @param field One of the constants above.
+	 */
+	int total(boolean localOnly, int field) {
+		return (localOnly ? localTotals : remoteTotals).get(field);
+	}
+
+	/** What a tag counts for now. Caller must hold the tag's lock. */
+	int[] countsFor(UIDTag tag) {
+		int[] counts = new int[FIELDS];
+		counts[COUNT] = 1;
+		counts[TRANSFERS_IN] = tag.expectedTransfersIn(false, 1, true);
+		counts[TRANSFERS_IN_IGNORE_LOCAL] = tag.expectedTransfersIn(true, 1, true);
+		counts[TRANSFERS_OUT] = tag.expectedTransfersOut(false, 1, true);
+		counts[TRANSFERS_OUT_IGNORE_LOCAL] = tag.expectedTransfersOut(true, 1, true);
+		if(tag.countAsSourceRestarted())
+			System.arraycopy(counts, 0, counts, SOURCE_RESTARTED, SOURCE_RESTARTED);
+		return counts;
+	}
+
+	/** Add or remove what a tag counts for.
+	 * @param inLocal Whether the tag is in the local map.
+	 * @param sign 1 to add, -1 to remove. */
+	void add(int[] counts, boolean inLocal, boolean wasLocal, int sign) {
+		for(int i=0;i<FIELDS;i++) {
+			if(counts[i] == 0) continue;
+			if(inLocal) localTotals.addAndGet(i, sign * counts[i]);
+			if(!wasLocal) remoteTotals.addAndGet(i, sign * counts[i]);
+		}
+	}
+
+}
@@ -57,12 +57,25 @@ public abstract class UIDTag {
 	
 	private boolean waitingForSlot;
 	
+	/** The registry whose totals we are counted in while we are running, or null. */
+	private UIDRegistry<?> countedIn;
+	/** Whether we are in the registry's local map. */
+	private boolean countedAsLocal;
+	/** What we are counted as in the registry's totals. */
+	private int[] counted;
+	
 	UIDTag(PeerNode source, boolean realTimeFlag, long uid, Node node) {
+		this(source == null ? null : source.myRef, realTimeFlag, uid, node.tracker);
+	}
+	
+	/** For tests, which don't have a Node.
+	 * @param sourceRef The source's reference, or null if the request was originated locally. */
+	UIDTag(WeakReference<PeerNode> sourceRef, boolean realTimeFlag, long uid, RequestTracker tracker) {
 		createdTime = System.currentTimeMillis();
-		this.sourceRef = source == null ? null : source.myRef;
-		wasLocal = source == null;
+		this.sourceRef = sourceRef;
+		wasLocal = sourceRef == null;
 		this.realTimeFlag = realTimeFlag;
-		this.tracker = node.tracker;
+		this.tracker = tracker;
 		this.uid = uid;
 		if(logMINOR)
 			Logger.minor(this, "Created "+this);
@@ -222,6 +235,34 @@ public abstract class UIDTag {
 	
 	public synchronized void setNotRoutedOnwards() {
 		this.notRoutedOnwards = true;
+		countsChanged();
+	}
+	
+	/** Start counting this tag in the totals of the registry it has been locked in. */
+	synchronized void startCounting(UIDRegistry<?> registry, boolean local) {
+		if(countedIn != null) return;
+		countedIn = registry;
+		countedAsLocal = local;
+		counted = registry.countsFor(this);
+		registry.add(counted, local, wasLocal, 1);
+	}
+	
+	/** Stop counting this tag, when it is unlocked. */
+	synchronized void stopCounting(UIDRegistry<?> registry) {
+		if(countedIn != registry) return;
+		registry.add(counted, countedAsLocal, wasLocal, -1);
+		countedIn = null;
+		counted = null;
+	}
+	
+	/** Must be called, with the lock held, whenever anything changes which affects 
+	 * expectedTransfersIn(), expectedTransfersOut() or countAsSourceRestarted(). */
+	protected final void countsChanged() {
+		if(countedIn == null) return;
+		int[] newCounts = countedIn.countsFor(this);
+		countedIn.add(counted, countedAsLocal, wasLocal, -1);
+		countedIn.add(newCounts, countedAsLocal, wasLocal, 1);
+		counted = newCounts;
 	}
 
 	private boolean reassigned;
@@ -238,6 +279,7 @@ public abstract class UIDTag {
 	public synchronized void reassignToSelf() {
 		if(wasLocal) return;
 		reassigned = true;
+		countsChanged();
 	}
 	
 	/** Was the request originated locally? This returns the original answer: It is not
@@ -331,6 +373,7 @@ public abstract class UIDTag {
 			if(unlockedHandler) return;
 			noRecordUnlock = noRecord;
 			unlockedHandler = true;
+			countsChanged();
 			canUnlock = mustUnlock();
 		}
 		if(canUnlock)
@@ -403,6 +446,7 @@ public abstract class UIDTag {
 
 	public synchronized void setAccepted() {
 		accepted = true;
+		countsChanged();
 	}
 	
 	private boolean timedOutButContinued;
@@ -413,11 +457,13 @@ public abstract class UIDTag {
 	 * messages to the request source. */
 	public synchronized void timedOutToHandlerButContinued() {
 		timedOutButContinued = true;
+		countsChanged();
 	}
 	
 	/** The handler disconnected or restarted. */
 	public synchronized void onRestartOrDisconnectSource() {
 		sourceRestarted = true;
+		countsChanged();
 	}
 	
 	// The third option is reassignToSelf(). We only use that when we actually
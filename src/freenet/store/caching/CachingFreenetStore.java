@@ -1,6 +1,11 @@
 package freenet.store.caching;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -13,6 +18,7 @@ import freenet.store.KeyCollisionException;
 import freenet.store.ProxyFreenetStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.ByteArrayWrapper;
 import freenet.support.LRUMap;
 import freenet.support.Logger;
@@ -50,6 +56,25 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		boolean isOldBlock;
 	}
 
+	/** A block being written back in a batch, with where it is likely to go on disk. */
+	private final static class PendingWrite<T> {
+		final ByteArrayWrapper key;
+		final Block<T> block;
+		long slot;
+
+		PendingWrite(ByteArrayWrapper key, Block<T> block) {
+			this.key = key;
+			this.block = block;
+		}
+	}
+
+	private static final Comparator<PendingWrite<?>> BY_SLOT = new Comparator<PendingWrite<?>>() {
+		@Override
+		public int compare(PendingWrite<?> a, PendingWrite<?> b) {
+			return Long.compare(a.slot, b.slot);
+		}
+	};
+
 	public CachingFreenetStore(StoreCallback<T> callback, FreenetStore<T> backDatastore, CachingFreenetStoreTracker tracker) {
 		super(backDatastore);
 		this.callback = callback;
@@ -216,6 +241,67 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		return 0;
 	}
 
+	/** Try to write up to maxBlocks of the least recently used blocks to disk. If the underlying
+	 * store is a salted hash store, they are written in slot order, so that the disk mostly sees
+	 * a sweep rather than random writes.
+	 * @return The number of bytes removed from the cache, which may be 0 if the blocks changed
+	 * while we were writing them, or -1 if the cache is empty.
+	 */
+	long pushLeastRecentlyBlocks(int maxBlocks) {
+		List<PendingWrite<T>> writes = new ArrayList<PendingWrite<T>>(maxBlocks);
+
+		configLock.writeLock().lock();
+		try {
+			Enumeration<ByteArrayWrapper> keys = blocksByRoutingKey.keys();
+			while(writes.size() < maxBlocks && keys.hasMoreElements()) {
+				ByteArrayWrapper key = keys.nextElement();
+				writes.add(new PendingWrite<T>(key, blocksByRoutingKey.get(key)));
+			}
+		} finally {
+			configLock.writeLock().unlock();
+		}
+		if(writes.isEmpty()) return -1;
+
+		if(writes.size() > 1 && backDatastore instanceof SaltedHashFreenetStore) {
+			SaltedHashFreenetStore<T> saltedStore = (SaltedHashFreenetStore<T>) backDatastore;
+			for(PendingWrite<T> write : writes)
+				write.slot = saltedStore.getFirstSlot(write.block.block.getRoutingKey());
+			Collections.sort(writes, BY_SLOT);
+		}
+
+		for(PendingWrite<T> write : writes) {
+			Block<T> block = write.block;
+			try {
+				backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
+			} catch (IOException e) {
+				Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
+			} catch (KeyCollisionException e) {
+				if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
+			}
+		}
+
+		long removed = 0;
+		configLock.writeLock().lock();
+		try {
+			for(PendingWrite<T> write : writes) {
+				Block<T> currentVersionOfBlock = blocksByRoutingKey.get(write.key);
+				// Don't remove it if there was a put() with overwrite=true in the meantime.
+				if(currentVersionOfBlock != null && currentVersionOfBlock.block.equals(write.block.block)) {
+					if(blocksByRoutingKey.removeKey(write.key))
+						removed += sizeBlock;
+				}
+			}
+		} finally {
+			configLock.writeLock().unlock();
+		}
+		return removed;
+	}
+
+	/** Number of blocks waiting to be written to the underlying store. */
+	int pendingBlocks() {
+		return blocksByRoutingKey.size();
+	}
+
 	@Override
 	public boolean start(Ticker ticker, boolean longStart) throws IOException {
 		tracker.registerCachingFS(this);
@@ -4,6 +4,8 @@ import java.util.ArrayList;
 
 import freenet.support.Logger;
 import freenet.support.Ticker;
+import freenet.support.math.RunningAverage;
+import freenet.support.math.SimpleRunningAverage;
 
 /**
  * Tracks the memory used by a bunch of CachingFreenetStore's, and writes blocks to disk when full or 
@@ -36,6 +38,13 @@ public class CachingFreenetStoreTracker {
 	 * straight away. */
 	private boolean runningJob;
 	private long size;
+
+	/** Statistics, protected by (this). */
+	private long bytesWritten;
+	private long flushes;
+	private final long createdTime;
+	/** Time taken to write one batch of blocks to an underlying store, in milliseconds. */
+	private final RunningAverage flushTime = new SimpleRunningAverage(100, 0.0);
 	
     static { Logger.registerClass(CachingFreenetStore.class); }
     
@@ -48,6 +57,7 @@ public class CachingFreenetStoreTracker {
 		this.queuedJob = false;
 		this.cachingStores = new ArrayList<CachingFreenetStore<?>>();
 		this.ticker = ticker;
+		this.createdTime = System.currentTimeMillis();
 	}
 
 	/** register a CachingFreenetStore to be called when we get full or to flush all after a setted period. */
@@ -147,26 +157,61 @@ public class CachingFreenetStoreTracker {
 	        synchronized (cachingStores) {
 	            cachingStoresSnapshot = this.cachingStores.toArray(new CachingFreenetStore<?>[cachingStores.size()]);
 	        }
+			boolean anyBlocks = false;
 			for(CachingFreenetStore<?> cfs : cachingStoresSnapshot) {
-				int k=0;
-				while(k < numberOfKeysToWrite) {
-					long sizeBlock = cfs.pushLeastRecentlyBlock();
-					if(sizeBlock == -1) break;
-					synchronized(this) {
-						size -= sizeBlock;
-						assert(size >= 0); // Break immediately if in unit testing.
-						if(size < 0) {
-							Logger.error(this, "Cache broken: Size = "+size);
-							size = 0;
-						}
-						if(size == 0) return;
+				long start = System.currentTimeMillis();
+				long sizeBlocks = cfs.pushLeastRecentlyBlocks(numberOfKeysToWrite);
+				if(sizeBlocks == -1) continue;
+				anyBlocks = true;
+				long time = System.currentTimeMillis() - start;
+				synchronized(this) {
+					flushTime.report(time);
+					flushes++;
+					bytesWritten += sizeBlocks;
+					size -= sizeBlocks;
+					assert(size >= 0); // Break immediately if in unit testing.
+					if(size < 0) {
+						Logger.error(this, "Cache broken: Size = "+size);
+						size = 0;
 					}
-					k++;
+					if(size == 0) return;
 				}
 			}
+			// Don't spin if every store is empty, size may be updated by a put() in progress.
+			if(!anyBlocks) return;
 		}
 	}
 	
+	/** @return The number of blocks waiting to be written to disk, across all stores. */
+	public int getQueuedBlocks() {
+		int total = 0;
+		synchronized (cachingStores) {
+			for(CachingFreenetStore<?> cfs : cachingStores)
+				total += cfs.pendingBlocks();
+		}
+		return total;
+	}
+
+	/** @return The average time taken to write a batch of blocks to disk, in milliseconds. */
+	public synchronized double getAverageFlushTime() {
+		return flushTime.currentValue();
+	}
+
+	public synchronized long getFlushCount() {
+		return flushes;
+	}
+
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/** @return The average rate at which blocks have been written back, in bytes per second. */
+	public synchronized double getBytesWrittenPerSecond() {
+		long elapsed = System.currentTimeMillis() - createdTime;
+		if(elapsed <= 0) return 0.0;
+		return bytesWritten * 1000.0 / elapsed;
+	}
+
 	public long getSizeOfCache() {
 		long sizeReturned;
 		synchronized(this) {
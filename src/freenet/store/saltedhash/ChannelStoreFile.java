@@ -0,0 +1,64 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import freenet.support.io.Fallocate;
+
+/**
+ * Default {@link StoreFile}: every access is a positional read or write on the
+ * {@link FileChannel}.
+ */
+class ChannelStoreFile implements StoreFile {
+
+	private final RandomAccessFile raf;
+	private final FileChannel fc;
+
+	ChannelStoreFile(RandomAccessFile raf) {
+		this.raf = raf;
+		this.fc = raf.getChannel();
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		return fc.read(dst, position);
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		return fc.write(src, position);
+	}
+
+	@Override
+	public long length() throws IOException {
+		return raf.length();
+	}
+
+	@Override
+	public void setLength(long newLength) throws IOException {
+		raf.setLength(newLength);
+	}
+
+	@Override
+	public void preallocate(long newLength) throws IOException {
+		long oldLength = raf.length();
+		if(oldLength < newLength)
+			Fallocate.forChannel(fc, newLength).fromOffset(oldLength).execute();
+	}
+
+	@Override
+	public void force() throws IOException {
+		fc.force(true);
+	}
+
+	@Override
+	public void close() throws IOException {
+		fc.close();
+	}
+
+}
@@ -15,24 +15,52 @@ import freenet.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
+ *
  * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * The offsets are spread over a fixed number of stripes, each with its own monitor and map of
+ * locked offsets, so that threads working on unrelated slots (request threads, the cleaner) do
+ * not contend with each other. A stripe is only held while the lock table itself is updated,
+ * never while the caller holds the entry lock.
+ *
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
+	/** Must be a power of 2. */
+	static final int DEFAULT_STRIPES = 64;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final Stripe[] stripes;
+	private final int stripeMask;
+
+	private static class Stripe {
+		final Lock entryLock = new ReentrantLock();
+		final Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	}
 
 	LockManager() {
+		this(DEFAULT_STRIPES);
+	}
+
+	LockManager(int stripeCount) {
+		if(stripeCount <= 0 || Integer.bitCount(stripeCount) != 1)
+			throw new IllegalArgumentException("Stripe count must be a power of 2");
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		stripes = new Stripe[stripeCount];
+		for(int i = 0; i < stripeCount; i++)
+			stripes[i] = new Stripe();
+		stripeMask = stripeCount - 1;
+	}
+
+	private Stripe stripe(long offset) {
+		int h = (int) (offset ^ (offset >>> 32));
+		h ^= (h >>> 16);
+		return stripes[h & stripeMask];
 	}
 
 	/**
 	 * Lock the entry
-	 * 
+	 *
 	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
 	 * then one lock at a time (or deadlock may occur).
 	 */
@@ -40,24 +68,25 @@ public class LockManager {
 		if (logDEBUG)
 			Logger.debug(this, "try locking " + offset, new Exception());
 
+		Stripe stripe = stripe(offset);
 		Condition condition;
 		try {
-			entryLock.lock();
+			stripe.entryLock.lock();
 			try {
 				do {
 					if (shutdown)
 						return null;
 
-					Condition lockCond = lockMap.get(offset);
+					Condition lockCond = stripe.lockMap.get(offset);
 					if (lockCond != null)
 						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
 					else
 						break;
 				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+				condition = stripe.entryLock.newCondition();
+				stripe.lockMap.put(offset, condition);
 			} finally {
-				entryLock.unlock();
+				stripe.entryLock.unlock();
 			}
 		} catch (InterruptedException e) {
 			Logger.error(this, "lock interrupted", e);
@@ -76,13 +105,15 @@ public class LockManager {
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
-		entryLock.lock();
+		Stripe stripe = stripe(offset);
+		stripe.entryLock.lock();
 		try {
-			Condition cond = lockMap.remove(offset);
+			Condition cond = stripe.lockMap.remove(offset);
 			assert cond == condition;
-			cond.signal();
+			// Wake everyone: both lockEntry() and shutdown() may be waiting on it.
+			cond.signalAll();
 		} finally {
-			entryLock.unlock();
+			stripe.entryLock.unlock();
 		}
 	}
 
@@ -91,14 +122,16 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for (Stripe stripe : stripes) {
+			stripe.entryLock.lock();
+			try {
+				while (!stripe.lockMap.isEmpty()) {
+					Condition cond = stripe.lockMap.values().iterator().next();
+					cond.awaitUninterruptibly();
+				}
+			} finally {
+				stripe.entryLock.unlock();
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
 }
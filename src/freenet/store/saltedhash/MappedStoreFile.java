@@ -0,0 +1,303 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.support.Logger;
+import freenet.support.io.Fallocate;
+
+/**
+ * Memory mapped {@link StoreFile}. A single {@link MappedByteBuffer} can only cover 2GB, so the
+ * file is mapped lazily in fixed size windows, and a slot which straddles two windows is copied
+ * in two parts. Probing a slot is then a memory copy rather than a system call.
+ *
+ * Whenever the file is resized we unmap all the windows explicitly rather than waiting for the
+ * garbage collector: Windows won't truncate a file which is still mapped, and accessing a
+ * mapping beyond the end of a truncated file crashes the JVM on some platforms. There is no
+ * public API for this, so if the JVM doesn't let us, we stop mapping the file and use the
+ * channel from then on, and since the old mappings may still be alive we don't shrink the file
+ * any more either: the space beyond the requested length is simply left unused. Resizing waits
+ * for all reads and writes in progress. Writes beyond the mapped length go through the channel.
+ *
+ * This needs a 64-bit JVM: the whole file ends up in our address space.
+ */
+class MappedStoreFile implements StoreFile {
+
+	/** Default size of a single mapping. */
+	static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final RandomAccessFile raf;
+	private final FileChannel fc;
+	private final int windowSize;
+	/** Taken for read by every access, for write when the file is resized or closed. */
+	private final ReadWriteLock resizeLock = new ReentrantReadWriteLock();
+	/** Protected by resizeLock. Entries are mapped on demand. */
+	private AtomicReferenceArray<MappedByteBuffer> windows;
+	/** Protected by resizeLock. The length the windows were created for. */
+	private long length;
+	/** Protected by resizeLock. If true we couldn't unmap the file, so don't map it any more,
+	 * and don't shrink it either as the old mappings may still be alive. */
+	private boolean useChannel;
+	private boolean closed;
+
+	/** sun.misc.Unsafe.invokeCleaner() and the Unsafe to call it on, on Java 9 and later. */
+	private static final Method INVOKE_CLEANER;
+	private static final Object UNSAFE;
+	/** sun.nio.ch.DirectBuffer.cleaner() and sun.misc.Cleaner.clean(), on Java 8. */
+	private static final Method CLEANER;
+	private static final Method CLEAN;
+
+	static {
+		Method invokeCleaner = null;
+		Object unsafe = null;
+		Method cleaner = null;
+		Method clean = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = f.get(null);
+		} catch (Throwable t) {
+			invokeCleaner = null;
+			try {
+				cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+				clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			} catch (Throwable t1) {
+				cleaner = null;
+				Logger.normal(MappedStoreFile.class, "Cannot unmap files explicitly: "+t1);
+			}
+		}
+		INVOKE_CLEANER = invokeCleaner;
+		UNSAFE = unsafe;
+		CLEANER = cleaner;
+		CLEAN = clean;
+	}
+
+	MappedStoreFile(RandomAccessFile raf) throws IOException {
+		this(raf, DEFAULT_WINDOW_SIZE);
+	}
+
+	MappedStoreFile(RandomAccessFile raf, int windowSize) throws IOException {
+		if(windowSize <= 0) throw new IllegalArgumentException();
+		this.raf = raf;
+		this.fc = raf.getChannel();
+		this.windowSize = windowSize;
+		resetWindows(fc.size());
+	}
+
+	private void resetWindows(long newLength) {
+		long count = (newLength + windowSize - 1) / windowSize;
+		if(count > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("File too big to map with windows of "+windowSize+" bytes");
+		windows = new AtomicReferenceArray<MappedByteBuffer>((int)count);
+		length = newLength;
+	}
+
+	/** Get the mapping for a window, creating it if necessary. Caller must hold the read lock. */
+	private MappedByteBuffer window(int index) throws IOException {
+		MappedByteBuffer buf = windows.get(index);
+		if(buf != null) return buf;
+		long start = (long)index * windowSize;
+		long size = Math.min(windowSize, length - start);
+		buf = fc.map(MapMode.READ_WRITE, start, size);
+		// Two threads may map the same window, this is harmless.
+		if(!windows.compareAndSet(index, null, buf))
+			buf = windows.get(index);
+		return buf;
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		resizeLock.readLock().lock();
+		try {
+			checkOpen();
+			if(useChannel) return fc.read(dst, position);
+			if(position >= length) return -1;
+			int toRead = (int)Math.min(dst.remaining(), length - position);
+			int done = 0;
+			while(done < toRead) {
+				long pos = position + done;
+				int offset = (int)(pos % windowSize);
+				ByteBuffer w = window((int)(pos / windowSize)).duplicate();
+				int n = Math.min(toRead - done, w.limit() - offset);
+				w.limit(offset + n);
+				w.position(offset);
+				dst.put(w);
+				done += n;
+			}
+			return done;
+		} finally {
+			resizeLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		resizeLock.readLock().lock();
+		try {
+			checkOpen();
+			if(useChannel) return fc.write(src, position);
+			if(position + src.remaining() <= length) {
+				int toWrite = src.remaining();
+				int done = 0;
+				while(done < toWrite) {
+					long pos = position + done;
+					int offset = (int)(pos % windowSize);
+					ByteBuffer w = window((int)(pos / windowSize)).duplicate();
+					int n = Math.min(toWrite - done, w.limit() - offset);
+					w.position(offset);
+					ByteBuffer chunk = src.duplicate();
+					chunk.limit(chunk.position() + n);
+					w.put(chunk);
+					src.position(src.position() + n);
+					done += n;
+				}
+				return done;
+			}
+		} finally {
+			resizeLock.readLock().unlock();
+		}
+		// Extends the file. Shouldn't normally happen as the store sets the length first.
+		resizeLock.writeLock().lock();
+		try {
+			checkOpen();
+			int written = fc.write(src, position);
+			dropWindows(fc.size());
+			return written;
+		} finally {
+			resizeLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public long length() throws IOException {
+		return raf.length();
+	}
+
+	@Override
+	public void setLength(long newLength) throws IOException {
+		resizeLock.writeLock().lock();
+		try {
+			checkOpen();
+			forceWindows();
+			// Drop the old mappings first, so nothing can touch them after truncation.
+			dropWindows(0);
+			if(useChannel && newLength < fc.size()) {
+				Logger.error(this, "Not shrinking the store file to "+newLength+" bytes as it may still be mapped");
+				resetWindows(fc.size());
+				return;
+			}
+			raf.setLength(newLength);
+			resetWindows(newLength);
+		} finally {
+			resizeLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void preallocate(long newLength) throws IOException {
+		resizeLock.writeLock().lock();
+		try {
+			checkOpen();
+			long oldLength = fc.size();
+			if(oldLength >= newLength) return;
+			Fallocate.forChannel(fc, newLength).fromOffset(oldLength).execute();
+			// Mappings can't grow, so map the new length from scratch.
+			dropWindows(fc.size());
+		} finally {
+			resizeLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void force() throws IOException {
+		resizeLock.readLock().lock();
+		try {
+			checkOpen();
+			forceWindows();
+			fc.force(true);
+		} finally {
+			resizeLock.readLock().unlock();
+		}
+	}
+
+	/** Unmap all the windows and start again with windows for the given length. If we can't
+	 * unmap them, stop mapping the file. Caller must hold the write lock. */
+	private void dropWindows(long newLength) {
+		if(!unmapAll() && !useChannel) {
+			Logger.error(this, "Cannot unmap the store file, not mapping it any more");
+			useChannel = true;
+		}
+		resetWindows(newLength);
+	}
+
+	/** Unmap all the windows now rather than when they are garbage collected. Nothing may use
+	 * them afterwards, so the caller must hold the write lock and reset the windows.
+	 * @return False if the JVM didn't let us unmap at least one of them. The others have still
+	 * been unmapped, and all of them have been removed from the windows. */
+	private boolean unmapAll() {
+		boolean success = true;
+		for(int i = 0; i < windows.length(); i++) {
+			MappedByteBuffer buf = windows.getAndSet(i, null);
+			if(buf == null) continue;
+			if(!unmap(buf)) success = false;
+		}
+		return success;
+	}
+
+	private boolean unmap(MappedByteBuffer buf) {
+		if(INVOKE_CLEANER == null && CLEANER == null) return false;
+		try {
+			if(INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, buf);
+			} else {
+				Object cleaner = CLEANER.invoke(buf);
+				if(cleaner != null) CLEAN.invoke(cleaner);
+			}
+			return true;
+		} catch (Exception e) {
+			// Shouldn't happen after the checks in the static initialiser.
+			Logger.error(this, "Failed to unmap store file: "+e, e);
+			return false;
+		}
+	}
+
+	private void forceWindows() {
+		for(int i = 0; i < windows.length(); i++) {
+			MappedByteBuffer buf = windows.get(i);
+			if(buf != null) buf.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		resizeLock.writeLock().lock();
+		try {
+			if(closed) return;
+			closed = true;
+			unmapAll();
+			resetWindows(0);
+			fc.close();
+		} finally {
+			resizeLock.writeLock().unlock();
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if(closed) throw new IOException("Store file closed");
+	}
+
+}
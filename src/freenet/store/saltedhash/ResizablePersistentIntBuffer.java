@@ -1,11 +1,15 @@
 package freenet.store.saltedhash;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -15,22 +19,32 @@ import freenet.support.Ticker;
 
 /** A large resizable block of int's, which is persisted to disk with a specific policy,
  * which is either to write it on shutdown, immediately, or every X millis.
- * 
- * It would be better to do this with ByteBuffer's and an IntBuffer view, unfortunately
- * it is not possible to subclass ByteBuffer's! Also, ideally we'd memory map, but there 
- * is no way to unmap, and it is likely there will never be, so resizing would be very
- * messy and expensive.
+ *
+ * The ints are kept off-heap, in fixed size pages of direct memory, in the same (little endian)
+ * layout as the file. So a multi-gigabyte store does not put hundreds of megabytes of int[] on
+ * the heap for the garbage collector to scan. We track which pages have changed, and only write
+ * those when persisting. Resizing only allocates or drops pages at the end. We don't memory map
+ * the file because that would leave it to the OS to decide when to write, and there is no way
+ * to unmap on older JVMs.
  * @author toad
  */
 public class ResizablePersistentIntBuffer {
-	
+
+	/** Each page holds 1<<PAGE_SHIFT ints i.e. 256KB. */
+	private static final int PAGE_SHIFT = 16;
+	private static final int PAGE_INTS = 1 << PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_INTS - 1;
+
 	private final File filename;
 	private final RandomAccessFile raf;
 	private final FileChannel channel;
 	private final boolean isNew;
 	private int size;
-	/** The buffer. When we resize we write-lock and replace this. */
-	private int[] buffer;
+	/** The pages. Each is a direct ByteBuffer of PAGE_INTS*4 bytes; slots beyond size are
+	 * always zero. When we resize we write-lock and replace the array, but keep existing pages. */
+	private ByteBuffer[] pages;
+	/** Int views of the pages. */
+	private IntBuffer[] intPages;
 	private final ReadWriteLock lock;
 	// 5 minutes by default. Disk I/O kills disks, and annoys users, so it's a fair tradeoff.
 	// Anything other than -1 risks data loss if the node is shut down uncleanly.
@@ -42,36 +56,40 @@ public class ResizablePersistentIntBuffer {
 	/** -1 = write immediately, 0 = write only on shutdown, +ve = write period in millis */
 	private static int globalPersistenceTime = DEFAULT_PERSISTENCE_TIME;
 	private Ticker ticker;
-	/** Is the buffer dirty? Protected by (this). */
-	private boolean dirty;
+	/** Pages which have changed since they were last written. The buffer is dirty if this is
+	 * not empty. Protected by (this). */
+	private final BitSet dirtyPages = new BitSet();
 	/** Is the writer job scheduled? Protected by (this). */
 	private boolean scheduled;
-	/** Is the writer job running? So we can wait for it to complete on shutdown e.g. 
+	/** Is the writer job running? So we can wait for it to complete on shutdown e.g.
 	 * Protected by (this). */
 	private boolean writing;
 	private boolean closed;
-	
+
 	public static synchronized void setPersistenceTime(int val) {
 		globalPersistenceTime = val;
 	}
-	
+
 	public static synchronized int getPersistenceTime() {
 		return globalPersistenceTime;
 	}
-	
+
 	/** Create the buffer. Open the file, creating if necessary, read in the data, and set
 	 * its size.
 	 * @param f The filename.
 	 * @param size The expected size in ints (i.e. multiply by four to get bytes).
-	 * @throws IOException 
+	 * @throws IOException
 	 */
 	public ResizablePersistentIntBuffer(File f, int size) throws IOException {
 		this.filename = f;
 		isNew = !f.exists();
 		this.raf = new RandomAccessFile(f, "rw");
+		this.channel = raf.getChannel();
 		this.lock = new ReentrantReadWriteLock();
 		this.size = size;
-		buffer = new int[size];
+		pages = new ByteBuffer[0];
+		intPages = new IntBuffer[0];
+		setPageCount(pageCount(size));
 		long expectedLength = ((long)size)*4;
 		long realLength = raf.length();
 		if(realLength > expectedLength)
@@ -79,33 +97,52 @@ public class ResizablePersistentIntBuffer {
 		readBuffer((int)Math.min(size, realLength/4));
 		if(realLength < expectedLength)
 			raf.setLength(expectedLength);
-		channel = raf.getChannel();
 	}
-	
-	/** Should be called during startup to fill in an appropriate default value e.g. if the store 
+
+	private static int pageCount(int size) {
+		return (int)((((long)size) + PAGE_INTS - 1) >> PAGE_SHIFT);
+	}
+
+	/** Grow or shrink the page arrays, allocating new (zeroed) pages as needed. Caller must hold
+	 * the write lock, or be the constructor. */
+	private void setPageCount(int count) {
+		int oldCount = pages.length;
+		pages = Arrays.copyOf(pages, count);
+		intPages = Arrays.copyOf(intPages, count);
+		for(int i=oldCount;i<count;i++) {
+			pages[i] = ByteBuffer.allocateDirect(PAGE_INTS*4).order(ByteOrder.LITTLE_ENDIAN);
+			intPages[i] = pages[i].asIntBuffer();
+		}
+	}
+
+	/** Should be called during startup to fill in an appropriate default value e.g. if the store
 	 * is completely new. */
 	public void fill(int value) {
-		for(int i=0;i<buffer.length;i++)
-			buffer[i] = value;
+		for(int i=0;i<size;i++)
+			intPages[i >>> PAGE_SHIFT].put(i & PAGE_MASK, value);
+		synchronized(this) {
+			dirtyPages.set(0, pages.length);
+		}
 	}
 
 	private void readBuffer(int size) throws IOException {
-		raf.seek(0);
-		byte[] buf = new byte[32768];
-		int read = 0;
-		while(read < size) {
-			int toRead = Math.min(buf.length, (size - read) * 4);
-			raf.readFully(buf, 0, toRead);
-			int[] data = Fields.bytesToInts(buf, 0, toRead);
-			System.arraycopy(data, 0, buffer, read, data.length);
-			read += data.length;
+		long bytes = ((long)size)*4;
+		for(int i=0;((long)i)*PAGE_INTS*4<bytes;i++) {
+			long pos = ((long)i)*PAGE_INTS*4;
+			ByteBuffer buf = pages[i].duplicate();
+			buf.clear();
+			buf.limit((int)Math.min(buf.capacity(), bytes - pos));
+			while(buf.hasRemaining()) {
+				if(channel.read(buf, pos + buf.position()) == -1)
+					throw new EOFException();
+			}
 		}
 	}
-	
+
 	public void start(Ticker ticker) {
 		synchronized(this) {
 			this.ticker = ticker;
-			if(dirty) {
+			if(!dirtyPages.isEmpty()) {
 				int persistenceTime = getPersistenceTime();
 				Logger.normal(this, "Scheduling write of slot cache "+this+" in "+persistenceTime);
 				ticker.queueTimedJob(writer, persistenceTime);
@@ -118,27 +155,30 @@ public class ResizablePersistentIntBuffer {
 		lock.readLock().lock();
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
-			return buffer[offset];
+			if(offset >= size) throw new ArrayIndexOutOfBoundsException(offset);
+			return intPages[offset >>> PAGE_SHIFT].get(offset & PAGE_MASK);
 		} finally {
 			lock.readLock().unlock();
 		}
 	}
-	
+
 	public void put(int offset, int value) throws IOException {
 		put(offset, value, false);
 	}
 
 	public void put(int offset, int value, boolean noWrite) throws IOException {
-		lock.readLock().lock(); // Only resize needs write lock because it creates a new buffer.
+		lock.readLock().lock(); // Only resize needs write lock because it replaces the page arrays.
 		if(closed) throw new IllegalStateException("Already shut down");
 		try {
+			if(offset >= size) throw new ArrayIndexOutOfBoundsException(offset);
 			int persistenceTime = getPersistenceTime();
-			buffer[offset] = value;
+			int page = offset >>> PAGE_SHIFT;
+			intPages[page].put(offset & PAGE_MASK, value);
 			if(persistenceTime == -1 && !noWrite) {
 				channel.write(ByteBuffer.wrap(Fields.intToBytes(value)), ((long)offset)*4);
 			} else if(persistenceTime > 0) {
 				synchronized(this) {
-					dirty = true;
+					dirtyPages.set(page);
 					if(ticker != null) {
 						if(!scheduled) {
 							Logger.normal(this, "Scheduling write of slot cache "+this+" in "+persistenceTime);
@@ -151,31 +191,32 @@ public class ResizablePersistentIntBuffer {
 				}
 			} else {
 				synchronized(this) {
-					dirty = true;
+					dirtyPages.set(page);
 				}
 			}
 		} finally {
 			lock.readLock().unlock();
 		}
 	}
-	
+
 	private Runnable writer = new Runnable() {
 
 		public void run() {
 			Logger.normal(this, "Writing slot cache "+ResizablePersistentIntBuffer.this);
 			lock.readLock().lock(); // Protect buffer.
+			BitSet toWrite;
 			try {
 				synchronized(ResizablePersistentIntBuffer.this) {
-					if(writing || !dirty || closed) {
+					if(writing || dirtyPages.isEmpty() || closed) {
 						scheduled = false;
 						return;
 					}
 					scheduled = false;
-					dirty = false;
+					toWrite = takeDirtyPages();
 					writing = true;
 				}
 				try {
-					writeBuffer();
+					writePages(toWrite);
 				} catch (IOException e) {
 					Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
 				}
@@ -188,12 +229,20 @@ public class ResizablePersistentIntBuffer {
 			}
 			Logger.normal(this, "Written slot cache "+ResizablePersistentIntBuffer.this);
 		}
-		
+
 	};
-	
+
+	/** Caller must hold (this). */
+	private BitSet takeDirtyPages() {
+		BitSet toWrite = (BitSet) dirtyPages.clone();
+		dirtyPages.clear();
+		return toWrite;
+	}
+
 	public void shutdown() {
 		lock.writeLock().lock();
 		try {
+			BitSet toWrite;
 			synchronized(this) {
 				if(closed) return;
 				closed = true;
@@ -206,13 +255,14 @@ public class ResizablePersistentIntBuffer {
 							// Ignore.
 						}
 					}
-					if(!dirty) return;
+					if(dirtyPages.isEmpty()) return;
 				}
+				toWrite = takeDirtyPages();
 				writing = true;
 			}
 			try {
 				Logger.normal(this, "Writing slot cache on shutdown: "+this);
-				writeBuffer();
+				writePages(toWrite);
 			} catch (IOException e) {
 				Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
 			}
@@ -227,9 +277,9 @@ public class ResizablePersistentIntBuffer {
 		} finally {
 			lock.writeLock().unlock();
 		}
-		
+
 	}
-	
+
 	public void abort() {
 		lock.writeLock().lock();
 		try {
@@ -247,28 +297,43 @@ public class ResizablePersistentIntBuffer {
 		}
 	}
 
-	private void writeBuffer() throws IOException {
-		// FIXME do we need to do partial writes?
-		raf.seek(0);
-		int written = 0;
-		while(written < size) {
-			int toWrite = Math.min(32768, size - written);
-			byte[] buf = Fields.intsToBytes(buffer, written, toWrite);
-			raf.write(buf);
-			written += toWrite;
+	/** Write the given pages to disk. Caller must hold the read or write lock. */
+	private void writePages(BitSet toWrite) throws IOException {
+		long bytes = ((long)size)*4;
+		for(int i=toWrite.nextSetBit(0);i>=0;i=toWrite.nextSetBit(i+1)) {
+			if(i >= pages.length) break; // Dropped by a resize.
+			long pos = ((long)i)*PAGE_INTS*4;
+			ByteBuffer buf = pages[i].duplicate();
+			buf.clear();
+			buf.limit((int)Math.min(buf.capacity(), bytes - pos));
+			while(buf.hasRemaining())
+				channel.write(buf, pos + buf.position());
 		}
 	}
-	
+
 	public void resize(int size) {
 		lock.writeLock().lock();
 		try {
 			if(this.size == size) return;
 			Logger.normal(this, "Resizing cache from "+this.size+" slots to "+size);
+			int oldSize = this.size;
+			setPageCount(pageCount(size));
+			if(size < oldSize && (size & PAGE_MASK) != 0) {
+				// Clear the tail of the last page, we might grow again later.
+				IntBuffer last = intPages[size >>> PAGE_SHIFT];
+				for(int i=size & PAGE_MASK;i<PAGE_INTS;i++)
+					last.put(i, 0);
+			}
 			this.size = size;
-			buffer = Arrays.copyOf(buffer, size);
+			// The new part is zeros in both places, so we only need to change the length and
+			// write the dirty pages. Callers rely on the file being current after a resize.
+			BitSet toWrite;
+			synchronized(this) {
+				toWrite = takeDirtyPages();
+			}
 			try {
-				raf.setLength(size * 4);
-				writeBuffer();
+				raf.setLength(((long)size) * 4);
+				writePages(toWrite);
 			} catch (IOException e) {
 				Logger.error(this, "Failed to change size or write during resize on "+filename+" : "+e, e);
 			}
@@ -281,9 +346,9 @@ public class ResizablePersistentIntBuffer {
 		Logger.normal(this, "Force write slot cache: "+this);
 		lock.readLock().lock();
 		try {
+			BitSet toWrite;
 			synchronized(this) {
 				if(closed) return;
-				dirty = false;
 				if(writing) {
 					// Wait for write to finish.
 					while(writing) {
@@ -293,18 +358,20 @@ public class ResizablePersistentIntBuffer {
 							// Ignore.
 						}
 					}
-					if(!dirty) return;
 				}
+				if(dirtyPages.isEmpty()) return;
+				toWrite = takeDirtyPages();
 				writing = true;
 			}
 			try {
-				writeBuffer();
+				writePages(toWrite);
 			} catch (IOException e) {
 				Logger.error(this, "Write failed during shutdown: "+e+" on "+filename, e);
 			}
 		} finally {
 			synchronized(this) {
 				writing = false;
+				notifyAll();
 			}
 			lock.readLock().unlock();
 		}
@@ -313,19 +380,21 @@ public class ResizablePersistentIntBuffer {
 	public boolean isNew() {
 		return isNew;
 	}
-	
+
 	public String toString() {
 		return filename.getPath();
 	}
 
 	// Testing only! Hence no lock.
 	public void replaceAllEntries(int key, int value) {
-		for(int i=0;i<buffer.length;i++)
-			if(buffer[i] == key) buffer[i] = value;
+		for(int i=0;i<size;i++) {
+			IntBuffer page = intPages[i >>> PAGE_SHIFT];
+			if(page.get(i & PAGE_MASK) == key) page.put(i & PAGE_MASK, value);
+		}
 	}
-	
+
 	public int size() {
 		return size;
 	}
-	
+
 }
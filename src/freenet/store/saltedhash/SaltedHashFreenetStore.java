@@ -53,12 +53,12 @@ import freenet.store.StoreCallback;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
+import freenet.support.JVMVersion;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.Ticker;
 import freenet.support.WrapperKeepalive;
 import freenet.support.io.Closer;
-import freenet.support.io.Fallocate;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
 
@@ -151,12 +151,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate,
+		        resizeOnStart, exec, masterKey, false);
+	}
+
+	/**
+	 * @param useMmap If true, access the metadata and header/data files through memory mappings
+	 * rather than positional reads and writes. Ignored on 32-bit JVMs.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean useMmap) throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, masterKey, useMmap);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        boolean useMmap) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -194,7 +206,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			writeConfigFile();
 		}
 
-		newStore |= openStoreFiles(baseDir, name);
+		if(useMmap && JVMVersion.is32Bit()) {
+			System.err.println("Not memory mapping datastore " + name + " on a 32-bit JVM");
+			useMmap = false;
+		}
+		newStore |= openStoreFiles(baseDir, name, useMmap);
 
 		bloomFile = new File(this.baseDir, name + ".bloom");
 		if(bloomFile.exists()) {
@@ -562,6 +578,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 	}
 
+	/**
+	 * Get the first slot a key would be probed at. This is only a hint, the block may be written
+	 * to any of the probe slots, but it allows callers writing many blocks at once to do so in
+	 * roughly the order they are laid out on disk.
+	 */
+	public long getFirstSlot(byte[] routingKey) {
+		return getOffsetFromPlainKey(routingKey, storeSize)[0];
+	}
+
 	private boolean onWrite() {
 		return (writes.incrementAndGet() % (storeSize*2) == 0);
 	}
@@ -571,10 +596,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private File metaFile;
 	private RandomAccessFile metaRAF;
 	private FileChannel metaFC;
+	private StoreFile metaIO;
 	// header+data file
 	private File hdFile;
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
+	private StoreFile hdIO;
 	private final int hdPadding;
 
 	/**
@@ -829,10 +856,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *
 	 * @param baseDir
 	 * @param name
+	 * @param useMmap
 	 * @throws IOException
 	 * @return <code>true</code> iff this is a new datastore
 	 */
-	private boolean openStoreFiles(File baseDir, String name) throws IOException {
+	private boolean openStoreFiles(File baseDir, String name, boolean useMmap) throws IOException {
 		metaFile = new File(baseDir, name + ".metadata");
 		hdFile = new File(baseDir, name + ".hd");
 
@@ -855,6 +883,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			throw new Error("Could not aquire lock for file " + baseDir.toPath().resolve(name + ".hd"), ex);
 		}
 
+		if(useMmap) {
+			metaIO = new MappedStoreFile(metaRAF);
+			hdIO = new MappedStoreFile(hdRAF);
+		} else {
+			metaIO = new ChannelStoreFile(metaRAF);
+			hdIO = new ChannelStoreFile(hdRAF);
+		}
+
 		return newStore;
 	}
 
@@ -884,7 +920,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
 
 		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+			int status = metaIO.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
 			if (status == -1) {
 				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
 				throw new EOFException();
@@ -955,7 +991,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
 		do {
-			int status = hdFC.read(buf, pos + buf.position());
+			int status = hdIO.read(buf, pos + buf.position());
 			if (status == -1)
 				throw new EOFException();
 		} while (buf.hasRemaining());
@@ -1018,7 +1054,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
 		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
+			int status = metaIO.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
 			if (status == -1)
 				throw new EOFException();
 		} while (bf.hasRemaining());
@@ -1027,7 +1063,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if (bf != null) {
 			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
 			do {
-				int status = hdFC.write(bf, pos + bf.position());
+				int status = hdIO.write(bf, pos + bf.position());
 				if (status == -1)
 					throw new EOFException();
 			} while (bf.hasRemaining());
@@ -1039,14 +1075,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
 		try {
-			metaFC.force(true);
-			metaFC.close();
+			metaIO.force();
+			metaIO.close();
 		} catch (Exception e) {
 			Logger.error(this, "error flusing store", e);
 		}
 		try {
-			hdFC.force(true);
-			hdFC.close();
+			hdIO.force();
+			hdIO.close();
 		} catch (Exception e) {
 			Logger.error(this, "error flusing store", e);
 		}
@@ -1073,9 +1109,6 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 */
 	private void setStoreFileSize(long storeMaxEntries) {
 		try {
-			long oldMetaLen = metaRAF.length();
-			long currentHdLen = hdRAF.length();
-
 			final long newMetaLen = Entry.METADATA_LENGTH * storeMaxEntries;
 			final long newHdLen = (headerBlockLength + dataBlockLength + hdPadding) * storeMaxEntries;
 
@@ -1083,18 +1116,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				try (WrapperKeepalive wrapperKeepalive = new WrapperKeepalive();)
 				{
 					wrapperKeepalive.start();
-					if (oldMetaLen < newMetaLen) {
-						Fallocate.forChannel(metaFC, newMetaLen).fromOffset(oldMetaLen).execute();
-					}
-					if (currentHdLen < newHdLen) {
-						Fallocate.forChannel(hdFC, newHdLen).fromOffset(currentHdLen).execute();
-					}
+					metaIO.preallocate(newMetaLen);
+					hdIO.preallocate(newHdLen);
 				}
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
-			metaRAF.setLength(newMetaLen);
-			hdRAF.setLength(newHdLen);
+			metaIO.setLength(newMetaLen);
+			hdIO.setLength(newHdLen);
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
 		}
@@ -1671,7 +1700,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				boolean dirty = false;
 				try {
 					while (buf.hasRemaining()) {
-						int status = metaFC.read(buf, startFileOffset + buf.position());
+						int status = metaIO.read(buf, startFileOffset + buf.position());
 						if (status == -1)
 							break;
 					}
@@ -1740,7 +1769,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 						try {
 							while (buf.hasRemaining()) {
-								metaFC.write(buf, startFileOffset + buf.position());
+								metaIO.write(buf, startFileOffset + buf.position());
 							}
 						} catch (IOException ioe) {
 							Logger.error(this, "unexpected IOException", ioe);
@@ -0,0 +1,44 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Positional I/O on one of the salted hash store files (<code>.metadata</code> or
+ * <code>.hd</code>). The read and write methods have the same semantics as the positional
+ * methods on {@link FileChannel}, so callers loop until the buffer is drained and treat -1 as
+ * EOF.
+ *
+ * The file and its channel stay owned by the store: it still locks them directly, but must
+ * resize through {@link #setLength(long)} and {@link #preallocate(long)} so that
+ * implementations which cache the file layout can follow.
+ */
+interface StoreFile {
+
+	/** @see FileChannel#read(ByteBuffer, long) */
+	int read(ByteBuffer dst, long position) throws IOException;
+
+	/** @see FileChannel#write(ByteBuffer, long) */
+	int write(ByteBuffer src, long position) throws IOException;
+
+	long length() throws IOException;
+
+	/** @see RandomAccessFile#setLength(long) */
+	void setLength(long newLength) throws IOException;
+
+	/** Allocate disk space for the file up to the given length, extending it if necessary.
+	 * @see freenet.support.io.Fallocate */
+	void preallocate(long newLength) throws IOException;
+
+	/** Flush all pending writes, including metadata, to the disk. */
+	void force() throws IOException;
+
+	/** Release any resources held by this object and close the underlying channel. */
+	void close() throws IOException;
+
+}
@@ -0,0 +1,113 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counting Bloom filter which can be checked and updated from many threads without locking.
+ *
+ * Keys are 64-bit fingerprints of values which are already uniformly distributed, such as the
+ * first 8 bytes of a SHA-256 hash, so we do not hash them again. All the counters for a key are
+ * in one 64-byte block chosen by the fingerprint, so a lookup touches a single cache line. Each
+ * block holds 128 4-bit counters. A counter which reaches 15 is never decremented again, so an
+ * overflow can cause false positives but never false negatives.
+ *
+ * The filter cannot grow. When it holds more keys than its capacity, false positives become more
+ * likely; the caller should build a bigger one.
+ */
+public final class AtomicCountingBloomFilter {
+
+	private static final int WORDS_PER_BLOCK = 8;
+	private static final int COUNTERS_PER_BLOCK = WORDS_PER_BLOCK * 16;
+	/** Keys per block at capacity. With 6 counters per key, about 0.5% false positives. */
+	static final int KEYS_PER_BLOCK = 10;
+	/** Counters per key. */
+	static final int K = 6;
+	private static final long MAX_COUNT = 15;
+
+	private final AtomicLongArray counters;
+	private final int blocks;
+
+	/** @param capacity The number of keys we can hold with a low false positive rate. */
+	public AtomicCountingBloomFilter(int capacity) {
+		if(capacity < 0) throw new IllegalArgumentException();
+		blocks = Math.max(1, (capacity + KEYS_PER_BLOCK - 1) / KEYS_PER_BLOCK);
+		counters = new AtomicLongArray(blocks * WORDS_PER_BLOCK);
+	}
+
+	/** @return A fingerprint for a hash of at least 8 bytes. */
+	public static long fingerprint(byte[] hash) {
+		return Fields.bytesToLong(hash, 0);
+	}
+
+	/** @return The index of the first word of the block for the fingerprint. */
+	private int block(long fingerprint) {
+		return (int) (((fingerprint >>> 32) * blocks) >>> 32) * WORDS_PER_BLOCK;
+	}
+
+	/** @return The offset within the block of counter i for the fingerprint. Double hashing with
+	 * an odd step, so the K counters are all different. */
+	private static int counter(long fingerprint, int i) {
+		int h1 = (int) fingerprint & 0xFFFF;
+		int h2 = ((int) fingerprint >>> 16) | 1;
+		return (h1 + i * h2) & (COUNTERS_PER_BLOCK - 1);
+	}
+
+	public void add(long fingerprint) {
+		int base = block(fingerprint);
+		for(int i = 0; i < K; i++) {
+			int c = counter(fingerprint, i);
+			int word = base + (c >>> 4);
+			int shift = (c & 15) << 2;
+			while(true) {
+				long v = counters.get(word);
+				if(((v >>> shift) & MAX_COUNT) == MAX_COUNT) break; // Stuck.
+				if(counters.compareAndSet(word, v, v + (1L << shift))) break;
+			}
+		}
+	}
+
+	/** Remove a key. It must have been added, and not removed since, or we may get false
+	 * negatives for other keys. */
+	public void remove(long fingerprint) {
+		int base = block(fingerprint);
+		for(int i = 0; i < K; i++) {
+			int c = counter(fingerprint, i);
+			int word = base + (c >>> 4);
+			int shift = (c & 15) << 2;
+			while(true) {
+				long v = counters.get(word);
+				long count = (v >>> shift) & MAX_COUNT;
+				if(count == MAX_COUNT) break; // Stuck.
+				if(count == 0) {
+					Logger.error(this, "Removing a key which is not in the filter - probable double remove, can cause false negatives!", new Exception("error"));
+					break;
+				}
+				if(counters.compareAndSet(word, v, v - (1L << shift))) break;
+			}
+		}
+	}
+
+	/** @return False if the key is definitely not in the filter. */
+	public boolean mightContain(long fingerprint) {
+		int base = block(fingerprint);
+		for(int i = 0; i < K; i++) {
+			int c = counter(fingerprint, i);
+			if(((counters.get(base + (c >>> 4)) >>> ((c & 15) << 2)) & MAX_COUNT) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** @return The number of keys we can hold with a low false positive rate. */
+	public int getCapacity() {
+		return blocks * KEYS_PER_BLOCK;
+	}
+
+	public int getSizeBytes() {
+		return blocks * WORDS_PER_BLOCK * 8;
+	}
+
+}
@@ -0,0 +1,250 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket which many threads can take tokens from at once without locking. Can be used for
+ * e.g. bandwidth limiting.
+ *
+ * The whole state of the bucket is a single time: when it was (or will be) empty. The number of
+ * tokens is how long ago that was, divided by the time it takes to add a token, up to the size of
+ * the bucket. Taking tokens moves that time forward, with compareAndSet.
+ *
+ * A bucket may have a parent, which is charged for everything taken from the child. The child's
+ * rate is what it is guaranteed: while it is within that it may use all of its parent's tokens.
+ * Beyond that it can borrow from any of its ancestors, but only from the top half of the lending
+ * bucket, so the lender's other descendants which are within their own rates can still send. A
+ * borrowed grab is charged to the lender, not to the buckets between it and the borrower, so
+ * those stay available to their other children. Unlike the old TokenBucket, there is no blocking
+ * grab: callers check canGrab() and then charge what they actually sent.
+ */
+public class AtomicTokenBucket {
+
+	/** The rate and size of the bucket, which must be changed together. */
+	private static class Limits {
+		final long nanosPerTick;
+		final long max;
+
+		Limits(long nanosPerTick, long max) {
+			if(nanosPerTick <= 0) throw new IllegalArgumentException();
+			if(max <= 0) throw new IllegalArgumentException();
+			this.nanosPerTick = nanosPerTick;
+			this.max = max;
+		}
+	}
+
+	private final AtomicTokenBucket parent;
+	private volatile Limits limits;
+	/** The time, in terms of now(), when the bucket was empty. If it is in the future, more has
+	 * been taken than the bucket had: the difference is the deficit. */
+	private final AtomicLong emptyTime;
+	/** Total tokens taken, for stats. */
+	private final AtomicLong taken = new AtomicLong();
+
+	/**
+	 * Create a token bucket.
+	 * @param max The maximum size of the bucket, in tokens.
+	 * @param nanosPerTick The number of nanoseconds between ticks.
+	 * @param initialValue The number of tokens to start with.
+	 */
+	public AtomicTokenBucket(long max, long nanosPerTick, long initialValue) {
+		this(null, max, nanosPerTick, initialValue);
+	}
+
+	/**
+	 * Create a token bucket which borrows from and is counted against a parent.
+	 * @param parent The parent bucket, or null.
+	 * @param max The maximum size of the bucket, in tokens.
+	 * @param nanosPerTick The number of nanoseconds between ticks, i.e. the guaranteed rate.
+	 * @param initialValue The number of tokens to start with.
+	 */
+	public AtomicTokenBucket(AtomicTokenBucket parent, long max, long nanosPerTick, long initialValue) {
+		this.parent = parent;
+		limits = new Limits(nanosPerTick, max);
+		initialValue = Math.min(initialValue, max);
+		emptyTime = new AtomicLong(now() - initialValue * nanosPerTick);
+	}
+
+	protected long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Remove tokens, without blocking, even if it causes the balance to go negative. They are
+	 * removed from the parent too.
+	 * @param tokens The number of tokens to remove.
+	 */
+	public void forceGrab(long tokens) {
+		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
+		forceGrab(tokens, now());
+	}
+
+	private void forceGrab(long tokens, long now) {
+		if(parent != null && getCount(now) < tokens) {
+			AtomicTokenBucket lender = parent.findLender(tokens, now);
+			if(lender != null) {
+				// Over our rate, so we can go into deficit, but only as far as max.
+				take(tokens, now, limits.max);
+				parent.borrow(tokens, now, lender);
+				return;
+			}
+		}
+		take(tokens, now, Long.MAX_VALUE);
+		if(parent != null) parent.forceGrab(tokens, now);
+	}
+
+	/** Take tokens from this bucket only, leaving a deficit of at most maxDeficit. */
+	private void take(long tokens, long now, long maxDeficit) {
+		while(true) {
+			long empty = emptyTime.get();
+			Limits l = limits;
+			// We can't have had more than max tokens.
+			long from = Math.max(empty, now - l.max * l.nanosPerTick);
+			long to = from + tokens * l.nanosPerTick;
+			if(maxDeficit != Long.MAX_VALUE)
+				to = Math.max(from, Math.min(to, now + maxDeficit * l.nanosPerTick));
+			if(emptyTime.compareAndSet(empty, to)) break;
+		}
+		taken.addAndGet(tokens);
+	}
+
+	/** Charge a grab by a descendant which is over its rate to the lender, which may be us.
+	 * Buckets between the descendant and the lender are not charged: if they were, their
+	 * deficit would stop their other children which are within their rates. */
+	private void borrow(long tokens, long now, AtomicTokenBucket lender) {
+		if(lender == this) {
+			forceGrab(tokens, now);
+		} else {
+			taken.addAndGet(tokens);
+			parent.borrow(tokens, now, lender);
+		}
+	}
+
+	/**
+	 * Can we take this many tokens now? True if we have them and so does our parent, or if we
+	 * don't but one of our ancestors has enough to spare. Doesn't take them: another thread might
+	 * take them first, in which case forceGrab() will leave a small deficit.
+	 */
+	public boolean canGrab(long tokens) {
+		return canGrab(tokens, now());
+	}
+
+	private boolean canGrab(long tokens, long now) {
+		if(getCount(now) >= tokens)
+			return parent == null || parent.canGrab(tokens, now);
+		return parent != null && parent.canLend(tokens, now);
+	}
+
+	/** Can we, or one of our ancestors, lend this many tokens to a descendant which is over its
+	 * own rate? The lender must be able to grab them too. */
+	private boolean canLend(long tokens, long now) {
+		return findLender(tokens, now) != null;
+	}
+
+	/** @return The nearest of us and our ancestors which can lend this many tokens, or null. */
+	private AtomicTokenBucket findLender(long tokens, long now) {
+		if(getCount(now) >= lendingThreshold(tokens))
+			return parent == null || parent.canGrab(tokens, now) ? this : null;
+		return parent == null ? null : parent.findLender(tokens, now);
+	}
+
+	/** A child which is over its own rate can only borrow from us if we will still have this 
+	 * many tokens: the top half of the bucket, unless it is too small for that. */
+	private long lendingThreshold(long tokens) {
+		long max = limits.max;
+		return Math.min(max / 2, max - tokens) + tokens;
+	}
+
+	/**
+	 * Estimate how long until canGrab(tokens) will be true, if nothing else is taken meanwhile.
+	 * @return 0 if we can grab the tokens now, otherwise the time in nanoseconds.
+	 */
+	public long nanosUntilCanGrab(long tokens) {
+		if(canGrab(tokens)) return 0;
+		long wait = nanosUntil(tokens);
+		if(parent == null) return wait;
+		// Either we will have the tokens ourselves, or an ancestor will have some to spare.
+		wait = Math.min(wait, parent.nanosUntilCanLend(tokens));
+		return Math.max(wait, parent.nanosUntilCanGrab(tokens));
+	}
+
+	/** How long until we or one of our ancestors have enough to lend, ignoring whether the
+	 * lender's ancestors will let it grab them. */
+	private long nanosUntilCanLend(long tokens) {
+		long wait = nanosUntil(lendingThreshold(tokens));
+		if(parent == null) return wait;
+		return Math.min(wait, parent.nanosUntilCanLend(tokens));
+	}
+
+	/** How long until we have this many tokens ourselves, ignoring the parent. */
+	private long nanosUntil(long tokens) {
+		Limits l = limits;
+		if(tokens > l.max) return Long.MAX_VALUE;
+		return Math.max(0, emptyTime.get() + tokens * l.nanosPerTick - now());
+	}
+
+	/**
+	 * Get the current number of available tokens. Negative if more has been taken than we had.
+	 */
+	public long getCount() {
+		return getCount(now());
+	}
+
+	private long getCount(long now) {
+		Limits l = limits;
+		return Math.min(l.max, Math.floorDiv(now - emptyTime.get(), l.nanosPerTick));
+	}
+
+	/** @return How many tokens have been taken beyond what we had, or 0. */
+	public long getDeficit() {
+		return Math.max(0, -getCount());
+	}
+
+	/** @return The total number of tokens ever taken from this bucket. */
+	public long getTaken() {
+		return taken.get();
+	}
+
+	/** @return The number of tokens added per second, i.e. the guaranteed rate. */
+	public long getRate() {
+		return SECONDS.toNanos(1) / limits.nanosPerTick;
+	}
+
+	public long getNanosPerTick() {
+		return limits.nanosPerTick;
+	}
+
+	public long getMax() {
+		return limits.max;
+	}
+
+	public AtomicTokenBucket getParent() {
+		return parent;
+	}
+
+	/**
+	 * Change the rate and size of the bucket, keeping the current number of tokens (up to the
+	 * new size). Threads taking tokens at the same time may be charged at the old rate.
+	 */
+	public void changeNanosAndBucketSize(long nanosPerTick, long newMax) {
+		Limits newLimits = new Limits(nanosPerTick, newMax);
+		long now = now();
+		while(true) {
+			long empty = emptyTime.get();
+			Limits l = limits;
+			long count = Math.min(newMax, Math.floorDiv(now - empty, l.nanosPerTick));
+			if(emptyTime.compareAndSet(empty, now - count * nanosPerTick)) break;
+		}
+		limits = newLimits;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+getCount()+"/"+limits.max+" at "+getRate()+"/sec";
+	}
+}
@@ -2,18 +2,23 @@ package freenet.support;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -25,11 +30,14 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
 import freenet.node.Version;
+import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 
 /**
@@ -90,10 +98,13 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	private int[] fmt;
 	private String[] str;
 
-	/** Stream to write data to (compressed if rotate is on) */
+	/** Stream to write data to, if we were given one rather than a file */
 	protected OutputStream logStream;
-	/** Other stream to write data to (may be null) */
-	protected OutputStream altLogStream;
+	/** Where the writer thread writes the log to. Rotated log files are compressed 
+	 * afterwards, in the background. */
+	protected WritableByteChannel logChannel;
+	/** Other file to write data to (may be null) */
+	protected FileChannel altLogChannel;
 
 	protected final boolean logOverwrite;
 
@@ -109,23 +120,23 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected boolean redirectStdErr = false;
 
 	protected final int MAX_LIST_SIZE;
-	protected long MAX_LIST_BYTES = 10 * (1 << 20);
-	protected long LIST_WRITE_THRESHOLD;
+	protected volatile long MAX_LIST_BYTES = 10 * (1 << 20);
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to
 	 * block So run the actual write on another thread
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
-	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * Many threads log at once, so this is a lock-free queue, and we count the records and bytes
+	 * in it separately. When it gets too big we drop new records rather than trimming old ones, 
+	 * so logging never needs a lock; the writer thread reports how many were dropped. The only 
+	 * lock (on the queue) is to wake up the writer thread when the queue was empty.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
-	protected long listBytes = 0;
+	protected final ConcurrentLinkedQueue<byte[]> list;
+	private final AtomicInteger listSize = new AtomicInteger();
+	private final AtomicLong listBytes = new AtomicLong();
+	private final AtomicLong droppedRecords = new AtomicLong();
+	/** Records dropped since the writer thread last reported it. */
+	private final AtomicLong droppedUnreported = new AtomicLong();
 
 	long maxOldLogfilesDiskUsage;
 	protected final Deque<OldLogFile> logFiles = new ArrayDeque<OldLogFile>();
@@ -145,10 +156,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	public void setMaxListBytes(long len) {
-		synchronized(list) {
-			MAX_LIST_BYTES = len;
-			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
-		}
+		MAX_LIST_BYTES = len;
 	}
 
 	public void setInterval(String intervalName) throws IntervalParseException {
@@ -238,9 +246,19 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	// Unless we are writing flat out, everything will hit disk within this period.
-	private long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
+	private volatile long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
+
+	/** Size of the direct buffer the writer thread gathers records into. It is written to the 
+	 * file when it fills up, or at most flushTime after the first record was added to it. */
+	static final int WRITE_BUFFER_SIZE = 256 * 1024;
 
 	class WriterThread extends Thread {
+		/** Records are copied once, into this buffer, and written to the file straight from it, 
+		 * many at a time. Allocated once for the life of the thread. */
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+		/** When the records in the buffer must be written by, or -1 if it is empty. */
+		private long flushDeadline = -1;
+
 		WriterThread() {
 			super("Log File Writer Thread");
 		}
@@ -249,7 +267,6 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		@SuppressWarnings("fallthrough")
 		public void run() {
 			File currentFilename = null;
-			byte[] o = null;
 			long thisTime;
 			long lastTime = -1;
 			long startTime;
@@ -280,15 +297,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					gc.set(INTERVAL, (x / INTERVAL_MULTIPLIER) * INTERVAL_MULTIPLIER);
 				}
 				findOldLogFiles((GregorianCalendar)gc.clone());
-				currentFilename = new File(getHourLogName(gc, -1, true));
-				synchronized(logFiles) {
-					if((!logFiles.isEmpty()) && logFiles.getLast().filename.equals(currentFilename)) {
-						logFiles.removeLast();
-					}
-				}
-				logStream = openNewLogFile(currentFilename, true);
+				currentFilename = new File(getHourLogName(gc, -1, false));
+				logChannel = openNewLogFile(currentFilename);
 				if(latestFile != null) {
-					altLogStream = openNewLogFile(latestFile, false);
+					altLogChannel = openNewLogFile(latestFile);
 				}
 				System.err.println("Created log files");
 				startTime = gc.getTimeInMillis();
@@ -297,11 +309,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				lastTime = startTime;
 				gc.add(INTERVAL, INTERVAL_MULTIPLIER);
 				nextHour = gc.getTimeInMillis();
-			}
-			long timeWaitingForSync = -1;
-			long flush;
-			synchronized(this) {
-				flush = flushTime;
+			} else if(logChannel == null) {
+				logChannel = Channels.newChannel(logStream);
 			}
 			while (true) {
 				try {
@@ -322,88 +331,53 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 						}
 					}
 					boolean died = false;
-					boolean timeoutFlush = false;
 					synchronized (list) {
-						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while(o == null) {
+						if(listSize.get() == 0) {
 							if (closed) {
 								died = true;
-								break;
+							} else if(flushDeadline == -1) {
+								// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
+								list.wait(500);
+							} else if(thisTime < flushDeadline) {
+								list.wait(Math.min(500L, flushDeadline - thisTime));
 							}
-							try {
-								if(thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
-									list.wait(Math.min(500L, maxWait - thisTime));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if(closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if(maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									} else {
-										// Do NOT use list.poll(timeout) because it uses a separate lock.
-										o = list.poll();
-									}
-								}
-							} catch (InterruptedException e) {
-								// Ignored.
-							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
-						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
 						}
 					}
-					if(timeoutFlush || died) {
+					// Take everything that is queued, but no more than a buffer's worth per 
+					// pass, so rotation still happens while we are flooded.
+					int taken = 0;
+					byte[] o;
+					while(taken < WRITE_BUFFER_SIZE && (o = list.poll()) != null) {
+						listBytes.addAndGet(-(o.length + LINE_OVERHEAD));
+						listSize.decrementAndGet();
+						append(o);
+						taken += o.length;
+					}
+					long dropped = droppedUnreported.getAndSet(0);
+					if(dropped != 0) {
+						append(("GRRR: ERROR: Logging too fast, dropped " + dropped + " entries, "
+								+ listBytes.get() + " bytes in memory\n").getBytes(ENCODING));
+					}
+					if(flushDeadline == -1 && buffer.position() != 0)
+						flushDeadline = thisTime + flushTime;
+					// Flush when the deadline passes even if more is queued, so a steady stream of
+					// log lines doesn't stay in the buffer until it fills.
+					if(died || (flushDeadline != -1 && thisTime >= flushDeadline)) {
 						// Flush to disk 
-						myWrite(logStream, null);
-				        if(altLogStream != null)
-				        	myWrite(altLogStream, null);
+						writeBuffer();
 					}
 					if(died) {
-						try {
-							logStream.close();
-						} catch (IOException e) {
-							System.err.println("Failed to close log stream: "+e);
-						}
-						if(altLogStream != null) {
-							try {
-								altLogStream.close();
-							} catch (IOException e) {
-								System.err.println("Failed to close compressed log stream: "+e);
-							}
-						}
+						closeChannel(logChannel);
+						if(altLogChannel != null)
+							closeChannel(altLogChannel);
 						synchronized(list) {
 							closedFinished = true;
 							list.notifyAll();
 						}
 						return;
 					}
-					if(o == null) continue;
-					myWrite(logStream,  o);
-			        if(altLogStream != null)
-			        	myWrite(altLogStream, o);
+				} catch (InterruptedException e) {
+					// Ignored.
 				} catch (OutOfMemoryError e) {
 					System.err.println(e.getClass());
 					System.err.println(e.getMessage());
@@ -419,59 +393,78 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 		private File rotateLog(File currentFilename, long lastTime, long nextHour, GregorianCalendar gc) {
 	        // Switch logs
-	        try {
-	        	logStream.flush();
-	        	if(altLogStream != null) altLogStream.flush();
-	        } catch (IOException e) {
-	        	System.err.println(
-	        		"Flushing on change caught " + e);
-	        }
-	        try {
-	        	logStream.close();
-	        } catch (IOException e) {
-	        	System.err.println(
-	        			"Closing on change caught " + e);
-	        }
-	        long length = currentFilename.length();
-	        OldLogFile olf = new OldLogFile(currentFilename, lastTime, nextHour, length);
-	        synchronized(logFiles) {
-	        	logFiles.addLast(olf);
-	        }
-	        oldLogFilesDiskSpaceUsage += length;
-	        trimOldLogFiles();
+	        writeBuffer();
+	        closeChannel(logChannel);
+	        // Compress it on another thread so we can carry on logging.
+	        compressLater(new OldLogFile(currentFilename, lastTime, nextHour, currentFilename.length()));
 	        // Rotate primary log stream
-	        currentFilename = new File(getHourLogName(gc, -1, true));
-	        logStream = openNewLogFile(currentFilename, true);
+	        currentFilename = new File(getHourLogName(gc, -1, false));
+	        logChannel = openNewLogFile(currentFilename);
 	        if(latestFile != null) {
-	        	try {
-	        		altLogStream.close();
-	        	} catch (IOException e) {
-	        		System.err.println(
-	        				"Closing alt on change caught " + e);
-	        	}
+	        	closeChannel(altLogChannel);
 	        	if(previousFile != null && latestFile.exists())
 	        		FileUtil.renameTo(latestFile, previousFile);
 	        	latestFile.delete();
-	        	altLogStream = openNewLogFile(latestFile, false);
+	        	altLogChannel = openNewLogFile(latestFile);
 	        }
 	        return currentFilename;
         }
 
+		/** Add a record to the buffer, writing out the buffer first if there is no room. */
+		private void append(byte[] b) {
+			if(b.length > buffer.remaining()) {
+				writeBuffer();
+				if(b.length > buffer.capacity()) {
+					myWrite(logChannel, ByteBuffer.wrap(b));
+					if(altLogChannel != null)
+						myWrite(altLogChannel, ByteBuffer.wrap(b));
+					return;
+				}
+			}
+			buffer.put(b);
+		}
+
+		/** Write out everything in the buffer, with a single write to each file. */
+		private void writeBuffer() {
+			flushDeadline = -1;
+			if(buffer.position() == 0) return;
+			buffer.flip();
+			myWrite(logChannel, buffer);
+			if(altLogChannel != null) {
+				buffer.rewind();
+				myWrite(altLogChannel, buffer);
+			}
+			buffer.clear();
+			if(logStream != null) {
+				try {
+					logStream.flush();
+				} catch (IOException e) {
+					System.err.println("Exception flushing log: " + e);
+				}
+			}
+		}
+
+		private void closeChannel(WritableByteChannel channel) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.err.println("Failed to close log file: "+e);
+			}
+		}
+
 		// Check every minute
 		static final int maxSleepTime = 60 * 1000;
 		/**
 		 * @param b
-		 *            the bytes to write, null to flush
+		 *            the bytes to write, all of which will be written
 		 */
-		protected void myWrite(OutputStream os, byte[] b) {
+		protected void myWrite(WritableByteChannel channel, ByteBuffer b) {
 			long sleepTime = 1000;
 			while (true) {
 				boolean thrown = false;
 				try {
-					if (b != null)
-						os.write(b);
-					else
-						os.flush();
+					while(b.hasRemaining())
+						channel.write(b);
 				} catch (IOException e) {
 					System.err.println(
 						"Exception writing to log: "
@@ -493,23 +486,13 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			}
 		}
 
-		protected OutputStream openNewLogFile(File filename, boolean compress) {
+		protected FileChannel openNewLogFile(File filename) {
+			long sleepTime = 1000;
 			while (true) {
-				long sleepTime = 1000;
 				try {
-					OutputStream o = new FileOutputStream(filename, !logOverwrite);
-					if(compress) {
-						// buffer -> gzip -> buffer -> file
-						o = new BufferedOutputStream(o, 512*1024); // to file
-						o = new GZIPOutputStream(o);
-						// gzip block size is 32kB
-						o = new BufferedOutputStream(o, 65536); // to gzipper
-					} else {
-						// buffer -> file
-						o = new BufferedOutputStream(o, 512*1024);
-					}
-					o.write(BOM);
-					return o;
+					FileChannel channel = openLogFile(filename, logOverwrite);
+					myWrite(channel, ByteBuffer.wrap(BOM));
+					return channel;
 				} catch (IOException e) {
 					System.err.println(
 						"Could not create FOS " + filename + ": " + e);
@@ -520,11 +503,18 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					} catch (InterruptedException ex) {
 					}
 					sleepTime += sleepTime;
+					if (sleepTime > maxSleepTime)
+						sleepTime = maxSleepTime;
 				}
 			}
 		}
 	}
 	
+	private static FileChannel openLogFile(File filename, boolean overwrite) throws IOException {
+		return FileChannel.open(filename.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				overwrite ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND);
+	}
+
 	private static final byte[] BOM;
 	
 	static {
@@ -535,10 +525,85 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		}
 	}
 
+	/** Rotated log files waiting to be compressed, oldest first. */
+	private final Deque<OldLogFile> toCompress = new ArrayDeque<OldLogFile>();
 	protected int runningCompressors = 0;
 	protected Object runningCompressorsSync = new Object();
 
-	private Date myDate = new Date();
+	/** Compress a log file which is no longer being written to, on a separate thread. Old log 
+	 * files are compressed one at a time, in order, so they are added to logFiles in order. */
+	private void compressLater(OldLogFile olf) {
+		synchronized(runningCompressorsSync) {
+			toCompress.addLast(olf);
+			if(runningCompressors > 0) return;
+			runningCompressors++;
+		}
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(true) {
+					OldLogFile olf;
+					synchronized(runningCompressorsSync) {
+						olf = toCompress.pollFirst();
+						if(olf == null) {
+							runningCompressors--;
+							return;
+						}
+					}
+					compress(olf);
+				}
+			}
+		}, "Log file compressor");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/** Replace an old log file with a gzipped copy, and add it to the list of old log files. If 
+	 * this fails, the uncompressed file is left alone and will be compressed on the next startup. */
+	private void compress(OldLogFile olf) {
+		File source = olf.filename;
+		File dest = new File(source.getPath() + ".gz");
+		File temp = new File(source.getPath() + ".gz.tmp");
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = new FileInputStream(source);
+			os = new GZIPOutputStream(new FileOutputStream(temp), 65536);
+			FileUtil.copy(is, os, -1);
+			os.close();
+			os = null;
+		} catch (IOException e) {
+			System.err.println("Could not compress log file " + source + ": " + e);
+			Closer.close(os);
+			temp.delete();
+			return;
+		} finally {
+			Closer.close(is);
+		}
+		if(!FileUtil.renameTo(temp, dest)) {
+			System.err.println("Could not rename compressed log file " + temp + " to " + dest);
+			temp.delete();
+			return;
+		}
+		source.delete();
+		long length = dest.length();
+		synchronized(logFiles) {
+			logFiles.addLast(new OldLogFile(dest, olf.start, olf.end, length));
+		}
+		synchronized(trimOldLogFilesLock) {
+			oldLogFilesDiskSpaceUsage += length;
+		}
+		trimOldLogFiles();
+	}
+
+	/** DateFormat is not thread-safe, so each thread that logs has its own copy. */
+	private final ThreadLocal<DateFormat> threadDateFormat = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return (DateFormat) df.clone();
+		}
+	};
 
 	/**
 	 * Create a Logger to append to the given file. If the file does not exist
@@ -592,6 +657,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				synchronized(logFiles) {
 					if(logFiles.isEmpty()) {
 						System.err.println("ERROR: INCONSISTENT LOGGER TOTALS: Log file list is empty but still used "+oldLogFilesDiskSpaceUsage+" bytes!");
+						return;
 					}
 					olf = logFiles.removeFirst();
 				}
@@ -604,12 +670,44 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		}
 	}
 
+	/** Add an old log file, compressing it first if necessary. */
+	private void addOldLogFile(File f, long start, long end) {
+		OldLogFile olf = new OldLogFile(f, start, end, f.length());
+		if(!f.getName().endsWith(".gz")) {
+			compressLater(olf);
+			return;
+		}
+		synchronized(logFiles) {
+			logFiles.addLast(olf);
+		}
+		synchronized(trimOldLogFilesLock) {
+			oldLogFilesDiskSpaceUsage += olf.size;
+		}
+	}
+
 	/** Initialize oldLogFiles */
 	public void findOldLogFiles(GregorianCalendar gc) {
 		gc = (GregorianCalendar) gc.clone();
-		File currentFilename = new File(getHourLogName(gc, -1, true));
+		File currentFilename = new File(getHourLogName(gc, -1, false));
+		File currentCompressed = new File(getHourLogName(gc, -1, true));
 		System.out.println("Finding old log files. New log file is "+currentFilename);
-		File numericSameDateFilename;
+		//If a log file already exists for a given date,
+		//add a number to the end of the file that already exists
+		if(currentFilename.exists() || currentCompressed.exists()) {
+			System.out.println("Old log file exists for this time period: "+currentFilename);
+			for(int a = 1;; a++){
+				File numericSameDateFilename = new File(getHourLogName(gc, a, false));
+				File numericSameDateCompressed = new File(getHourLogName(gc, a, true));
+				if(!(numericSameDateFilename.exists() || numericSameDateCompressed.exists())) {
+					System.out.println("Renaming to: "+numericSameDateFilename);
+					if(currentFilename.exists())
+						FileUtil.renameTo(currentFilename, numericSameDateFilename);
+					if(currentCompressed.exists())
+						FileUtil.renameTo(currentCompressed, numericSameDateCompressed);
+					break;
+				}
+			}
+		}
 		int slashIndex = baseFilename.lastIndexOf(File.separatorChar);
 		File dir;
 		String prefix;
@@ -634,12 +732,20 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				if(name.equals(previousFile.getName()) || name.equals(latestFile.getName())) {
 					continue;
 				}
-				if(!name.endsWith(".log.gz")) {
-					if(logMINOR) Logger.minor(this, "Does not end in .log.gz: "+name);
+				if(name.endsWith(".log.gz")) {
+					name = name.substring(0, name.length()-".log.gz".length());
+				} else if(name.endsWith(".log")) {
+					// Not compressed yet, e.g. we were shut down before it was rotated.
+					if(new File(f.getPath()+".gz").exists()) {
+						// Compressed but not deleted.
+						f.delete();
+						continue;
+					}
+					name = name.substring(0, name.length()-".log".length());
+				} else {
+					if(logMINOR) Logger.minor(this, "Does not end in .log or .log.gz: "+name);
 					f.delete();
 					continue;
-				} else {
-					name = name.substring(0, name.length()-".log.gz".length());
 				}
 				name = name.substring(prefix.length());
 				if((name.length() == 0) || (name.charAt(0) != '-')) {
@@ -673,16 +779,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				gc.set(Calendar.SECOND, 0);
 				gc.set(Calendar.MILLISECOND, 0);
 				long startTime = gc.getTimeInMillis();
-				if(oldFile != null) {
-					long l = oldFile.length();
-					OldLogFile olf = new OldLogFile(oldFile, lastStartTime, startTime, l);
-					synchronized(logFiles) {
-						logFiles.addLast(olf);
-					}
-					synchronized(trimOldLogFilesLock) {
-						oldLogFilesDiskSpaceUsage += l;
-					}
-				}
+				if(oldFile != null)
+					addOldLogFile(oldFile, lastStartTime, startTime);
 				lastStartTime = startTime;
 				oldFile = f;
 			} else {
@@ -690,31 +788,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				Logger.normal(this, "Unknown file: "+name+" in the log directory");
 			}
 		}
-		//If a compressed log file already exists for a given date,
-		//add a number to the end of the file that already exists
-		if(currentFilename != null && currentFilename.exists()) {
-			System.out.println("Old log file exists for this time period: "+currentFilename);
-			for(int a = 1;; a++){
-				numericSameDateFilename = new File(getHourLogName(gc, a, true));
-				if(numericSameDateFilename == null || !numericSameDateFilename.exists()) {
-					if(numericSameDateFilename != null) {
-						System.out.println("Renaming to: "+numericSameDateFilename);
-						FileUtil.renameTo(currentFilename, numericSameDateFilename);
-					}
-					break;
-				}
-			}
-		}
-		if(oldFile != null) {
-			long l = oldFile.length();
-			OldLogFile olf = new OldLogFile(oldFile, lastStartTime, System.currentTimeMillis(), l);
-			synchronized(logFiles) {
-				logFiles.addLast(olf);
-			}
-			synchronized(trimOldLogFilesLock) {
-				oldLogFilesDiskSpaceUsage += l;
-			}
-		}
+		if(oldFile != null)
+			addOldLogFile(oldFile, lastStartTime, System.currentTimeMillis());
 		trimOldLogFiles();
 	}
 
@@ -830,7 +905,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (rotate) {
 			this.baseFilename = baseFilename;
 		} else {
-			logStream = new BufferedOutputStream(new FileOutputStream(baseFilename, !logOverwrite), 65536);
+			logChannel = openLogFile(new File(baseFilename), logOverwrite);
 		}
 	}
 	
@@ -854,7 +929,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		list = new ConcurrentLinkedQueue<byte[]>();
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -933,11 +1008,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
+					sb.append(threadDateFormat.get().format(new Date()));
 					break;
 				case CLASS :
 					sb.append(c == null ? "<none>" : c.getName());
@@ -999,59 +1070,35 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	private static final int LINE_OVERHEAD = 60;
 	
 	public void logString(byte[] b) throws UnsupportedEncodingException {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ 2
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
-				}
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ x
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
-			}
-			if (sz == 0)
+		int length = b.length + LINE_OVERHEAD;
+		if(listSize.get() >= MAX_LIST_SIZE || listBytes.get() + length > MAX_LIST_BYTES) {
+			droppedRecords.incrementAndGet();
+			droppedUnreported.incrementAndGet();
+			return;
+		}
+		listBytes.addAndGet(length);
+		list.add(b);
+		if(listSize.getAndIncrement() == 0) {
+			// The writer thread may be waiting.
+			synchronized(list) {
 				list.notifyAll();
+			}
 		}
 	}
 
+	/** @return The number of bytes (with overheads) waiting to be written. */
 	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
-		}
+		return listBytes.get();
+	}
+
+	/** @return The number of records waiting to be written. */
+	public int getQueuedRecords() {
+		return Math.max(0, listSize.get());
+	}
+
+	/** @return The number of records dropped because the queue was full. */
+	public long getDroppedRecords() {
+		return droppedRecords.get();
 	}
 
 	public static int numberOf(char c) {
@@ -1219,7 +1266,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		return redirectStdOut || redirectStdErr;
 	}
 
-	public synchronized void setMaxBacklogNotBusy(long val) {
+	public void setMaxBacklogNotBusy(long val) {
 		flushTime = val;
 	}
 }
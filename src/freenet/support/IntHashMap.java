@@ -0,0 +1,133 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Arrays;
+
+/**
+ * Map from int to Object which does not box its keys. Uses open addressing with linear probing,
+ * so adding an entry does not allocate unless the table has to grow. Null values are not
+ * allowed, as null marks an empty slot.
+ *
+ * LOCKING: Not thread-safe.
+ */
+public class IntHashMap<V> {
+
+	private static final int MIN_CAPACITY = 8;
+
+	private int[] keys;
+	/** Null if the slot is empty. We grow when more than half full, so probes stay short. */
+	private Object[] values;
+	private int size;
+	private int mask;
+
+	public IntHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/** @param expectedSize The number of entries we expect to hold without growing. */
+	public IntHashMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while(capacity < expectedSize * 2)
+			capacity <<= 1;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/** @return The slot holding the key, or -1. */
+	private int find(int key) {
+		for(int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+			if(keys[i] == key) return i;
+		}
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int i = find(key);
+		return i < 0 ? null : (V) values[i];
+	}
+
+	public boolean containsKey(int key) {
+		return find(key) >= 0;
+	}
+
+	/** @return The previous value for the key, or null. */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if(value == null) throw new NullPointerException();
+		int i = hash(key) & mask;
+		for(; values[i] != null; i = (i + 1) & mask) {
+			if(keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if(++size * 2 > keys.length)
+			resize(keys.length * 2);
+		return null;
+	}
+
+	/** @return The value removed, or null. */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int i = find(key);
+		if(i < 0) return null;
+		V old = (V) values[i];
+		// Shift back any later entries in the same run which would not be found past the gap.
+		int gap = i;
+		for(int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = hash(keys[j]) & mask;
+			// Can the entry at j move to the gap? Only if its home slot is not between the gap
+			// and j, cyclically.
+			if(gap <= j ? (gap < home && home <= j) : (gap < home || home <= j))
+				continue;
+			keys[gap] = keys[j];
+			values[gap] = values[j];
+			gap = j;
+		}
+		values[gap] = null;
+		size--;
+		return old;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldValues[i] == null) continue;
+			int j = hash(oldKeys[i]) & mask;
+			while(values[j] != null)
+				j = (j + 1) & mask;
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+
+}
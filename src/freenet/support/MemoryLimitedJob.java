@@ -4,6 +4,9 @@ package freenet.support;
 public abstract class MemoryLimitedJob {
     
     protected final long initialAllocation;
+    /** Number of smaller jobs started ahead of this one while it was queued. LOCKING: Protected
+     * by the MemoryLimitedJobRunner. */
+    int overtaken;
     
     public MemoryLimitedJob(long initial) {
         this.initialAllocation = initial;
@@ -2,6 +2,7 @@ package freenet.support;
 
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.Iterator;
 
 import freenet.node.PrioRunnable;
 import freenet.support.io.NativeThread;
@@ -62,20 +63,33 @@ public class MemoryLimitedJobRunner {
         maybeStartJobs();
     }
     
+    /** How many times a queued job which doesn't fit in the remaining memory can be overtaken
+     * by smaller jobs behind it, before we stop starting anything else until it fits. */
+    static final int MAX_OVERTAKEN = 8;
+    
     private synchronized void maybeStartJobs() {
         if(shutdown) return;
-        while(true) {
-            MemoryLimitedJob job = null;
-            int prio = 0;
-            for(;prio<jobs.length;prio++) {
-                job = jobs[prio].peekFirst();
-                if(job != null) break;
+        // Priority then FIFO order. A job that doesn't fit (e.g. a big segment) need not leave
+        // the threads idle: smaller jobs (e.g. cross-segments) can start, within reason.
+        MemoryLimitedJob waiting = null;
+        for(int prio=0;prio<jobs.length;prio++) {
+            Iterator<MemoryLimitedJob> it = jobs[prio].iterator();
+            while(it.hasNext()) {
+                if(runningThreads >= maxThreads) return;
+                MemoryLimitedJob job = it.next();
+                if(job.initialAllocation + counter <= capacity) {
+                    if(waiting != null) {
+                        // Many jobs may overtake it in one pass, e.g. when threads are freed.
+                        if(waiting.overtaken >= MAX_OVERTAKEN) return;
+                        waiting.overtaken++;
+                    }
+                    it.remove();
+                    startJob(job);
+                } else if(waiting == null) {
+                    if(job.overtaken >= MAX_OVERTAKEN) return;
+                    waiting = job;
+                }
             }
-            if(job == null) return;
-            if(job.initialAllocation + counter <= capacity && runningThreads < maxThreads) {
-                jobs[prio].removeFirst();
-                startJob(job);
-            } else return;
         }
     }
     
@@ -141,6 +155,34 @@ public class MemoryLimitedJobRunner {
     public synchronized int getRunningThreads() {
         return runningThreads;
     }
+    
+    /** Reserve up to max idle threads, so that a running job can split its work across more
+     * than one core, e.g. a big FEC decode at the end of a download. Reserved threads count
+     * against the thread limit until they are released. Nothing is reserved if any job is 
+     * queued: a job waiting for memory or threads is better than a job split more ways.
+     * @return The number of threads reserved, which may be 0. The caller must run its extra
+     * work on getExecutor() and call releaseThreads() when it has finished. */
+    public synchronized int reserveThreads(int max) {
+        if(shutdown) return 0;
+        for(Deque<MemoryLimitedJob> queue : jobs)
+            if(!queue.isEmpty()) return 0;
+        int reserved = Math.min(max, maxThreads - runningThreads);
+        if(reserved <= 0) return 0;
+        runningThreads += reserved;
+        return reserved;
+    }
+    
+    public synchronized void releaseThreads(int reserved) {
+        if(reserved == 0) return;
+        if(reserved < 0 || reserved > runningThreads) throw new IllegalArgumentException();
+        runningThreads -= reserved;
+        if(shutdown) notifyAll();
+        maybeStartJobs();
+    }
+    
+    public Executor getExecutor() {
+        return executor;
+    }
 
 }
 
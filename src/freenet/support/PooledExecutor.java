@@ -29,6 +29,9 @@ public class PooledExecutor implements Executor {
 	AtomicLong[] threadCounter = new AtomicLong[runningThreads.length];
 	private long jobCount;
 	private long jobMisses;
+	/** Total time from execute() until jobs started running, in nanoseconds */
+	private final AtomicLong totalDelay = new AtomicLong();
+	private final AtomicLong startedJobs = new AtomicLong();
 	private static boolean logMINOR;
 	// Ticker thread that runs at maximum priority.
 	private Ticker ticker;
@@ -158,9 +161,18 @@ public class PooledExecutor implements Executor {
 		return waitingThreadsCount;
 	}
 
+	/** Average time from execute() until a job starts running, in milliseconds, over all jobs
+	 * so far. Includes the time taken to start a thread. */
+	public double getAverageJobDelay() {
+		long count = startedJobs.get();
+		if(count == 0) return 0.0;
+		return totalDelay.get() / (count * 1e6);
+	}
+
 	private static class Job {
 		private final Runnable runnable;
 		private final String name;
+		private final long created = System.nanoTime();
 
 		Job(Runnable runnable, String name) {
 			this.runnable = runnable;
@@ -243,6 +255,8 @@ public class PooledExecutor implements Executor {
 					}
 				}
 
+				totalDelay.addAndGet(System.nanoTime() - job.created);
+				startedJobs.incrementAndGet();
 				// Run the job
 				try {
 					setName(job.name + "(" + threadNo + ")");
@@ -0,0 +1,307 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Executor with a FIFO job queue and a limited pool of threads for each priority. Unlike
+ * PooledExecutor, which starts a new thread whenever no thread is idle, bursts of jobs are
+ * queued once a priority has maxThreads threads.
+ *
+ * Jobs sometimes wait for other jobs at the same priority, so a hard limit could deadlock. A
+ * watchdog thread starts an extra thread for any priority whose oldest queued job has waited
+ * longer than MAX_QUEUE_DELAY. Extra threads die after being idle for TIMEOUT, as in
+ * PooledExecutor.
+ */
+public class QueueingExecutor implements Executor {
+
+	/** Maximum time a thread will wait for a job */
+	static final long TIMEOUT = MINUTES.toMillis(1);
+	/** Start another thread if a job has been queued for longer than this */
+	static final long MAX_QUEUE_DELAY = MILLISECONDS.toNanos(100);
+	/** Default number of threads per priority before we start queueing */
+	public static final int DEFAULT_MAX_THREADS = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+
+	private final Lane[] lanes = new Lane[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	private final int maxThreads;
+	private final AtomicInteger waitingThreadsCount = new AtomicInteger();
+	private static volatile boolean logMINOR;
+	// Ticker thread that runs at maximum priority.
+	private Ticker ticker;
+	private boolean started;
+
+	public QueueingExecutor() {
+		this(DEFAULT_MAX_THREADS);
+	}
+
+	/** @param maxThreads The number of threads for each priority before we start queueing. */
+	public QueueingExecutor(int maxThreads) {
+		if(maxThreads < 1) throw new IllegalArgumentException();
+		this.maxThreads = maxThreads;
+		for(int i = 0; i < lanes.length; i++)
+			lanes[i] = new Lane(i + 1);
+	}
+
+	public synchronized void setTicker(Ticker ticker) {
+		this.ticker = ticker;
+	}
+
+	public void start() {
+		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+		synchronized(this) {
+			if(started) return;
+			started = true;
+		}
+		NativeThread watchdog = new NativeThread("Queueing executor watchdog", NativeThread.MAX_PRIORITY, false) {
+			@Override
+			public void realRun() {
+				while(true) {
+					try {
+						Thread.sleep(NANOSECONDS.toMillis(MAX_QUEUE_DELAY / 2));
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+					for(Lane lane : lanes)
+						lane.checkStalled();
+				}
+			}
+		};
+		watchdog.setDaemon(true);
+		watchdog.start();
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(Runnable runnable, String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(runnable instanceof PrioRunnable)
+			prio = ((PrioRunnable) runnable).getPriority();
+
+		if(logMINOR)
+			Logger.minor(this, "Executing " + runnable + " as " + jobName + " at prio " + prio);
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+
+		Lane lane = lanes[prio - 1];
+		Job job = new Job(runnable, jobName);
+		Ticker t;
+		synchronized(lane) {
+			if(lane.idle > lane.jobs.size() || lane.threads >= maxThreads) {
+				// An idle thread will pick it up, or it waits for one.
+				lane.jobs.addLast(job);
+				lane.notify();
+				return;
+			}
+			synchronized(this) {
+				t = ticker;
+			}
+			if(t == null || fromTicker || !NativeThread.usingNativeCode() || prio <= Thread.currentThread().getPriority()) {
+				lane.startThread(job, !fromTicker);
+				return;
+			}
+		}
+		// Get the ticker to create a thread for it with the right priority, since we can't.
+		t.queueTimedJob(runnable, jobName, 0, true, false);
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[lanes.length];
+		for(int i = 0; i < result.length; i++) {
+			synchronized(lanes[i]) {
+				result[i] = lanes[i].threads - lanes[i].idle;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		int[] result = new int[lanes.length];
+		for(int i = 0; i < result.length; i++) {
+			synchronized(lanes[i]) {
+				result[i] = lanes[i].idle;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return waitingThreadsCount.get();
+	}
+
+	/** Number of jobs waiting for a thread, by priority. */
+	public int[] queuedJobs() {
+		int[] result = new int[lanes.length];
+		for(int i = 0; i < result.length; i++) {
+			synchronized(lanes[i]) {
+				result[i] = Math.max(0, lanes[i].jobs.size() - lanes[i].idle);
+			}
+		}
+		return result;
+	}
+
+	/** Average time from execute() until a job starts running, in milliseconds, over all jobs
+	 * so far. Includes the time taken to start a thread. */
+	public double getAverageJobDelay() {
+		long delay = 0;
+		long count = 0;
+		for(Lane lane : lanes) {
+			synchronized(lane) {
+				delay += lane.totalDelay;
+				count += lane.startedJobs;
+			}
+		}
+		if(count == 0) return 0.0;
+		return delay / (count * 1e6);
+	}
+
+	private static class Job {
+		private final Runnable runnable;
+		private final String name;
+		private final long created = System.nanoTime();
+
+		Job(Runnable runnable, String name) {
+			this.runnable = runnable;
+			this.name = name;
+		}
+	}
+
+	/** The queue and the threads for one priority. LOCKING: Synchronize on the Lane. */
+	private class Lane {
+		final int prio;
+		final ArrayDeque<Job> jobs = new ArrayDeque<Job>();
+		/** All threads running or waiting */
+		int threads;
+		/** Threads waiting for a job */
+		int idle;
+		long threadCounter;
+		long startedJobs;
+		long totalDelay;
+
+		Lane(int prio) {
+			this.prio = prio;
+		}
+
+		/** Start a thread if the oldest queued job has waited too long. Called by the watchdog,
+		 * which runs at maximum priority, so it can always start the thread itself. */
+		synchronized void checkStalled() {
+			if(jobs.size() <= idle) return;
+			Job oldest = jobs.peekFirst();
+			if(System.nanoTime() - oldest.created < MAX_QUEUE_DELAY) return;
+			if(logMINOR)
+				Logger.minor(this, "Queue stalled at priority " + prio + " with " + threads + " threads, starting another");
+			startThread(null, true);
+		}
+
+		synchronized void startThread(Job firstJob, boolean dontCheckRenice) {
+			long threadNo = threadCounter++;
+			threads++;
+			// Will be coalesced by thread count listings if we use "@" or "for"
+			MyThread t = new MyThread("Queued thread awaiting work @" + threadNo + " for prio " + prio,
+					this, firstJob, threadNo, dontCheckRenice);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		/** Called by a thread when it is ready for another job. Returns null if the thread
+		 * should exit. */
+		synchronized Job nextJob() {
+			Job job = jobs.pollFirst();
+			if(job == null) {
+				idle++;
+				waitingThreadsCount.incrementAndGet();
+				long deadline = System.currentTimeMillis() + TIMEOUT;
+				try {
+					while((job = jobs.pollFirst()) == null) {
+						long wait = deadline - System.currentTimeMillis();
+						if(wait <= 0) break;
+						try {
+							wait(wait);
+						} catch(InterruptedException e) {
+							// Ignore
+						}
+					}
+				} finally {
+					idle--;
+					waitingThreadsCount.decrementAndGet();
+				}
+				if(job == null) {
+					threads--;
+					return null;
+				}
+			}
+			started(job);
+			return job;
+		}
+
+		synchronized void started(Job job) {
+			startedJobs++;
+			totalDelay += System.nanoTime() - job.created;
+		}
+	}
+
+	private class MyThread extends NativeThread {
+		final String defaultName;
+		final Lane lane;
+		final long threadNo;
+		private Job firstJob;
+
+		public MyThread(String defaultName, Lane lane, Job firstJob, long threadNo, boolean dontCheckRenice) {
+			super(defaultName, lane.prio, dontCheckRenice);
+			this.defaultName = defaultName;
+			this.lane = lane;
+			this.firstJob = firstJob;
+			this.threadNo = threadNo;
+		}
+
+		@Override
+		public void realRun() {
+			long ranJobs = 0;
+			Job job = firstJob;
+			firstJob = null;
+			if(job != null)
+				lane.started(job);
+			while(true) {
+				if(job == null) {
+					setName(defaultName);
+					job = lane.nextJob();
+					if(job == null) {
+						if(logMINOR)
+							Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+						return;
+					}
+				}
+				try {
+					setName(job.name + "(" + threadNo + ")");
+					job.runnable.run();
+				} catch(Throwable t) {
+					Logger.error(this, "Caught " + t + " running job " + job, t);
+				}
+				ranJobs++;
+				job = null;
+			}
+		}
+	}
+}
@@ -16,8 +16,9 @@ import freenet.client.async.RequestSelectionTreeNode;
  * This is *NOT* persistent. The request selection structures are reconstructed on restart. However
  * it used to be, and probably has a lot of cruft and inefficiency as a result. 
  * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
+ * LOCKING: Each RGA is locked on itself. Wakeup times are updated without locking, see 
+ * WakeupTime. If you need more than one lock, take the parent's before the child's. See the 
+ * javadocs on ClientRequestSelector for deeper explanation.
  * 
  * FIXME Simplify and improve performance. A lot of this is O(n), and this should probably be fixed. 
  * Memory usage was an issue but probably isn't now given that the individual items are now quite 
@@ -44,9 +45,9 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	private final static int MIN_SIZE = 32;
 	private final static int BLOCK_SIZE = 1024;
 	private final int hashCode;
-	private RemoveRandomParent parent;
+	private volatile RemoveRandomParent parent;
 	protected ClientRequestSelector root;
-	private long wakeupTime;
+	private final WakeupTime wakeupTime = new WakeupTime();
 
 	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
 		this.blocks = new Block[] { new Block() };
@@ -68,7 +69,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 			return;
 		}
 		req.setParentGrabArray(this); // will store() self
-		synchronized(root) {
+		synchronized(this) {
 			if(context != null) {
 			    clearWakeupTime(context);
 			}
@@ -126,13 +127,15 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
 		if(logMINOR) Logger.minor(this, "removeRandom() on "+this+" index="+index);
-		synchronized(root) {
+		// Read before looking, so we don't go into cooldown if an item is woken up meanwhile.
+		int changes = wakeupTime.changes();
+		synchronized(this) {
 			if(index == 0) {
 				if(logMINOR) Logger.minor(this, "All null on "+this);
 				return null;
 			}
 			if(index < MAX_EXCLUDED) {
-				return removeRandomExhaustiveSearch(excluding, context, now);
+				return removeRandomExhaustiveSearch(excluding, context, now, changes);
 			}
 			RandomGrabArrayItem ret = removeRandomLimited(excluding, context, now);
 			if(ret != null)
@@ -141,7 +144,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 				if(logMINOR) Logger.minor(this, "All null on "+this);
 				return null;
 			}
-			return removeRandomExhaustiveSearch(excluding, context, now);
+			return removeRandomExhaustiveSearch(excluding, context, now, changes);
 		}
 	}
 	
@@ -212,7 +215,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 
 	private RemoveRandomReturn removeRandomExhaustiveSearch(
 			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
+			ClientContext context, long now, int changes) {
 		if(logMINOR)
 			Logger.minor(this, "Doing exhaustive search and compaction on "+this);
 		long wakeupTime = Long.MAX_VALUE;
@@ -311,7 +314,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 				return null; // Caller should remove the whole RGA
 			} else if(valid == 0) {
 				if(logMINOR) Logger.minor(this, "No valid items, "+exclude+" excluded items total "+index);
-				setWakeupTime(wakeupTime, context);
+				setWakeupTime(wakeupTime, changes, context);
 				return new RemoveRandomReturn(wakeupTime);
 			} else if(valid == 1) {
 				ret = validItem;
@@ -351,7 +354,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		
 		boolean matched = false;
 		boolean empty = false;
-		synchronized(root) {
+		synchronized(this) {
 			if(blocks.length == 1) {
 				Block block = blocks[0];
 				for(int i=0;i<index;i++) {
@@ -400,19 +403,22 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 			if(logMINOR) Logger.minor(this, "Not found: "+it+" on "+this);
 			return;
 		}
-		if(empty && parent != null) {
-			parent.maybeRemove(this, context);
+		RemoveRandomParent p = parent;
+		// If we are inside removeRandom() the parent will remove us when it sees we are empty. 
+		// Don't take its lock while holding ours.
+		if(empty && p != null && !Thread.holdsLock(this)) {
+			p.removeIfEmpty(this, context);
 		}
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
+	    synchronized(this) {
 	        return index == 0;
 	    }
 	}
 	
 	public boolean contains(RandomGrabArrayItem item) {
-		synchronized(root) {
+		synchronized(this) {
 			if(blocks.length == 1) {
 				Block block = blocks[0];
 				for(int i=0;i<index;i++) {
@@ -438,13 +444,13 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	}
 	
 	public int size() {
-	    synchronized(root) {
+	    synchronized(this) {
 	        return index;
 	    }
 	}
 
 	public RandomGrabArrayItem get(int idx) {
-	    synchronized(root) {
+	    synchronized(this) {
 	        int blockNo = idx / BLOCK_SIZE;
 	        RandomGrabArrayItem item = blocks[blockNo].reqs[idx % BLOCK_SIZE];
 	        return item;
@@ -470,24 +476,17 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
-	        this.parent = newParent;
-	    }
+		this.parent = newParent;
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
-            return parent;
-        }
+        return parent;
     }
 
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
-            if(wakeupTime < now) wakeupTime = 0;
-            return wakeupTime;
-        }
+        return wakeupTime.get(now);
     }
     
     /** Set the wakeup time, and update parents recursively if it is reduced. If it is increased
@@ -495,40 +494,34 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
      * called by removeRandomExhaustive() i.e. after checking <b>all</b> our 
      * RandomGrabArrayItem's and finding that none of them are ready to send.
      * @param wakeupTime
+     * @param changes WakeupTime.changes() from before we started looking.
      * @param context
      */
-    private void setWakeupTime(long wakeupTime, ClientContext context) {
+    private void setWakeupTime(long wakeupTime, int changes, ClientContext context) {
         if(logMINOR) Logger.minor(this, "setCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
-            if(this.wakeupTime > wakeupTime) {
-                this.wakeupTime = wakeupTime; // Set before calling parent.
-                if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
-            } else {
-                this.wakeupTime = wakeupTime;
-            }
+        if(this.wakeupTime.set(wakeupTime, changes)) {
+            RemoveRandomParent p = parent;
+            if(p != null) p.reduceWakeupTime(wakeupTime, context);
         }
     }
 
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
-            if(this.wakeupTime > wakeupTime) {
-                this.wakeupTime = wakeupTime;
-                if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
-                return true;
-            }
-            return false;
+        if(this.wakeupTime.reduce(wakeupTime)) {
+            RemoveRandomParent p = parent;
+            if(p != null) p.reduceWakeupTime(wakeupTime, context);
+            return true;
         }
+        return false;
     }
 
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
-            wakeupTime = 0;
-            if(parent != null) parent.clearWakeupTime(context);
-        }
+        wakeupTime.clear();
+        RemoveRandomParent p = parent;
+        if(p != null) p.clearWakeupTime(context);
     }
 	
 }
@@ -26,4 +26,6 @@ public interface RemoveRandom extends RequestSelectionTreeNode {
 
 	public void setParent(RemoveRandomParent newTopLevel);
 
+	public boolean isEmpty();
+
 }
@@ -10,4 +10,11 @@ public interface RemoveRandomParent extends RequestSelectionTreeNode {
 	 */
 	public void maybeRemove(RemoveRandom r, ClientContext context);
 
+	/** Remove the specified RemoveRandom if it is still empty, and propagate upwards if the parent
+	 * is now empty. Checks while holding the parent's lock, so that we don't lose something which
+	 * was added to it after the caller found it empty.
+	 * @param context 
+	 */
+	public void removeIfEmpty(RemoveRandom r, ClientContext context);
+
 }
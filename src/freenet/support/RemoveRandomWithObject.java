@@ -4,8 +4,6 @@ public interface RemoveRandomWithObject<T> extends RemoveRandom {
 
 	public T getObject();
 
-	public boolean isEmpty();
-
 	public void setObject(T client);
 
 }
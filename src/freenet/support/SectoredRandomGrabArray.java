@@ -10,8 +10,10 @@ import freenet.client.async.RequestSelectionTreeNode;
  * Like RandomGrabArray, but there is an equal chance of any given client's requests being
  * returned. Again, not persistent; this is reconstructed on restart.
  * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
+ * LOCKING: Each SRGA is locked on itself, but only to change the list of sub-arrays, which is
+ * copied on write so that choosing a request does not need to lock it. Wakeup times are updated
+ * without locking, see WakeupTime. If you need more than one lock, take the parent's before the 
+ * child's. See the javadocs on ClientRequestSelector for deeper explanation.
  * 
  * A lot of this is over-complicated and over-expensive because of db4o. A lot of it is O(n).
  * This is all kept in RAM now so we can change it at will, plus there is only one object 
@@ -25,11 +27,13 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		Logger.registerClass(SectoredRandomGrabArray.class);
 	}
 
-	private RemoveRandomWithObject<T>[] grabArrays;
+	/** Replaced, never changed, so may be read without locking. Written while locked. */
+	private volatile RemoveRandomWithObject<T>[] grabArrays;
+	/** The client for each grab array. Protected by this. */
 	private T[] grabClients;
-	private RemoveRandomParent parent;
+	private volatile RemoveRandomParent parent;
 	protected final ClientRequestSelector root;
-	private long wakeupTime;
+	private final WakeupTime wakeupTime = new WakeupTime();
 
 	public SectoredRandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
 		grabClients = newClientArray(0);
@@ -38,99 +42,88 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		this.root = root;
 	}
 
-	protected void addElement(T client, C rga) {
-	    synchronized(root) {
+	protected synchronized void addElement(T client, C rga) {
 		final int len = grabArrays.length;
 
-		grabArrays = Arrays.copyOf(grabArrays, len+1);
-		grabArrays[len] = rga;
-		
 		grabClients = Arrays.copyOf(grabClients, len+1);
 		grabClients[len] = client;
-	    }
+		
+		RemoveRandomWithObject<T>[] newArrays = Arrays.copyOf(grabArrays, len+1);
+		newArrays[len] = rga;
+		grabArrays = newArrays;
 	}
 
-	protected int haveClient(T client) {
-	    synchronized(root) {
+	protected synchronized int haveClient(T client) {
 		for(int i=0;i<grabClients.length;i++) {
 			if(grabClients[i] == client) return i;
 		}
 		return -1;
-	    }
 	}
 
 	/**
 	 * Get a grabber.
 	 */
 	@SuppressWarnings("unchecked")
-	public C getGrabber(T client) {
-	    synchronized(root) {
+	public synchronized C getGrabber(T client) {
 		int idx = haveClient(client);
 		if(idx == -1) return null;
 		else return (C)grabArrays[idx];
-	    }
 	}
 	
-	public T getClient(int x) {
-	    synchronized(root) {
+	public synchronized T getClient(int x) {
 		return grabClients[x];
-	    }
 	}
 
 	/**
 	 * Put a grabber.
 	 */
 	public void addGrabber(T client, C requestGrabber, ClientContext context) {
-	    synchronized(root) {
-		if(requestGrabber.getObject() != client)
-			throw new IllegalArgumentException("Client not equal to RemoveRandomWithObject's client: client="+client+" rr="+requestGrabber+" his object="+requestGrabber.getObject());
-		addElement(client, requestGrabber);
+		synchronized(this) {
+			if(requestGrabber.getObject() != client)
+				throw new IllegalArgumentException("Client not equal to RemoveRandomWithObject's client: client="+client+" rr="+requestGrabber+" his object="+requestGrabber.getObject());
+			addElement(client, requestGrabber);
+			requestGrabber.setParent(this);
+		}
 		if(context != null) {
 		    clearWakeupTime(context);
 		}
-	    }
 	}
 
+	/** Does not lock, apart from removing sub-arrays that have become empty, so several 
+	 * threads can choose requests at once. */
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
-	    synchronized(root) {
-		while(true) {
-			if(grabArrays.length == 0) return null;
-			if(grabArrays.length == 1) {
-				return removeRandomOneOnly(excluding, context, now);
-			}
-			if(grabArrays.length == 2) {
-				RemoveRandomReturn ret = removeRandomTwoOnly(excluding, context, now);
-				if(ret == null) continue; // Go around loop again, it has reduced to 1 or 0.
-				return ret;
-			}
+		// Read before looking, so we don't go into cooldown if a request is woken up meanwhile.
+		int changes = wakeupTime.changes();
+		RemoveRandomWithObject<T>[] arrays = grabArrays;
+		if(arrays.length == 0) return null;
+		if(arrays.length > 2) {
 			RandomGrabArrayItem item = removeRandomLimited(excluding, context, now);
 			if(item != null)
 				return new RemoveRandomReturn(item);
-			else
-				return removeRandomExhaustive(excluding, context, now);
 		}
-	    }
+		// With one or two sub-arrays, trying them all is as cheap as picking at random.
+		return removeRandomExhaustive(excluding, context, now, changes);
 	}
 
 	private RemoveRandomReturn removeRandomExhaustive(
 			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
-	    synchronized(root) {
+			ClientContext context, long now, int changes) {
 		long wakeupTime = Long.MAX_VALUE;
-		if(grabArrays.length == 0) return null;
-		int x = context.fastWeakRandom.nextInt(grabArrays.length);
-		for(int i=0;i<grabArrays.length;i++) {
+		RemoveRandomWithObject<T>[] arrays = grabArrays;
+		if(arrays.length == 0) return null;
+		int x = context.fastWeakRandom.nextInt(arrays.length);
+		for(int i=0;i<arrays.length;i++) {
 			x++;
-			if(x >= grabArrays.length) x = 0;
-			RemoveRandomWithObject<T> rga = grabArrays[x];
+			if(x >= arrays.length) x = 0;
+			RemoveRandomWithObject<T> rga = arrays[x];
 			long excludeTime = rga.getWakeupTime(context, now);
 			if(excludeTime > 0) {
 				if(wakeupTime > excludeTime) wakeupTime = excludeTime;
 				continue;
 			}
 			if(logMINOR)
-				Logger.minor(this, "Picked "+x+" of "+grabArrays.length+" : "+rga+" on "+this);
+				Logger.minor(this, "Picked "+x+" of "+arrays.length+" : "+rga+" on "+this);
 			
 			RandomGrabArrayItem item = null;
 			RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
@@ -142,59 +135,52 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 				}
 			}
 			if(logMINOR)
-				Logger.minor(this, "RGA has picked "+x+"/"+grabArrays.length+": "+item+
+				Logger.minor(this, "RGA has picked "+x+"/"+arrays.length+": "+item+
 						" rga.isEmpty="+rga.isEmpty());
 			if(item != null) {
 				return new RemoveRandomReturn(item);
 			} else if(rga.isEmpty()) {
 				if(logMINOR)
 					Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
-				removeElement(x);
+				removeElementIfEmpty(rga);
 			}
 		}
-		reduceWakeupTime(wakeupTime, context);
+		if(grabArrays.length == 0) {
+			if(logMINOR) Logger.minor(this, "Arrays are empty on "+this);
+			return null; // Remove this as well
+		}
+		setWakeupTime(wakeupTime, changes, context);
 		return new RemoveRandomReturn(wakeupTime);
-	    }
 	}
 
 	private RandomGrabArrayItem removeRandomLimited(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
 		/** Count of arrays that have items but didn't return anything because of exclusions */
 		final int MAX_EXCLUDED = 10;
 		int excluded = 0;
 		while(true) {
-			if(grabArrays.length == 0) return null;
-			int x = context.fastWeakRandom.nextInt(grabArrays.length);
-			RemoveRandomWithObject<T> rga = grabArrays[x];
-			if(rga == null) {
-				// We handle this in the other cases so we should handle it here.
-				Logger.error(this, "Slot "+x+" is null for client "+grabClients[x]);
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
-					return null;
-				}
-				continue;
-			}
+			RemoveRandomWithObject<T>[] arrays = grabArrays;
+			if(arrays.length == 0) return null;
+			int x = context.fastWeakRandom.nextInt(arrays.length);
+			RemoveRandomWithObject<T> rga = arrays[x];
 			long excludeTime = rga.getWakeupTime(context, now);
 			if(excludeTime > 0) {
 				excluded++;
 				if(excluded > MAX_EXCLUDED) {
-					Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
+					Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+arrays.length, new Exception("error"));
 					return null;
 				}
 				continue;
 			}
 			if(logMINOR)
-				Logger.minor(this, "Picked "+x+" of "+grabArrays.length+" : "+rga+" on "+this);
+				Logger.minor(this, "Picked "+x+" of "+arrays.length+" : "+rga+" on "+this);
 			
 			RandomGrabArrayItem item = null;
 			RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
 			if(val != null && val.item != null) item = val.item;
 			if(logMINOR)
-				Logger.minor(this, "RGA has picked "+x+"/"+grabArrays.length+": "+item+
+				Logger.minor(this, "RGA has picked "+x+"/"+arrays.length+": "+item+
 						" rga.isEmpty="+rga.isEmpty());
 			// If it is not empty but returns null we exclude it, and count the exclusion.
 			// If it is empty we remove it, and don't count the exclusion.
@@ -204,158 +190,39 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 				if(rga.isEmpty()) {
 					if(logMINOR)
 						Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
-					removeElement(x);
+					removeElementIfEmpty(rga);
 				} else {
 					excluded++;
 					if(excluded > MAX_EXCLUDED) {
-						Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
+						Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+arrays.length, new Exception("error"));
 						return null;
 					}
 				}
 				continue;
 			}
 		}
-	    }
 	}
 
-	private RemoveRandomReturn removeRandomTwoOnly(
-			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
-	    synchronized(root) {
-		long wakeupTime = Long.MAX_VALUE;
-		// Another simple common case
-		int x = context.fastWeakRandom.nextBoolean() ? 1 : 0;
-		RemoveRandomWithObject<T> rga = grabArrays[x];
-		RemoveRandomWithObject<T> firstRGA = rga;
-		if(rga == null) {
-			Logger.error(this, "rga = null on "+this);
-			if(grabArrays[1-x] == null) {
-				Logger.error(this, "other rga is also null on "+this);
-				grabArrays = newGrabberArray(0);
-				grabClients = newClientArray(0);
-				return null;
-			} else {
-				Logger.error(this, "grabArrays["+(1-x)+"] is valid but ["+x+"] is null, correcting...");
-				grabArrays = asGrabberArray(grabArrays[1-x]);
-				grabClients = asClientArray(grabClients[1-x]);
-				return null;
-			}
-		}
-		RandomGrabArrayItem item = null;
-		RemoveRandomReturn val = null;
-		if(logMINOR) Logger.minor(this, "Only 2, trying "+rga);
-		long excludeTime = rga.getWakeupTime(context, now);
-		if(excludeTime > 0) {
-			wakeupTime = excludeTime;
-			rga = null;
-			firstRGA = null;
-		} else {
-			val = rga.removeRandom(excluding, context, now);
-			if(val != null) {
-				if(val.item != null)
-					item = val.item;
-				else {
-					if(wakeupTime > val.wakeupTime) wakeupTime = val.wakeupTime;
-				}
-			}
-		}
-		if(item != null) {
-			if(logMINOR)
-				Logger.minor(this, "Returning (two items only) "+item+" for "+rga);
-			return new RemoveRandomReturn(item);
-		} else {
-			x = 1-x;
-			rga = grabArrays[x];
-			if(rga == null) {
-				Logger.error(this, "Other RGA is null later on on "+this);
-				grabArrays = asGrabberArray(grabArrays[1-x]);
-				grabClients = asClientArray(grabClients[1-x]);
-                reduceWakeupTime(wakeupTime, context);
-				return new RemoveRandomReturn(wakeupTime);
-			}
-			excludeTime = rga.getWakeupTime(context, now);
-			if(excludeTime > 0) {
-				if(wakeupTime > excludeTime) wakeupTime = excludeTime;
-				rga = null;
-			} else {
-				val = rga.removeRandom(excluding, context, now);
-				if(val != null) {
-					if(val.item != null)
-						item = val.item;
-					else {
-						if(wakeupTime > val.wakeupTime) wakeupTime = val.wakeupTime;
-					}
-				}
-			}
-			if(firstRGA != null && firstRGA.isEmpty() && rga != null && rga.isEmpty()) {
-				if(logMINOR) Logger.minor(this, "Removing both on "+this+" : "+firstRGA+" and "+rga+" are empty");
-				grabArrays = newGrabberArray(0);
-				grabClients = newClientArray(0);
-			} else if(firstRGA != null && firstRGA.isEmpty()) {
-				if(logMINOR) Logger.minor(this, "Removing first: "+firstRGA+" is empty on "+this);
-				grabArrays = asGrabberArray(grabArrays[x]); // don't use RGA, it may be nulled out
-				grabClients = asClientArray(grabClients[x]);
-			}
-			if(logMINOR)
-				Logger.minor(this, "Returning (two items only) "+item+" for "+rga);
-			if(item == null) {
-				if(grabArrays.length == 0)
-					return null; // Remove this as well
-                reduceWakeupTime(wakeupTime, context);
-				return new RemoveRandomReturn(wakeupTime);
-			} else return new RemoveRandomReturn(item);
-		}
-	    }
+	/** Remove a sub-array. Checks that it is still empty while holding our lock, since things 
+	 * are only added to a sub-array while holding its parent's lock.
+	 * @return True if it was removed. */
+	private synchronized boolean removeElementIfEmpty(RemoveRandom r) {
+		if(!r.isEmpty()) return false;
+		int x = indexOf(r);
+		if(x == -1) return false;
+		removeElement(x);
+		return true;
 	}
 
-	private RemoveRandomReturn removeRandomOneOnly(
-			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
-	    synchronized(root) {
-		long wakeupTime = Long.MAX_VALUE;
-		// Optimise the common case
-		RemoveRandomWithObject<T> rga = grabArrays[0];
-		if(logMINOR) Logger.minor(this, "Only one RGA: "+rga);
-		long excludeTime = rga.getWakeupTime(context, now);
-		if(excludeTime > 0)
-			return new RemoveRandomReturn(excludeTime);
-		if(rga == null) {
-			Logger.error(this, "Only one entry and that is null");
-			// We are sure
-			grabArrays = newGrabberArray(0);
-			grabClients = newClientArray(0);
-			return null;
-		}
-		RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
-		RandomGrabArrayItem item = null;
-		if(val != null) { // val == null => remove it
-			if(val.item != null)
-				item = val.item;
-			else {
-				wakeupTime = val.wakeupTime;
-			}
+	private synchronized int indexOf(RemoveRandom r) {
+		RemoveRandomWithObject<T>[] arrays = grabArrays;
+		for(int i=0;i<arrays.length;i++) {
+			if(arrays[i] == r) return i;
 		}
-		if(rga.isEmpty()) {
-			if(logMINOR)
-				Logger.minor(this, "Removing only grab array (0) : "+rga);
-			grabArrays = newGrabberArray(0);
-			grabClients = newClientArray(0);
-		}
-		if(logMINOR)
-			Logger.minor(this, "Returning (one item only) "+item+" for "+rga);
-		if(item == null) {
-			if(grabArrays.length == 0) {
-				if(logMINOR) Logger.minor(this, "Arrays are empty on "+this);
-				return null; // Remove this as well
-			}
-            reduceWakeupTime(wakeupTime, context);
-			return new RemoveRandomReturn(wakeupTime);
-		} else return new RemoveRandomReturn(item);
-	    }
+		return -1;
 	}
 
-	private void removeElement(int x) {
-	    synchronized(root) {
+	private synchronized void removeElement(int x) {
 		final int grabArraysLength = grabArrays.length;
 		int newLen = grabArraysLength > 1 ? grabArraysLength-1 : 0;
 		RemoveRandomWithObject<T>[] newArray = newGrabberArray(newLen);
@@ -363,7 +230,6 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 			System.arraycopy(grabArrays, 0, newArray, 0, x);
 		if(x < grabArraysLength-1)
 			System.arraycopy(grabArrays, x+1, newArray, x, grabArraysLength - (x+1));
-		grabArrays = newArray;
 		
 		T[] newClients = newClientArray(newLen);
 		if(x > 0)
@@ -371,34 +237,25 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		if(x < grabArraysLength-1)
 			System.arraycopy(grabClients, x+1, newClients, x, grabArraysLength - (x+1));
 		grabClients = newClients;
-	    }
+		grabArrays = newArray;
 	}
 
+	@Override
 	public boolean isEmpty() {
-	    synchronized(root) {
 		return grabArrays.length == 0;
-	    }
 	}
 	
 	public int size() {
-	    synchronized(root) {
 		return grabArrays.length;
-	    }
 	}
 	
 	@Override
 	public void maybeRemove(RemoveRandom r, ClientContext context) {
 		int count = 0;
 		int finalSize;
-		synchronized(root) {
+		synchronized(this) {
 			while(true) {
-				int found = -1;
-				for(int i=0;i<grabArrays.length;i++) {
-					if(grabArrays[i] == r) {
-						found = i;
-						break;
-					}
-				}
+				int found = indexOf(r);
 				if(found != -1) {
 					count++;
 					if(count > 1) Logger.error(this, "Found "+r+" many times in "+this, new Exception("error"));
@@ -414,62 +271,68 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 			// And it has already been removeFrom()'ed.
 			if(logMINOR) Logger.minor(this, "Not in parent: "+r+" for "+this, new Exception("error"));
 		}
-		if(finalSize == 0 && parent != null) {
-			parent.maybeRemove(this, context);
+		RemoveRandomParent p = parent;
+		if(finalSize == 0 && p != null) {
+			p.removeIfEmpty(this, context);
+		}
+	}
+
+	@Override
+	public void removeIfEmpty(RemoveRandom r, ClientContext context) {
+		int finalSize;
+		synchronized(this) {
+			if(!removeElementIfEmpty(r)) return;
+			finalSize = grabArrays.length;
+		}
+		RemoveRandomParent p = parent;
+		if(finalSize == 0 && p != null) {
+			p.removeIfEmpty(this, context);
 		}
 	}
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
 		this.parent = newParent;
-	    }
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
-            return parent;
-        }
+        return parent;
     }
 	
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
-            if(wakeupTime < now) wakeupTime = 0;
-            return wakeupTime;
+        return wakeupTime.get(now);
+    }
+    
+    /** Set the wakeup time after checking all our sub-arrays and finding nothing to send, so 
+     * that the next request starter can skip this whole subtree. Tells the parent if it is 
+     * reduced, as for RandomGrabArray.
+     * @param changes WakeupTime.changes() from before we started looking. */
+    private void setWakeupTime(long wakeupTime, int changes, ClientContext context) {
+        if(logMINOR) Logger.minor(this, "setCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
+        if(this.wakeupTime.set(wakeupTime, changes)) {
+            RemoveRandomParent p = parent;
+            if(p != null) p.reduceWakeupTime(wakeupTime, context);
         }
     }
     
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        boolean reachedRoot = false;
-        synchronized(root) {
-            if(this.wakeupTime > wakeupTime) {
-                this.wakeupTime = wakeupTime;
-                if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
-                else reachedRoot = true; // Even if it reduces it we need to wake it up.
-            } else return false;
-        }
-        if(reachedRoot)
-            root.wakeUp(context);
+        if(!this.wakeupTime.reduce(wakeupTime)) return false;
+        RemoveRandomParent p = parent;
+        if(p != null) p.reduceWakeupTime(wakeupTime, context);
+        else root.wakeUp(context); // Even if it reduces it we need to wake it up.
         return true;
     }
     
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
-            wakeupTime = 0;
-            if(parent != null) parent.clearWakeupTime(context);
-        }
-    }
-
-    private T[] asClientArray(T client) {
-        T[] clients = newClientArray(1);
-        clients[0] = client;
-        return clients;
+        wakeupTime.clear();
+        RemoveRandomParent p = parent;
+        if(p != null) p.clearWakeupTime(context);
     }
 
     @SuppressWarnings("unchecked")
@@ -477,12 +340,6 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
         return (T[])new Object[length];
     }
 
-    private RemoveRandomWithObject<T>[] asGrabberArray(RemoveRandomWithObject<T> grabber) {
-        RemoveRandomWithObject<T>[] grabbers = newGrabberArray(1);
-        grabbers[0] = grabber;
-        return grabbers;
-    }
-
     @SuppressWarnings("unchecked")
     private RemoveRandomWithObject<T>[] newGrabberArray(int length) {
         return (RemoveRandomWithObject<T>[])new RemoveRandomWithObject<?>[length];
@@ -20,9 +20,10 @@ public class SectoredRandomGrabArraySimple<MyType,ChildType> extends SectoredRan
         super(object, parent, root);
     }
 
-    /** Add directly to a RandomGrabArrayWithObject under us. */
+    /** Add directly to a RandomGrabArrayWithObject under us. Holds our lock so that the 
+     * RandomGrabArrayWithObject can't be removed for being empty while we add to it. */
     public void add(ChildType client, RandomGrabArrayItem item, ClientContext context) {
-        synchronized(root) {
+        synchronized(this) {
         RandomGrabArrayWithObject<ChildType> rga = getGrabber(client);
         if(rga == null) {
             if(logMINOR)
@@ -4,7 +4,7 @@ import freenet.client.async.ClientRequestSelector;
 
 public class SectoredRandomGrabArrayWithObject<MyType,ChildType,GrabType extends RemoveRandomWithObject<ChildType>> extends SectoredRandomGrabArray<ChildType,GrabType> implements RemoveRandomWithObject<MyType> {
 
-	private MyType object;
+	private volatile MyType object;
 	
 	public SectoredRandomGrabArrayWithObject(MyType object, RemoveRandomParent parent, ClientRequestSelector root) {
 		super(parent, root);
@@ -13,9 +13,7 @@ public class SectoredRandomGrabArrayWithObject<MyType,ChildType,GrabType extends
 
 	@Override
 	public MyType getObject() {
-	    synchronized(root) {
-	        return object;
-	    }
+		return object;
 	}
 	
 	@Override
@@ -25,9 +23,7 @@ public class SectoredRandomGrabArrayWithObject<MyType,ChildType,GrabType extends
 
 	@Override
 	public void setObject(MyType client) {
-	    synchronized(root) {
-	        object = client;
-	    }
+		object = client;
 	}
 
 }
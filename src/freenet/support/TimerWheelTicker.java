@@ -0,0 +1,445 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import freenet.node.FastRunnable;
+import freenet.node.PrioRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Ticker using a hashed hierarchical timer wheel instead of a TreeMap. Queueing and removing a
+ * job are O(1) regardless of how many jobs are queued, which matters when there are many
+ * thousands of pending timeouts.
+ *
+ * The wheel has LEVELS levels of SLOTS slots. A slot at level 0 covers one millisecond, a slot
+ * at level 1 covers SLOTS milliseconds, and so on. A job is filed at the lowest level whose range
+ * covers its delay, and is moved down a level ("cascaded") when the wheel reaches the start of
+ * its slot. Jobs further ahead than the top level can reach are parked at the top level and
+ * re-filed when their slot comes round.
+ *
+ * Jobs which are due at the same time are started highest priority first. FastRunnable's are
+ * run in-line on the ticker thread, everything else goes to the Executor, as in
+ * PrioritizedTicker. Where several jobs are due in the same millisecond, jobs filed directly at
+ * level 0 may run before jobs which were cascaded there, even if queued later.
+ *
+ * If the clock jumps backwards, or forwards by more than MAX_STEP, we re-file every job relative
+ * to the new time rather than stepping through the wheel.
+ */
+public class TimerWheelTicker implements Ticker, Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final int MAX_SLEEP_TIME = 200;
+	private static final int SLOT_BITS = 8;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	/** The furthest ahead a job can be filed. Later jobs are parked at the top level. */
+	private static final long MAX_DELAY = (1L << (SLOT_BITS * LEVELS)) - 1;
+	/** If the clock moves forward by more than this, re-file everything rather than stepping. */
+	private static final long MAX_STEP = SLOTS * SLOTS;
+
+	/** Highest priority first. Collections.sort() is stable so jobs are otherwise in time order. */
+	private static final Comparator<Job> BY_PRIORITY = new Comparator<Job>() {
+
+		@Override
+		public int compare(Job j1, Job j2) {
+			return j2.priority - j1.priority;
+		}
+
+	};
+
+	/** A queued job. Also the node of a doubly linked list of the jobs in a slot. */
+	private final static class Job {
+		final String name;
+		final Runnable job;
+		final long time;
+		final int priority;
+		Job prev;
+		Job next;
+		int level;
+		int slot;
+
+		Job(String name, Runnable job, long time) {
+			this.name = name;
+			this.job = job;
+			this.time = time;
+			this.priority = job instanceof PrioRunnable ? ((PrioRunnable) job).getPriority() : NativeThread.NORM_PRIORITY;
+		}
+
+		@Override
+		public String toString() {
+			return name + ":" + job;
+		}
+	}
+
+	/** First job in each slot. LOCKING: All the wheel structures are protected by heads. */
+	private final Job[][] heads = new Job[LEVELS][SLOTS];
+	/** Last job in each slot, so jobs in a slot stay in the order queued. */
+	private final Job[][] tails = new Job[LEVELS][SLOTS];
+	/** The most recently queued Job for each Runnable, by identity, for removeQueuedJob and
+	 * noDupes. */
+	private final IdentityHashMap<Runnable, Job> timedJobsQueued = new IdentityHashMap<Runnable, Job>();
+	/** Number of jobs in the wheel */
+	private int count;
+	/** All slots up to and including this time have been collected. */
+	private long wheelTime;
+	final NativeThread myThread;
+	final Executor executor;
+
+	public TimerWheelTicker(Executor executor, int portNumber) {
+		this.executor = executor;
+		wheelTime = System.currentTimeMillis();
+		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
+		myThread.setDaemon(true);
+	}
+
+	public void start() {
+		Logger.normal(this, "Starting Ticker");
+		System.out.println("Starting Ticker");
+		myThread.start();
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In Ticker.run()");
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				realRun();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in Ticker: " + t, t);
+				System.err.println("Caught in Ticker: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private void realRun() {
+		long now = System.currentTimeMillis();
+
+		List<Job> jobsToRun = null;
+
+		long sleepTime;
+
+		synchronized(heads) {
+			jobsToRun = collect(now);
+			sleepTime = timeToNextJob(now);
+		}
+
+		if(jobsToRun != null) {
+			if(jobsToRun.size() > 1)
+				Collections.sort(jobsToRun, BY_PRIORITY);
+			for(Job r : jobsToRun) {
+				if(logMINOR)
+					Logger.minor(this, "Running " + r);
+				if(r.job instanceof FastRunnable)
+					// Run in-line
+					try {
+						r.job.run();
+					} catch(Throwable t) {
+						Logger.error(this, "Caught " + t + " running " + r, t);
+					}
+				else
+					try {
+						executor.execute(r.job, r.name, true);
+					} catch(Throwable t) {
+						Logger.error(this, "Caught in Ticker: " + t, t);
+						System.err.println("Caught in Ticker: " + t);
+						t.printStackTrace();
+						System.err.println("Will retry above failed operation...");
+						queueTimedJob(r.job, r.name, 200, true, false);
+					}
+			}
+		}
+
+		if(sleepTime > 0) {
+			try {
+				sleep(sleepTime);
+			} catch(InterruptedException e) {
+				// Ignore, just wake up. Probably we got interrupt()ed
+				// because a new job came in.
+			}
+		}
+	}
+
+	protected void sleep(long sleepTime) throws InterruptedException {
+		if(logMINOR)
+			Logger.minor(this, "Sleeping for " + sleepTime);
+		synchronized(this) {
+			wait(sleepTime);
+		}
+	}
+
+	/** @return The jobs which are now due, in time order, or null. */
+	private List<Job> collect(long now) {
+		if(now < wheelTime || now - wheelTime > MAX_STEP)
+			return refileAll(now);
+		else
+			return advance(now);
+	}
+
+	/** Move the wheel to the given time as the ticker thread would, but don't run anything.
+	 * Only for tests, on a ticker which hasn't been started.
+	 * @return The jobs which are now due, in time order. */
+	List<Runnable> collectForTest(long now) {
+		List<Runnable> due = new ArrayList<Runnable>();
+		synchronized(heads) {
+			List<Job> jobs = collect(now);
+			if(jobs != null) {
+				for(Job j : jobs)
+					due.add(j.job);
+			}
+		}
+		return due;
+	}
+
+	/** Step the wheel forward to now, cascading as we cross slot boundaries.
+	 * @return The jobs which are now due, in time order, or null. */
+	private List<Job> advance(long now) {
+		List<Job> due = null;
+		while(wheelTime < now) {
+			long t = wheelTime + 1;
+			if((t & SLOT_MASK) == 0)
+				cascade(t);
+			int slot = (int) (t & SLOT_MASK);
+			Job j = heads[0][slot];
+			if(j != null) {
+				if(due == null) due = new ArrayList<Job>();
+				heads[0][slot] = tails[0][slot] = null;
+				while(j != null) {
+					Job next = j.next;
+					j.prev = j.next = null;
+					dequeued(j);
+					due.add(j);
+					j = next;
+				}
+			}
+			wheelTime = t;
+		}
+		return due;
+	}
+
+	/** Move the jobs in the higher level slots starting at time t down the wheel. Called with
+	 * wheelTime == t - 1. */
+	private void cascade(long t) {
+		for(int level = 1; level < LEVELS; level++) {
+			int slot = (int) ((t >> (SLOT_BITS * level)) & SLOT_MASK);
+			Job j = heads[level][slot];
+			heads[level][slot] = tails[level][slot] = null;
+			while(j != null) {
+				Job next = j.next;
+				j.prev = j.next = null;
+				file(j);
+				j = next;
+			}
+			// Only cascade the next level up if this level has gone all the way round.
+			if(slot != 0) break;
+		}
+	}
+
+	/** Re-file every job relative to now, after the clock has jumped.
+	 * @return The jobs which are now due, in time order, or null. */
+	private List<Job> refileAll(long now) {
+		Logger.normal(this, "Clock moved from " + wheelTime + " to " + now + ", re-filing " + count + " jobs");
+		ArrayList<Job> all = new ArrayList<Job>(count);
+		for(int level = 0; level < LEVELS; level++) {
+			for(int slot = 0; slot < SLOTS; slot++) {
+				for(Job j = heads[level][slot]; j != null;) {
+					Job next = j.next;
+					j.prev = j.next = null;
+					all.add(j);
+					j = next;
+				}
+				heads[level][slot] = tails[level][slot] = null;
+			}
+		}
+		wheelTime = now;
+		List<Job> due = null;
+		for(Job j : all) {
+			if(j.time <= now) {
+				if(due == null) due = new ArrayList<Job>();
+				dequeued(j);
+				due.add(j);
+			} else {
+				file(j);
+			}
+		}
+		if(due != null && due.size() > 1) {
+			Collections.sort(due, new Comparator<Job>() {
+
+				@Override
+				public int compare(Job j1, Job j2) {
+					return Long.compare(j1.time, j2.time);
+				}
+
+			});
+		}
+		return due;
+	}
+
+	/** @return How long to sleep for: until the next non-empty level 0 slot, or the next slot
+	 * boundary which needs a cascade, or MAX_SLEEP_TIME. */
+	private long timeToNextJob(long now) {
+		if(count == 0) return MAX_SLEEP_TIME;
+		for(long t = wheelTime + 1; t <= wheelTime + MAX_SLEEP_TIME; t++) {
+			if(heads[0][(int) (t & SLOT_MASK)] != null || ((t & SLOT_MASK) == 0 && needsCascade(t)))
+				return Math.min(MAX_SLEEP_TIME, Math.max(0, t - now));
+		}
+		return MAX_SLEEP_TIME;
+	}
+
+	private boolean needsCascade(long t) {
+		for(int level = 1; level < LEVELS; level++) {
+			int slot = (int) ((t >> (SLOT_BITS * level)) & SLOT_MASK);
+			if(heads[level][slot] != null) return true;
+			if(slot != 0) break;
+		}
+		return false;
+	}
+
+	/** Add a job to the slot for its time, relative to the next slot to be collected. Jobs which
+	 * are already due go in the next slot. The delay must be measured from that slot, not from
+	 * wheelTime: when cascading from slot t, a job due at t + SLOTS - 1 must go in level 0, not
+	 * back into the level 1 slot we are emptying. */
+	private void file(Job j) {
+		long next = wheelTime + 1;
+		long time = Math.max(j.time, next);
+		long delay = time - next;
+		if(delay > MAX_DELAY) {
+			delay = MAX_DELAY;
+			time = next + MAX_DELAY;
+		}
+		int level = 0;
+		while(level < LEVELS - 1 && delay >= 1L << (SLOT_BITS * (level + 1)))
+			level++;
+		int slot = (int) ((time >> (SLOT_BITS * level)) & SLOT_MASK);
+		j.level = level;
+		j.slot = slot;
+		Job tail = tails[level][slot];
+		if(tail == null) {
+			heads[level][slot] = j;
+		} else {
+			tail.next = j;
+			j.prev = tail;
+		}
+		tails[level][slot] = j;
+	}
+
+	private void unlink(Job j) {
+		if(j.prev == null)
+			heads[j.level][j.slot] = j.next;
+		else
+			j.prev.next = j.next;
+		if(j.next == null)
+			tails[j.level][j.slot] = j.prev;
+		else
+			j.next.prev = j.prev;
+		j.prev = j.next = null;
+		count--;
+	}
+
+	/** Called when a job is taken out of the wheel to be run. */
+	private void dequeued(Job j) {
+		count--;
+		// It may have been queued again since, without noDupes.
+		if(timedJobsQueued.get(j.job) == j)
+			timedJobsQueued.remove(j.job);
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	/** @see PrioritizedTicker#queueTimedJob(Runnable, String, long, boolean, boolean) */
+	@Override
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		long now = System.currentTimeMillis();
+		if(offset < 0) offset = 0;
+		queueTimedJobInner(runner, name, now+offset, offset, runOnTickerAnyway, noDupes);
+	}
+
+	@Override
+	public void queueTimedJobAbsolute(Runnable runner, String name, long time,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		long now = System.currentTimeMillis();
+		queueTimedJobInner(runner, name, time, time-now, runOnTickerAnyway, noDupes);
+	}
+
+	private void queueTimedJobInner(Runnable runner, String name, long runJobAt, long offset,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		if(noDupes) runOnTickerAnyway = true;
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return;
+		}
+		Job job = new Job(name, runner, runJobAt);
+		synchronized(heads) {
+			if(noDupes) {
+				Job alreadyQueued = timedJobsQueued.get(runner);
+				if(alreadyQueued != null) {
+					if(alreadyQueued.time <= runJobAt) {
+						Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+						return;
+					} else {
+						// Delete the existing job because the new job will run first.
+						unlink(alreadyQueued);
+					}
+				}
+			}
+			file(job);
+			count++;
+			timedJobsQueued.put(runner, job);
+		}
+		if(offset < MAX_SLEEP_TIME) {
+			wakeUp();
+		}
+	}
+
+	/** Wake up, and run any queued jobs. */
+	void wakeUp() {
+		synchronized(this) {
+			notifyAll();
+		}
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	int queuedJobs() {
+		synchronized(heads) {
+			return count;
+		}
+	}
+
+	@Override
+	public void removeQueuedJob(Runnable runnable) {
+		synchronized(heads) {
+			Job job = timedJobsQueued.remove(runnable);
+			if(job != null)
+				unlink(job);
+		}
+	}
+
+}
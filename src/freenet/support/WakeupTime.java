@@ -0,0 +1,75 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The wakeup time of a node in the request selection tree: until then there is no point looking
+ * for requests below the node. 0 means there may be requests to send now.
+ *
+ * Updated without locking, so that a request completing and waking up its parents does not have
+ * to wait for a request starter that is walking the tree. The danger is that a starter finds
+ * nothing to send, and sets a wakeup time, just after a request below it was woken up, hiding
+ * that request, or a later wakeup time, just after a request below it was given an earlier one.
+ * To prevent this, every clear() and reduce() is counted; a starter reads the count before
+ * looking, and set() will not leave a wakeup time in place if the count has changed.
+ */
+final class WakeupTime {
+
+	private final AtomicLong time = new AtomicLong();
+	private final AtomicInteger changes = new AtomicInteger();
+
+	/** @return The wakeup time, or 0 if it has passed. */
+	long get(long now) {
+		long t = time.get();
+		if(t != 0 && t < now) {
+			time.compareAndSet(t, 0);
+			return 0;
+		}
+		return t;
+	}
+
+	/** @return A count to pass to set() after looking for something to send. */
+	int changes() {
+		return changes.get();
+	}
+
+	/** Set the wakeup time after finding nothing to send, unless something has been woken up, or
+	 * its wakeup time reduced, since changes() was called.
+	 * @return True if the wakeup time was set and is earlier than it was, so the parents should
+	 * be told. */
+	boolean set(long wakeupTime, int changesBefore) {
+		if(changes.get() != changesBefore) return false;
+		long old = time.getAndSet(wakeupTime);
+		if(changes.get() != changesBefore) {
+			// Raced with clear() or reduce(), which may have run before we set it.
+			time.set(0);
+			return false;
+		}
+		return wakeupTime < old;
+	}
+
+	/** Reduce the wakeup time if it is later than the given time.
+	 * @return True if it was reduced, or if there was no wakeup time. In that case a starter may
+	 * be about to set one on our parents, so they must be told too. */
+	boolean reduce(long wakeupTime) {
+		// Even if there is no wakeup time now, a starter may be about to set one.
+		changes.incrementAndGet();
+		while(true) {
+			long t = time.get();
+			if(t == 0) return true;
+			if(t <= wakeupTime) return false;
+			if(time.compareAndSet(t, wakeupTime)) return true;
+		}
+	}
+
+	/** Something below us can be sent now. */
+	void clear() {
+		changes.incrementAndGet();
+		time.set(0);
+	}
+
+}
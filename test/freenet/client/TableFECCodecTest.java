@@ -0,0 +1,99 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.TestProperty;
+
+/** Run the OnionFECCodec tests against TableFECCodec, and check that the two produce exactly
+ * the same blocks. */
+public class TableFECCodecTest extends OnionFECCodecTest {
+    
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BENCHMARK_BLOCK_SIZE = 32768;
+    
+    private final OnionFECCodec onion = new OnionFECCodec();
+
+    @Override
+    protected FECCodec createCodec() {
+        return new TableFECCodec();
+    }
+    
+    /** Only TableFECCodec uses extra threads, so only it should have them reserved. */
+    public void testCanSplitWork() {
+        assertTrue(createCodec().canSplitWork());
+        assertFalse(onion.canSplitWork());
+    }
+    
+    public void testSameCheckBlocks() {
+        Random r = new Random(19412107);
+        checkSameCheckBlocks(128, 128, r);
+        checkSameCheckBlocks(1, 1, r);
+        checkSameCheckBlocks(2, 3, r);
+        checkSameCheckBlocks(2, 254, r);
+        checkSameCheckBlocks(253, 3, r);
+        int iterations = TestProperty.EXTENSIVE ? 100 : 10;
+        for(int i=0;i<iterations;i++) {
+            int data = r.nextInt(252)+2;
+            checkSameCheckBlocks(data, r.nextInt(256 - data)+1, r);
+        }
+    }
+    
+    private void checkSameCheckBlocks(int data, int check, Random r) {
+        byte[][] dataBlocks = createOriginalDataBlocks(r, data);
+        byte[][] expected = setupCheckBlocks(check);
+        byte[][] actual = setupCheckBlocks(check);
+        onion.encode(dataBlocks, expected, new boolean[check], BLOCK_SIZE);
+        codec.encode(dataBlocks, actual, new boolean[check], BLOCK_SIZE);
+        for(int i=0;i<check;i++)
+            assertTrue(Arrays.equals(expected[i], actual[i]));
+    }
+    
+    /** Decode blocks encoded by OnionFECCodec, using only check blocks. */
+    public void testDecodeOnionBlocks() {
+        Random r = new Random(19412108);
+        byte[][] original = createOriginalDataBlocks(r, 128);
+        byte[][] checkBlocks = setupCheckBlocks(128);
+        onion.encode(original, checkBlocks, new boolean[128], BLOCK_SIZE);
+        byte[][] dataBlocks = setupCheckBlocks(128);
+        boolean[] checkBlocksPresent = new boolean[128];
+        Arrays.fill(checkBlocksPresent, true);
+        codec.decode(dataBlocks, checkBlocks, new boolean[128], checkBlocksPresent, BLOCK_SIZE);
+        for(int i=0;i<128;i++)
+            assertTrue(Arrays.equals(original[i], dataBlocks[i]));
+    }
+    
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        
+        Random r = new Random(19412109);
+        int data = 128;
+        int check = 128;
+        byte[][] original = new byte[data][BENCHMARK_BLOCK_SIZE];
+        for(byte[] block : original)
+            r.nextBytes(block);
+        for(int round=0;round<3;round++) {
+            benchmark(onion, "onion", original, check);
+            benchmark(codec, "table", original, check);
+        }
+    }
+    
+    private void benchmark(FECCodec c, String name, byte[][] original, int check) {
+        int data = original.length;
+        byte[][] checkBlocks = new byte[check][BENCHMARK_BLOCK_SIZE];
+        long t1 = System.currentTimeMillis();
+        c.encode(original, checkBlocks, new boolean[check], BENCHMARK_BLOCK_SIZE);
+        long t2 = System.currentTimeMillis();
+        // Worst case: all data blocks lost.
+        byte[][] dataBlocks = new byte[data][BENCHMARK_BLOCK_SIZE];
+        boolean[] checkBlocksPresent = new boolean[check];
+        Arrays.fill(checkBlocksPresent, true);
+        c.decode(dataBlocks, checkBlocks, new boolean[data], checkBlocksPresent, BENCHMARK_BLOCK_SIZE);
+        long t3 = System.currentTimeMillis();
+        for(int i=0;i<data;i++)
+            assertTrue(Arrays.equals(original[i], dataBlocks[i]));
+        System.out.println(name + ": k=" + data + " n=" + (data + check) + ": encode " + (t2 - t1) + 
+                "ms, decode " + (t3 - t2) + "ms");
+    }
+
+}
@@ -0,0 +1,359 @@
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import freenet.clients.fcp.RequestIdentifier;
+import freenet.crypt.CRCChecksumChecker;
+import freenet.crypt.ChecksumChecker;
+import freenet.support.io.FileUtil;
+import junit.framework.TestCase;
+
+public class CheckpointFilesTest extends TestCase {
+
+    private static final String BASE_NAME = "client.dat";
+
+    private final File dir = new File("checkpoint-files-test");
+    private final ChecksumChecker checker = new CRCChecksumChecker();
+    private final Object lock = new Object();
+    private final Random random = new Random(1234);
+    private final byte[] salt = new byte[32];
+    /** The requests as of the last checkpoint written, so we can tell which were removed. */
+    private final List<String> written = new ArrayList<String>();
+
+    @Override
+    protected void setUp() {
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+        random.nextBytes(salt);
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtil.removeAll(dir);
+    }
+
+    private CheckpointFiles makeFiles() {
+        return new CheckpointFiles(dir, BASE_NAME, null, checker, lock, random);
+    }
+
+    private static RequestIdentifier makeID(String name) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0x25ebd38d);
+        dos.writeShort(1);
+        dos.writeBoolean(true);
+        dos.writeUTF(name);
+        dos.writeShort(0);
+        return new RequestIdentifier(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    }
+
+    /** An object as written by writeChecksummedObject(): length, data, checksum. */
+    private byte[] makeObject(String data) {
+        byte[] buf = data.getBytes();
+        byte[] checksum = checker.generateChecksum(buf);
+        byte[] stored = new byte[8 + buf.length + checksum.length];
+        ByteBuffer.wrap(stored).putLong(buf.length);
+        System.arraycopy(buf, 0, stored, 8, buf.length);
+        System.arraycopy(checksum, 0, stored, 8 + buf.length, checksum.length);
+        return stored;
+    }
+
+    /** A request as serialized by ClientLayerPersister, whose data is name:version. */
+    private byte[] makeRequest(CheckpointFiles files, String name, int version) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        files.writeRequestIdentifier(dos, makeID(name));
+        dos.write(makeObject(name + ":" + version));
+        dos.write(makeObject("recovery"));
+        dos.close();
+        return baos.toByteArray();
+    }
+
+    private CheckpointFiles.Trailer makeTrailer(int buckets) {
+        byte[][] stored = new byte[buckets][];
+        for(int i=0;i<buckets;i++)
+            stored[i] = makeObject("bucket" + i);
+        return new CheckpointFiles.Trailer(new PersistentStatsPutter(), stored);
+    }
+
+    /** Write a full checkpoint containing the given requests, names followed by versions. */
+    private void writeFull(CheckpointFiles files, Object... requests) throws IOException {
+        CheckpointFiles.Writer writer = files.startFull(salt);
+        for(int i=0;i<requests.length;i+=2)
+            writer.write(makeRequest(files, (String) requests[i], (Integer) requests[i+1]));
+        writer.finish(makeTrailer(0));
+        written.clear();
+        for(int i=0;i<requests.length;i+=2)
+            written.add((String) requests[i]);
+    }
+
+    /** Write an increment.
+     * @param all Every current request. Those written before but not listed are removed.
+     * @param changed The requests which changed, names followed by versions.
+     * @param buckets The number of buckets in the trailer, so we can tell which was read. */
+    private void writeIncrement(CheckpointFiles files, String[] all, int buckets, Object... changed)
+            throws IOException {
+        List<RequestIdentifier> removed = new ArrayList<RequestIdentifier>();
+        for(String name : written)
+            if(!Arrays.asList(all).contains(name))
+                removed.add(makeID(name));
+        CheckpointFiles.Writer writer = files.startIncrement(removed);
+        for(int i=0;i<changed.length;i+=2)
+            writer.write(makeRequest(files, (String) changed[i], (Integer) changed[i+1]));
+        writer.finish(makeTrailer(buckets));
+        written.clear();
+        written.addAll(Arrays.asList(all));
+    }
+
+    private static class Loaded implements CheckpointFiles.Reader {
+
+        final Map<String, Integer> requests = new HashMap<String, Integer>();
+        byte[] salt;
+        CheckpointFiles.Trailer trailer;
+
+        @Override
+        public void onSalt(byte[] salt, boolean valid) {
+            assertTrue(valid);
+            this.salt = salt;
+        }
+
+        @Override
+        public void onRequest(CheckpointFiles.StoredRequest stored) {
+            assertNotNull(stored.reqID);
+            String data = new String(stored.request, 8, (int) ByteBuffer.wrap(stored.request).getLong());
+            String name = data.substring(0, data.indexOf(':'));
+            try {
+                assertTrue(stored.reqID.sameIdentifier(makeID(name)));
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            assertNull("Duplicate "+name, requests.put(name, Integer.parseInt(data.substring(name.length()+1))));
+        }
+
+    }
+
+    private Loaded read(CheckpointFiles files, boolean backup) throws IOException {
+        Loaded loaded = new Loaded();
+        loaded.trailer = files.read(backup, null, true, loaded);
+        assertTrue(Arrays.equals(salt, loaded.salt));
+        return loaded;
+    }
+
+    /** Read from a new instance, as after a restart. */
+    private Map<String, Integer> load(boolean backup) throws IOException {
+        return read(makeFiles(), backup).requests;
+    }
+
+    private static Map<String, Integer> expected(Object... requests) {
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        for(int i=0;i<requests.length;i+=2)
+            map.put((String) requests[i], (Integer) requests[i+1]);
+        return map;
+    }
+
+    private boolean incrementExists(int number) {
+        return new File(dir, BASE_NAME + "." + number).exists();
+    }
+
+    public void testRoundTrip() throws IOException {
+        CheckpointFiles files = makeFiles();
+        writeFull(files, "a", 1, "b", 1);
+        assertEquals(expected("a", 1, "b", 1), load(false));
+        writeIncrement(files, new String[] { "a", "b", "c" }, 1, "b", 2, "c", 1);
+        writeIncrement(files, new String[] { "a", "b", "c" }, 2, "c", 2);
+        assertEquals(2, files.pendingIncrements());
+        Loaded loaded = read(makeFiles(), false);
+        assertEquals(expected("a", 1, "b", 2, "c", 2), loaded.requests);
+        // The stats and buckets to free come from the last increment.
+        assertEquals(2, loaded.trailer.buckets.length);
+    }
+
+    public void testRemovalsReplayed() throws IOException {
+        CheckpointFiles files = makeFiles();
+        writeFull(files, "a", 1, "b", 1, "c", 1);
+        writeIncrement(files, new String[] { "a", "c" }, 0);
+        writeIncrement(files, new String[] { "a", "d" }, 0, "d", 1);
+        assertEquals(expected("a", 1, "d", 1), load(false));
+        // A removed request can come back.
+        writeIncrement(files, new String[] { "a", "b", "d" }, 0, "b", 2);
+        assertEquals(expected("a", 1, "b", 2, "d", 1), load(false));
+        // Removing the last request still writes an increment.
+        writeIncrement(files, new String[0], 0);
+        assertEquals(expected(), load(false));
+    }
+
+    public void testBackupStaysCurrent() throws IOException {
+        CheckpointFiles files = makeFiles();
+        writeFull(files, "a", 1, "b", 1);
+        writeIncrement(files, new String[] { "a", "b", "c" }, 0, "c", 1);
+        writeIncrement(files, new String[] { "a", "b", "c" }, 0, "b", 2);
+        // Restart: the first checkpoint after loading is a full one.
+        files = makeFiles();
+        assertEquals(expected("a", 1, "b", 2, "c", 1), read(files, false).requests);
+        writeFull(files, "a", 1, "b", 2, "c", 1);
+        // The backup still needs the increments it was written with.
+        assertTrue(incrementExists(1));
+        assertTrue(incrementExists(2));
+        writeIncrement(files, new String[] { "b", "c" }, 0);
+        // If client.dat is lost, the backup must not bring back the removed request.
+        assertEquals(expected("b", 2, "c", 1), load(false));
+        assertEquals(expected("b", 2, "c", 1), load(true));
+        // Once the backup is the previous full checkpoint, the older increments can go.
+        writeFull(files, "b", 2, "c", 1);
+        assertFalse(incrementExists(1));
+        assertFalse(incrementExists(2));
+        assertTrue(incrementExists(3));
+        writeIncrement(files, new String[] { "c" }, 0);
+        assertEquals(expected("c", 1), load(false));
+        assertEquals(expected("c", 1), load(true));
+    }
+
+    public void testLoadVersion1() throws IOException {
+        CheckpointFiles files = makeFiles();
+        File filename = new File(dir, BASE_NAME);
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filename));
+        oos.writeLong(CheckpointFiles.MAGIC);
+        oos.writeInt(CheckpointFiles.VERSION_COUNTED);
+        checker.writeAndChecksum(oos, salt);
+        oos.writeInt(2);
+        oos.write(makeRequest(files, "a", 1));
+        oos.write(makeRequest(files, "b", 1));
+        oos.writeObject(new PersistentStatsPutter());
+        oos.writeInt(1);
+        oos.write(makeObject("bucket"));
+        oos.close();
+        Loaded loaded = read(files, false);
+        assertEquals(expected("a", 1, "b", 1), loaded.requests);
+        assertEquals(1, loaded.trailer.buckets.length);
+        // The first checkpoint converts it, and the old file is still readable as the backup.
+        writeFull(files, "a", 1, "b", 1);
+        writeIncrement(files, new String[] { "a" }, 0, "a", 2);
+        assertEquals(expected("a", 2), load(false));
+        assertEquals(expected("a", 1, "b", 1), load(true));
+    }
+
+    public void testCompactWhileWriting() throws IOException {
+        final CheckpointFiles files = makeFiles();
+        writeFull(files, "a", 1, "b", 1);
+        writeIncrement(files, new String[] { "a", "b", "c" }, 0, "b", 2, "c", 1);
+        writeIncrement(files, new String[] { "a", "b", "c" }, 0, "c", 2);
+        assertTrue(files.startCompacting());
+        assertFalse(files.startCompacting());
+        assertTrue(files.compact(new Runnable() {
+
+            @Override
+            public void run() {
+                // A checkpoint while the new client.dat is being written.
+                synchronized(lock) {
+                    try {
+                        writeIncrement(files, new String[] { "b", "c", "d" }, 0, "d", 1);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+
+        }));
+        assertEquals(1, files.pendingIncrements());
+        assertFalse(new File(dir, BASE_NAME + ".tmp").exists());
+        // The old client.dat is now the backup, and still has its increments.
+        assertTrue(incrementExists(1));
+        assertTrue(incrementExists(2));
+        assertTrue(incrementExists(3));
+        Map<String, Integer> current = expected("b", 2, "c", 2, "d", 1);
+        assertEquals(current, load(false));
+        assertEquals(current, load(true));
+        // Compacting again replaces the backup, so the increments merged the first time go.
+        writeIncrement(files, new String[] { "c", "d" }, 0, "d", 2);
+        assertTrue(files.startCompacting());
+        assertTrue(files.compact());
+        assertEquals(0, files.pendingIncrements());
+        assertFalse(incrementExists(1));
+        assertFalse(incrementExists(2));
+        assertTrue(incrementExists(3));
+        assertTrue(incrementExists(4));
+        current = expected("c", 2, "d", 2);
+        assertEquals(current, load(false));
+        assertEquals(current, load(true));
+    }
+
+    public void testCompactAfterFullCheckpoint() throws IOException {
+        final CheckpointFiles files = makeFiles();
+        writeFull(files, "a", 1);
+        writeIncrement(files, new String[] { "a", "b" }, 0, "b", 1);
+        assertTrue(files.startCompacting());
+        assertFalse(files.compact(new Runnable() {
+
+            @Override
+            public void run() {
+                synchronized(lock) {
+                    try {
+                        writeFull(files, "b", 1);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+
+        }));
+        // The stale compaction must not replace the newer client.dat.
+        assertEquals(expected("b", 1), load(false));
+        assertEquals(expected("a", 1, "b", 1), load(true));
+        assertFalse(new File(dir, BASE_NAME + ".tmp").exists());
+    }
+
+    public void testCrashBetweenRenames() throws IOException {
+        CheckpointFiles files = makeFiles();
+        writeFull(files, "a", 1);
+        writeIncrement(files, new String[] { "a", "b" }, 0, "b", 1);
+        writeIncrement(files, new String[] { "b" }, 0, "b", 2);
+        assertTrue(files.startCompacting());
+        try {
+            files.compact(new Runnable() {
+
+                @Override
+                public void run() {
+                    // Crash after renaming client.dat to the backup, before renaming the new one.
+                    assertTrue(FileUtil.renameTo(new File(dir, BASE_NAME),
+                            new File(dir, BASE_NAME + ".bak")));
+                    throw new IllegalStateException("Crash");
+                }
+
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertTrue(new File(dir, BASE_NAME + ".tmp").exists());
+        assertFalse(new File(dir, BASE_NAME).exists());
+        // After restarting, we load the backup, which has all the increments.
+        files = makeFiles();
+        try {
+            read(files, false);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(expected("b", 2), read(files, true).requests);
+        writeFull(files, "b", 2);
+        assertFalse(new File(dir, BASE_NAME + ".tmp").exists());
+        writeIncrement(files, new String[] { "b", "c" }, 0, "c", 1);
+        assertEquals(expected("b", 2, "c", 1), load(false));
+        assertEquals(expected("b", 2, "c", 1), load(true));
+    }
+
+}
@@ -1,9 +1,14 @@
 package freenet.client.async;
 
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.TestCase;
 
@@ -30,6 +35,8 @@ import freenet.keys.Key;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.LowLevelPutException;
 import freenet.node.RequestClient;
+import freenet.node.RequestClientBuilder;
+import freenet.node.RequestStarter;
 import freenet.node.SendableInsert;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestSender;
@@ -37,6 +44,11 @@ import freenet.support.CheatingTicker;
 import freenet.support.DummyJobRunner;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.PooledExecutor;
+import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
+import freenet.support.RandomGrabArrayItemExclusionList;
+import freenet.support.RemoveRandom.RemoveRandomReturn;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.WaitableExecutor;
 import freenet.support.api.BucketFactory;
@@ -373,4 +385,245 @@ public class ClientRequestSelectorTest extends TestCase {
 
 
     
+    /** A request that can be sent whenever it is not already running. */
+    static class TestItem implements RandomGrabArrayItem {
+        
+        final AtomicBoolean running = new AtomicBoolean();
+        final AtomicLong chosen = new AtomicLong();
+        private volatile RandomGrabArray parent;
+
+        @Override
+        public long getWakeupTime(ClientContext context, long now) {
+            return running.get() ? Long.MAX_VALUE : 0;
+        }
+
+        @Override
+        public boolean knowsParentGrabArray() {
+            return true;
+        }
+
+        @Override
+        public void setParentGrabArray(RandomGrabArray parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public RandomGrabArray getParentGrabArray() {
+            return parent;
+        }
+
+        @Override
+        public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
+            RandomGrabArray p = parent;
+            return p != null && p.reduceWakeupTime(wakeupTime, context);
+        }
+
+        @Override
+        public void clearWakeupTime(ClientContext context) {
+            RandomGrabArray p = parent;
+            if(p != null) p.clearWakeupTime(context);
+        }
+        
+        /** The request finished. */
+        void complete(ClientContext context) {
+            running.set(false);
+            clearWakeupTime(context);
+        }
+        
+    }
+    
+    private static final RandomGrabArrayItemExclusionList NOT_EXCLUDED = new RandomGrabArrayItemExclusionList() {
+
+        @Override
+        public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+            return 0;
+        }
+        
+    };
+    
+    private ClientContext makeContext() {
+        return new ClientContext(0, null, executor, null, null, null, null, null, null, null, 
+                new Random(54321), ticker, null, null, null, null, null, null, null, null, null, 
+                null, null, null, null, null, null);
+    }
+    
+    /** Queue requests for several clients and groups, all at the same priority. */
+    private TestItem[] queue(ClientRequestSelector selector, short prio, int clients, int groups, 
+            int itemsPerGroup) {
+        TestItem[] items = new TestItem[clients * groups * itemsPerGroup];
+        int x = 0;
+        for(int i=0;i<clients;i++) {
+            RequestClient client = new RequestClientBuilder().build();
+            ClientRequestSelector.ClientRequestRGANode node = 
+                new ClientRequestSelector.ClientRequestRGANode(client, selector.priorities[prio], selector);
+            selector.priorities[prio].addGrabber(client, node, null);
+            for(int j=0;j<groups;j++) {
+                ClientRequestSchedulerGroup group = new ClientRequestSchedulerGroup() {};
+                for(int k=0;k<itemsPerGroup;k++) {
+                    TestItem item = new TestItem();
+                    node.add(group, item, null);
+                    items[x++] = item;
+                }
+            }
+        }
+        return items;
+    }
+    
+    /** @return The item chosen and marked running, or null. */
+    private static TestItem choose(ClientRequestSelector selector, short prio, ClientContext context) {
+        RemoveRandomReturn ret = selector.priorities[prio].removeRandom(NOT_EXCLUDED, context, 
+                System.currentTimeMillis());
+        if(ret == null || ret.item == null) return null;
+        TestItem item = (TestItem) ret.item;
+        // Another thread may have chosen it at the same time, as with SendableRequest.chooseKey().
+        if(!item.running.compareAndSet(false, true)) return null;
+        item.chosen.incrementAndGet();
+        return item;
+    }
+    
+    /** Choose and complete requests on several threads at once. A request that completes must 
+     * always be found again, even if another thread put its parents into cooldown meanwhile. */
+    public void testConcurrentChooseComplete() throws InterruptedException {
+        final ClientRequestSelector selector = new ClientRequestSelector(true, false, false, null);
+        final ClientContext context = makeContext();
+        final short prio = RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+        final TestItem[] items = queue(selector, prio, 5, 4, 3);
+        final int CHOICES = 20000;
+        Thread[] threads = new Thread[4];
+        for(int i=0;i<threads.length;i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(hashCode());
+                    for(int j=0;j<CHOICES;j++) {
+                        TestItem item = choose(selector, prio, context);
+                        if(item == null) continue;
+                        if(random.nextBoolean()) Thread.yield();
+                        item.complete(context);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread t : threads)
+            t.join();
+        for(TestItem item : items) {
+            assertFalse(item.running.get());
+            assertTrue(item.chosen.get() > 0);
+        }
+        // Everything is idle, so the tree must not be in cooldown.
+        assertEquals(0, selector.priorities[prio].getWakeupTime(context, System.currentTimeMillis()));
+        // Run everything, then check that the tree goes into cooldown and wakes up again.
+        for(int i=0;i<items.length;i++)
+            assertNotNull(choose(selector, prio, context));
+        assertNull(choose(selector, prio, context));
+        assertEquals(Long.MAX_VALUE, selector.priorities[prio].getWakeupTime(context, System.currentTimeMillis()));
+        items[7].complete(context);
+        assertEquals(0, selector.priorities[prio].getWakeupTime(context, System.currentTimeMillis()));
+        assertSame(items[7], choose(selector, prio, context));
+    }
+    
+    /** A request which, while a starter is looking at it, is given an earlier wakeup time. */
+    static class ReducedItem extends TestItem {
+        
+        final long wakeupTime;
+        volatile long reduceTo;
+        
+        ReducedItem(long wakeupTime) {
+            this.wakeupTime = wakeupTime;
+        }
+
+        @Override
+        public long getWakeupTime(ClientContext context, long now) {
+            long t = reduceTo;
+            if(t != 0) {
+                reduceTo = 0;
+                // As BaseSingleFileFetcher does when a cooldown ends sooner than it did.
+                reduceWakeupTime(t, context);
+            }
+            return wakeupTime;
+        }
+        
+    }
+    
+    /** A wakeup time reduced while a starter is looking, when there was no wakeup time yet, 
+     * must not be overwritten by the later one the starter found. */
+    public void testReduceWhileChoosing() {
+        ClientRequestSelector selector = new ClientRequestSelector(true, false, false, null);
+        ClientContext context = makeContext();
+        short prio = RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+        long now = System.currentTimeMillis();
+        long later = now + HOURS.toMillis(1);
+        long sooner = now + MINUTES.toMillis(1);
+        RequestClient client = new RequestClientBuilder().build();
+        ClientRequestSelector.ClientRequestRGANode node = 
+            new ClientRequestSelector.ClientRequestRGANode(client, selector.priorities[prio], selector);
+        selector.priorities[prio].addGrabber(client, node, null);
+        ReducedItem item = new ReducedItem(later);
+        node.add(new ClientRequestSchedulerGroup() {}, item, null);
+        assertEquals(0, selector.priorities[prio].getWakeupTime(context, now));
+        item.reduceTo = sooner;
+        assertNull(choose(selector, prio, context));
+        assertEquals(0, item.reduceTo);
+        assertTrue(selector.priorities[prio].getWakeupTime(context, now) <= sooner);
+        assertTrue(item.getParentGrabArray().getWakeupTime(context, now) <= sooner);
+        // With nothing changing meanwhile, the starter can set the later time.
+        assertNull(choose(selector, prio, context));
+        assertEquals(later, selector.priorities[prio].getWakeupTime(context, now));
+    }
+    
+    /** Removing a request leaves no empty arrays behind. */
+    public void testRemoveEmpty() {
+        ClientRequestSelector selector = new ClientRequestSelector(true, false, false, null);
+        ClientContext context = makeContext();
+        short prio = RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+        TestItem[] items = queue(selector, prio, 2, 2, 1);
+        for(TestItem item : items)
+            item.getParentGrabArray().remove(item, context);
+        assertTrue(selector.priorities[prio].isEmpty());
+    }
+    
+    /** Selections per second with different numbers of queued requests, and threads choosing 
+     * them. Each request is completed as soon as it is chosen. */
+    public void testBenchmark() throws InterruptedException {
+        if(!TestProperty.BENCHMARK) return;
+        for(int queued : new int[] { 1000, 10000, 100000 }) {
+            for(int threads : new int[] { 1, 2, 4 }) {
+                System.out.println(queued+" queued, "+threads+" threads: "+
+                        benchmark(queued, threads)+" selections per second");
+            }
+        }
+    }
+    
+    private long benchmark(int queued, int threadCount) throws InterruptedException {
+        final ClientRequestSelector selector = new ClientRequestSelector(true, false, false, null);
+        final ClientContext context = makeContext();
+        final short prio = RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+        // Many clients with many small requests each, like a big download queue.
+        queue(selector, prio, 20, queued / 200, 10);
+        final AtomicLong selections = new AtomicLong();
+        final long runTime = 2000;
+        Thread[] threads = new Thread[threadCount];
+        final long start = System.currentTimeMillis();
+        for(int i=0;i<threads.length;i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    while(System.currentTimeMillis() - start < runTime) {
+                        TestItem item = choose(selector, prio, context);
+                        if(item == null) continue;
+                        item.complete(context);
+                        count++;
+                    }
+                    selections.addAndGet(count);
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread t : threads)
+            t.join();
+        return selections.get() * 1000 / (System.currentTimeMillis() - start);
+    }
+    
 }
@@ -0,0 +1,298 @@
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import freenet.client.async.ClientRequestScheduler.KeyIndexStats;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SendableGet;
+import freenet.support.TestProperty;
+
+public class KeyListenerTrackerTest extends TestCase {
+
+    private final Random random = new Random(12345);
+
+    /** Indexes listeners immediately rather than on the executor. */
+    private static class MyTracker extends KeyListenerTracker {
+
+        MyTracker() {
+            super(false, false, false, new DummyRandomSource(1234), null, null, false);
+        }
+
+        @Override
+        protected void indexLater(KeyListener listener) {
+            index(listener);
+        }
+
+    }
+
+    /** Wants a fixed set of keys, and counts how often it is asked about a key. */
+    private static class TestListener implements KeyListener {
+
+        private final Set<Key> keys = new HashSet<Key>();
+        private final boolean canList;
+        int calls;
+
+        TestListener(Key[] keys, boolean canList) {
+            for(Key key : keys)
+                this.keys.add(key);
+            this.canList = canList;
+        }
+
+        @Override
+        public synchronized boolean probablyWantKey(Key key, byte[] saltedKey) {
+            calls++;
+            return keys.contains(key);
+        }
+
+        @Override
+        public synchronized short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+            return keys.contains(key) ? getPriorityClass() : -1;
+        }
+
+        @Override
+        public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public synchronized boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+            return keys.remove(key);
+        }
+
+        @Override
+        public boolean persistent() {
+            return false;
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return 0;
+        }
+
+        @Override
+        public synchronized long countKeys() {
+            return keys.size();
+        }
+
+        @Override
+        public synchronized Key[] listKeys() {
+            if(!canList) return null;
+            return keys.toArray(new Key[keys.size()]);
+        }
+
+        @Override
+        public HasKeyListener getHasKeyListener() {
+            return null;
+        }
+
+        @Override
+        public void onRemove() {
+            // Ignore.
+        }
+
+        @Override
+        public synchronized boolean isEmpty() {
+            return keys.isEmpty();
+        }
+
+        @Override
+        public boolean isSSK() {
+            return false;
+        }
+
+    }
+
+    private Key[] randomKeys(int count) {
+        Key[] keys = new Key[count];
+        for(int i=0;i<count;i++) {
+            byte[] routingKey = new byte[NodeCHK.KEY_LENGTH];
+            random.nextBytes(routingKey);
+            keys[i] = new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+        }
+        return keys;
+    }
+
+    private KeyIndexStats stats(KeyListenerTracker tracker) {
+        KeyIndexStats stats = new KeyIndexStats();
+        tracker.addIndexStats(stats);
+        return stats;
+    }
+
+    public void testIndexed() {
+        KeyListenerTracker tracker = new MyTracker();
+        Key[] keys = randomKeys(100);
+        TestListener listener = new TestListener(keys, true);
+        tracker.addPendingKeys(listener);
+        KeyIndexStats stats = stats(tracker);
+        assertEquals(1, stats.listeners);
+        assertEquals(0, stats.unindexedListeners);
+        assertEquals(100, stats.keys);
+        for(Key key : keys)
+            assertTrue(tracker.anyProbablyWantKey(key, null));
+        listener.calls = 0;
+        for(Key key : randomKeys(1000))
+            assertFalse(tracker.anyProbablyWantKey(key, null));
+        // Only asked about false positives in the index.
+        assertTrue("Calls: "+listener.calls, listener.calls < 50);
+    }
+
+    public void testUnindexed() {
+        KeyListenerTracker tracker = new MyTracker();
+        Key[] keys = randomKeys(100);
+        TestListener listener = new TestListener(keys, false);
+        tracker.addPendingKeys(listener);
+        KeyIndexStats stats = stats(tracker);
+        assertEquals(1, stats.unindexedListeners);
+        assertEquals(0, stats.keys);
+        for(Key key : keys)
+            assertTrue(tracker.anyProbablyWantKey(key, null));
+        listener.calls = 0;
+        for(Key key : randomKeys(100))
+            assertFalse(tracker.anyProbablyWantKey(key, null));
+        assertEquals(100, listener.calls);
+    }
+
+    public void testFoundAndRemoved() {
+        KeyListenerTracker tracker = new MyTracker();
+        Key[] keys1 = randomKeys(100);
+        Key[] keys2 = randomKeys(100);
+        TestListener listener1 = new TestListener(keys1, true);
+        TestListener listener2 = new TestListener(keys2, true);
+        tracker.addPendingKeys(listener1);
+        tracker.addPendingKeys(listener2);
+        assertEquals(200, stats(tracker).keys);
+        for(int i=0;i<50;i++)
+            assertTrue(tracker.tripPendingKey(keys1[i], null, null));
+        assertEquals(150, stats(tracker).keys);
+        for(int i=0;i<50;i++)
+            assertFalse(tracker.anyProbablyWantKey(keys1[i], null));
+        // Finding the same key again doesn't remove it twice.
+        assertFalse(tracker.tripPendingKey(keys1[0], null, null));
+        assertEquals(150, stats(tracker).keys);
+        assertTrue(tracker.removePendingKeys(listener1));
+        assertFalse(tracker.removePendingKeys(listener1));
+        assertEquals(100, stats(tracker).keys);
+        for(Key key : keys2)
+            assertTrue(tracker.anyProbablyWantKey(key, null));
+        for(Key key : keys2)
+            assertTrue(tracker.tripPendingKey(key, null, null));
+        // Removed when empty.
+        KeyIndexStats stats = stats(tracker);
+        assertEquals(0, stats.listeners);
+        assertEquals(0, stats.keys);
+    }
+
+    public void testReindex() {
+        KeyListenerTracker tracker = new MyTracker();
+        Key[] keys = randomKeys(100);
+        TestListener listener = new TestListener(keys, true);
+        tracker.addPendingKeys(listener);
+        for(int i=0;i<50;i++)
+            assertTrue(tracker.tripPendingKey(keys[i], null, null));
+        assertEquals(50, stats(tracker).keys);
+        // The blocks were corrupted, so the listener wants them again.
+        synchronized(listener) {
+            for(Key key : keys)
+                listener.keys.add(key);
+        }
+        tracker.reindexPendingKeys(listener);
+        KeyIndexStats stats = stats(tracker);
+        assertEquals(1, stats.listeners);
+        assertEquals(0, stats.unindexedListeners);
+        assertEquals(100, stats.keys);
+        for(Key key : keys)
+            assertTrue(tracker.anyProbablyWantKey(key, null));
+        // Not registered, so nothing to do.
+        tracker.reindexPendingKeys(new TestListener(keys, true));
+        assertEquals(1, stats(tracker).listeners);
+    }
+
+    public void testReindexWhileListing() {
+        final List<KeyListener> queued = new ArrayList<KeyListener>();
+        final KeyListenerTracker tracker = new MyTracker() {
+
+            @Override
+            protected void indexLater(KeyListener listener) {
+                queued.add(listener);
+            }
+
+        };
+        final Key[] keys = randomKeys(100);
+        TestListener listener = new TestListener(keys, true) {
+
+            private boolean listed;
+
+            @Override
+            public synchronized Key[] listKeys() {
+                if(listed) return super.listKeys();
+                listed = true;
+                // The filters are regenerated while we are listing the keys, so this list is
+                // out of date.
+                tracker.reindexPendingKeys(this);
+                return new Key[] { keys[0] };
+            }
+
+        };
+        tracker.addPendingKeys(listener);
+        assertEquals(1, queued.size());
+        tracker.index(queued.remove(0));
+        // The out of date keys are not used.
+        assertEquals(1, stats(tracker).unindexedListeners);
+        assertEquals(1, queued.size());
+        tracker.index(queued.remove(0));
+        assertEquals(0, stats(tracker).unindexedListeners);
+        assertEquals(100, stats(tracker).keys);
+        for(Key key : keys)
+            assertTrue(tracker.anyProbablyWantKey(key, null));
+    }
+
+    public void testResize() {
+        KeyListenerTracker tracker = new MyTracker();
+        Key[] keys = randomKeys(KeyListenerTracker.MIN_INDEX_CAPACITY * 4);
+        Key[] small = randomKeys(10);
+        TestListener big = new TestListener(keys, true);
+        TestListener listener = new TestListener(small, true);
+        tracker.addPendingKeys(listener);
+        tracker.addPendingKeys(big);
+        for(Key key : keys)
+            assertTrue(tracker.anyProbablyWantKey(key, null));
+        for(Key key : small)
+            assertTrue(tracker.anyProbablyWantKey(key, null));
+        long bigBytes = stats(tracker).bytes;
+        tracker.removePendingKeys(big);
+        assertTrue(stats(tracker).bytes < bigBytes / 4);
+        for(Key key : small)
+            assertTrue(tracker.anyProbablyWantKey(key, null));
+    }
+
+    /** Check random keys against many downloads, most of which are indexed. */
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        final int LOOKUPS = 100000;
+        for(int listeners : new int[] { 10, 100, 1000 }) {
+            for(boolean indexed : new boolean[] { false, true }) {
+                KeyListenerTracker tracker = new MyTracker();
+                for(int i=0;i<listeners;i++)
+                    tracker.addPendingKeys(new TestListener(randomKeys(1000), indexed));
+                Key[] lookups = randomKeys(LOOKUPS);
+                long start = System.nanoTime();
+                for(Key key : lookups)
+                    tracker.anyProbablyWantKey(key, null);
+                long nanos = System.nanoTime() - start;
+                KeyIndexStats stats = stats(tracker);
+                System.out.println(listeners+" listeners, "+(indexed ? "indexed" : "not indexed")+": "+
+                        (nanos / LOOKUPS)+"ns per key, "+stats.bytesPerKey()+" bytes per key in index");
+            }
+        }
+    }
+
+}
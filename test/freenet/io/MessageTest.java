@@ -1,10 +1,19 @@
 package freenet.io;
 
 import freenet.io.comm.DMT;
+import freenet.io.comm.IncorrectTypeException;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageType;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.NullBasePeerNode;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.ShortBuffer;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
+import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 
 /**
@@ -21,6 +30,7 @@ public class MessageTest extends TestCase {
 	private static final String FLOAT = "float";
 	private static final String DOUBLE_ARRAY = "double[]";
 	private static final String FLOAT_ARRAY = "float[]";
+	private static final String BUFFER = "buffer";
 
 	private static final MessageType test = new MessageType("test", DMT.PRIORITY_LOW) {{
 		addField(BOOLEAN, Boolean.class);
@@ -34,6 +44,13 @@ public class MessageTest extends TestCase {
 		addField(FLOAT_ARRAY, float[].class);
 	}};
 
+	private static final MessageType sub = new MessageType("testSub", DMT.PRIORITY_LOW) {{
+		addField(LONG, Long.class);
+		addField(BUFFER, ShortBuffer.class);
+	}};
+
+	private static final NullBasePeerNode peer = new NullBasePeerNode();
+
 	/**
 	 * Test that different types can be set and retrieved to and from a Message.
 	 */
@@ -73,4 +90,144 @@ public class MessageTest extends TestCase {
 		assertTrue(Arrays.equals(doubleArrayVal, msg.getDoubleArray(DOUBLE_ARRAY)));
 		assertTrue(Arrays.equals(floatArrayVal, msg.getFloatArray(FLOAT_ARRAY)));
 	}
+
+	private Message makeTest() {
+		Message msg = new Message(test);
+		msg.set(BOOLEAN, true);
+		msg.set(BYTE, (byte)-5);
+		msg.set(SHORT, (short)-456);
+		msg.set(INT, -78912);
+		msg.set(LONG, 3456789123L);
+		msg.set(DOUBLE, Math.PI);
+		msg.set(FLOAT, Float.NaN);
+		msg.set(DOUBLE_ARRAY, new double[] { Math.PI, Math.E });
+		msg.set(FLOAT_ARRAY, new float[] { 1234.5678f, 912345.6789f });
+		return msg;
+	}
+
+	/**
+	 * Test that a message with a sub-message survives encoding and decoding.
+	 */
+	public void testEncodeDecode() {
+		Message msg = makeTest();
+		Message subMsg = new Message(sub);
+		subMsg.set(LONG, -1L);
+		subMsg.set(BUFFER, new ShortBuffer(new byte[] { 1, 2, 3 }));
+		msg.addSubMessage(subMsg);
+
+		byte[] buf = msg.encodeToPacket();
+		Message decoded = Message.decodeMessageFromPacket(buf, 0, buf.length, peer, 0);
+		assertNotNull(decoded);
+		assertSame(test, decoded.getSpec());
+		assertEquals(true, decoded.getBoolean(BOOLEAN));
+		assertEquals((byte)-5, decoded.getByte(BYTE));
+		assertEquals((short)-456, decoded.getShort(SHORT));
+		assertEquals(-78912, decoded.getInt(INT));
+		assertEquals(3456789123L, decoded.getLong(LONG));
+		assertEquals(Math.PI, decoded.getDouble(DOUBLE));
+		assertTrue(Float.isNaN(decoded.getFloat(FLOAT)));
+		assertTrue(Arrays.equals(msg.getDoubleArray(DOUBLE_ARRAY), decoded.getDoubleArray(DOUBLE_ARRAY)));
+		assertTrue(Arrays.equals(msg.getFloatArray(FLOAT_ARRAY), decoded.getFloatArray(FLOAT_ARRAY)));
+		assertTrue(Arrays.equals(buf, decoded.encodeToPacket()));
+
+		Message decodedSub = decoded.getSubMessage(sub);
+		assertNotNull(decodedSub);
+		assertEquals(-1L, decodedSub.getLong(LONG));
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, decodedSub.getShortBufferBytes(BUFFER)));
+	}
+
+	/**
+	 * Test the accessors by field number, and that fields are typed and unset fields are
+	 * reported as before.
+	 */
+	public void testFields() {
+		Message msg = new Message(test);
+		int longField = test.getFieldIndex(LONG);
+		assertTrue(longField >= 0);
+		assertEquals(-1, test.getFieldIndex("nonexistent"));
+		assertEquals(9, test.getFieldCount());
+
+		assertFalse(msg.isSet(LONG));
+		assertNull(msg.getObject(LONG));
+		try {
+			msg.getLong(LONG);
+			fail();
+		} catch (NullPointerException e) {
+			// Expected.
+		}
+		try {
+			msg.set(LONG, 1);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected, it's an int.
+		}
+		try {
+			msg.set("nonexistent", 1L);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+
+		msg.set(LONG, Long.valueOf(42));
+		assertTrue(msg.isSet(longField));
+		assertEquals(42L, msg.getLong(longField));
+		assertEquals(Long.valueOf(42), msg.getObject(LONG));
+		assertTrue(msg.isFieldEqual(LONG, Long.valueOf(42)));
+		assertFalse(msg.isFieldEqual(LONG, Long.valueOf(43)));
+		assertFalse(msg.isFieldEqual(LONG, Integer.valueOf(42)));
+		assertFalse(msg.isFieldEqual(INT, Integer.valueOf(0)));
+		try {
+			msg.getInt(longField);
+			fail();
+		} catch (ClassCastException e) {
+			// Expected.
+		}
+
+		Message copy = msg.cloneAndDropSubMessages();
+		msg.set(LONG, 43L);
+		assertEquals(42L, copy.getLong(LONG));
+	}
+
+	/**
+	 * Encode and decode common messages, reporting the time and, where the JVM can measure it,
+	 * the bytes allocated per message.
+	 */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		final int MESSAGES = TestProperty.EXTENSIVE ? 5000000 : 1000000;
+		byte[] routingKey = new byte[32];
+		Arrays.fill(routingKey, (byte)7);
+		NodeCHK key = new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+		Message[] messages = new Message[] {
+			DMT.createFNPCHKDataRequest(1234567890123L, (short)18, key),
+			DMT.createFNPAccepted(1234567890123L),
+			DMT.createPacketTransmit(1234567890123L, 7, new BitArray(32), new Buffer(new byte[1024]), false),
+		};
+		for(int round = 0; round < 3; round++) {
+			for(Message m : messages) {
+				long allocated = allocatedBytes();
+				long start = System.nanoTime();
+				long sum = 0;
+				for(int i = 0; i < MESSAGES; i++) {
+					byte[] buf = m.encodeToPacket();
+					Message decoded = Message.decodeMessageFromPacket(buf, 0, buf.length, peer, 0);
+					sum += decoded.getLong(DMT.UID);
+				}
+				long time = System.nanoTime() - start;
+				allocated = allocatedBytes() - allocated;
+				assertEquals(1234567890123L * MESSAGES, sum);
+				System.out.println(m.getSpec().getName()+": "+(time / MESSAGES)+"ns per encode and decode"+
+						(allocated < 0 ? "" : ", "+(allocated / MESSAGES)+" bytes allocated"));
+			}
+		}
+	}
+
+	/** @return Bytes allocated by this thread so far, or a large negative number if the JVM
+	 * can't tell us. */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return Long.MIN_VALUE / 2;
+	}
 }
@@ -0,0 +1,336 @@
+package freenet.io.comm;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.io.xfer.PacketThrottle;
+import freenet.node.MessageItem;
+import freenet.node.OutgoingPacketMangler;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import junit.framework.TestCase;
+
+public class MessageCoreTest extends TestCase {
+
+	private static final String UID = "uid";
+
+	private static final MessageType testType = new MessageType("messageCoreTest", DMT.PRIORITY_LOW) {{
+		addField(UID, Long.class);
+	}};
+
+	private static final MessageType otherType = new MessageType("messageCoreTestOther", DMT.PRIORITY_LOW) {{
+		addField(UID, Long.class);
+	}};
+
+	private MessageCore core;
+
+	@Override
+	protected void setUp() {
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		core = new MessageCore(executor);
+	}
+
+	private static Message message(long uid) {
+		Message m = new Message(testType);
+		m.set(UID, uid);
+		return m;
+	}
+
+	private static Message message(long uid, PeerContext source) {
+		byte[] buf = message(uid).encodeToPacket();
+		return Message.decodeMessageFromPacket(buf, 0, buf.length, source, 0);
+	}
+
+	private static MessageFilter filter(long uid, long timeout) {
+		return MessageFilter.create().setType(testType).setField(UID, uid).setTimeout(timeout);
+	}
+
+	/** Records what happened to an async filter. */
+	private static class Callback implements AsyncMessageFilterCallback {
+		Message matched;
+		boolean timedOut;
+		boolean disconnected;
+		volatile boolean shouldTimeout;
+
+		@Override
+		public synchronized void onMatched(Message m) {
+			matched = m;
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return shouldTimeout;
+		}
+
+		@Override
+		public synchronized void onTimeout() {
+			timedOut = true;
+		}
+
+		@Override
+		public synchronized void onDisconnect(PeerContext ctx) {
+			disconnected = true;
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			// Ignore
+		}
+	}
+
+	private static class TestPeer implements PeerContext {
+		boolean connected = true;
+
+		@Override
+		public Peer getPeer() {
+			return null;
+		}
+
+		@Override
+		public void forceDisconnect() {
+			connected = false;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public boolean isRoutable() {
+			return true;
+		}
+
+		@Override
+		public int getVersionNumber() {
+			return 0;
+		}
+
+		@Override
+		public MessageItem sendAsync(Message msg, AsyncMessageCallback cb, ByteCounter ctr) {
+			return null;
+		}
+
+		@Override
+		public long getBootID() {
+			return 0;
+		}
+
+		@Override
+		public PacketThrottle getThrottle() {
+			return null;
+		}
+
+		@Override
+		public SocketHandler getSocketHandler() {
+			return null;
+		}
+
+		@Override
+		public OutgoingPacketMangler getOutgoingMangler() {
+			return null;
+		}
+
+		@Override
+		public WeakReference<? extends PeerContext> getWeakRef() {
+			return new WeakReference<TestPeer>(this);
+		}
+
+		@Override
+		public String shortToString() {
+			return toString();
+		}
+
+		@Override
+		public void transferFailed(String reason, boolean realTime) {
+			// Ignore
+		}
+
+		@Override
+		public boolean unqueueMessage(MessageItem item) {
+			return false;
+		}
+
+		@Override
+		public void reportThrottledPacketSendTime(long time, boolean realTime) {
+			// Ignore
+		}
+
+		@Override
+		public int getThrottleWindowSize() {
+			return 0;
+		}
+	}
+
+	public void testMatchedWhileWaiting() throws Exception {
+		final Message m = message(1);
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				while(core.getWaitingThreadCount() == 0)
+					Thread.yield();
+				core.checkFilters(m, null);
+			}
+		};
+		sender.start();
+		assertSame(m, core.waitFor(filter(1, 30000), null));
+		sender.join();
+		assertEquals(0, core.getWaitingThreadCount());
+	}
+
+	public void testMatchedFromUnclaimed() throws Exception {
+		Message m = message(2);
+		core.checkFilters(m, null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		assertSame(m, core.waitFor(filter(2, 30000), null));
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testTimeout() throws Exception {
+		long start = System.currentTimeMillis();
+		assertNull(core.waitFor(filter(3, 100), null));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		// Does not match a filter that has already timed out.
+		core.checkFilters(message(3), null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	public void testManyWaiters() throws Exception {
+		final int WAITERS = 200;
+		final CountDownLatch done = new CountDownLatch(WAITERS);
+		final AtomicInteger matched = new AtomicInteger();
+		for(int i=0;i<WAITERS;i++) {
+			final long uid = 1000 + i;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						Message m = core.waitFor(filter(uid, 30000), null);
+						if(m != null && m.getLong(UID) == uid)
+							matched.incrementAndGet();
+					} catch (DisconnectedException e) {
+						// Impossible, no source.
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long deadline = System.currentTimeMillis() + 30000;
+		while(core.getWaitingThreadCount() < WAITERS && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(WAITERS, core.getWaitingThreadCount());
+		for(int i=WAITERS-1;i>=0;i--)
+			core.checkFilters(message(1000 + i), null);
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(WAITERS, matched.get());
+		assertEquals(0, core.getWaitingThreadCount());
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testNearestTimeoutFirst() throws Exception {
+		TestPeer peer = new TestPeer();
+		Callback later = new Callback();
+		Callback sooner = new Callback();
+		Callback anySource = new Callback();
+		core.addAsyncFilter(filter(4, 20000), later, null);
+		core.addAsyncFilter(filter(4, 10000).setSource(peer), sooner, null);
+		core.addAsyncFilter(MessageFilter.create().setType(testType).setTimeout(15000), anySource, null);
+		assertEquals(3, core.getFilterCount());
+		Message m1 = message(4, peer);
+		core.checkFilters(m1, null);
+		assertSame(m1, sooner.matched);
+		Message m2 = message(4, peer);
+		core.checkFilters(m2, null);
+		assertSame(m2, anySource.matched);
+		Message m3 = message(4, peer);
+		core.checkFilters(m3, null);
+		assertSame(m3, later.matched);
+		assertEquals(0, core.getFilterCount());
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testOr() throws Exception {
+		Callback cb = new Callback();
+		MessageFilter other = MessageFilter.create().setType(otherType).setField(UID, 5L).setTimeout(10000);
+		core.addAsyncFilter(filter(5, 10000).or(other), cb, null);
+		core.checkFilters(message(6), null);
+		assertNull(cb.matched);
+		Message m = new Message(otherType);
+		m.set(UID, 5L);
+		core.checkFilters(m, null);
+		assertSame(m, cb.matched);
+		assertEquals(0, core.getFilterCount());
+	}
+
+	public void testRemoveTimedOutFilters() throws Exception {
+		Callback expires = new Callback();
+		Callback cancelled = new Callback();
+		Callback waiting = new Callback();
+		core.addAsyncFilter(filter(7, 50), expires, null);
+		core.addAsyncFilter(filter(8, 10000), cancelled, null);
+		core.addAsyncFilter(filter(9, 20000), waiting, null);
+		Thread.sleep(100);
+		cancelled.shouldTimeout = true;
+		long next = core.removeTimedOutFilters(Long.MAX_VALUE);
+		assertTrue(expires.timedOut);
+		assertTrue(cancelled.timedOut);
+		assertFalse(waiting.timedOut);
+		assertEquals(1, core.getFilterCount());
+		assertTrue(next > System.currentTimeMillis() + 10000);
+	}
+
+	public void testDisconnect() throws Exception {
+		TestPeer peer = new TestPeer();
+		TestPeer otherPeer = new TestPeer();
+		Callback cb = new Callback();
+		Callback otherCb = new Callback();
+		core.addAsyncFilter(filter(10, 10000).setSource(peer), cb, null);
+		core.addAsyncFilter(filter(10, 10000).setSource(otherPeer), otherCb, null);
+		peer.connected = false;
+		core.onDisconnect(peer);
+		assertTrue(cb.disconnected);
+		assertFalse(otherCb.disconnected);
+		assertEquals(1, core.getFilterCount());
+	}
+
+	/** Replay a stream of messages against many pending filters, most of which do not match. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final int FILTERS = 10000;
+		final int PEERS = 50;
+		final int MESSAGES = TestProperty.EXTENSIVE ? 1000000 : 200000;
+		TestPeer[] peers = new TestPeer[PEERS];
+		for(int i=0;i<PEERS;i++)
+			peers[i] = new TestPeer();
+		Random random = new Random(1234);
+		List<Message> stream = new ArrayList<Message>();
+		for(int i=0;i<1000;i++)
+			stream.add(message(random.nextInt(FILTERS * 2), peers[random.nextInt(PEERS)]));
+		for(int i=0;i<FILTERS;i++)
+			core.addAsyncFilter(filter(i, 600000).setSource(peers[i % PEERS]), new Callback(), null);
+		for(int round=0;round<3;round++) {
+			long time = 0;
+			for(int i=0;i<MESSAGES;i++) {
+				Message m = stream.get(i % stream.size());
+				long start = System.nanoTime();
+				core.checkFilters(m, null);
+				time += System.nanoTime() - start;
+				// Replace matched filters so the number of filters stays the same.
+				if(core.getFilterCount() < FILTERS) {
+					long uid = m.getLong(UID);
+					core.addAsyncFilter(filter(uid, 600000).setSource(m.getSource()), new Callback(), null);
+				}
+			}
+			System.out.println(MESSAGES+" messages against "+core.getFilterCount()+" filters: "+
+					(time / MESSAGES)+"ns per message");
+		}
+	}
+
+}
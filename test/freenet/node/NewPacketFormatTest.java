@@ -18,6 +18,7 @@ import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.Message;
 import freenet.io.comm.Peer;
 import freenet.support.MutableBoolean;
+import freenet.support.TestProperty;
 
 public class NewPacketFormatTest extends TestCase {
 	@Override
@@ -447,4 +448,71 @@ public class NewPacketFormatTest extends TestCase {
 		assertTrue(Arrays.equals(message, copyOfMessage));
 		assertTrue(Arrays.equals(message, receiverNode.decryptedMessages.get(0)));
 	}
+
+	/** Encode and decode packets carrying messages of realistic sizes, fragmented to fit in
+	 * packets of a typical MTU, and reassemble them with handleDecryptedPacket(). */
+	public void testBenchmark() throws BlockedTooLongException, InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int PACKET_SIZE = 1280;
+		final int MESSAGES = TestProperty.EXTENSIVE ? 100000 : 20000;
+		Random random = new Random(1234);
+		NullBasePeerNode senderNode = new NullBasePeerNode();
+		NewPacketFormat sender = new NewPacketFormat(senderNode, 0, 0);
+		PeerMessageQueue senderQueue = new PeerMessageQueue();
+		SessionKey senderKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+		senderNode.currentKey = senderKey;
+
+		// Mostly small messages, some block transfer sized, a few big enough to span packets.
+		List<NPFPacket> packets = new ArrayList<NPFPacket>();
+		NPFPacket p;
+		for(int i = 0; i < MESSAGES; i++) {
+			int r = random.nextInt(10);
+			int size = r < 6 ? 30 + random.nextInt(100) : r < 9 ? 1024 + random.nextInt(64) : 2048 + random.nextInt(NewPacketFormat.MAX_MESSAGE_SIZE - 2048);
+			byte[] buf = new byte[size];
+			random.nextBytes(buf);
+			senderQueue.queueAndEstimateSize(new MessageItem(buf, null, false, null, (short) 0, false, false), PACKET_SIZE);
+			while((p = sender.createPacket(PACKET_SIZE, senderQueue, senderKey, false)) != null) {
+				packets.add(p);
+				// Ack it straight away so the send window never fills up.
+				NPFPacket ack = new NPFPacket();
+				ack.addAck(p.getSequenceNumber(), PACKET_SIZE);
+				sender.handleDecryptedPacket(ack, senderKey);
+			}
+		}
+		// The last few small messages are held back to be coalesced, so wait for them.
+		Thread.sleep(PacketSender.MAX_COALESCING_DELAY * 2);
+		while((p = sender.createPacket(PACKET_SIZE, senderQueue, senderKey, false)) != null) {
+			packets.add(p);
+			NPFPacket ack = new NPFPacket();
+			ack.addAck(p.getSequenceNumber(), PACKET_SIZE);
+			sender.handleDecryptedPacket(ack, senderKey);
+		}
+		byte[][] encoded = new byte[packets.size()][];
+		for(int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			for(int i = 0; i < packets.size(); i++) {
+				// toBytes() needs a clean buffer.
+				NPFPacket packet = packets.get(i);
+				encoded[i] = new byte[packet.getLength()];
+				packet.toBytes(encoded[i], 0, random);
+			}
+			long encodeTime = System.nanoTime() - start;
+			NPFPacket[] decoded = new NPFPacket[packets.size()];
+			start = System.nanoTime();
+			for(int i = 0; i < encoded.length; i++)
+				decoded[i] = NPFPacket.create(encoded[i], senderNode);
+			long decodeTime = System.nanoTime() - start;
+			NullBasePeerNode receiverNode = new NullBasePeerNode();
+			NewPacketFormat receiver = new NewPacketFormat(receiverNode, 0, 0);
+			SessionKey receiverKey = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+			int received = 0;
+			start = System.nanoTime();
+			for(NPFPacket packet : decoded)
+				received += receiver.handleDecryptedPacket(packet, receiverKey).size();
+			long receiveTime = System.nanoTime() - start;
+			assertEquals(MESSAGES, received);
+			System.out.println(packets.size()+" packets: encode "+(encodeTime / packets.size())+"ns, decode "+
+					(decodeTime / packets.size())+"ns, handleDecryptedPacket "+(receiveTime / packets.size())+"ns per packet");
+		}
+	}
 }
@@ -164,6 +164,11 @@ public class NullBasePeerNode implements BasePeerNode {
 		// Do nothing
 	}
 
+	@Override
+	public void sendTimesChanged() {
+		// Do nothing
+	}
+
 	@Override
 	public int getMaxPacketSize() {
 		return 1280;
@@ -199,10 +204,15 @@ public class NullBasePeerNode implements BasePeerNode {
 	}
 
 	@Override
-	public void sentThrottledBytes(int length) {
+	public void sentThrottledBytes(int realTimeBytes, int bulkBytes) {
 		// Do nothing
 	}
 
+	@Override
+	public boolean canSendThrottled(boolean realTime, int bytes) {
+		return true;
+	}
+
 	@Override
 	public void onNotificationOnlyPacketSent(int length) {
 		// Do nothing
@@ -5,6 +5,9 @@ package freenet.node;
 
 import junit.framework.TestCase;
 
+import freenet.io.comm.DMT;
+import freenet.support.TestProperty;
+
 public class PeerMessageQueueTest extends TestCase {
 	public void testUrgentTimeEmpty() {
 		PeerMessageQueue pmq = new PeerMessageQueue();
@@ -79,6 +82,116 @@ public class PeerMessageQueueTest extends TestCase {
 		pmq.queueAndEstimateSize(itemUrgent, 1024);
 
 		//grabQueuedMessageItem() should return the most urgent item, even though it was queued last
-		assertSame(itemUrgent, pmq.grabQueuedMessageItem(0));
+		assertSame(itemUrgent, pmq.grabQueuedMessageItem(0, true, true));
+	}
+
+	private static MessageItem bulkItem(long uid) {
+		return new MessageItem(DMT.createFNPRejectedLoop(uid), null, null, DMT.PRIORITY_BULK_DATA);
+	}
+
+	/** Urgent messages are sent round-robin between UID's. */
+	public void testRoundRobin() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		MessageItem a1 = bulkItem(1);
+		MessageItem a2 = bulkItem(1);
+		MessageItem b1 = bulkItem(2);
+		// Requeued, so urgent.
+		pmq.pushfrontPrioritizedMessageItem(a2);
+		pmq.pushfrontPrioritizedMessageItem(a1);
+		pmq.pushfrontPrioritizedMessageItem(b1);
+		assertSame(b1, pmq.grabQueuedMessageItem(0, true, true));
+		assertSame(a1, pmq.grabQueuedMessageItem(0, true, true));
+		assertSame(a2, pmq.grabQueuedMessageItem(0, true, true));
+		assertNull(pmq.grabQueuedMessageItem(0, true, true));
+		assertEquals(Long.MAX_VALUE, pmq.getNextUrgentTime(Long.MAX_VALUE, Long.MAX_VALUE));
+	}
+
+	/** A message which isn't urgent yet waits for its UID's timeout since the last send. */
+	public void testTimeoutSinceLastSend() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		long start = System.currentTimeMillis();
+		pmq.pushfrontPrioritizedMessageItem(bulkItem(1));
+		assertNotNull(pmq.grabQueuedMessageItem(0, true, true));
+		long sent = System.currentTimeMillis();
+		pmq.queueAndEstimateSize(bulkItem(1), 1024);
+		long urgentTime = pmq.getNextUrgentTime(Long.MAX_VALUE, 0);
+		assertTrue(urgentTime >= start + PacketSender.MAX_COALESCING_DELAY_BULK);
+		assertTrue(urgentTime <= sent + PacketSender.MAX_COALESCING_DELAY_BULK);
+		assertFalse(pmq.mustSendNow(sent));
+	}
+
+	public void testRemoveAndSizes() {
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		MessageItem urgent = bulkItem(1);
+		MessageItem nonUrgent = bulkItem(2);
+		MessageItem other = new MessageItem(new byte[100], null, false, null, (short) 0, false, false);
+		int length = urgent.getLength() + nonUrgent.getLength() + other.getLength();
+		pmq.pushfrontPrioritizedMessageItem(urgent);
+		pmq.queueAndEstimateSize(nonUrgent, 1024);
+		assertEquals(length + 6, pmq.queueAndEstimateSize(other, 1024));
+		assertTrue(pmq.mustSendSize(length - 1, 2 * length - 2));
+		assertFalse(pmq.mustSendSize(length, 2 * length));
+		// Only the urgent message counts.
+		assertEquals(urgent.getLength() + 2, pmq.getMessageQueueLengthBytes());
+		assertTrue(pmq.removeMessage(urgent));
+		assertFalse(pmq.removeMessage(urgent));
+		assertEquals(0, pmq.getMessageQueueLengthBytes());
+		assertTrue(pmq.removeMessage(nonUrgent));
+		pmq.removeUIDsFromMessageQueues(new Long[] { 1L, 2L });
+		MessageItem[] left = pmq.grabQueuedMessageItems();
+		assertEquals(1, left.length);
+		assertSame(other, left[0]);
+		assertEquals(0, pmq.queueAndEstimateSize(other, 1024) - other.getLength() - 2);
+		assertSame(other, pmq.grabQueuedMessageItem(0, true, true));
+		assertNull(pmq.grabQueuedMessageItem(0, true, true));
+	}
+
+	/** Assemble packets from a peer with 1000 messages queued for 50 transfers, realtime and bulk,
+	 * as NewPacketFormat does: check whether we must send, then grab a packet's worth of messages.
+	 * For each message sent, a new one is queued for the same transfer, so the queue stays the 
+	 * same length. Creating the messages isn't timed. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		final int QUEUED = 1000;
+		final int UIDS = 50;
+		final int PACKETS = 20000;
+		final int PACKET_SIZE = 1400;
+		PeerMessageQueue pmq = new PeerMessageQueue();
+		for(int i=0;i<QUEUED;i++)
+			pmq.queueAndEstimateSize(benchmarkItem(i), PACKET_SIZE);
+		MessageItem[] sent = new MessageItem[PACKET_SIZE];
+		for(int round=0;round<3;round++) {
+			long messages = 0;
+			long nanos = 0;
+			for(int i=0;i<PACKETS;i++) {
+				long startTime = System.nanoTime();
+				long now = System.currentTimeMillis();
+				int count = 0;
+				if(pmq.mustSendNow(now) || pmq.mustSendSize(0, PACKET_SIZE)) {
+					int size = 0;
+					while(size < PACKET_SIZE) {
+						MessageItem item = pmq.grabQueuedMessageItem(0, true, true);
+						if(item == null) break;
+						size += item.getLength();
+						sent[count++] = item;
+					}
+				}
+				nanos += System.nanoTime() - startTime;
+				messages += count;
+				for(int j=0;j<count;j++)
+					sent[j] = benchmarkItem(sent[j].getID());
+				startTime = System.nanoTime();
+				for(int j=0;j<count;j++)
+					pmq.queueAndEstimateSize(sent[j], PACKET_SIZE);
+				nanos += System.nanoTime() - startTime;
+			}
+			System.out.println(QUEUED+" messages queued: "+(nanos / PACKETS)+"ns per packet, "+
+					(nanos / messages)+"ns per message");
+		}
+	}
+
+	private static MessageItem benchmarkItem(long uid) {
+		short priority = (uid % 2 == 0) ? DMT.PRIORITY_BULK_DATA : DMT.PRIORITY_REALTIME_DATA;
+		return new MessageItem(DMT.createFNPRejectedLoop(uid % 50), null, null, priority);
 	}
 }
@@ -0,0 +1,114 @@
+package freenet.node;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.node.RequestTag.START;
+import freenet.node.RequestTracker.CountedRequests;
+
+/** Check that the running totals kept by the tags agree with counting each tag. */
+public class RequestTrackerTest extends TestCase {
+
+	private static final int TRANSFERS_PER_INSERT = 2;
+
+	private RequestTracker tracker;
+	/** The tags which are currently locked. */
+	private List<RequestTag> locked;
+
+	@Override
+	protected void setUp() {
+		tracker = new RequestTracker(null, null);
+		locked = new ArrayList<RequestTag>();
+	}
+
+	public void testTotalsFollowTagState() {
+		RequestTag local1 = lock(null, 1);
+		RequestTag local2 = lock(null, 2);
+		// Remote requests whose source has gone away: we don't need a real peer to count them.
+		RequestTag remote1 = lock(new WeakReference<PeerNode>(null), 3);
+		RequestTag remote2 = lock(new WeakReference<PeerNode>(null), 4);
+		RequestTag remote3 = lock(new WeakReference<PeerNode>(null), 5);
+		checkTotals();
+
+		remote1.setAccepted();
+		checkTotals();
+		remote2.setAccepted();
+		remote3.setAccepted();
+		checkTotals();
+
+		local1.setNotRoutedOnwards();
+		checkTotals();
+		remote1.setNotRoutedOnwards();
+		checkTotals();
+
+		remote2.reassignToSelf();
+		checkTotals();
+
+		remote3.onRestartOrDisconnectSource();
+		checkTotals();
+
+		local2.completedDownstreamTransfers();
+		checkTotals();
+		remote3.completedDownstreamTransfers();
+		checkTotals();
+
+		for(RequestTag tag : new RequestTag[] { remote2, local1, remote3, local2, remote1 }) {
+			unlock(tag);
+			checkTotals();
+		}
+		CountedRequests counter = new CountedRequests();
+		tracker.countRequests(false, false, false, false, false, TRANSFERS_PER_INSERT, false, counter, null);
+		tracker.countRequests(true, false, false, false, false, TRANSFERS_PER_INSERT, false, counter, null);
+		assertEquals(0, counter.total());
+		assertEquals(0, counter.expectedTransfersIn());
+		assertEquals(0, counter.expectedTransfersOut());
+	}
+
+	private RequestTag lock(WeakReference<PeerNode> sourceRef, long uid) {
+		RequestTag tag = new RequestTag(false, sourceRef == null ? START.LOCAL : START.REMOTE,
+				sourceRef, false, uid, tracker);
+		assertTrue(tracker.lockUID(tag));
+		locked.add(tag);
+		return tag;
+	}
+
+	private void unlock(RequestTag tag) {
+		tracker.unlockUID(tag, false, true);
+		locked.remove(tag);
+	}
+
+	private void checkTotals() {
+		for(boolean local : new boolean[] { false, true }) {
+			for(boolean ignoreLocalVsRemote : new boolean[] { false, true }) {
+				CountedRequests counter = new CountedRequests();
+				CountedRequests counterSR = new CountedRequests();
+				tracker.countRequests(local, false, false, false, false, TRANSFERS_PER_INSERT,
+						ignoreLocalVsRemote, counter, counterSR);
+				int total = 0, in = 0, out = 0, totalSR = 0, inSR = 0, outSR = 0;
+				for(RequestTag tag : locked) {
+					if(tag.wasLocal() != local) continue;
+					int tagIn = tag.expectedTransfersIn(ignoreLocalVsRemote, TRANSFERS_PER_INSERT, true);
+					int tagOut = tag.expectedTransfersOut(ignoreLocalVsRemote, TRANSFERS_PER_INSERT, true);
+					total++;
+					in += tagIn;
+					out += tagOut;
+					if(tag.countAsSourceRestarted()) {
+						totalSR++;
+						inSR += tagIn;
+						outSR += tagOut;
+					}
+				}
+				String desc = (local ? "local" : "remote")+(ignoreLocalVsRemote ? " ignoring local vs remote" : "");
+				assertEquals(desc, total, counter.total());
+				assertEquals(desc, in, counter.expectedTransfersIn());
+				assertEquals(desc, out, counter.expectedTransfersOut());
+				assertEquals(desc, totalSR, counterSR.total());
+				assertEquals(desc, inSR, counterSR.expectedTransfersIn());
+				assertEquals(desc, outSR, counterSR.expectedTransfersOut());
+			}
+		}
+	}
+
+}
@@ -113,6 +113,45 @@ public class CachingFreenetStoreTest extends TestCase {
 		cachingStore.close();
 	}
 
+	/* Write back several blocks in one batch, and check the statistics. */
+	public void testBatchWriteCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testCachingFreenetStoreCHK", store, weakPRNG, 20, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, ticker);
+		CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store, saltStore, tracker);
+		cachingStore.start(null, true);
+		int blockSize = store.getTotalBlockSize();
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			store.put(blocks[i].getBlock(), false);
+		}
+		assertEquals(blocks.length, tracker.getQueuedBlocks());
+		assertEquals(blocks.length * blockSize, tracker.getSizeOfCache());
+
+		// One batch is enough.
+		tracker.pushAllCachingStores();
+		assertEquals(0, tracker.getSizeOfCache());
+		assertEquals(0, tracker.getQueuedBlocks());
+		assertEquals(blocks.length * blockSize, tracker.getBytesWritten());
+		assertEquals(1, tracker.getFlushCount());
+		assertEquals(-1, cachingStore.pushLeastRecentlyBlocks(3));
+
+		for(ClientCHKBlock block : blocks) {
+			ClientCHK key = block.getClientKey();
+			// Must now be in the underlying store.
+			CHKBlock verify = saltStore.fetch(key.getRoutingKey(), key.getNodeCHK().getFullKey(), false, false, false, false, null);
+			assertNotNull(verify);
+			assertEquals(block.getBlock(), verify);
+		}
+
+		cachingStore.close();
+	}
+
 	/* Check that if the size limit is 0 (and therefore presumably if it is smaller than the key being
 	 * cached), we will pass through immediately. */
 	public void testZeroSize() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
@@ -0,0 +1,170 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.CHKStore;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
+import freenet.support.Ticker;
+import freenet.support.TrivialTicker;
+import freenet.support.compress.Compressor;
+import freenet.support.io.FileUtil;
+
+public class LockManagerTest extends TestCase {
+
+	private static final int THREADS = 32;
+
+	private Random weakPRNG = new Random(12340);
+	private PooledExecutor exec = new PooledExecutor();
+	private Ticker ticker = new TrivialTicker(exec);
+	private File tempDir;
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-lockmanagertest");
+		tempDir.mkdir();
+		exec.start();
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	public void testMutualExclusion() throws InterruptedException {
+		final LockManager lockManager = new LockManager(4);
+		final int[] counters = new int[16];
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for(int i = 0; i < threads.length; i++) {
+			final int seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					for(int j = 0; j < 10000; j++) {
+						int offset = r.nextInt(counters.length);
+						Condition c = lockManager.lockEntry(offset);
+						if(c == null) {
+							failures.incrementAndGet();
+							return;
+						}
+						// Not atomic: lost updates if the lock doesn't work.
+						counters[offset] = counters[offset] + 1;
+						lockManager.unlockEntry(offset, c);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(0, failures.get());
+		int total = 0;
+		for(int c : counters)
+			total += c;
+		assertEquals(threads.length * 10000, total);
+	}
+
+	public void testShutdown() throws InterruptedException {
+		final LockManager lockManager = new LockManager();
+		final Condition held = lockManager.lockEntry(42);
+		assertNotNull(held);
+		final CountDownLatch waiting = new CountDownLatch(1);
+		final AtomicInteger results = new AtomicInteger();
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				waiting.countDown();
+				if(lockManager.lockEntry(42) == null)
+					results.incrementAndGet();
+			}
+		};
+		waiter.start();
+		waiting.await();
+		Thread shutdown = new Thread() {
+			@Override
+			public void run() {
+				lockManager.shutdown();
+				results.addAndGet(10);
+			}
+		};
+		shutdown.start();
+		Thread.sleep(100);
+		// shutdown() must wait for the lock to be released.
+		assertEquals(0, results.get() / 10);
+		lockManager.unlockEntry(42, held);
+		shutdown.join(30000);
+		waiter.join(30000);
+		assertFalse(shutdown.isAlive());
+		assertEquals(11, results.get());
+		assertNull(lockManager.lockEntry(7));
+	}
+
+	/** Drive fetch and put on a real store from many threads. */
+	public void testBenchmark() throws IOException, CHKEncodeException, InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+
+		File f = new File(tempDir, "saltstore");
+		final CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "benchmarkLockManager", store,
+		        weakPRNG, 20000, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		final CHKBlock[] blocks = new CHKBlock[5000];
+		for(int i = 0; i < blocks.length; i++)
+			blocks[i] = encodeBlockCHK("benchmark" + i).getBlock();
+		final AtomicLong operations = new AtomicLong();
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[THREADS];
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < THREADS; i++) {
+			final int seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					try {
+						for(int j = 0; j < 2000; j++) {
+							CHKBlock block = blocks[r.nextInt(blocks.length)];
+							if(r.nextInt(4) == 0)
+								store.put(block, false);
+							else
+								store.fetch(block.getKey(), false, false, null);
+							operations.incrementAndGet();
+						}
+					} catch (IOException e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		long time = System.currentTimeMillis() - start;
+		saltStore.close();
+		assertEquals(0, errors.get());
+		System.out.println(THREADS + " threads: " + operations.get() + " fetch/put in " + time + "ms");
+	}
+
+	private ClientCHKBlock encodeBlockCHK(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR,
+        null, (byte)0);
+	}
+
+}
@@ -0,0 +1,219 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.CHKStore;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
+import freenet.support.Ticker;
+import freenet.support.TrivialTicker;
+import freenet.support.compress.Compressor;
+import freenet.support.io.FileUtil;
+
+/** Test the memory mapped store file, and compare it with the channel-based one. */
+public class MappedStoreFileTest extends TestCase {
+
+	private Random weakPRNG = new Random(12340);
+	private PooledExecutor exec = new PooledExecutor();
+	private Ticker ticker = new TrivialTicker(exec);
+	private File tempDir;
+	private static final int BENCHMARK_STORE_SIZE = TestProperty.EXTENSIVE ? 200000 : 20000;
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-mappedstorefiletest");
+		tempDir.mkdir();
+		exec.start();
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	/** Reads and writes across window boundaries must match the channel implementation. */
+	public void testMatchesChannel() throws IOException {
+		File mappedFile = new File(tempDir, "mapped");
+		File channelFile = new File(tempDir, "channel");
+		RandomAccessFile mappedRAF = new RandomAccessFile(mappedFile, "rw");
+		RandomAccessFile channelRAF = new RandomAccessFile(channelFile, "rw");
+		// Deliberately odd window size so that records straddle windows.
+		StoreFile mapped = new MappedStoreFile(mappedRAF, 1000);
+		StoreFile channel = new ChannelStoreFile(channelRAF);
+		try {
+			mapped.setLength(10000);
+			channel.setLength(10000);
+			for(int i = 0; i < 200; i++) {
+				byte[] buf = new byte[1 + weakPRNG.nextInt(2500)];
+				weakPRNG.nextBytes(buf);
+				long pos = weakPRNG.nextInt(10000 - buf.length);
+				assertEquals(buf.length, mapped.write(ByteBuffer.wrap(buf), pos));
+				assertEquals(buf.length, channel.write(ByteBuffer.wrap(buf), pos));
+			}
+			ByteBuffer a = ByteBuffer.allocate(10000);
+			ByteBuffer b = ByteBuffer.allocate(10000);
+			assertEquals(10000, mapped.read(a, 0));
+			assertEquals(10000, channel.read(b, 0));
+			a.flip();
+			b.flip();
+			assertEquals(b, a);
+			// Reading past the end.
+			assertEquals(-1, mapped.read(ByteBuffer.allocate(10), 10000));
+			ByteBuffer tail = ByteBuffer.allocate(100);
+			assertEquals(50, mapped.read(tail, 9950));
+		} finally {
+			mapped.close();
+			channel.close();
+			mappedRAF.close();
+			channelRAF.close();
+		}
+	}
+
+	public void testResize() throws IOException {
+		File f = new File(tempDir, "resize");
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		StoreFile mapped = new MappedStoreFile(raf, 1000);
+		try {
+			mapped.setLength(1500);
+			byte[] buf = new byte[1500];
+			weakPRNG.nextBytes(buf);
+			mapped.write(ByteBuffer.wrap(buf), 0);
+			mapped.setLength(4000);
+			assertEquals(4000, mapped.length());
+			byte[] more = new byte[2500];
+			weakPRNG.nextBytes(more);
+			mapped.write(ByteBuffer.wrap(more), 1500);
+			mapped.setLength(2000);
+			ByteBuffer check = ByteBuffer.allocate(2000);
+			assertEquals(2000, mapped.read(check, 0));
+			check.flip();
+			ByteBuffer expected = ByteBuffer.allocate(2000);
+			expected.put(buf);
+			expected.put(more, 0, 500);
+			expected.flip();
+			assertEquals(expected, check);
+			// Writing past the end extends the file.
+			mapped.write(ByteBuffer.wrap(more), 2000);
+			assertEquals(4500, mapped.length());
+		} finally {
+			mapped.close();
+			raf.close();
+		}
+	}
+
+	/** Preallocating extends the file, and the windows must follow. */
+	public void testPreallocate() throws IOException {
+		File f = new File(tempDir, "preallocate");
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		StoreFile mapped = new MappedStoreFile(raf, 1000);
+		try {
+			mapped.setLength(1500);
+			byte[] buf = new byte[1500];
+			weakPRNG.nextBytes(buf);
+			mapped.write(ByteBuffer.wrap(buf), 0);
+			mapped.preallocate(4000);
+			assertEquals(4000, mapped.length());
+			mapped.preallocate(2000);
+			assertEquals(4000, mapped.length());
+			byte[] more = new byte[2500];
+			weakPRNG.nextBytes(more);
+			assertEquals(2500, mapped.write(ByteBuffer.wrap(more), 1500));
+			ByteBuffer check = ByteBuffer.allocate(4000);
+			assertEquals(4000, mapped.read(check, 0));
+			check.flip();
+			ByteBuffer expected = ByteBuffer.allocate(4000);
+			expected.put(buf);
+			expected.put(more);
+			expected.flip();
+			assertEquals(expected, check);
+		} finally {
+			mapped.close();
+			raf.close();
+		}
+	}
+
+	public void testMappedStore() throws IOException, CHKEncodeException {
+		File f = new File(tempDir, "saltstore");
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testMappedStoreCHK", store,
+		        weakPRNG, 20, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, true);
+		saltStore.start(null, true);
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i = 0; i < blocks.length; i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			store.put(blocks[i].getBlock(), false);
+		}
+		saltStore.close();
+
+		// Read it back through the channel.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testMappedStoreCHK", store,
+		        weakPRNG, 20, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, false);
+		saltStore.start(null, true);
+		for(ClientCHKBlock block : blocks) {
+			CHKBlock verify = store.fetch(block.getClientKey().getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals(block.getBlock(), verify);
+		}
+		saltStore.close();
+	}
+
+	public void testBenchmark() throws IOException, CHKEncodeException {
+		if(!TestProperty.BENCHMARK) return;
+
+		CHKBlock[] blocks = new CHKBlock[BENCHMARK_STORE_SIZE / 2];
+		for(int i = 0; i < blocks.length; i++)
+			blocks[i] = encodeBlockCHK("benchmark" + i).getBlock();
+
+		for(int round = 0; round < 2; round++) {
+			benchmark(blocks, false);
+			benchmark(blocks, true);
+		}
+	}
+
+	private void benchmark(CHKBlock[] blocks, boolean useMmap) throws IOException {
+		File f = new File(tempDir, "benchmark");
+		FileUtil.removeAll(f);
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "benchmarkCHK", store,
+		        weakPRNG, BENCHMARK_STORE_SIZE, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, useMmap);
+		saltStore.start(null, true);
+		try {
+			long t1 = System.currentTimeMillis();
+			for(CHKBlock block : blocks)
+				store.put(block, false);
+			long t2 = System.currentTimeMillis();
+			int found = 0;
+			for(int i = 0; i < 4; i++) {
+				for(CHKBlock block : blocks) {
+					if(store.fetch(block.getKey(), false, false, null) != null)
+						found++;
+				}
+			}
+			long t3 = System.currentTimeMillis();
+			System.out.println((useMmap ? "mmap" : "channel") + ": " + blocks.length + " puts in " + (t2 - t1) +
+			        "ms, " + (4 * blocks.length) + " fetches (" + found + " found) in " + (t3 - t2) + "ms");
+		} finally {
+			saltStore.close();
+		}
+	}
+
+	private ClientCHKBlock encodeBlockCHK(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR,
+        null, (byte)0);
+	}
+
+}
@@ -0,0 +1,124 @@
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.io.FileUtil;
+
+public class ResizablePersistentIntBufferTest extends TestCase {
+
+	/** More than one page. */
+	private static final int SIZE = 200000;
+
+	private File tempDir;
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		tempDir = new File("tmp-resizablepersistentintbuffertest");
+		tempDir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		ResizablePersistentIntBuffer.setPersistenceTime(ResizablePersistentIntBuffer.DEFAULT_PERSISTENCE_TIME);
+		FileUtil.removeAll(tempDir);
+	}
+
+	public void testPersistOnShutdown() throws IOException {
+		checkPersist(0);
+	}
+
+	public void testPersistImmediately() throws IOException {
+		checkPersist(-1);
+	}
+
+	private void checkPersist(int persistenceTime) throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(persistenceTime);
+		File f = new File(tempDir, "buffer");
+		ResizablePersistentIntBuffer buffer = new ResizablePersistentIntBuffer(f, SIZE);
+		assertTrue(buffer.isNew());
+		assertEquals(0, buffer.get(SIZE - 1));
+		Random r = new Random(1234);
+		int[] expected = new int[SIZE];
+		for(int i = 0; i < 1000; i++) {
+			int offset = r.nextInt(SIZE);
+			int value = r.nextInt();
+			buffer.put(offset, value);
+			expected[offset] = value;
+		}
+		buffer.shutdown();
+		assertEquals(SIZE * 4L, f.length());
+
+		buffer = new ResizablePersistentIntBuffer(f, SIZE);
+		assertFalse(buffer.isNew());
+		for(int i = 0; i < SIZE; i++)
+			assertEquals(expected[i], buffer.get(i));
+		buffer.shutdown();
+	}
+
+	public void testFill() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "buffer");
+		ResizablePersistentIntBuffer buffer = new ResizablePersistentIntBuffer(f, SIZE);
+		buffer.fill(1 << 31);
+		buffer.put(5, 7);
+		buffer.shutdown();
+		buffer = new ResizablePersistentIntBuffer(f, SIZE);
+		assertEquals(7, buffer.get(5));
+		assertEquals(1 << 31, buffer.get(6));
+		assertEquals(1 << 31, buffer.get(SIZE - 1));
+		buffer.shutdown();
+	}
+
+	public void testResize() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "buffer");
+		ResizablePersistentIntBuffer buffer = new ResizablePersistentIntBuffer(f, SIZE);
+		buffer.put(10, 1);
+		buffer.put(100000, 2);
+		buffer.put(150000, 3);
+		buffer.resize(120000);
+		assertEquals(120000, buffer.size());
+		assertEquals(120000 * 4L, f.length());
+		assertEquals(1, buffer.get(10));
+		assertEquals(2, buffer.get(100000));
+		try {
+			buffer.get(150000);
+			fail();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// Expected.
+		}
+		buffer.resize(SIZE);
+		// Slots dropped by the shrink come back as zero.
+		assertEquals(0, buffer.get(150000));
+		assertEquals(2, buffer.get(100000));
+		buffer.forceWrite();
+		buffer.shutdown();
+
+		buffer = new ResizablePersistentIntBuffer(f, SIZE);
+		assertEquals(1, buffer.get(10));
+		assertEquals(2, buffer.get(100000));
+		assertEquals(0, buffer.get(150000));
+		buffer.shutdown();
+	}
+
+	public void testResizeWritesDirtyPages() throws IOException {
+		ResizablePersistentIntBuffer.setPersistenceTime(0);
+		File f = new File(tempDir, "buffer");
+		ResizablePersistentIntBuffer buffer = new ResizablePersistentIntBuffer(f, SIZE);
+		buffer.put(10, 1);
+		buffer.put(100000, 2);
+		buffer.resize(SIZE * 2);
+		// Abort doesn't write anything, so the data must have been written by the resize.
+		buffer.abort();
+
+		buffer = new ResizablePersistentIntBuffer(f, SIZE * 2);
+		assertEquals(1, buffer.get(10));
+		assertEquals(2, buffer.get(100000));
+		assertEquals(0, buffer.get(SIZE * 2 - 1));
+		buffer.abort();
+	}
+
+}
@@ -0,0 +1,104 @@
+package freenet.support;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class AtomicCountingBloomFilterTest extends TestCase {
+
+	private static final int CAPACITY = 10000;
+
+	private final Random rand = new Random(12345);
+
+	private long[] randomKeys(int count) {
+		long[] keys = new long[count];
+		for(int i=0;i<count;i++)
+			keys[i] = rand.nextLong();
+		return keys;
+	}
+
+	public void testPositive() {
+		AtomicCountingBloomFilter filter = new AtomicCountingBloomFilter(CAPACITY);
+		long[] keys = randomKeys(CAPACITY);
+		for(long key : keys)
+			filter.add(key);
+		for(long key : keys)
+			assertTrue(filter.mightContain(key));
+	}
+
+	public void testFalsePositives() {
+		AtomicCountingBloomFilter filter = new AtomicCountingBloomFilter(CAPACITY);
+		for(long key : randomKeys(CAPACITY))
+			filter.add(key);
+		int falsePositives = 0;
+		for(long key : randomKeys(CAPACITY * 10))
+			if(filter.mightContain(key)) falsePositives++;
+		// About 0.5% expected at capacity.
+		assertTrue("False positives: "+falsePositives, falsePositives < CAPACITY * 10 / 50);
+	}
+
+	public void testRemove() {
+		AtomicCountingBloomFilter filter = new AtomicCountingBloomFilter(CAPACITY);
+		long[] keep = randomKeys(CAPACITY / 2);
+		long[] remove = randomKeys(CAPACITY / 2);
+		for(long key : keep)
+			filter.add(key);
+		for(long key : remove)
+			filter.add(key);
+		for(long key : remove)
+			filter.remove(key);
+		for(long key : keep)
+			assertTrue(filter.mightContain(key));
+		int stillThere = 0;
+		for(long key : remove)
+			if(filter.mightContain(key)) stillThere++;
+		assertTrue("Removed keys still there: "+stillThere, stillThere < remove.length / 20);
+		for(long key : keep)
+			filter.remove(key);
+		for(long key : keep)
+			assertFalse(filter.mightContain(key));
+	}
+
+	/** A counter which overflows stays set, so other keys using it are not lost. */
+	public void testOverflow() {
+		AtomicCountingBloomFilter filter = new AtomicCountingBloomFilter(CAPACITY);
+		long key = rand.nextLong();
+		for(int i=0;i<20;i++)
+			filter.add(key);
+		for(int i=0;i<20;i++)
+			filter.remove(key);
+		assertTrue(filter.mightContain(key));
+	}
+
+	public void testConcurrentAdd() throws InterruptedException {
+		final AtomicCountingBloomFilter filter = new AtomicCountingBloomFilter(CAPACITY);
+		final long[][] keys = new long[4][];
+		Thread[] threads = new Thread[keys.length];
+		for(int i=0;i<keys.length;i++) {
+			keys[i] = randomKeys(CAPACITY / keys.length);
+			final long[] mine = keys[i];
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for(long key : mine)
+						filter.add(key);
+				}
+
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		for(long[] list : keys)
+			for(long key : list)
+				assertTrue(filter.mightContain(key));
+		for(long[] list : keys)
+			for(long key : list)
+				filter.remove(key);
+		for(long[] list : keys)
+			for(long key : list)
+				assertFalse(filter.mightContain(key));
+	}
+
+}
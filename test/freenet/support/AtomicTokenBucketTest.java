@@ -0,0 +1,234 @@
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+public class AtomicTokenBucketTest extends TestCase {
+
+	/** One token per millisecond. */
+	private static final long NANOS_PER_TICK = MILLISECONDS.toNanos(1);
+
+	private volatile long time = 1000 * SECONDS.toNanos(1);
+
+	/** Uses our clock rather than the real one. */
+	private class TestBucket extends AtomicTokenBucket {
+
+		TestBucket(AtomicTokenBucket parent, long max, long nanosPerTick, long initialValue) {
+			super(parent, max, nanosPerTick, initialValue);
+		}
+
+		@Override
+		protected long now() {
+			return time;
+		}
+
+	}
+
+	private void advance(long millis) {
+		time += MILLISECONDS.toNanos(millis);
+	}
+
+	public void testGrabAndRefill() {
+		AtomicTokenBucket bucket = new TestBucket(null, 1000, NANOS_PER_TICK, 0);
+		assertEquals(0, bucket.getCount());
+		assertFalse(bucket.canGrab(1));
+		advance(500);
+		assertEquals(500, bucket.getCount());
+		assertTrue(bucket.canGrab(500));
+		assertFalse(bucket.canGrab(501));
+		advance(10000);
+		// No more than the size of the bucket.
+		assertEquals(1000, bucket.getCount());
+		bucket.forceGrab(1500);
+		assertEquals(-500, bucket.getCount());
+		assertEquals(500, bucket.getDeficit());
+		assertEquals(1500, bucket.getTaken());
+		advance(700);
+		assertEquals(200, bucket.getCount());
+		assertEquals(0, bucket.getDeficit());
+		assertEquals(1000, bucket.getRate());
+	}
+
+	public void testInitialValue() {
+		assertEquals(300, new TestBucket(null, 1000, NANOS_PER_TICK, 300).getCount());
+		assertEquals(1000, new TestBucket(null, 1000, NANOS_PER_TICK, 5000).getCount());
+	}
+
+	/** A child over its own rate can't take what its sibling is guaranteed. */
+	public void testBorrowing() {
+		AtomicTokenBucket parent = new TestBucket(null, 1000, NANOS_PER_TICK, 1000);
+		AtomicTokenBucket bulk = new TestBucket(parent, 500, NANOS_PER_TICK * 2, 500);
+		AtomicTokenBucket realTime = new TestBucket(parent, 500, NANOS_PER_TICK * 2, 500);
+		bulk.forceGrab(500);
+		assertEquals(0, bulk.getCount());
+		assertEquals(500, parent.getCount());
+		// The parent only has its bottom half left, which is kept for children within their rate.
+		assertFalse(bulk.canGrab(100));
+		assertTrue(realTime.canGrab(100));
+		advance(500);
+		// The parent is full again, so bulk can borrow from the top half.
+		assertEquals(1000, parent.getCount());
+		assertEquals(250, bulk.getCount());
+		assertTrue(bulk.canGrab(300));
+		bulk.forceGrab(300);
+		assertEquals(-50, bulk.getCount());
+		assertEquals(50, bulk.getDeficit());
+		assertEquals(700, parent.getCount());
+		assertFalse(bulk.canGrab(300));
+		assertTrue(realTime.canGrab(300));
+		// Within its own rate, but the parent doesn't have enough.
+		realTime.forceGrab(500);
+		assertEquals(200, parent.getCount());
+		advance(500);
+		assertEquals(250, realTime.getCount());
+		assertTrue(realTime.canGrab(250));
+		parent.forceGrab(700);
+		assertFalse(realTime.canGrab(250));
+	}
+
+	/** If half the parent isn't enough for a grab, the child can borrow when the parent is full. */
+	public void testBorrowingSmallParent() {
+		AtomicTokenBucket parent = new TestBucket(null, 1000, NANOS_PER_TICK, 1000);
+		AtomicTokenBucket child = new TestBucket(parent, 500, NANOS_PER_TICK * 2, 0);
+		assertTrue(child.canGrab(800));
+		parent.forceGrab(1);
+		assertFalse(child.canGrab(800));
+		assertTrue(child.nanosUntilCanGrab(800) > 0);
+		assertTrue(child.nanosUntilCanGrab(800) <= MILLISECONDS.toNanos(1));
+	}
+
+	/** A single busy class, in a total/network/class hierarchy like OutputThrottle's, can use
+	 * nearly all of the total rate by borrowing from the total when its network is over its rate
+	 * too. */
+	public void testBorrowingThreeLevels() {
+		AtomicTokenBucket total = new TestBucket(null, 10000, NANOS_PER_TICK, 0);
+		AtomicTokenBucket network = new TestBucket(total, 5000, NANOS_PER_TICK * 2, 0);
+		AtomicTokenBucket idleNetwork = new TestBucket(total, 5000, NANOS_PER_TICK * 2, 0);
+		AtomicTokenBucket busy = new TestBucket(network, 2500, NANOS_PER_TICK * 4, 0);
+		AtomicTokenBucket realTime = new TestBucket(network, 2500, NANOS_PER_TICK * 4, 0);
+		// Let the total fill up to its lending threshold first.
+		for(int i=0;i<10000;i++) {
+			advance(1);
+			while(busy.canGrab(100))
+				busy.forceGrab(100);
+		}
+		final int MILLIS = 20000;
+		long sent = 0;
+		for(int i=0;i<MILLIS;i++) {
+			advance(1);
+			while(busy.canGrab(100)) {
+				busy.forceGrab(100);
+				sent += 100;
+			}
+		}
+		// One token per millisecond.
+		assertTrue("Sent only "+sent+" in "+MILLIS+"ms", sent >= MILLIS * 0.99);
+		assertTrue(sent <= MILLIS + 100);
+		assertTrue(busy.nanosUntilCanGrab(100) <= MILLISECONDS.toNanos(100));
+		// The idle network's guaranteed share is still there when it wants it.
+		assertTrue(idleNetwork.canGrab(100));
+		// So is the busy class's sibling's: borrowing from the total doesn't drain the network.
+		assertTrue(network.getCount() >= 0);
+		assertTrue(realTime.canGrab(100));
+	}
+
+	public void testNanosUntilCanGrab() {
+		AtomicTokenBucket bucket = new TestBucket(null, 1000, NANOS_PER_TICK, 0);
+		assertEquals(MILLISECONDS.toNanos(100), bucket.nanosUntilCanGrab(100));
+		advance(100);
+		assertEquals(0, bucket.nanosUntilCanGrab(100));
+		assertEquals(Long.MAX_VALUE, bucket.nanosUntilCanGrab(2000));
+	}
+
+	public void testChangeRate() {
+		AtomicTokenBucket bucket = new TestBucket(null, 1000, NANOS_PER_TICK, 600);
+		bucket.changeNanosAndBucketSize(NANOS_PER_TICK / 2, 2000);
+		assertEquals(600, bucket.getCount());
+		assertEquals(2000, bucket.getRate());
+		advance(100);
+		assertEquals(800, bucket.getCount());
+		bucket.changeNanosAndBucketSize(NANOS_PER_TICK, 500);
+		assertEquals(500, bucket.getCount());
+	}
+
+	public void testConcurrent() throws InterruptedException {
+		final AtomicTokenBucket parent = new TestBucket(null, 1000, NANOS_PER_TICK, 0);
+		final AtomicTokenBucket child = new TestBucket(parent, 1000, NANOS_PER_TICK, 0);
+		final int THREADS = 8;
+		final int GRABS = 10000;
+		Thread[] threads = new Thread[THREADS];
+		for(int i=0;i<THREADS;i++) {
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for(int j=0;j<GRABS;j++)
+						child.forceGrab(3);
+				}
+
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		// The clock didn't move, so every grab is a deficit.
+		assertEquals(THREADS * GRABS * 3, child.getDeficit());
+		assertEquals(THREADS * GRABS * 3, parent.getDeficit());
+		assertEquals(THREADS * GRABS * 3, parent.getTaken());
+	}
+
+	/** Many threads checking and charging a packet at a time, as PacketSender and the
+	 * transports do: the old synchronized TokenBucket, and a hierarchy of AtomicTokenBuckets. */
+	@SuppressWarnings("deprecation")
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int PACKETS = 200000;
+		final long nanosPerTick = 1;
+		for(int threadCount : new int[] { 1, 4, 16 }) {
+			for(final boolean locked : new boolean[] { true, false }) {
+				final TokenBucket old = new TokenBucket(1 << 20, nanosPerTick, 0);
+				final AtomicTokenBucket total = new AtomicTokenBucket(1 << 20, nanosPerTick, 0);
+				final AtomicTokenBucket network = new AtomicTokenBucket(total, 1 << 19, nanosPerTick * 2, 0);
+				final AtomicTokenBucket bulk = new AtomicTokenBucket(network, 1 << 18, nanosPerTick * 4, 0);
+				final CountDownLatch start = new CountDownLatch(1);
+				Thread[] threads = new Thread[threadCount];
+				for(int i=0;i<threadCount;i++) {
+					threads[i] = new Thread() {
+
+						@Override
+						public void run() {
+							try {
+								start.await();
+							} catch (InterruptedException e) {
+								return;
+							}
+							for(int j=0;j<PACKETS;j++) {
+								if(locked) {
+									if(old.getCount() > 1400)
+										old.forceGrab(1400);
+								} else {
+									if(bulk.canGrab(1400))
+										bulk.forceGrab(1400);
+								}
+							}
+						}
+
+					};
+					threads[i].start();
+				}
+				long startTime = System.nanoTime();
+				start.countDown();
+				for(Thread t : threads)
+					t.join();
+				long nanos = System.nanoTime() - startTime;
+				System.out.println(threadCount+" threads, "+(locked ? "synchronized TokenBucket" :
+					"AtomicTokenBucket (3 levels)")+": "+(nanos / ((long) PACKETS * threadCount))+"ns per packet");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,272 @@
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.FileUtil;
+
+public class FileLoggerHookTest extends TestCase {
+
+	private static final int THREADS = 64;
+
+	private final File base = new File("tmp.file-logger-hook-test");
+
+	@Override
+	public void setUp() {
+		base.mkdir();
+	}
+
+	@Override
+	public void tearDown() {
+		FileUtil.removeAll(base);
+	}
+
+	/** Discards everything written. */
+	private static class NullOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) {
+			// Ignore.
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) {
+			// Ignore.
+		}
+
+	}
+
+	private static String read(InputStream is) throws IOException {
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			FileUtil.copy(is, os, -1);
+			return os.toString("UTF-8");
+		} finally {
+			is.close();
+		}
+	}
+
+	private File waitForFile(String suffix) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(System.currentTimeMillis() < deadline) {
+			for(File f : base.listFiles())
+				if(f.getName().endsWith(suffix)) return f;
+			Thread.sleep(10);
+		}
+		return null;
+	}
+
+	private static FileLoggerHook rotatingHook(File base) throws Exception {
+		return new FileLoggerHook(true, base.getPath(), "m", "", "HOUR", LogLevel.NORMAL, true, 
+				true, 1L << 30, 100000);
+	}
+
+	private static String waitForOutput(ByteArrayOutputStream os, int lines) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(true) {
+			String output = os.toString("UTF-8");
+			int count = 0;
+			for(int i=0;i<output.length();i++)
+				if(output.charAt(i) == '\n') count++;
+			if(count >= lines || System.currentTimeMillis() > deadline) return output;
+			Thread.sleep(10);
+		}
+	}
+
+	public void testFormat() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "p: m", "", LogLevel.NORMAL);
+		hook.start();
+		hook.log(this, "one", LogLevel.NORMAL);
+		hook.log(this, "hidden", LogLevel.MINOR);
+		hook.log(this, "two", LogLevel.ERROR);
+		String output = waitForOutput(os, 2);
+		hook.close();
+		assertEquals("NORMAL: one\nERROR: two\n", output);
+		assertEquals(0, hook.getDroppedRecords());
+	}
+
+	public void testDropWhenFull() throws Exception {
+		// Not started, so nothing is written.
+		FileLoggerHook hook = new FileLoggerHook(new NullOutputStream(), "m", "", LogLevel.NORMAL);
+		hook.setMaxListBytes(10000);
+		for(int i=0;i<1000;i++)
+			hook.log(this, "Message "+i, LogLevel.NORMAL);
+		assertTrue(hook.listBytes() <= 10000);
+		assertTrue(hook.getQueuedRecords() > 0);
+		assertEquals(1000, hook.getQueuedRecords() + hook.getDroppedRecords());
+	}
+
+	public void testConcurrent() throws Exception {
+		final int PER_THREAD = 100;
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final FileLoggerHook hook = new FileLoggerHook(os, "m", "", LogLevel.NORMAL);
+		hook.start();
+		final LoggerHookChain chain = new LoggerHookChain();
+		chain.addHook(hook);
+		Thread[] threads = new Thread[THREADS];
+		for(int i=0;i<THREADS;i++) {
+			final int thread = i;
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					for(int j=0;j<PER_THREAD;j++)
+						chain.log(this, thread+" "+j, LogLevel.NORMAL);
+				}
+
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		String output = waitForOutput(os, THREADS * PER_THREAD);
+		hook.close();
+		assertEquals(0, hook.getDroppedRecords());
+		// Each thread's messages are written in order.
+		int[] next = new int[THREADS];
+		for(String line : output.split("\n")) {
+			String[] split = line.split(" ");
+			int thread = Integer.parseInt(split[0]);
+			assertEquals(next[thread]++, Integer.parseInt(split[1]));
+		}
+		for(int i=0;i<THREADS;i++)
+			assertEquals(PER_THREAD, next[i]);
+	}
+
+	/** The hourly log is written uncompressed, and compressed in the background once it is 
+	 * rotated. */
+	public void testRotate() throws Exception {
+		FileLoggerHook hook = rotatingHook(new File(base, "first"));
+		hook.start();
+		hook.log(this, "one", LogLevel.NORMAL);
+		hook.log(this, "two", LogLevel.NORMAL);
+		Thread.sleep(100);
+		hook.switchBaseFilename(new File(base, "second").getPath());
+		File compressed = waitForFile(".log.gz");
+		assertNotNull(compressed);
+		assertTrue(compressed.getName().startsWith("first-"));
+		assertEquals("\uFEFFone\ntwo\n", read(new GZIPInputStream(new FileInputStream(compressed))));
+		assertFalse(new File(compressed.getPath().substring(0, compressed.getPath().length() - 3)).exists());
+		hook.log(this, "three", LogLevel.NORMAL);
+		hook.close();
+		File current = null;
+		long deadline = System.currentTimeMillis() + 10000;
+		while(current == null && System.currentTimeMillis() < deadline) {
+			for(File f : base.listFiles())
+				if(f.getName().startsWith("second-") && f.getName().endsWith(".log") && f.length() > 3)
+					current = f;
+			Thread.sleep(10);
+		}
+		assertNotNull(current);
+		assertEquals("\uFEFFthree\n", read(new FileInputStream(current)));
+		assertEquals(0, hook.getDroppedRecords());
+	}
+
+	/** 64 threads logging at once, through a lock as the static Logger methods used to, and
+	 * without one. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final int PER_THREAD = 20000;
+		for(final boolean locked : new boolean[] { true, false }) {
+			final FileLoggerHook hook = new FileLoggerHook(new NullOutputStream(),
+					"d (c, t, p): m", "MMM dd, yyyy HH:mm:ss:SSS", LogLevel.NORMAL);
+			hook.start();
+			final LoggerHookChain chain = new LoggerHookChain();
+			chain.addHook(hook);
+			final Object lock = new Object();
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread[] threads = new Thread[THREADS];
+			for(int i=0;i<THREADS;i++) {
+				threads[i] = new Thread() {
+
+					@Override
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						for(int j=0;j<PER_THREAD;j++) {
+							if(locked) {
+								synchronized(lock) {
+									chain.log(this, "Benchmark message "+j, LogLevel.NORMAL);
+								}
+							} else {
+								chain.log(this, "Benchmark message "+j, LogLevel.NORMAL);
+							}
+						}
+					}
+
+				};
+				threads[i].start();
+			}
+			long startTime = System.nanoTime();
+			start.countDown();
+			for(Thread t : threads)
+				t.join();
+			long nanos = System.nanoTime() - startTime;
+			hook.close();
+			long records = (long) THREADS * PER_THREAD;
+			long dropped = hook.getDroppedRecords();
+			System.out.println(THREADS+" threads, "+(locked ? "locked" : "lock-free")+": "+
+					(nanos / records)+"ns per record, "+(records * 1000L * 1000 * 1000 / nanos)+
+					" records/sec logged, "+((records - dropped) * 1000L * 1000 * 1000 / nanos)+
+					" records/sec queued, "+dropped+" dropped");
+		}
+	}
+
+	/** 8 threads logging as fast as they can to a rotating log file, as when debugging. */
+	public void testBenchmarkFile() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final int WRITERS = 8;
+		final int PER_THREAD = 200000;
+		final FileLoggerHook hook = rotatingHook(new File(base, "benchmark"));
+		hook.setMaxListBytes(10 * 1024 * 1024);
+		hook.start();
+		final String message = "Benchmark message from a busy node, about as long as a typical debug log line";
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[WRITERS];
+		for(int i=0;i<WRITERS;i++) {
+			threads[i] = new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for(int j=0;j<PER_THREAD;j++)
+						hook.log(this, message+" "+j, LogLevel.NORMAL);
+				}
+
+			};
+			threads[i].start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		for(Thread t : threads)
+			t.join();
+		long loggedNanos = System.nanoTime() - startTime;
+		while(hook.getQueuedRecords() > 0)
+			Thread.sleep(1);
+		long writtenNanos = System.nanoTime() - startTime;
+		hook.close();
+		long records = (long) WRITERS * PER_THREAD;
+		long dropped = hook.getDroppedRecords();
+		System.out.println(WRITERS+" threads to a file: "+(loggedNanos / records)+"ns per record logged, "+
+				((records - dropped) * 1000L * 1000 * 1000 / writtenNanos)+" records/sec written, "+
+				dropped+" of "+records+" dropped");
+	}
+
+}
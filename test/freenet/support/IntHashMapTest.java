@@ -0,0 +1,65 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class IntHashMapTest extends TestCase {
+
+	public void testPutGetRemove() {
+		IntHashMap<String> map = new IntHashMap<String>();
+		assertTrue(map.isEmpty());
+		assertNull(map.put(1, "one"));
+		assertNull(map.put(-1, "minus one"));
+		assertNull(map.put(Integer.MAX_VALUE, "max"));
+		assertEquals("one", map.put(1, "uno"));
+		assertEquals(3, map.size());
+		assertEquals("uno", map.get(1));
+		assertEquals("minus one", map.get(-1));
+		assertEquals("max", map.get(Integer.MAX_VALUE));
+		assertNull(map.get(0));
+		assertFalse(map.containsKey(0));
+		assertEquals("uno", map.remove(1));
+		assertNull(map.remove(1));
+		assertNull(map.get(1));
+		assertEquals(2, map.size());
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(-1));
+		try {
+			map.put(2, null);
+			fail();
+		} catch (NullPointerException e) {
+			// Expected.
+		}
+	}
+
+	/** Compare with HashMap over many random operations, with keys from a small range so there
+	 * are plenty of collisions and removals from the middle of probe sequences. */
+	public void testRandom() {
+		Random random = new Random(1234);
+		IntHashMap<Integer> map = new IntHashMap<Integer>();
+		HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		for(int i = 0; i < 200000; i++) {
+			int key = random.nextInt(1000) * 4096 - 2000000;
+			switch(random.nextInt(3)) {
+			case 0:
+				assertEquals(expected.put(key, i), map.put(key, i));
+				break;
+			case 1:
+				assertEquals(expected.remove(key), map.remove(key));
+				break;
+			default:
+				assertEquals(expected.get(key), map.get(key));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for(int key : expected.keySet())
+			assertEquals(expected.get(key), map.get(key));
+	}
+
+}
@@ -0,0 +1,74 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class LongHashMapTest extends TestCase {
+
+	public void testPutGetRemove() {
+		LongHashMap<String> map = new LongHashMap<String>();
+		assertTrue(map.isEmpty());
+		assertNull(map.put(1, "one"));
+		assertNull(map.put(-1, "minus one"));
+		assertNull(map.put(Long.MAX_VALUE, "max"));
+		assertEquals("one", map.put(1, "uno"));
+		assertEquals(3, map.size());
+		assertEquals("uno", map.get(1));
+		assertEquals("minus one", map.get(-1));
+		assertEquals("max", map.get(Long.MAX_VALUE));
+		assertNull(map.get(0));
+		assertFalse(map.containsKey(0));
+		assertEquals("uno", map.remove(1));
+		assertNull(map.remove(1));
+		assertNull(map.get(1));
+		assertEquals(2, map.size());
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(-1));
+		try {
+			map.put(2, null);
+			fail();
+		} catch (NullPointerException e) {
+			// Expected.
+		}
+	}
+
+	/** Compare with HashMap over many random operations, with keys from a small range so there
+	 * are plenty of collisions and removals from the middle of probe sequences. */
+	public void testRandom() {
+		Random random = new Random(1234);
+		LongHashMap<Integer> map = new LongHashMap<Integer>();
+		HashMap<Long, Integer> expected = new HashMap<Long, Integer>();
+		for(int i = 0; i < 200000; i++) {
+			long key = random.nextInt(1000) * (1L << 40) - (1L << 48);
+			switch(random.nextInt(3)) {
+			case 0:
+				assertEquals(expected.put(key, i), map.put(key, i));
+				break;
+			case 1:
+				assertEquals(expected.remove(key), map.remove(key));
+				break;
+			default:
+				assertEquals(expected.get(key), map.get(key));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for(long key : expected.keySet())
+			assertEquals(expected.get(key), map.get(key));
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for(Integer value : map.values())
+			values.add(value);
+		ArrayList<Integer> expectedValues = new ArrayList<Integer>(expected.values());
+		Collections.sort(values);
+		Collections.sort(expectedValues);
+		assertEquals(expectedValues, values);
+	}
+
+}
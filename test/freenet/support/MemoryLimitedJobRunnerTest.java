@@ -324,6 +324,115 @@ public class MemoryLimitedJobRunnerTest extends TestCase {
         waitForZero(runner);
     }
 
+    /** A small job can start while a big job ahead of it waits for memory. */
+    public void testSmallJobOvertakesBigJob() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(10, 10, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        SynchronousJob running = new SynchronousJob(6, true, completion);
+        SynchronousJob big = new SynchronousJob(6, true, completion);
+        SynchronousJob small = new SynchronousJob(2, true, completion);
+        runner.queueJob(running);
+        runner.queueJob(big);
+        runner.queueJob(small);
+        waitForAllStarted(new SynchronousJob[] { running, small }, completion);
+        assertFalse(big.isStarted());
+        running.setCanFinish();
+        waitForAllStarted(new SynchronousJob[] { big }, completion);
+        small.setCanFinish();
+        big.setCanFinish();
+        waitForAllFinished(new SynchronousJob[] { running, big, small }, completion);
+        waitForZero(runner);
+    }
+    
+    /** Once a big job has been overtaken often enough, smaller jobs must wait for it. */
+    public void testBigJobNotStarved() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(20, 100, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        SynchronousJob running = new SynchronousJob(12, true, completion);
+        SynchronousJob big = new SynchronousJob(12, true, completion);
+        runner.queueJob(running);
+        runner.queueJob(big);
+        SynchronousJob[] small = new SynchronousJob[MemoryLimitedJobRunner.MAX_OVERTAKEN + 1];
+        for(int i=0;i<small.length;i++) {
+            small[i] = new SynchronousJob(1, true, completion);
+            runner.queueJob(small[i]);
+        }
+        SynchronousJob last = small[small.length-1];
+        Thread.sleep(100);
+        for(int i=0;i<small.length-1;i++)
+            assertTrue(small[i].isStarted());
+        assertFalse(last.isStarted());
+        assertFalse(big.isStarted());
+        running.setCanFinish();
+        waitForAllStarted(new SynchronousJob[] { big }, completion);
+        assertFalse(last.isStarted());
+        for(int i=0;i<small.length-1;i++)
+            small[i].setCanFinish();
+        waitForAllStarted(small, completion);
+        big.setCanFinish();
+        last.setCanFinish();
+        waitForAllFinished(small, completion);
+        waitForAllFinished(new SynchronousJob[] { running, big }, completion);
+        waitForZero(runner);
+    }
+    
+    /** The limit also applies when many queued jobs could start at once. */
+    public void testBigJobNotStarvedInOnePass() throws InterruptedException {
+        final Object completion = new Object();
+        // Room for more small jobs than may overtake the big one.
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(40, 1, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        SynchronousJob running = new SynchronousJob(20, true, completion);
+        SynchronousJob big = new SynchronousJob(25, true, completion);
+        runner.queueJob(running);
+        runner.queueJob(big);
+        SynchronousJob[] small = new SynchronousJob[MemoryLimitedJobRunner.MAX_OVERTAKEN + 4];
+        for(int i=0;i<small.length;i++) {
+            small[i] = new SynchronousJob(1, true, completion);
+            runner.queueJob(small[i]);
+        }
+        // Nothing else can start until we allow more threads.
+        runner.setMaxThreads(100);
+        Thread.sleep(100);
+        boolean[] startedFirst = new boolean[small.length];
+        int started = 0;
+        for(int i=0;i<small.length;i++)
+            if(startedFirst[i] = small[i].isStarted()) started++;
+        assertEquals(MemoryLimitedJobRunner.MAX_OVERTAKEN, started);
+        assertFalse(big.isStarted());
+        running.setCanFinish();
+        waitForAllStarted(new SynchronousJob[] { big }, completion);
+        for(int i=0;i<small.length;i++)
+            if(startedFirst[i]) small[i].setCanFinish();
+        waitForAllStarted(small, completion);
+        big.setCanFinish();
+        for(int i=0;i<small.length;i++)
+            if(!startedFirst[i]) small[i].setCanFinish();
+        waitForAllFinished(small, completion);
+        waitForAllFinished(new SynchronousJob[] { running, big }, completion);
+        waitForZero(runner);
+    }
+    
+    public void testReserveThreads() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(10, 4, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        SynchronousJob running = new SynchronousJob(10, true, completion);
+        runner.queueJob(running);
+        waitForAllStarted(new SynchronousJob[] { running }, completion);
+        assertEquals(2, runner.reserveThreads(2));
+        assertEquals(1, runner.reserveThreads(2));
+        assertEquals(0, runner.reserveThreads(2));
+        runner.releaseThreads(3);
+        // Nothing is reserved while a job is queued.
+        SynchronousJob queued = new SynchronousJob(1, true, completion);
+        runner.queueJob(queued);
+        assertEquals(0, runner.reserveThreads(2));
+        running.setCanFinish();
+        queued.setCanFinish();
+        waitForAllFinished(new SynchronousJob[] { running, queued }, completion);
+        waitForZero(runner);
+        assertEquals(0, runner.getRunningThreads());
+    }
+
     protected void checkRunner(MemoryLimitedJobRunner runner) {
         long used = runner.used();
         assertTrue(used <= runner.capacity);
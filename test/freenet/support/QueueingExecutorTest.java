@@ -0,0 +1,186 @@
+package freenet.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+import junit.framework.TestCase;
+
+public class QueueingExecutorTest extends TestCase {
+
+	private static final int NORM = NativeThread.NORM_PRIORITY - 1;
+
+	public void testRunsAllJobs() throws InterruptedException {
+		QueueingExecutor exec = new QueueingExecutor(4);
+		exec.start();
+		final int JOBS = 1000;
+		final CountDownLatch done = new CountDownLatch(JOBS);
+		for(int i=0;i<JOBS;i++) {
+			exec.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					done.countDown();
+				}
+
+			}, "test");
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		int[] running = exec.runningThreads();
+		int[] waiting = exec.waitingThreads();
+		assertTrue(running[NORM] + waiting[NORM] <= 4);
+	}
+
+	public void testQueuesWhenBusy() throws InterruptedException {
+		// Not started, so no watchdog: the queue only drains when threads become free.
+		QueueingExecutor exec = new QueueingExecutor(2);
+		final CountDownLatch block = new CountDownLatch(1);
+		final CountDownLatch blocked = new CountDownLatch(2);
+		for(int i=0;i<2;i++) {
+			exec.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					blocked.countDown();
+					try {
+						block.await();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+
+			}, "blocker");
+		}
+		assertTrue(blocked.await(30, TimeUnit.SECONDS));
+		final AtomicInteger ran = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(5);
+		for(int i=0;i<5;i++) {
+			exec.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					ran.incrementAndGet();
+					done.countDown();
+				}
+
+			}, "queued");
+		}
+		assertEquals(5, exec.queuedJobs()[NORM]);
+		assertEquals(2, exec.runningThreads()[NORM]);
+		assertEquals(0, ran.get());
+		block.countDown();
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, exec.queuedJobs()[NORM]);
+	}
+
+	/** A job waiting for another job at the same priority must not deadlock. */
+	public void testNestedJobs() throws InterruptedException {
+		final QueueingExecutor exec = new QueueingExecutor(1);
+		exec.start();
+		final CountDownLatch inner = new CountDownLatch(1);
+		final CountDownLatch outer = new CountDownLatch(1);
+		exec.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				exec.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						inner.countDown();
+					}
+
+				}, "inner");
+				try {
+					if(inner.await(30, TimeUnit.SECONDS))
+						outer.countDown();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+
+		}, "outer");
+		assertTrue(outer.await(30, TimeUnit.SECONDS));
+	}
+
+	public void testPriorities() throws InterruptedException {
+		QueueingExecutor exec = new QueueingExecutor(2);
+		exec.start();
+		final int[] priorities = new int[2];
+		final CountDownLatch done = new CountDownLatch(2);
+		int i = 0;
+		for(final int prio : new int[] { NativeThread.LOW_PRIORITY, NativeThread.HIGH_PRIORITY }) {
+			final int slot = i++;
+			exec.execute(new PrioRunnable() {
+
+				@Override
+				public void run() {
+					priorities[slot] = Thread.currentThread().getPriority();
+					done.countDown();
+				}
+
+				@Override
+				public int getPriority() {
+					return prio;
+				}
+
+			}, "prio");
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(NativeThread.LOW_PRIORITY, priorities[0]);
+		assertEquals(NativeThread.HIGH_PRIORITY, priorities[1]);
+	}
+
+	/** Compare thread counts and job delay with PooledExecutor under bursts of short jobs. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+
+		for(int round=0;round<2;round++) {
+			PooledExecutor pooled = new PooledExecutor();
+			pooled.start();
+			int pooledThreads = burst(pooled);
+			System.out.println("PooledExecutor: "+pooledThreads+" threads, average delay "+
+					pooled.getAverageJobDelay()+"ms");
+			QueueingExecutor queueing = new QueueingExecutor();
+			queueing.start();
+			int queueingThreads = burst(queueing);
+			System.out.println("QueueingExecutor: "+queueingThreads+" threads, average delay "+
+					queueing.getAverageJobDelay()+"ms");
+		}
+	}
+
+	/** @return The maximum number of threads seen. */
+	private int burst(Executor exec) throws InterruptedException {
+		final int BURSTS = 20;
+		final int JOBS = TestProperty.EXTENSIVE ? 5000 : 1000;
+		int maxThreads = 0;
+		for(int i=0;i<BURSTS;i++) {
+			final CountDownLatch done = new CountDownLatch(JOBS);
+			for(int j=0;j<JOBS;j++) {
+				exec.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						long end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(200);
+						while(System.nanoTime() < end) {
+							// Busy.
+						}
+						done.countDown();
+					}
+
+				}, "burst");
+			}
+			int threads = 0;
+			for(int t : exec.runningThreads())
+				threads += t;
+			for(int t : exec.waitingThreads())
+				threads += t;
+			maxThreads = Math.max(maxThreads, threads);
+			done.await();
+		}
+		return maxThreads;
+	}
+
+}
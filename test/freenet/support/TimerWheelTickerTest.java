@@ -0,0 +1,318 @@
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import freenet.node.FastRunnable;
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+import junit.framework.TestCase;
+
+public class TimerWheelTickerTest extends TestCase {
+
+	private WaitableExecutor realExec;
+
+	private MyTicker ticker;
+
+	private class MyTicker extends TimerWheelTicker {
+
+		private boolean sleeping;
+		private Object sleepSync = new Object();
+
+		public MyTicker(Executor executor, int portNumber) {
+			super(executor, portNumber);
+		}
+
+		@Override
+		protected void sleep(long sleepTime) throws InterruptedException {
+			if(sleepTime == MAX_SLEEP_TIME) {
+				synchronized(sleepSync) {
+					sleeping = true;
+					sleepSync.notifyAll();
+				}
+			}
+			super.sleep(sleepTime);
+			if(sleepTime == MAX_SLEEP_TIME) {
+				synchronized(sleepSync) {
+					sleeping = false;
+				}
+			}
+		}
+
+		public void waitForSleeping() throws InterruptedException {
+			synchronized(sleepSync) {
+				while(!sleeping) {
+					sleepSync.wait();
+				}
+			}
+		}
+
+		public void waitForIdle() throws InterruptedException {
+			// Wait until all jobs have been removed from the queue.
+			while(queuedJobs() > 0) {
+				waitForSleeping();
+			}
+			// Wait until the jobs have actually been started off thread or completed on thread.
+			waitForSleeping();
+		}
+
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		realExec = new WaitableExecutor(new PooledExecutor());
+		ticker = new MyTicker(realExec, 0);
+		ticker.start();
+	}
+
+	private int runCount = 0;
+
+	Runnable simpleRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized(TimerWheelTickerTest.this) {
+				runCount++;
+			}
+		}
+
+	};
+
+	/** Records the order in which jobs run. Run in-line on the ticker thread. */
+	private class OrderedJob implements FastRunnable, PrioRunnable {
+
+		final List<Integer> ran;
+		final int id;
+		final int prio;
+
+		OrderedJob(List<Integer> ran, int id, int prio) {
+			this.ran = ran;
+			this.id = id;
+			this.prio = prio;
+		}
+
+		@Override
+		public void run() {
+			synchronized(ran) {
+				ran.add(id);
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return prio;
+		}
+
+	}
+
+	/** Blocks the ticker thread until unblocked. */
+	private class BlockTickerJob implements FastRunnable {
+
+		private boolean blocking;
+		private boolean proceed;
+
+		@Override
+		public synchronized void run() {
+			blocking = true;
+			notifyAll();
+			while(!proceed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+		}
+
+		public synchronized void waitForBlocking() throws InterruptedException {
+			while(!blocking) {
+				wait();
+			}
+		}
+
+		public synchronized void unblock() {
+			proceed = true;
+			notifyAll();
+		}
+
+	}
+
+	public void testSimple() throws InterruptedException {
+		ticker.queueTimedJob(simpleRunnable, 0);
+		ticker.queueTimedJob(simpleRunnable, "test", 0, true, false);
+		ticker.queueTimedJob(simpleRunnable, "test", 50, true, false);
+		ticker.waitForIdle();
+		realExec.waitForIdle();
+		synchronized(TimerWheelTickerTest.this) {
+			assertEquals(3, runCount);
+		}
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	public void testRemove() throws InterruptedException {
+		BlockTickerJob blocker = new BlockTickerJob();
+		ticker.queueTimedJob(blocker, "Block the ticker", 0, true, false);
+		blocker.waitForBlocking();
+		ticker.queueTimedJob(simpleRunnable, "test", 0, true, false);
+		ticker.queueTimedJob(simpleRunnable, "test", 100000, true, false);
+		assertEquals(2, ticker.queuedJobs());
+		// Only the most recently queued is removed.
+		ticker.removeQueuedJob(simpleRunnable);
+		assertEquals(1, ticker.queuedJobs());
+		// Should not throw.
+		ticker.removeQueuedJob(simpleRunnable);
+		assertEquals(1, ticker.queuedJobs());
+		blocker.unblock();
+		ticker.waitForIdle();
+		realExec.waitForIdle();
+		synchronized(TimerWheelTickerTest.this) {
+			assertEquals(1, runCount);
+		}
+	}
+
+	public void testDeduping() throws InterruptedException {
+		BlockTickerJob blocker = new BlockTickerJob();
+		ticker.queueTimedJob(blocker, "Block the ticker", 0, true, false);
+		blocker.waitForBlocking();
+		long runAt = System.currentTimeMillis();
+		ticker.queueTimedJobAbsolute(simpleRunnable, "De-dupe test", runAt, true, true);
+		ticker.queueTimedJobAbsolute(simpleRunnable, "De-dupe test", runAt+1, true, true);
+		assertEquals(1, ticker.queuedJobs());
+		// An earlier time replaces the queued job.
+		ticker.queueTimedJobAbsolute(simpleRunnable, "De-dupe test", runAt-1, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		blocker.unblock();
+		ticker.waitForIdle();
+		realExec.waitForIdle();
+		synchronized(TimerWheelTickerTest.this) {
+			assertEquals(1, runCount);
+		}
+	}
+
+	/** Jobs on different levels of the wheel run in time order. */
+	public void testOrder() throws InterruptedException {
+		List<Integer> ran = new ArrayList<Integer>();
+		int[] delays = new int[] { 700, 10, 300, 0, 260, 20 };
+		for(int i=0;i<delays.length;i++)
+			ticker.queueTimedJob(new OrderedJob(ran, delays[i], NativeThread.NORM_PRIORITY), "order", delays[i], true, false);
+		long start = System.currentTimeMillis();
+		ticker.waitForIdle();
+		assertTrue(System.currentTimeMillis() - start >= 700);
+		synchronized(ran) {
+			assertEquals(delays.length, ran.size());
+			for(int i=1;i<ran.size();i++)
+				assertTrue(ran.get(i-1) < ran.get(i));
+		}
+	}
+
+	/** Jobs due at the same time are started highest priority first. */
+	public void testPriority() throws InterruptedException {
+		List<Integer> ran = new ArrayList<Integer>();
+		BlockTickerJob blocker = new BlockTickerJob();
+		ticker.queueTimedJob(blocker, "Block the ticker", 0, true, false);
+		blocker.waitForBlocking();
+		long runAt = System.currentTimeMillis();
+		ticker.queueTimedJobAbsolute(new OrderedJob(ran, 1, NativeThread.LOW_PRIORITY), "low", runAt, true, false);
+		ticker.queueTimedJobAbsolute(new OrderedJob(ran, 2, NativeThread.HIGH_PRIORITY), "high", runAt, true, false);
+		ticker.queueTimedJobAbsolute(new OrderedJob(ran, 3, NativeThread.NORM_PRIORITY), "norm", runAt, true, false);
+		blocker.unblock();
+		ticker.waitForIdle();
+		synchronized(ran) {
+			assertEquals(3, ran.size());
+			assertEquals(2, (int) ran.get(0));
+			assertEquals(3, (int) ran.get(1));
+			assertEquals(1, (int) ran.get(2));
+		}
+	}
+
+	/** A job which knows when it should run. */
+	private static class TimedJob implements Runnable {
+
+		final long time;
+
+		TimedJob(long time) {
+			this.time = time;
+		}
+
+		@Override
+		public void run() {
+			// Never run.
+		}
+
+	}
+
+	/** Step an unstarted ticker through cascades at every level, and check that every job comes
+	 * out exactly when it is due. In particular jobs due just before the next level 1 or level 2
+	 * boundary, which are re-filed when a slot is cascaded. */
+	public void testCascadeBoundaries() {
+		TimerWheelTicker t = new TimerWheelTicker(new PooledExecutor(), 0);
+		// The wheel starts at the current time, or just before.
+		long start = System.currentTimeMillis();
+		Random random = new Random(4321);
+		List<TimedJob> jobs = new ArrayList<TimedJob>();
+		final int RANGE = 3 * 256 * 256;
+		for(int i=0;i<3000;i++)
+			jobs.add(new TimedJob(start + 1 + random.nextInt(RANGE)));
+		// Last millisecond of a level 1 slot, and of a level 2 slot.
+		for(long time = (start | 255) + 256; time < start + RANGE; time += 256 * 17)
+			jobs.add(new TimedJob(time));
+		for(long time = (start | 0xFFFF); time < start + RANGE; time += 256 * 256) {
+			jobs.add(new TimedJob(time));
+			jobs.add(new TimedJob(time + 1));
+		}
+		for(TimedJob job : jobs)
+			t.queueTimedJobAbsolute(job, "cascade", job.time, true, false);
+		assertEquals(jobs.size(), t.queuedJobs());
+		int ran = 0;
+		for(long now = start; now <= start + RANGE; now++) {
+			for(Runnable r : t.collectForTest(now)) {
+				assertEquals(((TimedJob) r).time, now);
+				ran++;
+			}
+		}
+		assertEquals(jobs.size(), ran);
+		assertEquals(0, t.queuedJobs());
+	}
+
+	/** Queue and cancel timeouts with 100k pending, compared with PrioritizedTicker. Neither
+	 * ticker is started, so no jobs run. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		final int PENDING = 100000;
+		final int OPS = TestProperty.EXTENSIVE ? 2000000 : 500000;
+		Executor exec = new PooledExecutor();
+		for(int round=0;round<3;round++) {
+			System.out.println("PrioritizedTicker: "+benchmark(new PrioritizedTicker(exec, 0), PENDING, OPS)+
+					"ns per queue and remove with "+PENDING+" pending");
+			System.out.println("TimerWheelTicker: "+benchmark(new TimerWheelTicker(exec, 0), PENDING, OPS)+
+					"ns per queue and remove with "+PENDING+" pending");
+		}
+	}
+
+	private long benchmark(Ticker t, int pending, int ops) {
+		Random random = new Random(1234);
+		Runnable[] jobs = new Runnable[pending];
+		for(int i=0;i<pending;i++) {
+			jobs[i] = new Runnable() {
+
+				@Override
+				public void run() {
+					// Never run.
+				}
+
+			};
+			t.queueTimedJob(jobs[i], "bench", 1000 + random.nextInt(600000), true, false);
+		}
+		long start = System.nanoTime();
+		for(int i=0;i<ops;i++) {
+			// Reschedule a timeout, as when a request completes and another starts.
+			Runnable job = jobs[random.nextInt(pending)];
+			t.removeQueuedJob(job);
+			t.queueTimedJob(job, "bench", 1000 + random.nextInt(600000), true, false);
+		}
+		return (System.nanoTime() - start) / ops;
+	}
+
+}